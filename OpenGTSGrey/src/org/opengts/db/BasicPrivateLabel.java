@@ -58,6 +58,8 @@
 //     -"SendMail.getUserFromEmailAddress" is used to override 'From' email.
 //  2009/09/23  Martin D. Flynn
 //     -Added "getIntProperty".  Added property "topMenu.maximumIconsPerRow".
+//  2010/01/11  Martin D. Flynn
+//     -Default date/time formats are read through RTConfig property handles
 // ----------------------------------------------------------------------------
 // The features this class provides are highly configurable through the external
 // XML file 'private.xml'.  However, this code may also be modified to provide
@@ -641,10 +643,12 @@ public class BasicPrivateLabel
     *** Gets the default date format
     *** @return The default date format
     **/
+    private static RTConfig.StringHandle DefaultDateFormat = 
+        new RTConfig.StringHandle(RTKey.LOCALE_DATEFORMAT, RTKey.DEFAULT_DATEFORMAT);
     public static String getDefaultDateFormat()
     {
         // ie. "yyyy/MM/dd"
-        String fmt = RTConfig.getString(RTKey.LOCALE_DATEFORMAT,RTKey.DEFAULT_DATEFORMAT);
+        String fmt = DefaultDateFormat.getString();
         return ((fmt != null) && !fmt.equals(""))? fmt : DateTime.DEFAULT_DATE_FORMAT;
     }
 
@@ -675,10 +679,12 @@ public class BasicPrivateLabel
     *** Gets the default time format
     *** @return The default time format
     **/
+    private static RTConfig.StringHandle DefaultTimeFormat = 
+        new RTConfig.StringHandle(RTKey.LOCALE_TIMEFORMAT, RTKey.DEFAULT_TIMEFORMAT);
     public static String getDefaultTimeFormat()
     {
         // ie. "HH:mm:ss"
-        String fmt = RTConfig.getString(RTKey.LOCALE_TIMEFORMAT,RTKey.DEFAULT_TIMEFORMAT);
+        String fmt = DefaultTimeFormat.getString();
         return ((fmt != null) && !fmt.equals(""))? fmt : DateTime.DEFAULT_TIME_FORMAT;
     }
 
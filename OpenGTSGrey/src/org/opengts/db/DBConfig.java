@@ -64,6 +64,8 @@
 //     -Renamed 'track.enableCookies' to 'track.requireCookies'
 //  2009/12/16  Martin D. Flynn
 //     -Added method for GTS_HOME validation check [check_GTS_HOME()]
+//  2010/01/11  Martin D. Flynn
+//     -Start the NotificationQueue at servlet and (non-interactive) server startup
 // ----------------------------------------------------------------------------
 package org.opengts.db;
 
@@ -185,6 +187,8 @@ public class DBConfig
     public static final String DCS_PORT_OFFSET                  = "dcs.portOffset";
     public static final String DCS_BIND_INTERFACE               = "dcs.bindInterface";
     public static final String DCS_LISTEN_BACKLOG               = "dcs.listenBacklog";
+    public static final String DCS_SELECTOR_THREADS             = "dcs.selectorThreads";
+    public static final String DCS_SELECTOR_WORKERS             = "dcs.selectorWorkers";
 
     public static final String STARTUP_INIT_CLASS               = "StartupInit.class";
     public static final String STARTUP_INIT_CLASS_old           = "startup.initClass";
@@ -206,6 +210,69 @@ public class DBConfig
     public static final String DEVICE_FUTURE_DATE_MAX_SEC       = "Device.futureDate.maximumSec";
     public static final String DEVICE_INVALID_SPEED_ACTION      = "Device.invalidSpeed.action";
     public static final String DEVICE_INVALID_SPEED_MAX_KPH     = "Device.invalidSpeed.maximumKPH";
+    public static final String DEVICE_BACKGROUND_THREADS        = "Device.backgroundThreads";
+    public static final String DEVICE_BACKGROUND_QUEUE_SIZE     = "Device.backgroundQueueSize";
+    public static final String DEVICE_BACKGROUND_REJECT_POLICY  = "Device.backgroundRejectPolicy";
+
+    public static final String EVENTDATA_WRITE_BEHIND           = "EventData.writeBehind";
+    public static final String EVENTDATA_WRITE_BEHIND_BATCH_SIZE= "EventData.writeBehind.batchSize";
+    public static final String EVENTDATA_WRITE_BEHIND_FLUSH_MS  = "EventData.writeBehind.flushIntervalMS";
+    public static final String EVENTDATA_WRITE_BEHIND_QUEUE_SIZE= "EventData.writeBehind.maxQueueSize";
+    public static final String EVENTDATA_PARTITIONED            = "EventData.partitioned";
+
+    public static final String GEOZONE_INDEX_ENABLED            = "Geozone.indexEnabled";
+    public static final String GEOZONE_INDEX_CHECK_INTERVAL_SEC = "Geozone.indexCheckIntervalSec";
+
+    public static final String DEVICE_CACHE_ENABLED             = "DeviceCache.enabled";
+    public static final String DEVICE_CACHE_MAXIMUM_SIZE        = "DeviceCache.maximumSize";
+    public static final String DEVICE_CACHE_TIMEOUT_SEC         = "DeviceCache.timeoutSec";
+
+    public static final String RGCACHE_ENABLED                  = "ReverseGeocodeCache.enabled";
+    public static final String RGCACHE_MAXIMUM_SIZE             = "ReverseGeocodeCache.maximumSize";
+    public static final String RGCACHE_MAXIMUM_AGE_SEC          = "ReverseGeocodeCache.maximumAgeSec";
+    public static final String RGCACHE_KEY_DECIMALS             = "ReverseGeocodeCache.keyDecimals";
+    public static final String RGCACHE_PERSIST_DIR              = "ReverseGeocodeCache.persistDir";
+
+    public static final String RGQUEUE_ENABLED                  = "ReverseGeocodeQueue.enabled";
+    public static final String RGQUEUE_THREAD_COUNT             = "ReverseGeocodeQueue.threadCount";
+    public static final String RGQUEUE_MAX_QUEUE_SIZE           = "ReverseGeocodeQueue.maxQueueSize";
+    public static final String RGQUEUE_MAX_RATE_PER_SEC         = "ReverseGeocodeQueue.maxRatePerSec";
+    public static final String RGQUEUE_REUSE_SEC                = "ReverseGeocodeQueue.reuseSec";
+    public static final String RGQUEUE_BATCH_SIZE               = "ReverseGeocodeQueue.batchSize";
+
+    public static final String DEVICE_AUTH_CACHE_ENABLED        = "DeviceAuthorizationCache.enabled";
+    public static final String DEVICE_AUTH_CACHE_MAXIMUM_SIZE   = "DeviceAuthorizationCache.maximumSize";
+    public static final String DEVICE_AUTH_CACHE_TIMEOUT_SEC    = "DeviceAuthorizationCache.timeoutSec";
+
+    public static final String TRIP_TRACKER_ENABLED             = "TripTracker.enabled";
+    public static final String TRIP_TRACKER_TRIP_START_TYPE     = "TripTracker.tripStartType";
+    public static final String TRIP_TRACKER_MIN_SPEED_KPH       = "TripTracker.minimumSpeedKPH";
+    public static final String TRIP_TRACKER_MIN_STOPPED_SEC     = "TripTracker.minimumStoppedTime";
+    public static final String TRIP_TRACKER_STOP_ON_IGN_OFF     = "TripTracker.stopOnIgnitionOff";
+    public static final String TRIP_TRACKER_MAXIMUM_DEVICES     = "TripTracker.maximumDevices";
+
+    public static final String ROLLUP_TRACKER_ENABLED           = "RollupTracker.enabled";
+    public static final String ROLLUP_TRACKER_MAXIMUM_DEVICES   = "RollupTracker.maximumDevices";
+
+    public static final String REPORT_PARALLEL_THREADS          = "Report.parallelThreads";
+    public static final String REPORT_PARALLEL_TIMEOUT_SEC      = "Report.timeoutSec";
+
+    // Note: each live map change request waits in a servlet container thread for up to
+    // "EventUpdateFeed.maximumWaitSec" seconds.  "EventUpdateFeed.maximumWaiters" limits the
+    // number of threads held this way (should be well below the container 'maxThreads').
+    public static final String EVENT_FEED_ENABLED               = "EventUpdateFeed.enabled";
+    public static final String EVENT_FEED_POLL_INTERVAL_MS      = "EventUpdateFeed.pollIntervalMS";
+    public static final String EVENT_FEED_MAX_WAIT_SEC          = "EventUpdateFeed.maximumWaitSec";
+    public static final String EVENT_FEED_IDLE_TIMEOUT_SEC      = "EventUpdateFeed.idleTimeoutSec";
+    public static final String EVENT_FEED_MAX_WAITERS           = "EventUpdateFeed.maximumWaiters";
+
+    public static final String NOTIFY_QUEUE_ENABLED             = "NotificationQueue.enabled";
+    public static final String NOTIFY_QUEUE_DIRECTORY           = "NotificationQueue.directory";
+    public static final String NOTIFY_QUEUE_MAX_QUEUE_SIZE      = "NotificationQueue.maxQueueSize";
+    public static final String NOTIFY_QUEUE_BATCH_SIZE          = "NotificationQueue.batchSize";
+    public static final String NOTIFY_QUEUE_COALESCE_SEC        = "NotificationQueue.coalesceSec";
+    public static final String NOTIFY_QUEUE_RETRY_SEC           = "NotificationQueue.retrySec";
+    public static final String NOTIFY_QUEUE_MAX_ATTEMPTS        = "NotificationQueue.maxAttempts";
 
     public static final String TRANSPORT_QUERY_ENABLED          = "Transport.queryEnabled";
     public static final String UNIQUEXID_QUERY_ENABLED          = "UniqueXID.queryEnabled";
@@ -228,6 +295,55 @@ public class DBConfig
         new RTKey.Entry(RULE_IDENTIFIER_MAP_FACTORY     , null                          , "EventIdentifierMapFactory subclass"),
         new RTKey.Entry(DEVICE_FUTURE_DATE_ACTION       , ""                            , "Future Date Action"),
         new RTKey.Entry(DEVICE_FUTURE_DATE_MAX_SEC      , -1L                           , "Future Date Maximm Seconds"),
+        new RTKey.Entry(DEVICE_BACKGROUND_THREADS       , 25                            , "Device background event update threads"),
+        new RTKey.Entry(DEVICE_BACKGROUND_QUEUE_SIZE    , 5000                          , "Device background event update maximum queue size"),
+        new RTKey.Entry(DEVICE_BACKGROUND_REJECT_POLICY , "callerRuns"                  , "Device background queue full policy (callerRuns|discard|discardOldest)"),
+        new RTKey.Entry(EVENTDATA_WRITE_BEHIND          , false                         , "Enable EventData write-behind buffer"),
+        new RTKey.Entry(EVENTDATA_WRITE_BEHIND_BATCH_SIZE, 100                          , "EventData write-behind batch size"),
+        new RTKey.Entry(EVENTDATA_WRITE_BEHIND_FLUSH_MS , 1000L                         , "EventData write-behind flush interval"),
+        new RTKey.Entry(EVENTDATA_WRITE_BEHIND_QUEUE_SIZE, 10000                        , "EventData write-behind maximum queue size"),
+        new RTKey.Entry(EVENTDATA_PARTITIONED           , false                         , "Create EventData with monthly partitions (MySQL)"),
+        new RTKey.Entry(GEOZONE_INDEX_ENABLED           , true                          , "Enable in-memory Geozone index"),
+        new RTKey.Entry(GEOZONE_INDEX_CHECK_INTERVAL_SEC, 60L                           , "Geozone index change check interval"),
+        new RTKey.Entry(DEVICE_CACHE_ENABLED            , false                         , "Enable DCS Device/Account cache"),
+        new RTKey.Entry(DEVICE_CACHE_MAXIMUM_SIZE       , 10000                         , "DCS Device cache maximum size"),
+        new RTKey.Entry(DEVICE_CACHE_TIMEOUT_SEC        , 300L                          , "DCS Device cache entry timeout"),
+        new RTKey.Entry(RGCACHE_ENABLED                 , false                         , "Enable ReverseGeocodeProvider cache"),
+        new RTKey.Entry(RGCACHE_MAXIMUM_SIZE            , 10000                         , "ReverseGeocode cache maximum size"),
+        new RTKey.Entry(RGCACHE_MAXIMUM_AGE_SEC         , 86400L                        , "ReverseGeocode cache entry maximum age"),
+        new RTKey.Entry(RGCACHE_KEY_DECIMALS            , 4                             , "ReverseGeocode cache lat/lon key decimals"),
+        new RTKey.Entry(RGCACHE_PERSIST_DIR             , null                          , "ReverseGeocode cache persistence directory"),
+        new RTKey.Entry(RGQUEUE_ENABLED                 , false                         , "Enable background reverse-geocode queue"),
+        new RTKey.Entry(RGQUEUE_THREAD_COUNT            , 4                             , "Reverse-geocode queue worker threads"),
+        new RTKey.Entry(RGQUEUE_MAX_QUEUE_SIZE          , 10000                         , "Reverse-geocode queue maximum size"),
+        new RTKey.Entry(RGQUEUE_MAX_RATE_PER_SEC        , 0.0                           , "Reverse-geocode maximum rate per provider"),
+        new RTKey.Entry(RGQUEUE_REUSE_SEC               , 600L                          , "Reverse-geocode location reuse seconds"),
+        new RTKey.Entry(RGQUEUE_BATCH_SIZE              , 50                            , "Reverse-geocode update batch size"),
+        new RTKey.Entry(DEVICE_AUTH_CACHE_ENABLED       , true                          , "Enable User Device authorization cache"),
+        new RTKey.Entry(DEVICE_AUTH_CACHE_MAXIMUM_SIZE  , 1000                          , "User Device authorization cache maximum size"),
+        new RTKey.Entry(DEVICE_AUTH_CACHE_TIMEOUT_SEC   , 60L                           , "User Device authorization cache timeout"),
+        new RTKey.Entry(TRIP_TRACKER_ENABLED            , false                         , "Enable incremental trip tracking"),
+        new RTKey.Entry(TRIP_TRACKER_TRIP_START_TYPE    , "speed"                       , "Trip tracker trip start type"),
+        new RTKey.Entry(TRIP_TRACKER_MIN_SPEED_KPH      , 5.0                           , "Trip tracker minimum speed (speed only)"),
+        new RTKey.Entry(TRIP_TRACKER_MIN_STOPPED_SEC    , 300L                          , "Trip tracker minimum stopped time (speed only)"),
+        new RTKey.Entry(TRIP_TRACKER_STOP_ON_IGN_OFF    , false                         , "Trip tracker stop on ignition off"),
+        new RTKey.Entry(TRIP_TRACKER_MAXIMUM_DEVICES    , 10000                         , "Trip tracker maximum tracked devices"),
+        new RTKey.Entry(ROLLUP_TRACKER_ENABLED          , false                         , "Enable incremental daily rollups"),
+        new RTKey.Entry(ROLLUP_TRACKER_MAXIMUM_DEVICES  , 10000                         , "Daily rollup maximum cached devices"),
+        new RTKey.Entry(REPORT_PARALLEL_THREADS         , 4                             , "Maximum report threads (parallel Device selection)"),
+        new RTKey.Entry(REPORT_PARALLEL_TIMEOUT_SEC     , 300L                          , "Report Device selection timeout"),
+        new RTKey.Entry(EVENT_FEED_ENABLED              , false                         , "Enable live map event update feed"),
+        new RTKey.Entry(EVENT_FEED_POLL_INTERVAL_MS     , 5000L                         , "Event update feed Device poll interval"),
+        new RTKey.Entry(EVENT_FEED_MAX_WAIT_SEC         , 25L                           , "Event update feed maximum request wait"),
+        new RTKey.Entry(EVENT_FEED_IDLE_TIMEOUT_SEC     , 300L                          , "Event update feed idle account timeout"),
+        new RTKey.Entry(EVENT_FEED_MAX_WAITERS          , 50                            , "Event update feed maximum waiting requests (threads)"),
+        new RTKey.Entry(NOTIFY_QUEUE_ENABLED            , false                         , "Send rule email notifications via the notification queue"),
+        new RTKey.Entry(NOTIFY_QUEUE_DIRECTORY          , null                          , "Notification queue persistence directory"),
+        new RTKey.Entry(NOTIFY_QUEUE_MAX_QUEUE_SIZE     , 10000                         , "Notification queue maximum size"),
+        new RTKey.Entry(NOTIFY_QUEUE_BATCH_SIZE         , 20                            , "Notification queue SMTP batch size"),
+        new RTKey.Entry(NOTIFY_QUEUE_COALESCE_SEC       , 300L                          , "Notification queue duplicate coalescing interval"),
+        new RTKey.Entry(NOTIFY_QUEUE_RETRY_SEC          , 60L                           , "Notification queue retry interval"),
+        new RTKey.Entry(NOTIFY_QUEUE_MAX_ATTEMPTS       , 5                             , "Notification queue maximum send attempts"),
         new RTKey.Entry(TRANSPORT_QUERY_ENABLED         , false                         , "Enable DB Transport query"),
         new RTKey.Entry(UNIQUEXID_QUERY_ENABLED         , false                         , "Enable DB UniqueXID query"),
         new RTKey.Entry(DB_DEFAULT_DEVICE_AUTHORIZATION , DEFAULT_DEVICE_AUTHORIZATION  , "Default Device Authoirization"),
@@ -404,6 +520,22 @@ public class DBConfig
             DBAdmin.addTableFactory(tableClassName, false); // optional
         }
 
+        /* Trip tables (optional) */
+        String tripTables[] = new String[] {
+            PACKAGE_TABLES_ + "Trip",
+        };
+        for (String tableClassName : tripTables) {
+            DBAdmin.addTableFactory(tableClassName, false); // optional
+        }
+
+        /* DailyRollup tables (optional) */
+        String rollupTables[] = new String[] {
+            PACKAGE_TABLES_ + "DailyRollup",
+        };
+        for (String tableClassName : rollupTables) {
+            DBAdmin.addTableFactory(tableClassName, false); // optional
+        }
+
         /* BorderCrossing tables (optional) */
         String bcrossTables[] = new String[] {
             PACKAGE_BCROSS_TABLES_ + "BorderCrossing",
@@ -552,6 +684,9 @@ public class DBConfig
         /* db init */
         DBConfig._dbPostInit();
 
+        /* notification queue (sends notifications persisted by a previous run) */
+        NotificationQueue.startupInit();
+
     }
 
     /**
@@ -593,6 +728,11 @@ public class DBConfig
         /* db init */
         DBConfig._dbPostInit();
 
+        /* notification queue (device communication servers only) */
+        if (!interactive) {
+            NotificationQueue.startupInit();
+        }
+
         /* return pointer to next command line arg */
         return nextArg;
 
@@ -24,6 +24,9 @@
 //     -Initial release
 //  2009/11/01  Martin D. Flynn
 //     - Discard duplicate server names (first entry encountered is saved)
+//  2009/12/16  Martin D. Flynn
+//     - Added "selectorThreads"/"selectorWorkers" attributes to enable the 
+//       non-blocking TCP session mode in 'ServerSocketThread'.
 // ----------------------------------------------------------------------------
 package org.opengts.db;
 
@@ -228,6 +231,8 @@ public class DCServerFactory
 
     private static final String ATTR_bindAddress        = "bindAddress";
     private static final String ATTR_backlog            = "backlog";
+    private static final String ATTR_selectorThreads    = "selectorThreads";
+    private static final String ATTR_selectorWorkers    = "selectorWorkers";
     private static final String ATTR_portOffset         = "portOffset";
     private static final String ATTR_name               = "name";
     private static final String ATTR_save               = "save";
@@ -340,6 +345,8 @@ public class DCServerFactory
         if (recurseLvl == 0) {
             BIND_ADDRESS   = XMLTools.getAttribute(   dcsDef, ATTR_bindAddress, BIND_ADDRESS  , true);
             LISTEN_BACKLOG = XMLTools.getAttributeInt(dcsDef, ATTR_backlog    , LISTEN_BACKLOG, true);
+            SELECTOR_THREADS = XMLTools.getAttributeInt(dcsDef, ATTR_selectorThreads, SELECTOR_THREADS, true);
+            SELECTOR_WORKERS = XMLTools.getAttributeInt(dcsDef, ATTR_selectorWorkers, SELECTOR_WORKERS, true);
             PORT_OFFSET    = XMLTools.getAttributeInt(dcsDef, ATTR_portOffset , PORT_OFFSET   , true);
             INCLUDE_DIR    = XMLTools.getAttribute(   dcsDef, ATTR_includeDir , INCLUDE_DIR   , true);
         }
@@ -665,6 +672,14 @@ public class DCServerFactory
     // (how many pending connections are allowed before they start being rejected)
     public static       int     LISTEN_BACKLOG              = -1; // default
 
+    // non-blocking TCP selector threads
+    // (number of Selector threads per TCP port, '0' for one thread per client session)
+    public static       int     SELECTOR_THREADS            = 0;  // default
+
+    // non-blocking TCP session workers
+    // (maximum number of threads running the ClientPacketHandler's in non-blocking mode)
+    public static       int     SELECTOR_WORKERS            = -1; // default
+
     // port offset (used by 'getPort' only)
     // (used to change to general location of all server ports as a group)
     public static       int     PORT_OFFSET                 = 1000;
@@ -724,6 +739,8 @@ public class DCServerFactory
         /* load default values */
         BIND_ADDRESS   = RTConfig.getString(DBConfig.DCS_BIND_INTERFACE, BIND_ADDRESS);
         LISTEN_BACKLOG = RTConfig.getInt(   DBConfig.DCS_LISTEN_BACKLOG, LISTEN_BACKLOG);
+        SELECTOR_THREADS = RTConfig.getInt( DBConfig.DCS_SELECTOR_THREADS, SELECTOR_THREADS);
+        SELECTOR_WORKERS = RTConfig.getInt( DBConfig.DCS_SELECTOR_WORKERS, SELECTOR_WORKERS);
         PORT_OFFSET    = RTConfig.getInt(   DBConfig.DCS_PORT_OFFSET   , PORT_OFFSET);
       
         /* load 'dcserver.xml' */
@@ -775,6 +792,13 @@ public class DCServerFactory
             ServerSocketThread.setListenBacklog(LISTEN_BACKLOG);
         }
 
+        /* ServerSocketThread non-blocking TCP sessions */
+        if (SELECTOR_THREADS > 0) {
+            Print.logInfo("ServerSocketThread Selector threads: " + SELECTOR_THREADS);
+            ServerSocketThread.setSelectorThreadCount(SELECTOR_THREADS);
+            ServerSocketThread.setSelectorWorkerCount(SELECTOR_WORKERS);
+        }
+
     }
 
     // ------------------------------------------------------------------------
@@ -0,0 +1,241 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2009, GeoTelematic Solutions, Inc.
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Per-User cache of authorized Device IDs, used by "User.isAuthorizedDevice"
+// ----------------------------------------------------------------------------
+// Change History:
+//  2010/01/11  Martin D. Flynn
+//     -Initial release
+// ----------------------------------------------------------------------------
+package org.opengts.db;
+
+import java.lang.*;
+import java.util.*;
+
+import org.opengts.util.*;
+import org.opengts.dbtools.*;
+import org.opengts.db.tables.*;
+
+/**
+*** Per-User cache of authorized Device IDs.<br>
+*** When enabled (see <code>DBConfig.DEVICE_AUTH_CACHE_ENABLED</code>), the set of Devices a User
+*** is authorized to access is read once (from the User's GroupList and the DeviceList of each
+*** group), and subsequent calls to "User.isAuthorizedDevice" are answered from memory.
+*** Cached sets are discarded when GroupList, DeviceList, UserDevice, DeviceGroup, Device, or
+*** User records are changed in this JVM, and otherwise expire after a timeout (changes made
+*** by other processes are seen once the cached set expires).
+**/
+
+public class DeviceAuthorizationCache
+{
+
+    // ------------------------------------------------------------------------
+
+    public  static final int    DEFAULT_MAXIMUM_SIZE    = 1000;
+    public  static final long   DEFAULT_TIMEOUT_SEC     = 60L;
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns true if the authorization cache is enabled
+    *** @return True if the authorization cache is enabled
+    **/
+    public static boolean isEnabled()
+    {
+        return RTConfig.getBoolean(DBConfig.DEVICE_AUTH_CACHE_ENABLED, true);
+    }
+
+    private static long getTimeoutMS()
+    {
+        return RTConfig.getLong(DBConfig.DEVICE_AUTH_CACHE_TIMEOUT_SEC, DEFAULT_TIMEOUT_SEC) * 1000L;
+    }
+
+    // ------------------------------------------------------------------------
+
+    private static class AuthEntry
+    {
+        public boolean      allDevices  = false;    // authorized for all devices
+        public Set<String>  deviceIDs   = null;     // lowercase device IDs (if not 'allDevices')
+        public long         generation  = 0L;       // account generation when loaded
+        public long         userGen     = 0L;       // user generation when loaded
+        public long         loadTimeMS  = 0L;
+        public AuthEntry(boolean allDevices, Set<String> deviceIDs, long generation, long userGen, long loadTimeMS) {
+            this.allDevices = allDevices;
+            this.deviceIDs  = deviceIDs;
+            this.generation = generation;
+            this.userGen    = userGen;
+            this.loadTimeMS = loadTimeMS;
+        }
+    }
+
+    private static final Object                 cacheLock       = new Object();
+    private static final Map<String,Long>       generationMap   = new HashMap<String,Long>();
+    private static final Map<String,Long>       userGenMap      = new HashMap<String,Long>();
+    private static final Map<String,AuthEntry>  userMap         = new LinkedHashMap<String,AuthEntry>(64, 0.75F, true) {
+        protected boolean removeEldestEntry(Map.Entry<String,AuthEntry> eldest) {
+            int maxSize = RTConfig.getInt(DBConfig.DEVICE_AUTH_CACHE_MAXIMUM_SIZE, DEFAULT_MAXIMUM_SIZE);
+            return (this.size() > maxSize);
+        }
+    };
+
+    private static String _acctKey(String acctID)
+    {
+        return StringTools.trim(acctID).toLowerCase();
+    }
+
+    private static String _userKey(String acctID, String userID)
+    {
+        return _acctKey(acctID) + "/" + StringTools.trim(userID).toLowerCase();
+    }
+
+    /* return the current authorization generation for the specified account (cacheLock must be held) */
+    private static long _getGeneration(String acctKey)
+    {
+        Long gen = generationMap.get(acctKey);
+        return (gen != null)? gen.longValue() : 0L;
+    }
+
+    /* return the current authorization generation for the specified user (cacheLock must be held) */
+    private static long _getUserGeneration(String userKey)
+    {
+        Long gen = userGenMap.get(userKey);
+        return (gen != null)? gen.longValue() : 0L;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns true if the specified User is authorized to access the specified Device
+    *** @param user   The User
+    *** @param devID  The Device ID
+    *** @return True if the User is authorized to access the Device
+    *** @throws DBException if a DB access error occurs while loading the authorized Devices
+    **/
+    public static boolean isAuthorizedDevice(User user, String devID)
+        throws DBException
+    {
+        if ((user == null) || StringTools.isBlank(devID)) {
+            return false;
+        }
+        AuthEntry ae = DeviceAuthorizationCache._getEntry(user);
+        return ae.allDevices || ae.deviceIDs.contains(devID.toLowerCase());
+    }
+
+    /**
+    *** Returns true if the specified User is authorized to access all Devices
+    *** @param user   The User
+    *** @return True if the User is authorized to access all Devices
+    *** @throws DBException if a DB access error occurs while loading the authorized Devices
+    **/
+    public static boolean isAuthorizedAllDevices(User user)
+        throws DBException
+    {
+        return (user != null) && DeviceAuthorizationCache._getEntry(user).allDevices;
+    }
+
+    /* get/load the cached authorization entry for the specified User */
+    private static AuthEntry _getEntry(User user)
+        throws DBException
+    {
+        String acctID  = user.getAccountID();
+        String acctKey = _acctKey(acctID);
+        String userKey = _userKey(acctID, user.getUserID());
+        long   nowMS   = System.currentTimeMillis();
+
+        /* check cache */
+        long generation, userGen;
+        synchronized (cacheLock) {
+            generation = _getGeneration(acctKey);
+            userGen    = _getUserGeneration(userKey);
+            AuthEntry ae = userMap.get(userKey);
+            if ((ae != null) && (ae.generation == generation) && (ae.userGen == userGen) && 
+                ((nowMS - ae.loadTimeMS) <= getTimeoutMS())) {
+                return ae;
+            }
+        }
+
+        /* load authorized devices */
+        AuthEntry ae;
+        java.util.List<String> groupList = User.getGroupsForUser(acctID, user.getUserID(), -1L);
+        if (ListTools.isEmpty(groupList)) {
+            // no explicit groups, use default authorization
+            ae = new AuthEntry(user.getDefaultDeviceAuthorization(), new HashSet<String>(), generation, userGen, nowMS);
+        } else
+        if (ListTools.containsIgnoreCase(groupList, DeviceGroup.DEVICE_GROUP_ALL)) {
+            // always authorized for group 'all'
+            ae = new AuthEntry(true, new HashSet<String>(), generation, userGen, nowMS);
+        } else {
+            Set<String> devSet = new HashSet<String>();
+            for (String groupID : groupList) {
+                OrderedSet<String> d = DeviceGroup.getDeviceIDsForGroup(acctID, groupID, null/*User*/);
+                for (String devID : d) {
+                    devSet.add(devID.toLowerCase());
+                }
+            }
+            ae = new AuthEntry(false, devSet, generation, userGen, nowMS);
+        }
+
+        /* cache (unless invalidated while loading) */
+        synchronized (cacheLock) {
+            if ((_getGeneration(acctKey) == generation) && (_getUserGeneration(userKey) == userGen)) {
+                userMap.put(userKey, ae);
+            }
+        }
+        return ae;
+
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Discards the cached authorizations for all Users of the specified Account
+    *** (called when DeviceList, DeviceGroup, or Device records change)
+    *** @param acctID  The Account ID
+    **/
+    public static void invalidateAccount(String acctID)
+    {
+        if (StringTools.isBlank(acctID)) {
+            return;
+        }
+        String acctKey = _acctKey(acctID);
+        synchronized (cacheLock) {
+            generationMap.put(acctKey, new Long(_getGeneration(acctKey) + 1L));
+        }
+    }
+
+    /**
+    *** Discards the cached authorizations for the specified User
+    *** (called when GroupList, UserDevice, or User records change)
+    *** @param acctID  The Account ID
+    *** @param userID  The User ID
+    **/
+    public static void invalidateUser(String acctID, String userID)
+    {
+        if (StringTools.isBlank(acctID)) {
+            return;
+        }
+        String userKey = _userKey(acctID, userID);
+        synchronized (cacheLock) {
+            // a load already in progress for this user will not be cached
+            userGenMap.put(userKey, new Long(_getUserGeneration(userKey) + 1L));
+            userMap.remove(userKey);
+        }
+    }
+
+}
@@ -0,0 +1,427 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2009, GeoTelematic Solutions, Inc.
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Device/Account identity cache used by Device Communication Servers to resolve
+//  Unique-IDs and Account/Transport IDs to Device records without querying the DB.
+// ----------------------------------------------------------------------------
+// Change History:
+//  2010/01/11  Martin D. Flynn
+//     -Initial release
+// ----------------------------------------------------------------------------
+package org.opengts.db;
+
+import java.lang.*;
+import java.util.*;
+
+import org.opengts.util.*;
+import org.opengts.dbtools.*;
+import org.opengts.db.tables.*;
+
+/**
+*** Device/Account identity cache for Device Communication Servers.<br>
+*** When enabled (see <code>DBConfig.DEVICE_CACHE_ENABLED</code>), Devices located by
+*** "Transport.loadDeviceByUniqueID" and "Transport.loadDeviceByTransportID" are cached
+*** by Unique-ID and by Account/Transport-ID.  Each lookup returns a private copy of the
+*** cached Device record (with the cached Account attached), so that callers may modify
+*** and save the returned Device as before.  When a Device is saved, the cached copy is
+*** refreshed from the saved record.  Cached entries expire after a timeout, and are
+*** discarded when the Device, Transport, or Account records are updated/deleted in this
+*** JVM.  Changes made by other processes (ie. the web interface) are seen once the cached
+*** entries expire.
+**/
+
+public class DeviceIdentityCache
+{
+
+    // ------------------------------------------------------------------------
+
+    public  static final int    DEFAULT_MAXIMUM_SIZE    = 10000;
+    public  static final long   DEFAULT_TIMEOUT_SEC     = 300L;
+
+    private static final String KEY_UNIQUE_ID           = "u:";
+    private static final String KEY_TRANSPORT_ID        = "t:";
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns true if the identity cache is enabled
+    *** @return True if the identity cache is enabled
+    **/
+    public static boolean isEnabled()
+    {
+        return RTConfig.getBoolean(DBConfig.DEVICE_CACHE_ENABLED, false);
+    }
+
+    private static long getTimeoutMS()
+    {
+        return RTConfig.getLong(DBConfig.DEVICE_CACHE_TIMEOUT_SEC, DEFAULT_TIMEOUT_SEC) * 1000L;
+    }
+
+    // ------------------------------------------------------------------------
+
+    private static class DeviceEntry
+    {
+        public String   devKey     = null;  // "account/device"
+        public Device   device     = null;  // cached copy (never returned directly)
+        public long     loadTimeMS = 0L;
+        public DeviceEntry(String devKey, Device device, long loadTimeMS) {
+            this.devKey     = devKey;
+            this.device     = device;
+            this.loadTimeMS = loadTimeMS;
+        }
+    }
+
+    private static class AccountEntry
+    {
+        public Account  account    = null;
+        public long     loadTimeMS = 0L;
+        public AccountEntry(Account account, long loadTimeMS) {
+            this.account    = account;
+            this.loadTimeMS = loadTimeMS;
+        }
+    }
+
+    private static final Object                         cacheLock       = new Object();
+    private static final Map<String,Set<String>>        deviceKeyMap    = new HashMap<String,Set<String>>();
+    private static final Map<String,DeviceEntry>        deviceMap       = new LinkedHashMap<String,DeviceEntry>(256, 0.75F, true) {
+        protected boolean removeEldestEntry(Map.Entry<String,DeviceEntry> eldest) {
+            int maxSize = RTConfig.getInt(DBConfig.DEVICE_CACHE_MAXIMUM_SIZE, DEFAULT_MAXIMUM_SIZE);
+            if (this.size() > maxSize) {
+                DeviceIdentityCache._removeDeviceKey(eldest.getValue().devKey, eldest.getKey());
+                DeviceIdentityCache.evictionCount++;
+                return true;
+            } else {
+                return false;
+            }
+        }
+    };
+    private static final Map<String,AccountEntry>       accountMap      = new HashMap<String,AccountEntry>();
+
+    private static long hitCount        = 0L;
+    private static long missCount       = 0L;
+    private static long evictionCount   = 0L;
+    private static long expiredCount    = 0L;
+
+    /* remove the specified cache key from the "account/device" key map (cacheLock must be held) */
+    private static void _removeDeviceKey(String devKey, String cacheKey)
+    {
+        Set<String> keys = deviceKeyMap.get(devKey);
+        if (keys != null) {
+            keys.remove(cacheKey);
+            if (keys.isEmpty()) {
+                deviceKeyMap.remove(devKey);
+            }
+        }
+    }
+
+    private static String _devKey(String acctID, String devID)
+    {
+        return StringTools.trim(acctID).toLowerCase() + "/" + StringTools.trim(devID).toLowerCase();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Gets a copy of the cached Device for the specified Unique-ID
+    *** @param uniqueID  The Unique-ID
+    *** @return A copy of the cached Device, or null if not cached
+    **/
+    public static Device getDeviceByUniqueID(String uniqueID)
+    {
+        return DeviceIdentityCache._getDevice(KEY_UNIQUE_ID + uniqueID);
+    }
+
+    /**
+    *** Caches the specified Device by Unique-ID
+    *** @param uniqueID  The Unique-ID
+    *** @param device    The Device located by this Unique-ID
+    **/
+    public static void putDeviceByUniqueID(String uniqueID, Device device)
+    {
+        DeviceIdentityCache._putDevice(KEY_UNIQUE_ID + uniqueID, device);
+    }
+
+    /**
+    *** Gets a copy of the cached Device for the specified Account/Transport-ID
+    *** @param acctID   The Account-ID
+    *** @param xportID  The Transport-ID (or Device-ID)
+    *** @return A copy of the cached Device, or null if not cached
+    **/
+    public static Device getDeviceByTransportID(String acctID, String xportID)
+    {
+        return DeviceIdentityCache._getDevice(KEY_TRANSPORT_ID + _devKey(acctID,xportID));
+    }
+
+    /**
+    *** Caches the specified Device by Account/Transport-ID
+    *** @param acctID   The Account-ID
+    *** @param xportID  The Transport-ID (or Device-ID)
+    *** @param device   The Device located by this Account/Transport-ID
+    **/
+    public static void putDeviceByTransportID(String acctID, String xportID, Device device)
+    {
+        DeviceIdentityCache._putDevice(KEY_TRANSPORT_ID + _devKey(acctID,xportID), device);
+    }
+
+    private static Device _getDevice(String cacheKey)
+    {
+        Device dev = null;
+        synchronized (cacheLock) {
+            DeviceEntry de = deviceMap.get(cacheKey);
+            if (de == null) {
+                missCount++;
+                return null;
+            } else
+            if ((System.currentTimeMillis() - de.loadTimeMS) > getTimeoutMS()) {
+                deviceMap.remove(cacheKey);
+                _removeDeviceKey(de.devKey, cacheKey);
+                expiredCount++;
+                missCount++;
+                return null;
+            }
+            hitCount++;
+            dev = DeviceIdentityCache.copyDevice(de.device);
+        }
+        try {
+            dev.setAccount(DeviceIdentityCache.getAccount(dev.getAccountID()));
+        } catch (DBException dbe) {
+            // leave Account to be loaded by the Device
+        }
+        return dev;
+    }
+
+    private static void _putDevice(String cacheKey, Device device)
+    {
+        if (device == null) {
+            return;
+        }
+        Device cacheDev = DeviceIdentityCache.copyDevice(device);
+        String devKey   = _devKey(device.getAccountID(), device.getDeviceID());
+        synchronized (cacheLock) {
+            DeviceEntry old = deviceMap.put(cacheKey, new DeviceEntry(devKey,cacheDev,System.currentTimeMillis()));
+            if ((old != null) && !old.devKey.equals(devKey)) {
+                _removeDeviceKey(old.devKey, cacheKey);
+            }
+            Set<String> keys = deviceKeyMap.get(devKey);
+            if (keys == null) {
+                keys = new HashSet<String>();
+                deviceKeyMap.put(devKey, keys);
+            }
+            keys.add(cacheKey);
+        }
+        if (device.hasAccount()) {
+            DeviceIdentityCache.putAccount(device.getAccount());
+        }
+    }
+
+    /**
+    *** Refreshes the cached copies of the specified (just saved) Device
+    *** @param device  The saved Device record
+    **/
+    public static void deviceUpdated(Device device)
+    {
+        if (device == null) {
+            return;
+        }
+        String devKey = _devKey(device.getAccountID(), device.getDeviceID());
+        synchronized (cacheLock) {
+            Set<String> keys = deviceKeyMap.get(devKey);
+            if (keys != null) {
+                Device cacheDev = null;
+                for (String cacheKey : keys) {
+                    DeviceEntry de = deviceMap.get(cacheKey);
+                    if (de != null) {
+                        if (cacheDev == null) {
+                            cacheDev = DeviceIdentityCache.copyDevice(device);
+                        }
+                        de.device = cacheDev; // keep original load time
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+    *** Removes the specified Device from the cache
+    *** @param acctID  The Account-ID
+    *** @param devID   The Device-ID (null to remove all Devices for the Account)
+    **/
+    public static void invalidateDevice(String acctID, String devID)
+    {
+        synchronized (cacheLock) {
+            if (StringTools.isBlank(devID)) {
+                String pfx = StringTools.trim(acctID).toLowerCase() + "/";
+                for (Iterator<String> i = deviceKeyMap.keySet().iterator(); i.hasNext();) {
+                    String devKey = i.next();
+                    if (StringTools.isBlank(acctID) || devKey.startsWith(pfx)) {
+                        for (String cacheKey : deviceKeyMap.get(devKey)) {
+                            deviceMap.remove(cacheKey);
+                        }
+                        i.remove();
+                    }
+                }
+            } else {
+                Set<String> keys = deviceKeyMap.remove(_devKey(acctID,devID));
+                if (keys != null) {
+                    for (String cacheKey : keys) {
+                        deviceMap.remove(cacheKey);
+                    }
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Gets the cached Account, loading it if necessary.  The returned Account
+    *** instance is shared and should not be modified.
+    *** @param acctID  The Account-ID
+    *** @return The Account, or null if the Account does not exist
+    *** @throws DBException  if a database error occurs
+    **/
+    public static Account getAccount(String acctID)
+        throws DBException
+    {
+        if (StringTools.isBlank(acctID)) {
+            return null;
+        }
+        String key = acctID.trim().toLowerCase();
+        synchronized (cacheLock) {
+            AccountEntry ae = accountMap.get(key);
+            if ((ae != null) && ((System.currentTimeMillis() - ae.loadTimeMS) <= getTimeoutMS())) {
+                hitCount++;
+                return ae.account;
+            }
+            missCount++;
+        }
+        Account account = Account.getAccount(acctID); // may throw DBException
+        DeviceIdentityCache.putAccount(account);
+        return account;
+    }
+
+    /**
+    *** Caches the specified Account
+    *** @param account  The Account to cache
+    **/
+    public static void putAccount(Account account)
+    {
+        if (account != null) {
+            String key = account.getAccountID().toLowerCase();
+            synchronized (cacheLock) {
+                AccountEntry ae = accountMap.get(key);
+                if ((ae == null) || (ae.account != account)) {
+                    accountMap.put(key, new AccountEntry(account,System.currentTimeMillis()));
+                }
+            }
+        }
+    }
+
+    /**
+    *** Removes the specified Account, and all of its Devices, from the cache
+    *** @param acctID  The Account-ID (null to clear the cache)
+    **/
+    public static void invalidateAccount(String acctID)
+    {
+        synchronized (cacheLock) {
+            if (acctID == null) {
+                accountMap.clear();
+                deviceMap.clear();
+                deviceKeyMap.clear();
+                return;
+            }
+            accountMap.remove(acctID.trim().toLowerCase());
+        }
+        DeviceIdentityCache.invalidateDevice(acctID, null);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns a copy of the specified Device record (including any Transport)
+    **/
+    private static Device copyDevice(Device src)
+    {
+        Device dev = new Device(new Device.Key(src.getAccountID(), src.getDeviceID()));
+        DeviceIdentityCache.copyFieldValues(src, dev);
+        DataTransport dxport = src.getDataTransport();
+        if (dxport instanceof Transport) {
+            Transport srcXport = (Transport)dxport;
+            Transport xport = new Transport(new Transport.Key(srcXport.getAccountID(), srcXport.getTransportID()));
+            DeviceIdentityCache.copyFieldValues(srcXport, xport);
+            dev.setTransport(xport);
+        }
+        return dev;
+    }
+
+    private static void copyFieldValues(DBRecord src, DBRecord dst)
+    {
+        DBFieldValues srcVals = src.getRecordKey().getFieldValues();
+        DBFieldValues dstVals = dst.getRecordKey().getFieldValues();
+        DBField fld[] = src.getRecordKey().getFields();
+        for (int i = 0; i < fld.length; i++) {
+            String fn = fld[i].getName();
+            if (srcVals.hasFieldValue(fn)) {
+                dstVals.setFieldValue(fn, srcVals.getFieldValue(fn));
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns the cache hit/miss/eviction statistics
+    *** @return The cache statistics
+    **/
+    public static String getStatistics()
+    {
+        synchronized (cacheLock) {
+            StringBuffer sb = new StringBuffer();
+            sb.append("devices=").append(deviceMap.size());
+            sb.append(", accounts=").append(accountMap.size());
+            sb.append(", hits=").append(hitCount);
+            sb.append(", misses=").append(missCount);
+            sb.append(", evictions=").append(evictionCount);
+            sb.append(", expired=").append(expiredCount);
+            return sb.toString();
+        }
+    }
+
+    public static long getHitCount()
+    {
+        synchronized (cacheLock) {
+            return hitCount;
+        }
+    }
+
+    public static long getMissCount()
+    {
+        synchronized (cacheLock) {
+            return missCount;
+        }
+    }
+
+    public static long getEvictionCount()
+    {
+        synchronized (cacheLock) {
+            return evictionCount;
+        }
+    }
+
+}
@@ -0,0 +1,493 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2009, GeoTelematic Solutions, Inc.
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Write-behind buffer for EventData record insertion.  EventData records are
+//  queued in a bounded in-memory buffer and inserted by a single background
+//  thread using multi-row inserts.
+// ----------------------------------------------------------------------------
+// Change History:
+//  2010/01/11  Martin D. Flynn
+//     -Initial release
+// ----------------------------------------------------------------------------
+package org.opengts.db;
+
+import java.lang.*;
+import java.util.*;
+
+import org.opengts.util.*;
+import org.opengts.dbtools.*;
+import org.opengts.db.tables.*;
+
+/**
+*** Write-behind buffer for EventData record insertion.<br>
+*** When enabled (see <code>DBConfig.EVENTDATA_WRITE_BEHIND</code>), "Device.insertEventData"
+*** queues EventData records here rather than inserting them synchronously.  Queued records
+*** are inserted by a background thread in multi-row batches, when either the batch size
+*** has been reached, or the oldest queued record has been waiting longer than the flush
+*** interval.  When the buffer is full, the calling (DCS handler) thread blocks until space
+*** is available.  Any remaining queued records are inserted at JVM shutdown.<br>
+*** As with <code>EventData.save()</code>, a queued record which already exists in the EventData
+*** table (ie. a retransmitted event) replaces the existing record (see <code>DBRecord.saveRecords</code>).<br>
+*** Transient database errors (ie. lost connection, deadlock) cause the batch to be retried.
+*** Records which fail with a non-transient error (ie. invalid data) are isolated by inserting
+*** the batch records individually, and the failing records are logged and dropped.<br>
+*** Note: event rules are still checked synchronously, in event order, by the calling thread,
+*** however a rule which queries the EventData table may not yet see recently queued events.
+*** Components which recompute values from the EventData table (ie. TripTracker, RollupTracker)
+*** should merge the records which are queued, but not yet inserted (see <code>getPendingEvents</code>).
+**/
+
+public class EventDataWriter
+    implements Runnable
+{
+
+    // ------------------------------------------------------------------------
+
+    public  static final int    DEFAULT_BATCH_SIZE          = 100;
+    public  static final long   DEFAULT_FLUSH_INTERVAL_MS   = 1000L;
+    public  static final int    DEFAULT_MAX_QUEUE_SIZE      = 10000;
+
+    private static final int    MAX_BATCH_SIZE              = 1000;  // SQLServer multi-row limit
+    private static final long   RETRY_INTERVAL_MS           = 5000L;
+    private static final int    SHUTDOWN_RETRY_COUNT        = 3;     // transient retries after stop
+
+    // ------------------------------------------------------------------------
+
+    private static EventDataWriter eventDataWriter = null;
+
+    /**
+    *** Returns true if the EventData write-behind buffer has been enabled
+    *** @return True if the EventData write-behind buffer has been enabled
+    **/
+    public static boolean isEnabled()
+    {
+        return RTConfig.getBoolean(DBConfig.EVENTDATA_WRITE_BEHIND, false);
+    }
+
+    /**
+    *** Gets the global EventData write-behind buffer instance (started on first use)
+    *** @return The EventDataWriter instance
+    **/
+    public static EventDataWriter getInstance()
+    {
+        synchronized (EventDataWriter.class) {
+            if (eventDataWriter == null) {
+                eventDataWriter = new EventDataWriter(
+                    RTConfig.getInt( DBConfig.EVENTDATA_WRITE_BEHIND_BATCH_SIZE , DEFAULT_BATCH_SIZE),
+                    RTConfig.getLong(DBConfig.EVENTDATA_WRITE_BEHIND_FLUSH_MS   , DEFAULT_FLUSH_INTERVAL_MS),
+                    RTConfig.getInt( DBConfig.EVENTDATA_WRITE_BEHIND_QUEUE_SIZE , DEFAULT_MAX_QUEUE_SIZE));
+                eventDataWriter.start();
+            }
+            return eventDataWriter;
+        }
+    }
+
+    /**
+    *** Returns the specified events merged with the EventData records for the specified Device and
+    *** time range which have been queued in the global write-behind buffer, but have not yet been
+    *** inserted.  The returned list is sorted by timestamp, and contains a single record for each
+    *** timestamp/statusCode (the most recently received record).
+    *** @param acctID     The Account ID
+    *** @param devID      The Device ID
+    *** @param timeStart  The range start time (inclusive)
+    *** @param timeEnd    The range end time (inclusive)
+    *** @param events     Additional received events to include (may be null)
+    *** @return The sorted list of pending events (does not return null)
+    **/
+    public static java.util.List<EventData> getPendingEvents(String acctID, String devID, 
+        long timeStart, long timeEnd, java.util.List<EventData> events)
+    {
+        Map<String,EventData> evMap = new HashMap<String,EventData>();
+        EventDataWriter edw;
+        synchronized (EventDataWriter.class) {
+            edw = eventDataWriter;
+        }
+        if (edw != null) {
+            for (EventData ev : edw.getQueuedEvents(acctID, devID, timeStart, timeEnd)) {
+                evMap.put(ev.getTimestamp() + "/" + ev.getStatusCode(), ev);
+            }
+        }
+        if (events != null) {
+            for (EventData ev : events) {
+                evMap.put(ev.getTimestamp() + "/" + ev.getStatusCode(), ev); // received last
+            }
+        }
+        java.util.List<EventData> list = new Vector<EventData>(evMap.values());
+        Collections.sort(list, new Comparator<EventData>() {
+            public int compare(EventData e1, EventData e2) {
+                long t1 = e1.getTimestamp(), t2 = e2.getTimestamp();
+                return (t1 < t2)? -1 : (t1 > t2)? 1 : (e1.getStatusCode() - e2.getStatusCode());
+            }
+        });
+        return list;
+    }
+
+    /**
+    *** Inserts any queued EventData records and stops the global write-behind buffer.
+    *** (called automatically at JVM shutdown)
+    **/
+    public static void shutdown()
+    {
+        EventDataWriter edw;
+        synchronized (EventDataWriter.class) {
+            edw = eventDataWriter;
+            eventDataWriter = null;
+        }
+        if (edw != null) {
+            edw.stop();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private int                     batchSize       = DEFAULT_BATCH_SIZE;
+    private long                    flushIntervalMS = DEFAULT_FLUSH_INTERVAL_MS;
+    private int                     maxQueueSize    = DEFAULT_MAX_QUEUE_SIZE;
+
+    private java.util.List<EventData> queue         = new LinkedList<EventData>();
+    private EventData               inFlight[]      = null;     // batch currently being inserted
+    private long                    oldestQueueTime = 0L;
+    private boolean                 isRunning       = false;
+    private Thread                  writerThread    = null;
+    private Thread                  shutdownHook    = null;
+
+    private long                    insertCount     = 0L;
+    private long                    batchCount      = 0L;
+    private long                    blockedCount    = 0L;
+    private long                    retryCount      = 0L;
+    private long                    droppedCount    = 0L;
+
+    /**
+    *** Constructor
+    *** @param batchSize       The maximum number of records per multi-row insert
+    *** @param flushIntervalMS The maximum time a record may wait in the queue before being inserted
+    *** @param maxQueueSize    The maximum number of queued records
+    **/
+    public EventDataWriter(int batchSize, long flushIntervalMS, int maxQueueSize)
+    {
+        this.batchSize       = Math.max(1, Math.min(batchSize, MAX_BATCH_SIZE));
+        this.flushIntervalMS = Math.max(10L, flushIntervalMS);
+        this.maxQueueSize    = Math.max(this.batchSize, maxQueueSize);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Starts the background insertion thread
+    **/
+    public void start()
+    {
+        synchronized (this.queue) {
+            if (this.isRunning) {
+                return;
+            }
+            this.isRunning = true;
+        }
+        this.writerThread = new Thread(this, "EventDataWriter");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+        this.shutdownHook = new Thread("EventDataWriter-shutdown") {
+            public void run() {
+                EventDataWriter.this.stop();
+            }
+        };
+        try {
+            Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+        } catch (IllegalStateException ise) {
+            // already shutting down
+        }
+        Print.logInfo("EventData write-behind started [batch=%d, flush=%dms, queue=%d]",
+            this.batchSize, this.flushIntervalMS, this.maxQueueSize);
+    }
+
+    /**
+    *** Stops the background insertion thread, after inserting all queued records
+    **/
+    public void stop()
+    {
+        synchronized (this.queue) {
+            if (!this.isRunning) {
+                return;
+            }
+            this.isRunning = false;
+            this.queue.notifyAll();
+        }
+        if ((this.writerThread != null) && (this.writerThread != Thread.currentThread())) {
+            try {
+                this.writerThread.join();
+            } catch (InterruptedException ie) {
+                // ignore
+            }
+        }
+        if ((this.shutdownHook != null) && (this.shutdownHook != Thread.currentThread())) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+            } catch (IllegalStateException ise) {
+                // already shutting down
+            }
+        }
+        Print.logInfo("EventData write-behind stopped [%s]", this.toString());
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Queues the specified EventData record for insertion.  If the buffer is full, this
+    *** method blocks until space becomes available.  The record creation time is set by
+    *** the calling thread, the record should not be modified after it has been queued.
+    *** @param evdb  The EventData record to insert
+    *** @return True if the record was queued, false if the buffer has been stopped
+    **/
+    public boolean add(EventData evdb)
+    {
+        if (evdb == null) {
+            return false;
+        }
+        synchronized (this.queue) {
+            if (this.queue.size() >= this.maxQueueSize) {
+                this.blockedCount++;
+                Print.logWarn("EventData write-behind buffer full, waiting ...");
+                while (this.isRunning && (this.queue.size() >= this.maxQueueSize)) {
+                    try { this.queue.wait(); } catch (InterruptedException ie) { /*ignore*/ }
+                }
+            }
+            if (!this.isRunning) {
+                return false;
+            }
+            evdb.setInsertTime(); // stamped by caller, not the writer thread
+            if (this.queue.isEmpty()) {
+                this.oldestQueueTime = System.currentTimeMillis();
+            }
+            this.queue.add(evdb);
+            if (this.queue.size() >= this.batchSize) {
+                this.queue.notifyAll();
+            }
+            return true;
+        }
+    }
+
+    /**
+    *** Returns the number of currently queued records
+    *** @return The number of currently queued records
+    **/
+    public int getQueueSize()
+    {
+        synchronized (this.queue) {
+            return this.queue.size();
+        }
+    }
+
+    /**
+    *** Returns the records for the specified Device and time range which are queued, or are
+    *** currently being inserted (in queue order)
+    *** @param acctID     The Account ID
+    *** @param devID      The Device ID
+    *** @param timeStart  The range start time (inclusive)
+    *** @param timeEnd    The range end time (inclusive)
+    *** @return The list of queued records
+    **/
+    public java.util.List<EventData> getQueuedEvents(String acctID, String devID, long timeStart, long timeEnd)
+    {
+        java.util.List<EventData> list = new Vector<EventData>();
+        synchronized (this.queue) {
+            if (this.inFlight != null) {
+                for (int i = 0; i < this.inFlight.length; i++) {
+                    if (EventDataWriter._isDeviceEvent(this.inFlight[i], acctID, devID, timeStart, timeEnd)) {
+                        list.add(this.inFlight[i]);
+                    }
+                }
+            }
+            for (EventData ev : this.queue) {
+                if (EventDataWriter._isDeviceEvent(ev, acctID, devID, timeStart, timeEnd)) {
+                    list.add(ev);
+                }
+            }
+        }
+        return list;
+    }
+
+    private static boolean _isDeviceEvent(EventData ev, String acctID, String devID, long timeStart, long timeEnd)
+    {
+        long ts = ev.getTimestamp();
+        return (ts >= timeStart) && (ts <= timeEnd) && 
+            ev.getDeviceID().equals(devID) && ev.getAccountID().equals(acctID);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Removes the next batch of records from the queue (blocks until a batch is ready)
+    *** @return The next batch of records, or null if stopped and the queue is empty
+    **/
+    private EventData[] _nextBatch()
+    {
+        synchronized (this.queue) {
+            while (true) {
+                int qSize = this.queue.size();
+                if (qSize > 0) {
+                    long waitMS = (this.oldestQueueTime + this.flushIntervalMS) - System.currentTimeMillis();
+                    if (!this.isRunning || (qSize >= this.batchSize) || (waitMS <= 0L)) {
+                        int n = Math.min(qSize, this.batchSize);
+                        EventData batch[] = new EventData[n];
+                        for (int i = 0; i < n; i++) {
+                            batch[i] = this.queue.remove(0);
+                        }
+                        this.oldestQueueTime = System.currentTimeMillis(); // approximate
+                        this.inFlight = batch; // until inserted (see 'getQueuedEvents')
+                        this.queue.notifyAll(); // release blocked producers
+                        return batch;
+                    }
+                    try { this.queue.wait(waitMS); } catch (InterruptedException ie) { /*ignore*/ }
+                } else
+                if (!this.isRunning) {
+                    return null;
+                } else {
+                    try { this.queue.wait(); } catch (InterruptedException ie) { /*ignore*/ }
+                }
+            }
+        }
+    }
+
+    /**
+    *** Background insertion thread
+    **/
+    public void run()
+    {
+        for (;;) {
+            EventData batch[] = this._nextBatch();
+            if (batch == null) {
+                break; // stopped, queue empty
+            }
+            this._insertBatch(batch);
+            synchronized (this.queue) {
+                this.inFlight = null;
+            }
+        }
+    }
+
+    /**
+    *** Inserts the specified batch of records.  Transient errors are retried, non-transient
+    *** errors cause the records to be inserted individually.
+    **/
+    private void _insertBatch(EventData batch[])
+    {
+        for (int retry = 0;; retry++) {
+            try {
+                // records failing individually with a non-transient error are skipped/logged
+                int count = DBRecord.saveRecords(batch, false);
+                synchronized (this.queue) {
+                    this.insertCount  += count;
+                    this.droppedCount += (batch.length - count);
+                    this.batchCount++;
+                }
+                return;
+            } catch (DBException dbe) {
+                if (!dbe.isTransient()) {
+                    // non-transient batch error, isolate the failing record(s)
+                    Print.logError("EventData write-behind batch insert failed: " + dbe);
+                    for (int i = 0; i < batch.length; i++) {
+                        this._insertRecord(batch[i]);
+                    }
+                    return;
+                } else
+                if (!this._waitRetry(retry, dbe)) {
+                    this._dropRecords(batch, dbe);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+    *** Inserts a single record.  Transient errors are retried, the record is dropped on a 
+    *** non-transient error.
+    **/
+    private void _insertRecord(EventData evdb)
+    {
+        EventData rcd[] = new EventData[] { evdb };
+        for (int retry = 0;; retry++) {
+            try {
+                int count = DBRecord.saveRecords(rcd, false);
+                synchronized (this.queue) {
+                    this.insertCount  += count;
+                    this.droppedCount += (1 - count);
+                }
+                return;
+            } catch (DBException dbe) {
+                if (!dbe.isTransient() || !this._waitRetry(retry, dbe)) {
+                    this._dropRecords(rcd, dbe);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+    *** Waits before retrying after a transient error.  Transient errors are retried until the
+    *** error clears (blocking producers when the buffer fills), except after the buffer has been
+    *** stopped, where the number of retries is limited.
+    *** @return True to retry, false if the retry limit has been reached
+    **/
+    private boolean _waitRetry(int retry, DBException dbe)
+    {
+        synchronized (this.queue) {
+            if (!this.isRunning && (retry >= SHUTDOWN_RETRY_COUNT)) {
+                return false;
+            }
+            this.retryCount++;
+        }
+        Print.logError("EventData write-behind insert failed (will retry): " + dbe);
+        try { Thread.sleep(RETRY_INTERVAL_MS); } catch (InterruptedException ie) { /*ignore*/ }
+        return true;
+    }
+
+    /**
+    *** Logs and drops the specified records
+    **/
+    private void _dropRecords(EventData rcds[], DBException dbe)
+    {
+        for (int i = 0; i < rcds.length; i++) {
+            Print.logError("EventData write-behind record dropped: " + rcds[i].getRecordKey() + " [" + dbe + "]");
+        }
+        synchronized (this.queue) {
+            this.droppedCount += rcds.length;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns a String representation of this instance
+    *** @return A String representation of this instance
+    **/
+    public String toString()
+    {
+        synchronized (this.queue) {
+            StringBuffer sb = new StringBuffer();
+            sb.append("inserted=").append(this.insertCount);
+            sb.append(", batches=").append(this.batchCount);
+            sb.append(", queued=").append(this.queue.size());
+            sb.append(", blocked=").append(this.blockedCount);
+            sb.append(", retries=").append(this.retryCount);
+            sb.append(", dropped=").append(this.droppedCount);
+            return sb.toString();
+        }
+    }
+
+}
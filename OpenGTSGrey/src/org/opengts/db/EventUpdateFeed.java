@@ -0,0 +1,412 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2009, GeoTelematic Solutions, Inc.
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Per-Account feed of Device location changes, for live map updates
+// ----------------------------------------------------------------------------
+// Change History:
+//  2010/01/11  Martin D. Flynn
+//     -Initial release
+// ----------------------------------------------------------------------------
+package org.opengts.db;
+
+import java.lang.*;
+import java.util.*;
+
+import org.opengts.util.*;
+import org.opengts.dbtools.*;
+import org.opengts.db.tables.*;
+
+/**
+*** Per-Account feed of Device location changes.<br>
+*** When enabled (see <code>DBConfig.EVENT_FEED_ENABLED</code>), a feed is created for each Account
+*** for which changes have been requested (see <code>waitForChanges</code>), and each Device location
+*** change is assigned an increasing sequence number.  Callers pass the last sequence number they
+*** have seen, and are returned only the Devices which have changed since then, waiting up to a
+*** maximum time for a change to occur.<br>
+*** Changes are posted by <code>Device.insertEventData</code> when the events are received in this
+*** process.  Since device communication servers normally run in a different process, each feed also
+*** polls the Device table for Devices updated since the previous poll, at most once per poll
+*** interval, regardless of the number of callers waiting on the feed.  Feeds which have not been
+*** accessed within the idle timeout are discarded.<br>
+*** Each waiting caller holds its (servlet container) thread while waiting, so the number of
+*** concurrently waiting callers is limited (see <code>DBConfig.EVENT_FEED_MAX_WAITERS</code>).
+*** Once the limit is reached, additional callers are returned the current changes immediately,
+*** and the returned ChangeSet is marked 'busy'.
+**/
+
+public class EventUpdateFeed
+{
+
+    // ------------------------------------------------------------------------
+
+    public  static final long   DEFAULT_POLL_INTERVAL_MS    = 5000L;
+    public  static final long   DEFAULT_MAXIMUM_WAIT_SEC    = 25L;
+    public  static final long   DEFAULT_IDLE_TIMEOUT_SEC    = 300L;
+    public  static final int    DEFAULT_MAXIMUM_WAITERS     = 50;
+
+    /* Device 'lastUpdateTime' poll overlap (allows for clock differences between hosts) */
+    private static final long   POLL_OVERLAP_SEC            = 60L;
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns true if the event update feed is enabled
+    *** @return True if the event update feed is enabled
+    **/
+    public static boolean isEnabled()
+    {
+        return RTConfig.getBoolean(DBConfig.EVENT_FEED_ENABLED, false);
+    }
+
+    /**
+    *** Returns the maximum time a caller should wait for changes
+    *** @return The maximum wait time (in milliseconds)
+    **/
+    public static long getMaximumWaitMS()
+    {
+        return RTConfig.getLong(DBConfig.EVENT_FEED_MAX_WAIT_SEC, DEFAULT_MAXIMUM_WAIT_SEC) * 1000L;
+    }
+
+    private static long getPollIntervalMS()
+    {
+        return RTConfig.getLong(DBConfig.EVENT_FEED_POLL_INTERVAL_MS, DEFAULT_POLL_INTERVAL_MS);
+    }
+
+    private static long getIdleTimeoutMS()
+    {
+        return RTConfig.getLong(DBConfig.EVENT_FEED_IDLE_TIMEOUT_SEC, DEFAULT_IDLE_TIMEOUT_SEC) * 1000L;
+    }
+
+    private static int getMaximumWaiters()
+    {
+        return RTConfig.getInt(DBConfig.EVENT_FEED_MAX_WAITERS, DEFAULT_MAXIMUM_WAITERS);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** DeviceChange class (the last known location of a Device)
+    **/
+    public static class DeviceChange
+    {
+        private String      deviceID    = null;
+        private long        timestamp   = 0L;
+        private double      latitude    = 0.0;
+        private double      longitude   = 0.0;
+        private long        sequence    = 0L;
+        public DeviceChange(String devID, long timestamp, double lat, double lon, long seq) {
+            this.deviceID  = devID;
+            this.timestamp = timestamp;
+            this.latitude  = lat;
+            this.longitude = lon;
+            this.sequence  = seq;
+        }
+        public String getDeviceID() {
+            return this.deviceID;
+        }
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+        public double getLatitude() {
+            return this.latitude;
+        }
+        public double getLongitude() {
+            return this.longitude;
+        }
+        public long getSequence() {
+            return this.sequence;
+        }
+        public String toString() {
+            // "deviceID,timestamp,latitude,longitude"
+            StringBuffer sb = new StringBuffer();
+            sb.append(this.deviceID).append(",");
+            sb.append(this.timestamp).append(",");
+            sb.append(GeoPoint.formatLatitude(this.latitude)).append(",");
+            sb.append(GeoPoint.formatLongitude(this.longitude));
+            return sb.toString();
+        }
+    }
+
+    /**
+    *** ChangeSet class (the Device changes since a sequence number)
+    **/
+    public static class ChangeSet
+    {
+        private long                                sequence    = 0L;
+        private boolean                             reset       = false;
+        private boolean                             busy        = false;
+        private java.util.List<DeviceChange>        changes     = null;
+        public ChangeSet(long seq, boolean reset, java.util.List<DeviceChange> changes) {
+            this.sequence = seq;
+            this.reset    = reset;
+            this.changes  = (changes != null)? changes : new Vector<DeviceChange>();
+        }
+        /* the sequence number to pass to the next request */
+        public long getSequence() {
+            return this.sequence;
+        }
+        /* true if the requested sequence number is no longer known (all Devices should be reloaded) */
+        public boolean isReset() {
+            return this.reset;
+        }
+        /* true if the caller was not allowed to wait (too many waiting callers) */
+        public boolean isBusy() {
+            return this.busy;
+        }
+        public java.util.List<DeviceChange> getChanges() {
+            return this.changes;
+        }
+        public boolean hasChanges() {
+            return this.reset || !this.changes.isEmpty();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /* per-Account feed */
+    private static class AccountFeed
+    {
+        private String                      accountID       = null;
+        private long                        sequence        = 0L;
+        private Map<String,DeviceChange>    devices         = new HashMap<String,DeviceChange>();
+        private boolean                     isInitialized   = false;
+        private boolean                     isPolling       = false;
+        private long                        pollTimeMS      = 0L;
+        private long                        pollSinceTime   = 0L;
+        private long                        accessTimeMS    = 0L;
+        public AccountFeed(String acctID) {
+            this.accountID    = acctID;
+            this.accessTimeMS = System.currentTimeMillis();
+        }
+        /* update Device location, return true if changed (must be synchronized on this feed) */
+        public boolean _update(String devID, long timestamp, double lat, double lon) {
+            DeviceChange last = this.devices.get(devID);
+            if ((last != null) && (last.getTimestamp() >= timestamp)) {
+                return false; // already seen
+            } else
+            if (!this.isInitialized) {
+                // initial Device locations are not changes
+                this.devices.put(devID, new DeviceChange(devID, timestamp, lat, lon, 0L));
+                return false;
+            } else {
+                this.sequence++;
+                this.devices.put(devID, new DeviceChange(devID, timestamp, lat, lon, this.sequence));
+                return true;
+            }
+        }
+        /* return changes since the specified sequence (must be synchronized on this feed) */
+        public ChangeSet _getChanges(long sinceSeq, Set<String> devIDs) {
+            if (sinceSeq < 0L) {
+                // initial request, no changes
+                return new ChangeSet(this.sequence, false, null);
+            } else
+            if (sinceSeq > this.sequence) {
+                // unknown sequence (feed was discarded, or server restarted)
+                return new ChangeSet(this.sequence, true, null);
+            } else
+            if (sinceSeq == this.sequence) {
+                // no changes
+                return new ChangeSet(this.sequence, false, null);
+            }
+            java.util.List<DeviceChange> list = new Vector<DeviceChange>();
+            for (DeviceChange dc : this.devices.values()) {
+                if ((dc.getSequence() > sinceSeq) && ((devIDs == null) || devIDs.contains(dc.getDeviceID()))) {
+                    list.add(dc);
+                }
+            }
+            return new ChangeSet(this.sequence, false, list);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private static Map<String,AccountFeed> AccountFeedMap = new HashMap<String,AccountFeed>();
+    private static long                    lastPurgeMS    = 0L;
+
+    private static Object                  WaiterLock     = new Object();
+    private static int                     WaiterCount    = 0;
+
+    /* reserve a waiter slot, return false if the maximum number of callers are already waiting */
+    private static boolean _startWaiting()
+    {
+        synchronized (WaiterLock) {
+            if (WaiterCount >= EventUpdateFeed.getMaximumWaiters()) {
+                return false;
+            }
+            WaiterCount++;
+            return true;
+        }
+    }
+
+    /* release a waiter slot */
+    private static void _stopWaiting()
+    {
+        synchronized (WaiterLock) {
+            WaiterCount--;
+        }
+    }
+
+    /* return the feed for the specified Account */
+    private static AccountFeed _getFeed(String acctID, boolean create)
+    {
+        synchronized (AccountFeedMap) {
+            long nowMS = System.currentTimeMillis();
+            long idleMS = EventUpdateFeed.getIdleTimeoutMS();
+            if ((idleMS > 0L) && ((nowMS - lastPurgeMS) > idleMS)) {
+                // discard idle feeds
+                for (Iterator<AccountFeed> i = AccountFeedMap.values().iterator(); i.hasNext();) {
+                    AccountFeed af = i.next();
+                    synchronized (af) {
+                        if ((nowMS - af.accessTimeMS) > idleMS) {
+                            Print.logDebug("Discarding idle event update feed: " + af.accountID);
+                            i.remove();
+                        }
+                    }
+                }
+                lastPurgeMS = nowMS;
+            }
+            AccountFeed feed = AccountFeedMap.get(acctID);
+            if ((feed == null) && create) {
+                feed = new AccountFeed(acctID);
+                AccountFeedMap.put(acctID, feed);
+            }
+            return feed;
+        }
+    }
+
+    /* poll the Device table for updated Devices, if the poll interval has expired */
+    private static void _poll(AccountFeed feed)
+    {
+        long sinceTime;
+        synchronized (feed) {
+            long nowMS = System.currentTimeMillis();
+            if (feed.isPolling || ((nowMS - feed.pollTimeMS) < EventUpdateFeed.getPollIntervalMS())) {
+                return; // another thread is polling, or polled recently
+            }
+            feed.isPolling = true;
+            sinceTime = feed.pollSinceTime;
+        }
+        long nextSinceTime = DateTime.getCurrentTimeSec() - POLL_OVERLAP_SEC;
+        boolean polled = false;
+        int changed = 0;
+        try {
+            Device devs[] = Device.getUpdatedDevices(feed.accountID, sinceTime);
+            synchronized (feed) {
+                for (int i = 0; i < devs.length; i++) {
+                    if (devs[i].getLastGPSTimestamp() <= 0L) {
+                        continue; // no valid location
+                    }
+                    if (feed._update(devs[i].getDeviceID(), devs[i].getLastGPSTimestamp(),
+                        devs[i].getLastValidLatitude(), devs[i].getLastValidLongitude())) {
+                        changed++;
+                    }
+                }
+            }
+            polled = true;
+        } catch (DBException dbe) {
+            Print.logException("Polling Device updates: " + feed.accountID, dbe);
+        } finally {
+            synchronized (feed) {
+                if (polled) {
+                    feed.pollSinceTime = nextSinceTime;
+                    feed.isInitialized = true;
+                }
+                feed.pollTimeMS = System.currentTimeMillis();
+                feed.isPolling  = false;
+                feed.notifyAll();
+            }
+        }
+        if (changed > 0) {
+            Print.logDebug("Event update feed: " + feed.accountID + " [" + changed + " changed]");
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Posts the location of the specified event to the Account feed (called from
+    *** <code>Device.insertEventData</code>).  Events are ignored if no feed has been requested
+    *** for the Account in this process.
+    *** @param device  The Device
+    *** @param evdb    The received EventData record
+    **/
+    public static void processEvent(Device device, EventData evdb)
+    {
+        if ((device == null) || (evdb == null) || !evdb.isValidGeoPoint()) {
+            return;
+        }
+        AccountFeed feed = EventUpdateFeed._getFeed(device.getAccountID(), false);
+        if (feed != null) {
+            synchronized (feed) {
+                if (feed.isInitialized &&
+                    feed._update(device.getDeviceID(), evdb.getTimestamp(), evdb.getLatitude(), evdb.getLongitude())) {
+                    feed.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+    *** Returns the location changes of the specified Devices since the specified sequence number,
+    *** waiting up to the specified time for a change to occur.  If the maximum number of callers
+    *** are already waiting, the current changes are returned immediately (see <code>ChangeSet.isBusy</code>).
+    *** @param acctID    The Account ID
+    *** @param devIDs    The Device IDs of interest (null for all Account Devices)
+    *** @param sinceSeq  The sequence number returned by the previous request (-1 for the first request)
+    *** @param waitMS    The maximum time to wait for a change (limited to <code>getMaximumWaitMS</code>)
+    *** @return The ChangeSet (does not return null)
+    **/
+    public static ChangeSet waitForChanges(String acctID, Set<String> devIDs, long sinceSeq, long waitMS)
+    {
+        AccountFeed feed = EventUpdateFeed._getFeed(acctID, true);
+        boolean initial  = (sinceSeq < 0L); // initial requests do not wait
+        boolean waiter   = !initial && EventUpdateFeed._startWaiting();
+        boolean busy     = !initial && !waiter;
+        long maxWaitMS   = EventUpdateFeed.getMaximumWaitMS();
+        if ((waitMS < 0L) || (waitMS > maxWaitMS)) { waitMS = maxWaitMS; }
+        if (busy) { waitMS = 0L; }
+        long deadlineMS  = System.currentTimeMillis() + waitMS;
+        long pollMS      = EventUpdateFeed.getPollIntervalMS();
+        try {
+            for (;;) {
+                EventUpdateFeed._poll(feed);
+                synchronized (feed) {
+                    long nowMS = System.currentTimeMillis();
+                    feed.accessTimeMS = nowMS;
+                    ChangeSet cs = feed._getChanges(sinceSeq, devIDs);
+                    cs.busy = busy;
+                    if (cs.hasChanges() || (sinceSeq < 0L) || (nowMS >= deadlineMS)) {
+                        return cs;
+                    }
+                    if (sinceSeq < feed.sequence) {
+                        sinceSeq = feed.sequence; // changes to other Devices only
+                    }
+                    long nextPollMS = feed.isPolling? deadlineMS : (feed.pollTimeMS + pollMS);
+                    long w = Math.min(deadlineMS, nextPollMS) - nowMS;
+                    try { feed.wait((w > 10L)? w : 10L); } catch (InterruptedException ie) { return cs; }
+                }
+            }
+        } finally {
+            if (waiter) {
+                EventUpdateFeed._stopWaiting();
+            }
+        }
+    }
+
+}
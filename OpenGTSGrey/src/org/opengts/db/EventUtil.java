@@ -49,6 +49,9 @@
 //  2009/10/02  Martin D. Flynn
 //     -Modified "getParseMapEventJS" and "formatMapEvent" to include the device
 //      vehicle ID in the dataset sent to the client browser.
+//  2010/01/11  Martin D. Flynn
+//     -Added optional RouteSimplifier to "writeMapEvents" to remove route points which
+//      would not be visible at the current map resolution.
 // ----------------------------------------------------------------------------
 package org.opengts.db;
 
@@ -545,6 +548,35 @@ public class EventUtil
             acct,
             latestTime,
             minProximityM,
+            null,
+            CSV_SEPARATOR_CHAR);
+    }
+
+    /* write encoded map event data to the specified PrintWriter */
+    public boolean writeMapEvents(
+        int indentLevel, PrintWriter pwout, boolean isSoapRequest,
+        BasicPrivateLabel privLabel,
+        EventDataProvider edp[], boolean includeShapes,
+        String iconSelector, OrderedSet<String> iconKeys, 
+        boolean isFleet, boolean fleetRoute, String selID,
+        TimeZone tmz, 
+        Account acct, 
+        DateTime latestTime,
+        double minProximityM,
+        RouteSimplifier routeSimp)
+        throws IOException
+    {
+        return this.writeMapEvents(
+            indentLevel, pwout, isSoapRequest,
+            privLabel,
+            edp, includeShapes,
+            iconSelector, iconKeys,
+            isFleet, fleetRoute, selID,
+            tmz,
+            acct,
+            latestTime,
+            minProximityM,
+            routeSimp,
             CSV_SEPARATOR_CHAR);
     }
 
@@ -561,6 +593,35 @@ public class EventUtil
         double minProximityM,
         char csvSep)
         throws IOException
+    {
+        return this.writeMapEvents(
+            indentLevel, pwout, isSoapRequest,
+            privLabel,
+            edp, includeShapes,
+            iconSelector, iconKeys,
+            isFleet, fleetRoute, selID,
+            tmz,
+            acct,
+            latestTime,
+            minProximityM,
+            null,
+            csvSep);
+    }
+
+    /* write encoded map event data to the specified PrintWriter */
+    public boolean writeMapEvents(
+        int indentLevel, PrintWriter pwout, boolean isSoapRequest,
+        BasicPrivateLabel privLabel,
+        EventDataProvider edp[],  boolean includeShapes,
+        String iconSelector, OrderedSet<String>iconKeys, 
+        boolean isFleet, boolean fleetRoute, String selID,
+        TimeZone tmz, 
+        Account acct, 
+        DateTime latestTime,
+        double minProximityM,
+        RouteSimplifier routeSimp,
+        char csvSep)
+        throws IOException
     {
         // <MapData>
         //   <Time timestamp="EPOCH" timezone="TMZ" year="YYYY" month="MM" day="DD">YYYY/MM/DD|hh:mm:ss</Time>
@@ -686,7 +747,8 @@ public class EventUtil
             isFleet, fleetRoute, selID,
             tmz, dateFmt, timeFmt, 
             csvSep,
-            minProximityM);
+            minProximityM,
+            routeSimp);
 
         /* XML footer */
         this.write(pwout, PFX1);
@@ -767,7 +829,8 @@ public class EventUtil
         TimeZone tmz, 
         String dateFmt, String timeFmt, 
         char csvSep,
-        double minProximityM)
+        double minProximityM,
+        RouteSimplifier routeSimp)
         throws IOException
     {
 
@@ -776,6 +839,14 @@ public class EventUtil
             return false;
         }
 
+        /* simplify routes (not applicable to fleet maps showing only the last event) */
+        if ((routeSimp != null) && (!isFleet || fleetRoute)) {
+            edp = routeSimp.simplify(edp);
+            if (RTConfig.isDebugMode()) {
+                Print.logDebug(routeSimp.toString());
+            }
+        }
+
         /* indent */
         String PFX1 = (indentLevel > 0)? XMLTools.PREFIX(isSoapRequest, indentLevel   *3) : "";
         String PFX2 = (indentLevel > 0)? XMLTools.PREFIX(isSoapRequest,(indentLevel+1)*3) : "";
@@ -0,0 +1,589 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2009, GeoTelematic Solutions, Inc.
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Persistent, bounded outbox for rule notification emails (ACTION_VIA_QUEUE)
+// ----------------------------------------------------------------------------
+// Change History:
+//  2010/01/11  Martin D. Flynn
+//     -Initial release
+// ----------------------------------------------------------------------------
+package org.opengts.db;
+
+import java.lang.*;
+import java.util.*;
+import java.io.*;
+
+import org.opengts.util.*;
+
+/**
+*** Notification outbox.<br>
+*** Rule notifications with the action <code>RuleFactory.ACTION_VIA_QUEUE</code> (and, when
+*** <code>DBConfig.NOTIFY_QUEUE_ENABLED</code> is set, <code>RuleFactory.ACTION_VIA_EMAIL</code>)
+*** are queued here rather than sent from the calling (ie. device communication server) thread.
+*** <ul>
+*** <li>Each queued notification is written to a file in the queue directory (see
+***     <code>DBConfig.NOTIFY_QUEUE_DIRECTORY</code>) until it has been sent, and notifications
+***     remaining in the directory are reloaded at servlet/server startup (see <code>startupInit</code>).  If no directory is configured, the
+***     queue is held in memory only.</li>
+*** <li>The queue is bounded.  Notifications are rejected when the queue is full.</li>
+*** <li>Duplicate notifications (same Account, Device, recipients, and subject) queued within the
+***     coalescing interval are discarded.</li>
+*** <li>A single sender thread sends the queued notifications in batches, each batch over a
+***     single SMTP connection (see <code>SendMail.sendBatch</code>).  Failed notifications are
+***     retried, and are set aside (renamed to ".failed") after the maximum number of attempts.
+***     Notifications which cannot be sent (ie. no valid recipients) are set aside immediately.</li>
+*** </ul>
+**/
+
+public class NotificationQueue
+{
+
+    // ------------------------------------------------------------------------
+
+    public  static final int    DEFAULT_MAX_QUEUE_SIZE      = 10000;
+    public  static final int    DEFAULT_BATCH_SIZE          = 20;
+    public  static final long   DEFAULT_COALESCE_SEC        = 300L;
+    public  static final long   DEFAULT_RETRY_SEC           = 60L;
+    public  static final int    DEFAULT_MAX_ATTEMPTS        = 5;
+
+    private static final String FILE_EXTENSION              = ".msg";
+    private static final String FAILED_EXTENSION            = ".failed";
+    private static final int    FILE_VERSION                = 1;
+    private static final int    RECENT_MAX_SIZE             = 10000;
+    private static final long   STATS_INTERVAL_MS           = DateTime.MinuteSeconds(5) * 1000L;
+
+    // ------------------------------------------------------------------------
+
+    private static NotificationQueue notifyQueue = null;
+
+    /**
+    *** Returns true if rule email notifications should be sent via the notification queue
+    *** @return True if the notification queue is enabled for email notifications
+    **/
+    public static boolean isEnabled()
+    {
+        return RTConfig.getBoolean(DBConfig.NOTIFY_QUEUE_ENABLED, false);
+    }
+
+    /**
+    *** Gets the global notification queue instance (started on first use)
+    *** @return The NotificationQueue instance
+    **/
+    public static NotificationQueue getInstance()
+    {
+        synchronized (NotificationQueue.class) {
+            if (notifyQueue == null) {
+                notifyQueue = new NotificationQueue(
+                    RTConfig.getFile(DBConfig.NOTIFY_QUEUE_DIRECTORY      , null),
+                    RTConfig.getInt( DBConfig.NOTIFY_QUEUE_MAX_QUEUE_SIZE , DEFAULT_MAX_QUEUE_SIZE),
+                    RTConfig.getInt( DBConfig.NOTIFY_QUEUE_BATCH_SIZE     , DEFAULT_BATCH_SIZE),
+                    RTConfig.getLong(DBConfig.NOTIFY_QUEUE_COALESCE_SEC   , DEFAULT_COALESCE_SEC),
+                    RTConfig.getLong(DBConfig.NOTIFY_QUEUE_RETRY_SEC      , DEFAULT_RETRY_SEC),
+                    RTConfig.getInt( DBConfig.NOTIFY_QUEUE_MAX_ATTEMPTS   , DEFAULT_MAX_ATTEMPTS));
+                notifyQueue.start();
+            }
+            return notifyQueue;
+        }
+    }
+
+    /**
+    *** Starts the global notification queue at servlet/server startup, if the queue is enabled,
+    *** or a queue directory has been configured.  This reloads (and sends) any notifications
+    *** persisted by a previous run, without waiting for a new notification to be queued.
+    **/
+    public static void startupInit()
+    {
+        if (NotificationQueue.isEnabled() || 
+            (RTConfig.getFile(DBConfig.NOTIFY_QUEUE_DIRECTORY,null) != null)) {
+            NotificationQueue.getInstance();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+    *** A queued notification
+    **/
+    private static class Notification
+    {
+        private String  accountID   = "";
+        private String  deviceID    = "";
+        private String  from        = "";
+        private String  to          = "";
+        private String  subject     = "";
+        private String  body        = "";
+        private long    queueTimeMS = 0L;
+        private int     attempts    = 0;
+        private long    nextSendMS  = 0L;
+        private File    file        = null;
+        public Notification(String acctID, String devID, String from, String to, String subject, String body) {
+            this.accountID   = StringTools.trim(acctID);
+            this.deviceID    = StringTools.trim(devID);
+            this.from        = StringTools.trim(from);
+            this.to          = StringTools.trim(to);
+            this.subject     = StringTools.trim(subject);
+            this.body        = (body != null)? body : "";
+            this.queueTimeMS = System.currentTimeMillis();
+        }
+        public Notification(DataInputStream dis) throws IOException {
+            int vers = dis.readInt();
+            if (vers != FILE_VERSION) {
+                throw new IOException("Unsupported notification file version: " + vers);
+            }
+            this.queueTimeMS = dis.readLong();
+            this.accountID   = _readString(dis);
+            this.deviceID    = _readString(dis);
+            this.from        = _readString(dis);
+            this.to          = _readString(dis);
+            this.subject     = _readString(dis);
+            this.body        = _readString(dis);
+        }
+        public void write(DataOutputStream dos) throws IOException {
+            dos.writeInt(FILE_VERSION);
+            dos.writeLong(this.queueTimeMS);
+            _writeString(dos, this.accountID);
+            _writeString(dos, this.deviceID);
+            _writeString(dos, this.from);
+            _writeString(dos, this.to);
+            _writeString(dos, this.subject);
+            _writeString(dos, this.body);
+        }
+        /* duplicate coalescing key: Account, Device, recipients, and subject */
+        public String getKey() {
+            String rcpt[] = StringTools.parseString(this.to.toLowerCase(), ',');
+            for (int i = 0; i < rcpt.length; i++) { rcpt[i] = rcpt[i].trim(); }
+            Arrays.sort(rcpt);
+            StringBuffer sb = new StringBuffer();
+            sb.append(this.accountID).append("/");
+            sb.append(this.deviceID).append("/");
+            sb.append(StringTools.join(rcpt,',')).append("/");
+            sb.append(this.subject);
+            return sb.toString();
+        }
+        public SendMail.Args getArgs() {
+            String ato[] = StringTools.parseString(this.to, ',');
+            return new SendMail.Args(null, this.from, ato, null, null, this.subject, this.body, null);
+        }
+    }
+
+    private static String _readString(DataInputStream dis)
+        throws IOException
+    {
+        int len = dis.readInt();
+        if ((len < 0) || (len > 0x100000)) {
+            throw new IOException("Invalid notification field length: " + len);
+        }
+        byte b[] = new byte[len];
+        dis.readFully(b);
+        return new String(b, StringTools.CharEncoding_UTF_8);
+    }
+
+    private static void _writeString(DataOutputStream dos, String s)
+        throws IOException
+    {
+        byte b[] = ((s != null)? s : "").getBytes(StringTools.CharEncoding_UTF_8);
+        dos.writeInt(b.length);
+        dos.write(b);
+    }
+
+    // ------------------------------------------------------------------------
+
+    private File                            directory       = null;
+    private int                             maxQueueSize    = DEFAULT_MAX_QUEUE_SIZE;
+    private int                             batchSize       = DEFAULT_BATCH_SIZE;
+    private long                            coalesceMS      = DEFAULT_COALESCE_SEC * 1000L;
+    private long                            retryMS         = DEFAULT_RETRY_SEC * 1000L;
+    private int                             maxAttempts     = DEFAULT_MAX_ATTEMPTS;
+
+    private LinkedList<Notification>        queue           = new LinkedList<Notification>();
+    private Map<String,Long>                recentMap       = null;
+    private boolean                         isRunning       = false;
+    private Thread                          senderThread    = null;
+    private long                            fileSequence    = 0L;
+
+    private long                            queuedCount     = 0L;
+    private long                            coalescedCount  = 0L;
+    private long                            rejectedCount   = 0L;
+    private long                            sentCount       = 0L;
+    private long                            retryCount      = 0L;
+    private long                            failedCount     = 0L;
+    private long                            batchCount      = 0L;
+    private long                            totalLatencyMS  = 0L;
+    private long                            maxLatencyMS    = 0L;
+
+    /**
+    *** Constructor
+    *** @param dir           The queue persistence directory (null for memory only)
+    *** @param maxQueueSize  The maximum number of queued notifications
+    *** @param batchSize     The maximum number of notifications sent per SMTP connection
+    *** @param coalesceSec   The interval within which duplicate notifications are discarded
+    *** @param retrySec      The interval between send attempts (multiplied by the attempt count)
+    *** @param maxAttempts   The maximum number of send attempts
+    **/
+    public NotificationQueue(File dir, int maxQueueSize, int batchSize, long coalesceSec, long retrySec, int maxAttempts)
+    {
+        this.directory    = dir;
+        this.maxQueueSize = Math.max(1, maxQueueSize);
+        this.batchSize    = Math.max(1, batchSize);
+        this.coalesceMS   = Math.max(0L, coalesceSec) * 1000L;
+        this.retryMS      = Math.max(1L, retrySec) * 1000L;
+        this.maxAttempts  = Math.max(1, maxAttempts);
+        this.recentMap    = new LinkedHashMap<String,Long>(256, 0.75F, true) {
+            protected boolean removeEldestEntry(Map.Entry<String,Long> eldest) {
+                return (this.size() > RECENT_MAX_SIZE);
+            }
+        };
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Loads any notifications remaining in the queue directory, and starts the sender thread
+    **/
+    public void start()
+    {
+        synchronized (this.queue) {
+            if (this.isRunning) {
+                return;
+            }
+            this.isRunning = true;
+        }
+
+        /* reload persisted notifications */
+        if (this.directory != null) {
+            if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+                Print.logError("Unable to create notification queue directory: " + this.directory);
+                this.directory = null;
+            } else {
+                this._load();
+            }
+        } else {
+            Print.logWarn("NotificationQueue directory not defined, queued notifications are not persisted");
+        }
+
+        /* sender thread */
+        this.senderThread = new Thread("NotificationSender") {
+            public void run() {
+                NotificationQueue.this._runSender();
+            }
+        };
+        this.senderThread.setDaemon(true);
+        this.senderThread.start();
+        Print.logInfo("NotificationQueue started [queue=%d, batch=%d, pending=%d]",
+            this.maxQueueSize, this.batchSize, this.getQueueSize());
+
+    }
+
+    /**
+    *** Loads the notifications persisted in the queue directory
+    **/
+    private void _load()
+    {
+        File files[] = this.directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files); // queue order
+        int count = 0;
+        for (int i = 0; i < files.length; i++) {
+            if (!files[i].isFile() || !files[i].getName().endsWith(FILE_EXTENSION)) {
+                continue;
+            }
+            DataInputStream dis = null;
+            try {
+                dis = new DataInputStream(new BufferedInputStream(new FileInputStream(files[i])));
+                Notification n = new Notification(dis);
+                n.file = files[i];
+                synchronized (this.queue) {
+                    this.queue.add(n);
+                }
+                count++;
+            } catch (IOException ioe) {
+                Print.logError("Unable to read notification file: " + files[i] + " [" + ioe + "]");
+            } finally {
+                if (dis != null) { try { dis.close(); } catch (IOException ioe) {/*ignore*/} }
+            }
+        }
+        if (count > 0) {
+            Print.logInfo("Reloaded %d queued notifications", count);
+        }
+    }
+
+    /**
+    *** Writes the specified notification to a file in the queue directory
+    **/
+    private boolean _save(Notification n)
+    {
+        if (this.directory == null) {
+            return true; // memory only
+        }
+        String name;
+        synchronized (this.queue) {
+            name = n.queueTimeMS + "_" + StringTools.format(++this.fileSequence,"000000");
+        }
+        File file    = new File(this.directory, name + FILE_EXTENSION);
+        File tmpFile = new File(this.directory, name + ".tmp");
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            n.write(dos);
+            dos.close();
+            dos = null;
+            if (!tmpFile.renameTo(file)) {
+                Print.logError("Unable to rename notification file: " + tmpFile);
+                tmpFile.delete();
+                return false;
+            }
+            n.file = file;
+            return true;
+        } catch (IOException ioe) {
+            Print.logError("Unable to write notification file: " + tmpFile + " [" + ioe + "]");
+            tmpFile.delete();
+            return false;
+        } finally {
+            if (dos != null) { try { dos.close(); } catch (IOException ioe) {/*ignore*/} }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Queues a notification email
+    *** @param accountID  The Account ID
+    *** @param deviceID   The Device ID
+    *** @param from       The 'From' email address
+    *** @param to         A comma-separated list of 'To' email addresses
+    *** @param subject    The email subject
+    *** @param body       The email body
+    *** @return True if the notification was queued (or was discarded as a duplicate), false if
+    ***         the queue is full, has been stopped, or the notification could not be persisted
+    **/
+    public boolean add(String accountID, String deviceID, String from, String to, String subject, String body)
+    {
+        Notification n = new Notification(accountID, deviceID, from, to, subject, body);
+        String key = n.getKey();
+
+        /* duplicate/full? */
+        Long lastMS = null;
+        Long thisMS = new Long(n.queueTimeMS);
+        synchronized (this.queue) {
+            if (!this.isRunning) {
+                return false;
+            }
+            lastMS = (this.coalesceMS > 0L)? this.recentMap.get(key) : null;
+            if ((lastMS != null) && ((n.queueTimeMS - lastMS.longValue()) < this.coalesceMS)) {
+                this.coalescedCount++;
+                return true;
+            } else
+            if (this.queue.size() >= this.maxQueueSize) {
+                this.rejectedCount++;
+                return false;
+            }
+            if (this.coalesceMS > 0L) {
+                // reserve the key now, so that duplicates added while saving are coalesced
+                this.recentMap.put(key, thisMS);
+            }
+        }
+
+        /* persist */
+        if (!this._save(n)) {
+            synchronized (this.queue) {
+                if ((this.coalesceMS > 0L) && (this.recentMap.get(key) == thisMS)) {
+                    // release the reservation
+                    if (lastMS != null) {
+                        this.recentMap.put(key, lastMS);
+                    } else {
+                        this.recentMap.remove(key);
+                    }
+                }
+                this.rejectedCount++;
+            }
+            return false;
+        }
+
+        /* queue */
+        synchronized (this.queue) {
+            this.queue.add(n);
+            this.queuedCount++;
+            this.queue.notifyAll();
+        }
+        return true;
+
+    }
+
+    /**
+    *** Returns the number of notifications waiting to be sent
+    *** @return The number of notifications waiting to be sent
+    **/
+    public int getQueueSize()
+    {
+        synchronized (this.queue) {
+            return this.queue.size();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Sender thread: sends queued notifications in batches
+    **/
+    private void _runSender()
+    {
+        long lastStatsMS = System.currentTimeMillis();
+        for (;;) {
+
+            /* periodic statistics */
+            long nowMS = System.currentTimeMillis();
+            if ((nowMS - lastStatsMS) >= STATS_INTERVAL_MS) {
+                Print.logInfo("NotificationQueue: " + this.toString());
+                lastStatsMS = nowMS;
+            }
+
+            /* next batch (notifications due to be sent) */
+            java.util.List<Notification> batch = new Vector<Notification>();
+            synchronized (this.queue) {
+                while (batch.isEmpty()) {
+                    long now = System.currentTimeMillis();
+                    long nextMS = 0L;
+                    for (Iterator<Notification> i = this.queue.iterator(); i.hasNext() && (batch.size() < this.batchSize);) {
+                        Notification n = i.next();
+                        if (n.nextSendMS <= now) {
+                            batch.add(n);
+                            i.remove();
+                        } else
+                        if ((nextMS <= 0L) || (n.nextSendMS < nextMS)) {
+                            nextMS = n.nextSendMS;
+                        }
+                    }
+                    if (batch.isEmpty()) {
+                        long waitMS = (nextMS > 0L)? Math.min(nextMS - now, STATS_INTERVAL_MS) : STATS_INTERVAL_MS;
+                        try { this.queue.wait(Math.max(waitMS, 10L)); } catch (InterruptedException ie) { /*ignore*/ }
+                    }
+                }
+            }
+
+            /* send */
+            SendMail.Args args[] = new SendMail.Args[batch.size()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = batch.get(i).getArgs();
+            }
+            int status[];
+            try {
+                status = SendMail.sendBatch(args);
+            } catch (Throwable th) {
+                Print.logException("Notification send failed", th);
+                status = new int[args.length]; // SEND_RETRY
+            }
+
+            /* results */
+            long doneMS = System.currentTimeMillis();
+            for (int i = 0; i < args.length; i++) {
+                Notification n = batch.get(i);
+                int st = (i < status.length)? status[i] : SendMail.SEND_RETRY;
+                if (st == SendMail.SEND_OK) {
+                    if (n.file != null) { n.file.delete(); }
+                    long latencyMS = doneMS - n.queueTimeMS;
+                    synchronized (this.queue) {
+                        this.sentCount++;
+                        this.totalLatencyMS += latencyMS;
+                        if (latencyMS > this.maxLatencyMS) {
+                            this.maxLatencyMS = latencyMS;
+                        }
+                    }
+                } else
+                if ((st == SendMail.SEND_FAILED) || (++n.attempts >= this.maxAttempts)) {
+                    if (st == SendMail.SEND_FAILED) {
+                        Print.logError("Notification cannot be sent: [%s/%s] %s",
+                            n.accountID, n.deviceID, n.subject);
+                    } else {
+                        Print.logError("Notification failed after %d attempts: [%s/%s] %s",
+                            n.attempts, n.accountID, n.deviceID, n.subject);
+                    }
+                    if (n.file != null) {
+                        File failFile = new File(n.file.getPath() + FAILED_EXTENSION);
+                        if (!n.file.renameTo(failFile)) {
+                            Print.logError("Unable to rename notification file: " + n.file);
+                        }
+                    }
+                    synchronized (this.queue) {
+                        this.failedCount++;
+                    }
+                } else {
+                    n.nextSendMS = doneMS + (this.retryMS * n.attempts);
+                    synchronized (this.queue) {
+                        this.queue.add(n);
+                        this.retryCount++;
+                    }
+                }
+            }
+            synchronized (this.queue) {
+                this.batchCount++;
+            }
+
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Gets the average time (milliseconds) from queuing to sending
+    *** @return The average latency in milliseconds
+    **/
+    public long getAverageLatencyMS()
+    {
+        synchronized (this.queue) {
+            return (this.sentCount > 0L)? (this.totalLatencyMS / this.sentCount) : 0L;
+        }
+    }
+
+    /**
+    *** Gets the maximum time (milliseconds) from queuing to sending
+    *** @return The maximum latency in milliseconds
+    **/
+    public long getMaximumLatencyMS()
+    {
+        synchronized (this.queue) {
+            return this.maxLatencyMS;
+        }
+    }
+
+    /**
+    *** Returns a String representation of this instance (queue statistics)
+    *** @return A String representation of this instance
+    **/
+    public String toString()
+    {
+        synchronized (this.queue) {
+            StringBuffer sb = new StringBuffer();
+            sb.append("pending=").append(this.queue.size());
+            sb.append(", queued=").append(this.queuedCount);
+            sb.append(", coalesced=").append(this.coalescedCount);
+            sb.append(", rejected=").append(this.rejectedCount);
+            sb.append(", sent=").append(this.sentCount);
+            sb.append(", retries=").append(this.retryCount);
+            sb.append(", failed=").append(this.failedCount);
+            sb.append(", batches=").append(this.batchCount);
+            sb.append(", avgLatencyMS=").append((this.sentCount > 0L)? (this.totalLatencyMS / this.sentCount) : 0L);
+            sb.append(", maxLatencyMS=").append(this.maxLatencyMS);
+            return sb.toString();
+        }
+    }
+
+}
@@ -0,0 +1,584 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2009, GeoTelematic Solutions, Inc.
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Background reverse-geocoding pipeline for EventData records whose address
+//  could not be obtained with a 'fast' operation at insertion time.
+// ----------------------------------------------------------------------------
+// Change History:
+//  2010/01/11  Martin D. Flynn
+//     -Initial release
+// ----------------------------------------------------------------------------
+package org.opengts.db;
+
+import java.lang.*;
+import java.util.*;
+
+import org.opengts.util.*;
+import org.opengts.dbtools.*;
+import org.opengts.geocoder.*;
+import org.opengts.db.tables.*;
+
+/**
+*** Background reverse-geocoding queue.<br>
+*** When enabled (see <code>DBConfig.RGQUEUE_ENABLED</code>), "Device.insertEventData" queues
+*** EventData records which require a 'slow' reverse-geocode here, rather than submitting a
+*** separate job per record to the Device background thread pool.<br>
+*** <ul>
+*** <li>Requests for the same Account at the same (quantized) location are coalesced, so that
+***     only one reverse-geocode is performed for all of the pending events at that location.</li>
+*** <li>Recently resolved locations are remembered for a short time, so a parked vehicle
+***     reporting the same location repeatedly does not cause a reverse-geocode each time.</li>
+*** <li>Calls to each ReverseGeocodeProvider are limited to a maximum rate.</li>
+*** <li>Resolved EventData records are written back by a single writer thread in batches.</li>
+*** </ul>
+**/
+
+public class ReverseGeocodeQueue
+{
+
+    // ------------------------------------------------------------------------
+
+    public  static final int    DEFAULT_THREAD_COUNT        = 4;
+    public  static final int    DEFAULT_MAX_QUEUE_SIZE      = 10000;
+    public  static final double DEFAULT_MAX_RATE_PER_SEC    = 0.0;      // unlimited
+    public  static final long   DEFAULT_REUSE_SEC           = 600L;
+    public  static final int    DEFAULT_BATCH_SIZE          = 50;
+    public  static final long   DEFAULT_FLUSH_INTERVAL_MS   = 1000L;
+
+    private static final int    RECENT_MAX_SIZE             = 10000;
+    private static final String KEY_DECIMALS                = "4";      // approx 11 meters
+    private static final long   STATS_INTERVAL_MS           = DateTime.MinuteSeconds(5) * 1000L;
+
+    /* fields written back to the EventData record */
+    private static final String ADDRESS_FIELDS[] = new String[] {
+        EventData.FLD_geozoneID,
+        EventData.FLD_geozoneIndex,
+        EventData.FLD_address,
+        EventData.FLD_streetAddress,
+        EventData.FLD_city,
+        EventData.FLD_postalCode,
+        EventData.FLD_country,
+        EventData.FLD_subdivision,
+        EventData.FLD_speedLimitKPH,
+        EventData.FLD_isTollRoad
+    };
+
+    // ------------------------------------------------------------------------
+
+    private static ReverseGeocodeQueue rgQueue = null;
+
+    /**
+    *** Returns true if the background reverse-geocoding queue has been enabled
+    *** @return True if the background reverse-geocoding queue has been enabled
+    **/
+    public static boolean isEnabled()
+    {
+        return RTConfig.getBoolean(DBConfig.RGQUEUE_ENABLED, false);
+    }
+
+    /**
+    *** Gets the global reverse-geocoding queue instance (started on first use)
+    *** @return The ReverseGeocodeQueue instance
+    **/
+    public static ReverseGeocodeQueue getInstance()
+    {
+        synchronized (ReverseGeocodeQueue.class) {
+            if (rgQueue == null) {
+                rgQueue = new ReverseGeocodeQueue(
+                    RTConfig.getInt(   DBConfig.RGQUEUE_THREAD_COUNT    , DEFAULT_THREAD_COUNT),
+                    RTConfig.getInt(   DBConfig.RGQUEUE_MAX_QUEUE_SIZE  , DEFAULT_MAX_QUEUE_SIZE),
+                    RTConfig.getDouble(DBConfig.RGQUEUE_MAX_RATE_PER_SEC, DEFAULT_MAX_RATE_PER_SEC),
+                    RTConfig.getLong(  DBConfig.RGQUEUE_REUSE_SEC       , DEFAULT_REUSE_SEC),
+                    RTConfig.getInt(   DBConfig.RGQUEUE_BATCH_SIZE      , DEFAULT_BATCH_SIZE));
+                rgQueue.start();
+            }
+            return rgQueue;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Resolved address fields, copied from one EventData record to others at the same location
+    **/
+    private static class AddressResult
+    {
+        private String  geozoneID     = null;
+        private long    geozoneIndex  = 0L;
+        private String  address       = null;
+        private String  streetAddress = null;
+        private String  city          = null;
+        private String  stateProvince = null;
+        private String  postalCode    = null;
+        private String  country       = null;
+        private String  subdivision   = null;
+        private double  speedLimitKPH = 0.0;
+        private boolean isTollRoad    = false;
+        private long    timestamp     = 0L;
+        public AddressResult(EventData ev) {
+            this.geozoneID     = ev.getGeozoneID();
+            this.geozoneIndex  = ev.getGeozoneIndex();
+            this.address       = ev.getAddress();
+            this.streetAddress = ev.getStreetAddress();
+            this.city          = ev.getCity();
+            this.stateProvince = ev.getStateProvince();
+            this.postalCode    = ev.getPostalCode();
+            this.country       = ev.getCountry();
+            this.subdivision   = ev.getSubdivision();
+            this.speedLimitKPH = ev.getSpeedLimitKPH();
+            this.isTollRoad    = ev.getIsTollRoad();
+            this.timestamp     = DateTime.getCurrentTimeSec();
+        }
+        public long getTimestamp() {
+            return this.timestamp;
+        }
+        public void applyTo(EventData ev) {
+            ev.setGeozoneID(this.geozoneID);
+            ev.setGeozoneIndex(this.geozoneIndex);
+            ev.setAddress(this.address);
+            ev.setStreetAddress(this.streetAddress);
+            ev.setCity(this.city);
+            ev.setStateProvince(this.stateProvince);
+            ev.setPostalCode(this.postalCode);
+            ev.setCountry(this.country);
+            ev.setSubdivision(this.subdivision);
+            ev.setSpeedLimitKPH(this.speedLimitKPH);
+            ev.setIsTollRoad(this.isTollRoad);
+        }
+    }
+
+    /**
+    *** Pending reverse-geocode request for a single location (possibly multiple events)
+    **/
+    private static class Request
+    {
+        private String                      key        = null;
+        private java.util.List<EventData>   events     = new Vector<EventData>();
+        private long                        queueTime  = 0L;
+        public Request(String key, EventData ev) {
+            this.key       = key;
+            this.queueTime = System.currentTimeMillis();
+            this.events.add(ev);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private int                             threadCount     = DEFAULT_THREAD_COUNT;
+    private int                             maxQueueSize    = DEFAULT_MAX_QUEUE_SIZE;
+    private long                            minIntervalMS   = 0L;
+    private long                            reuseSec        = DEFAULT_REUSE_SEC;
+    private int                             batchSize       = DEFAULT_BATCH_SIZE;
+
+    private LinkedList<Request>             queue           = new LinkedList<Request>();
+    private Map<String,Request>             pendingMap      = new HashMap<String,Request>();
+    private int                             pendingEvents   = 0;
+    private boolean                         isRunning       = false;
+    private java.util.List<Thread>          workerThreads   = new Vector<Thread>();
+
+    private Map<String,AddressResult>       recentMap       = null;
+    private Map<String,Long>                rateMap         = new HashMap<String,Long>();
+
+    private java.util.List<EventData>       updateList      = new Vector<EventData>();
+    private long                            oldestUpdateMS  = 0L;
+    private Thread                          writerThread    = null;
+
+    private long                            queuedCount     = 0L;
+    private long                            coalescedCount  = 0L;
+    private long                            reusedCount     = 0L;
+    private long                            rejectedCount   = 0L;
+    private long                            geocodeCount    = 0L;
+    private long                            rateWaitCount   = 0L;
+    private long                            totalLatencyMS  = 0L;
+    private long                            maxLatencyMS    = 0L;
+    private long                            resolvedCount   = 0L;
+    private long                            updateCount     = 0L;
+    private long                            batchCount      = 0L;
+
+    /**
+    *** Constructor
+    *** @param threadCount   The number of reverse-geocoding worker threads
+    *** @param maxQueueSize  The maximum number of queued events
+    *** @param maxRatePerSec The maximum number of reverse-geocodes per second, per provider (0 for unlimited)
+    *** @param reuseSec      The number of seconds a resolved location may be reused
+    *** @param batchSize     The maximum number of EventData records written back per batch
+    **/
+    public ReverseGeocodeQueue(int threadCount, int maxQueueSize, double maxRatePerSec, long reuseSec, int batchSize)
+    {
+        this.threadCount   = Math.max(1, threadCount);
+        this.maxQueueSize  = Math.max(1, maxQueueSize);
+        this.minIntervalMS = (maxRatePerSec > 0.0)? (long)Math.ceil(1000.0 / maxRatePerSec) : 0L;
+        this.reuseSec      = Math.max(0L, reuseSec);
+        this.batchSize     = Math.max(1, batchSize);
+        this.recentMap     = new LinkedHashMap<String,AddressResult>(256, 0.75F, true) {
+            protected boolean removeEldestEntry(Map.Entry<String,AddressResult> eldest) {
+                return (this.size() > RECENT_MAX_SIZE);
+            }
+        };
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Starts the worker and writer threads
+    **/
+    public void start()
+    {
+        synchronized (this.queue) {
+            if (this.isRunning) {
+                return;
+            }
+            this.isRunning = true;
+        }
+        for (int i = 0; i < this.threadCount; i++) {
+            Thread t = new Thread("ReverseGeocodeWorker_" + (i + 1)) {
+                public void run() {
+                    ReverseGeocodeQueue.this._runWorker();
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+            this.workerThreads.add(t);
+        }
+        this.writerThread = new Thread("ReverseGeocodeWriter") {
+            public void run() {
+                ReverseGeocodeQueue.this._runWriter();
+            }
+        };
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+        Print.logInfo("ReverseGeocodeQueue started [threads=%d, queue=%d, batch=%d]",
+            this.threadCount, this.maxQueueSize, this.batchSize);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns the coalescing key for the specified event, or null if the event must not be
+    *** coalesced with other events (ie. Geozone arrival/departure events)
+    **/
+    private static String _getKey(EventData ev)
+    {
+        int sc = ev.getStatusCode();
+        if ((sc == StatusCodes.STATUS_GEOFENCE_ARRIVE) || (sc == StatusCodes.STATUS_GEOFENCE_DEPART)) {
+            return null;
+        }
+        GeoPoint gp = ev.getGeoPoint();
+        StringBuffer sb = new StringBuffer();
+        sb.append(ev.getAccountID()).append("/");
+        sb.append(GeoPoint.formatLatitude( gp.getLatitude() , KEY_DECIMALS, null));
+        sb.append(GeoPoint.PointSeparator);
+        sb.append(GeoPoint.formatLongitude(gp.getLongitude(), KEY_DECIMALS, null));
+        return sb.toString();
+    }
+
+    /**
+    *** Queues the specified EventData record for reverse-geocoding.  The record must already
+    *** have been saved, since it will be updated when the address has been resolved.
+    *** @param ev  The EventData record
+    *** @return True if the record was queued, false if the queue is full or has been stopped
+    ***         (in which case the caller should perform the reverse-geocode itself)
+    **/
+    public boolean add(EventData ev)
+    {
+        if ((ev == null) || !ev.isValidGeoPoint()) {
+            return false;
+        }
+        String key = ReverseGeocodeQueue._getKey(ev);
+
+        /* recently resolved location? */
+        if ((key != null) && (this.reuseSec > 0L)) {
+            AddressResult ar;
+            synchronized (this.recentMap) {
+                ar = this.recentMap.get(key);
+            }
+            if ((ar != null) && ((DateTime.getCurrentTimeSec() - ar.getTimestamp()) <= this.reuseSec)) {
+                ar.applyTo(ev);
+                synchronized (this.queue) {
+                    this.reusedCount++;
+                }
+                this._addUpdate(ev);
+                return true;
+            }
+        }
+
+        /* queue (coalesce with pending request at the same location) */
+        synchronized (this.queue) {
+            if (!this.isRunning) {
+                return false;
+            } else
+            if (this.pendingEvents >= this.maxQueueSize) {
+                this.rejectedCount++;
+                return false;
+            }
+            Request req = (key != null)? this.pendingMap.get(key) : null;
+            if (req != null) {
+                req.events.add(ev);
+                this.coalescedCount++;
+            } else {
+                req = new Request(key, ev);
+                if (key != null) {
+                    this.pendingMap.put(key, req);
+                }
+                this.queue.add(req);
+                this.queue.notify();
+            }
+            this.pendingEvents++;
+            this.queuedCount++;
+            return true;
+        }
+
+    }
+
+    /**
+    *** Returns the number of events waiting to be reverse-geocoded
+    *** @return The number of events waiting to be reverse-geocoded
+    **/
+    public int getQueueSize()
+    {
+        synchronized (this.queue) {
+            return this.pendingEvents;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Worker thread: resolves queued requests
+    **/
+    private void _runWorker()
+    {
+        for (;;) {
+
+            /* next request */
+            Request req;
+            synchronized (this.queue) {
+                while (this.isRunning && this.queue.isEmpty()) {
+                    try { this.queue.wait(); } catch (InterruptedException ie) { /*ignore*/ }
+                }
+                if (this.queue.isEmpty()) {
+                    break; // stopped
+                }
+                req = this.queue.removeFirst();
+                if (req.key != null) {
+                    // later events at this location are queued as a new request
+                    this.pendingMap.remove(req.key);
+                }
+                this.pendingEvents -= req.events.size();
+            }
+
+            /* resolve */
+            try {
+                this._resolve(req);
+            } catch (Throwable th) {
+                Print.logException("Reverse-geocode failed", th);
+            }
+
+            /* latency */
+            long latencyMS = System.currentTimeMillis() - req.queueTime;
+            synchronized (this.queue) {
+                this.resolvedCount++;
+                this.totalLatencyMS += latencyMS;
+                if (latencyMS > this.maxLatencyMS) {
+                    this.maxLatencyMS = latencyMS;
+                }
+            }
+
+        }
+    }
+
+    /**
+    *** Resolves the address for the specified request, and queues the events for update
+    **/
+    private void _resolve(Request req)
+        throws SlowOperationException
+    {
+        java.util.List<EventData> events;
+        synchronized (this.queue) {
+            events = new Vector<EventData>(req.events); // no more events are added once removed from queue
+        }
+        EventData ev = events.get(0);
+
+        /* rate limit (unless the provider cache already has this location) */
+        Account acct = ev.getAccount();
+        ReverseGeocodeProvider rgp = (acct != null)? acct.getPrivateLabel().getReverseGeocodeProvider() : null;
+        if ((rgp != null) && (this.minIntervalMS > 0L)) {
+            ReverseGeocodeCache rgCache = ReverseGeocodeCache.getProviderCache(rgp);
+            if ((rgCache == null) || (rgCache.getReverseGeocode(ev.getGeoPoint()) == null)) {
+                this._rateLimit(rgp.getName());
+            }
+        }
+
+        /* reverse-geocode */
+        if (!ev.updateAddress(false/*!fastOnly*/)) {
+            return; // no address found
+        }
+        synchronized (this.queue) {
+            this.geocodeCount++;
+        }
+
+        /* apply to coalesced events, and remember */
+        AddressResult ar = new AddressResult(ev);
+        for (int i = 1; i < events.size(); i++) {
+            ar.applyTo(events.get(i));
+        }
+        if ((req.key != null) && (this.reuseSec > 0L)) {
+            synchronized (this.recentMap) {
+                this.recentMap.put(req.key, ar);
+            }
+        }
+        for (EventData e : events) {
+            this._addUpdate(e);
+        }
+
+    }
+
+    /**
+    *** Waits until the specified provider may be called again
+    **/
+    private void _rateLimit(String provName)
+    {
+        long waitMS;
+        synchronized (this.rateMap) {
+            long nowMS  = System.currentTimeMillis();
+            Long nextMS = this.rateMap.get(provName);
+            long allowMS = (nextMS != null)? Math.max(nowMS, nextMS.longValue()) : nowMS;
+            this.rateMap.put(provName, new Long(allowMS + this.minIntervalMS));
+            waitMS = allowMS - nowMS;
+        }
+        if (waitMS > 0L) {
+            synchronized (this.queue) {
+                this.rateWaitCount++;
+            }
+            try { Thread.sleep(waitMS); } catch (InterruptedException ie) { /*ignore*/ }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Queues a resolved EventData record to be written back
+    **/
+    private void _addUpdate(EventData ev)
+    {
+        synchronized (this.updateList) {
+            if (this.updateList.isEmpty()) {
+                this.oldestUpdateMS = System.currentTimeMillis();
+            }
+            this.updateList.add(ev);
+            if (this.updateList.size() >= this.batchSize) {
+                this.updateList.notifyAll();
+            }
+        }
+    }
+
+    /**
+    *** Writer thread: writes resolved EventData records back in batches
+    **/
+    private void _runWriter()
+    {
+        long lastStatsMS = System.currentTimeMillis();
+        for (;;) {
+
+            /* periodic statistics */
+            long nowMS = System.currentTimeMillis();
+            if ((nowMS - lastStatsMS) >= STATS_INTERVAL_MS) {
+                Print.logInfo("ReverseGeocodeQueue: " + this.toString());
+                lastStatsMS = nowMS;
+            }
+
+            /* next batch */
+            java.util.List<EventData> batch = null;
+            synchronized (this.updateList) {
+                while (batch == null) {
+                    int size = this.updateList.size();
+                    long waitMS = (this.oldestUpdateMS + DEFAULT_FLUSH_INTERVAL_MS) - System.currentTimeMillis();
+                    if ((size >= this.batchSize) || ((size > 0) && (waitMS <= 0L))) {
+                        int n = Math.min(size, this.batchSize);
+                        batch = new Vector<EventData>(this.updateList.subList(0, n));
+                        this.updateList.subList(0, n).clear();
+                        this.oldestUpdateMS = System.currentTimeMillis(); // approximate
+                    } else {
+                        try {
+                            this.updateList.wait((size > 0)? waitMS : DEFAULT_FLUSH_INTERVAL_MS);
+                        } catch (InterruptedException ie) { /*ignore*/ }
+                    }
+                }
+            }
+
+            /* update */
+            for (EventData ev : batch) {
+                try {
+                    ev.update(ADDRESS_FIELDS);
+                    if (RTConfig.isDebugMode()) {
+                        Print.logDebug("EventData address: [%s/%s] %s: %s",
+                            ev.getAccountID(), ev.getDeviceID(),
+                            ev.getGeoPoint().toString(), ev.getAddress());
+                    }
+                } catch (DBException dbe) {
+                    Print.logError("EventData update error: " + dbe);
+                }
+            }
+            synchronized (this.queue) {
+                this.updateCount += batch.size();
+                this.batchCount++;
+            }
+
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Gets the average time (milliseconds) from queuing to resolution
+    *** @return The average latency in milliseconds
+    **/
+    public long getAverageLatencyMS()
+    {
+        synchronized (this.queue) {
+            return (this.resolvedCount > 0L)? (this.totalLatencyMS / this.resolvedCount) : 0L;
+        }
+    }
+
+    /**
+    *** Returns a String representation of this instance (queue statistics)
+    *** @return A String representation of this instance
+    **/
+    public String toString()
+    {
+        synchronized (this.queue) {
+            StringBuffer sb = new StringBuffer();
+            sb.append("pending=").append(this.pendingEvents);
+            sb.append(", requests=").append(this.queue.size());
+            sb.append(", queued=").append(this.queuedCount);
+            sb.append(", coalesced=").append(this.coalescedCount);
+            sb.append(", reused=").append(this.reusedCount);
+            sb.append(", rejected=").append(this.rejectedCount);
+            sb.append(", geocoded=").append(this.geocodeCount);
+            sb.append(", rateWaits=").append(this.rateWaitCount);
+            sb.append(", avgLatencyMS=").append((this.resolvedCount > 0L)? (this.totalLatencyMS / this.resolvedCount) : 0L);
+            sb.append(", maxLatencyMS=").append(this.maxLatencyMS);
+            sb.append(", updated=").append(this.updateCount);
+            sb.append(", batches=").append(this.batchCount);
+            return sb.toString();
+        }
+    }
+
+}
@@ -0,0 +1,374 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2009, GeoTelematic Solutions, Inc.
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Incremental (ingest-time) per-Device daily aggregates into the DailyRollup table
+// ----------------------------------------------------------------------------
+// Change History:
+//  2010/01/11  Martin D. Flynn
+//     -Initial release
+// ----------------------------------------------------------------------------
+package org.opengts.db;
+
+import java.lang.*;
+import java.util.*;
+
+import org.opengts.util.*;
+import org.opengts.dbtools.*;
+import org.opengts.db.tables.*;
+
+/**
+*** Daily rollup tracker.<br>
+*** When enabled (see <code>DBConfig.ROLLUP_TRACKER_ENABLED</code>), each received event is added
+*** to the DailyRollup record for the event's Device and day (in the Account time zone), see
+*** <code>Device.insertEventData</code>.  The current day's record for each Device is cached
+*** in memory, so each event costs a single update.  A day is recomputed from the EventData
+*** table when its rollup record is first created (the day may already have events), and when
+*** an event is received out of order.  Recomputed days include the events which are still
+*** queued in the <code>EventDataWriter</code> (see <code>EventDataWriter.getPendingEvents</code>).  Prior days are recomputed using the "-backfill" option
+*** of <code>DailyRollup.main</code>.<br>
+*** Reports obtain event counts from the rollups for days fully within the report range, and
+*** from the EventData table for partial days and for days which have no rollup record.
+**/
+
+public class RollupTracker
+{
+
+    // ------------------------------------------------------------------------
+
+    public  static final int    DEFAULT_MAXIMUM_DEVICES     = 10000;
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns true if daily rollups are enabled
+    *** @return True if daily rollups are enabled
+    **/
+    public static boolean isEnabled()
+    {
+        return RTConfig.getBoolean(DBConfig.ROLLUP_TRACKER_ENABLED, false) && RollupTracker.tableExists();
+    }
+
+    private static int rollupTableExists = -1;
+
+    /* return true if the DailyRollup table exists (checked once) */
+    private static boolean tableExists()
+    {
+        if (rollupTableExists < 0) {
+            try {
+                rollupTableExists = DailyRollup.getFactory().tableExists()? 1 : 0;
+            } catch (DBException dbe) {
+                Print.logException("Checking DailyRollup table existence", dbe);
+                rollupTableExists = 0;
+            }
+            if (rollupTableExists == 0) {
+                Print.logWarn("DailyRollup table does not exist, daily rollups disabled");
+            }
+        }
+        return (rollupTableExists > 0);
+    }
+
+    // ------------------------------------------------------------------------
+
+    private static TimeZone _getTimeZone(Device device)
+    {
+        Account account = (device != null)? device.getAccount() : null;
+        return (account != null)? account.getTimeZone(null) : null;
+    }
+
+    /**
+    *** Returns the start of the day containing the specified time, in the Account time zone
+    *** @param device  The Device
+    *** @param timeSec The time (in seconds)
+    *** @return The start of the day
+    **/
+    public static long getDayStart(Device device, long timeSec)
+    {
+        TimeZone tz = RollupTracker._getTimeZone(device);
+        return (new DateTime(timeSec, tz)).getDayStart(tz);
+    }
+
+    /**
+    *** Returns the end of the day containing the specified time, in the Account time zone
+    *** @param device  The Device
+    *** @param timeSec The time (in seconds)
+    *** @return The end of the day
+    **/
+    public static long getDayEnd(Device device, long timeSec)
+    {
+        TimeZone tz = RollupTracker._getTimeZone(device);
+        return (new DateTime(timeSec, tz)).getDayEnd(tz);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /* per-Device current day rollup */
+    private static class DeviceRollup
+    {
+        public DailyRollup rollup = null;
+    }
+
+    private static final Map<String,DeviceRollup> deviceMap = new LinkedHashMap<String,DeviceRollup>(64, 0.75F, true) {
+        protected boolean removeEldestEntry(Map.Entry<String,DeviceRollup> eldest) {
+            int maxSize = RTConfig.getInt(DBConfig.ROLLUP_TRACKER_MAXIMUM_DEVICES, DEFAULT_MAXIMUM_DEVICES);
+            return (this.size() > maxSize);
+        }
+    };
+
+    /**
+    *** Adds the specified (already inserted) event to the daily rollup of its Device
+    *** @param device  The Device
+    *** @param ev      The received EventData record
+    **/
+    public static void processEvent(Device device, EventData ev)
+    {
+        if ((device == null) || (ev == null) || !RollupTracker.isEnabled()) {
+            return;
+        }
+
+        /* get Device rollup state */
+        String key = device.getAccountID() + "/" + device.getDeviceID();
+        DeviceRollup dr;
+        synchronized (deviceMap) {
+            dr = deviceMap.get(key);
+            if (dr == null) {
+                dr = new DeviceRollup();
+                deviceMap.put(key, dr);
+            }
+        }
+
+        /* update rollup */
+        synchronized (dr) {
+            try {
+                long ts       = ev.getTimestamp();
+                long dayStart = RollupTracker.getDayStart(device, ts);
+                DailyRollup r = dr.rollup;
+                if ((r == null) || (r.getDayStartTime() != dayStart)) {
+                    r = DailyRollup.getDailyRollup(device.getAccountID(), device.getDeviceID(), dayStart, false);
+                }
+                if (r == null) {
+                    // new rollup, the day may already contain events
+                    r = RollupTracker._rebuild(device, dayStart, ev);
+                } else
+                if (ts < r.getLastEventTime()) {
+                    // out of order, recompute the day
+                    r = RollupTracker._rebuild(device, dayStart, ev);
+                } else {
+                    r.addEvent(ev, device.getIgnitionStatusCodes());
+                    r.save();
+                }
+                if ((dr.rollup == null) || (dayStart >= dr.rollup.getDayStartTime())) {
+                    dr.rollup = r; // cache the most recent day
+                }
+            } catch (DBException dbe) {
+                Print.logException("Unable to update DailyRollup: " + key, dbe);
+                dr.rollup = null; // reload on next event
+            }
+        }
+
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Recomputes the daily rollup for the specified Device day from the EventData table
+    *** @param device    The Device
+    *** @param dayStart  The start of the day
+    *** @return The recomputed rollup
+    *** @throws DBException if a DB error occurs
+    **/
+    public static DailyRollup rebuild(Device device, long dayStart)
+        throws DBException
+    {
+        return RollupTracker._rebuild(device, dayStart, null);
+    }
+
+    /* recompute the daily rollup, including the specified event, and any events queued in the EventDataWriter (which may not yet have been written) */
+    private static DailyRollup _rebuild(Device device, long dayStart, EventData ev)
+        throws DBException
+    {
+        String acctID = device.getAccountID();
+        String devID  = device.getDeviceID();
+        long   dayEnd = RollupTracker.getDayEnd(device, dayStart);
+        int ignCodes[] = device.getIgnitionStatusCodes();
+        DailyRollup.deleteDailyRollups(acctID, devID, dayStart, dayStart);
+        DailyRollup r = DailyRollup.getDailyRollup(acctID, devID, dayStart, true);
+        // pending events must be obtained before reading the table (a pending event may be
+        // written while the table is read, but is then skipped as a duplicate)
+        java.util.List<EventData> evList = EventDataWriter.getPendingEvents(acctID, devID, dayStart, dayEnd,
+            ((ev != null)? Collections.singletonList(ev) : null));
+        int evNdx = 0;
+        DBRecordCursor<EventData> cursor = EventData.getRangeEventCursor(
+            acctID, devID,
+            dayStart, dayEnd,
+            null/*statusCodes*/, false/*validGPS*/,
+            EventData.LimitType.FIRST, -1L, true,
+            null);
+        try {
+            for (EventData e = cursor.nextRecord(); e != null; e = cursor.nextRecord()) {
+                long eTime = e.getTimestamp();
+                for (; (evNdx < evList.size()) && (evList.get(evNdx).getTimestamp() < eTime); evNdx++) {
+                    r.addEvent(evList.get(evNdx), ignCodes);
+                }
+                if (RollupTracker._isPending(evList, evNdx, e)) {
+                    continue; // the pending (received) event is added instead
+                }
+                r.addEvent(e, ignCodes);
+            }
+        } finally {
+            cursor.close();
+        }
+        for (; evNdx < evList.size(); evNdx++) {
+            r.addEvent(evList.get(evNdx), ignCodes); // not yet written
+        }
+        if (r.getEventCount() > 0L) {
+            r.save();
+        }
+        return r;
+    }
+
+    /* return true if the list (sorted by timestamp, starting at the specified index) contains the specified event timestamp/statusCode */
+    private static boolean _isPending(java.util.List<EventData> evList, int ndx, EventData e)
+    {
+        for (int i = ndx; (i < evList.size()) && (evList.get(i).getTimestamp() == e.getTimestamp()); i++) {
+            if (evList.get(i).getStatusCode() == e.getStatusCode()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+    *** Recomputes the daily rollups for the specified Device for each day in the specified range
+    *** @param device     The Device
+    *** @param timeStart  The range start time
+    *** @param timeEnd    The range end time
+    *** @return The number of days recomputed
+    *** @throws DBException if a DB error occurs
+    **/
+    public static int backfill(Device device, long timeStart, long timeEnd)
+        throws DBException
+    {
+        int days = 0;
+        for (long ds = RollupTracker.getDayStart(device, timeStart); ds <= timeEnd; ds = RollupTracker.getDayEnd(device, ds) + 1L) {
+            RollupTracker.rebuild(device, ds);
+            days++;
+        }
+        String key = device.getAccountID() + "/" + device.getDeviceID();
+        synchronized (deviceMap) {
+            deviceMap.remove(key); // reload current day
+        }
+        return days;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns the number of events for the specified Device within the specified range.
+    *** Days fully within the range which have a rollup record are counted from the rollup,
+    *** all other days are counted from the EventData table.
+    *** @param device      The Device
+    *** @param timeStart   The range start time
+    *** @param timeEnd     The range end time
+    *** @param statCodes   The status codes to count (null for all status codes)
+    *** @param validGPS    True to count only events with a valid GPS location
+    *** @return The number of events, or -1 if the count cannot be obtained from the rollups
+    ***         (ie. specific status codes with valid GPS locations only)
+    *** @throws DBException if a DB error occurs
+    **/
+    public static long countEvents(Device device, long timeStart, long timeEnd, int statCodes[], boolean validGPS)
+        throws DBException
+    {
+        if ((device == null) || (timeStart <= 0L) || (timeEnd < timeStart)) {
+            return -1L;
+        } else
+        if (validGPS && !ListTools.isEmpty(statCodes)) {
+            return -1L;
+        }
+        String acctID = device.getAccountID();
+        String devID  = device.getDeviceID();
+
+        /* rollups for the days fully within the range */
+        Map<Long,DailyRollup> rollupMap = new HashMap<Long,DailyRollup>();
+        DailyRollup rollups[] = DailyRollup.getDailyRollups(acctID, devID, timeStart, timeEnd);
+        for (int i = 0; i < rollups.length; i++) {
+            long ds = rollups[i].getDayStartTime();
+            if (RollupTracker.getDayEnd(device, ds) <= timeEnd) {
+                rollupMap.put(new Long(ds), rollups[i]);
+            }
+        }
+        if (rollupMap.isEmpty()) {
+            return -1L;
+        }
+
+        /* count */
+        long count    = 0L;
+        long rawStart = -1L; // start of the current range to count from EventData
+        for (long ds = RollupTracker.getDayStart(device, timeStart); ds <= timeEnd; ds = RollupTracker.getDayEnd(device, ds) + 1L) {
+            DailyRollup r = rollupMap.get(new Long(ds));
+            if (r == null) {
+                if (rawStart < 0L) { rawStart = Math.max(ds, timeStart); }
+                continue;
+            }
+            if (rawStart >= 0L) {
+                count += EventData.countRangeEvents(acctID, devID, rawStart, ds - 1L, statCodes, validGPS, EventData.LimitType.FIRST, -1L, null);
+                rawStart = -1L;
+            }
+            if (!ListTools.isEmpty(statCodes)) {
+                for (int i = 0; i < statCodes.length; i++) {
+                    count += r.getStatusCodeCount(statCodes[i]);
+                }
+            } else
+            if (validGPS) {
+                count += r.getValidGPSCount();
+            } else {
+                count += r.getEventCount();
+            }
+        }
+        if (rawStart >= 0L) {
+            count += EventData.countRangeEvents(acctID, devID, rawStart, timeEnd, statCodes, validGPS, EventData.LimitType.FIRST, -1L, null);
+        }
+        return count;
+
+    }
+
+    /**
+    *** Returns the daily rollups for the specified Device for the days within the specified
+    *** range, or null if the range does not start and end on day boundaries
+    *** @param device      The Device
+    *** @param timeStart   The range start time
+    *** @param timeEnd     The range end time
+    *** @return The daily rollups, or null if the range is not day-aligned
+    *** @throws DBException if a DB error occurs
+    **/
+    public static DailyRollup[] getDailyRollups(Device device, long timeStart, long timeEnd)
+        throws DBException
+    {
+        if ((device == null) || (timeStart <= 0L) || (timeEnd < timeStart)) {
+            return null;
+        } else
+        if (timeStart != RollupTracker.getDayStart(device, timeStart)) {
+            return null;
+        } else
+        if (timeEnd != RollupTracker.getDayEnd(device, timeEnd)) {
+            return null;
+        }
+        return DailyRollup.getDailyRollups(device.getAccountID(), device.getDeviceID(), timeStart, timeEnd);
+    }
+
+}
@@ -0,0 +1,317 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2009, GeoTelematic Solutions, Inc.
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Zoom-aware route simplification of map event data.
+// ----------------------------------------------------------------------------
+// Change History:
+//  2010/01/11  Martin D. Flynn
+//     -Initial release
+// ----------------------------------------------------------------------------
+package org.opengts.db;
+
+import java.lang.*;
+import java.util.*;
+
+import org.opengts.util.*;
+
+/**
+*** Zoom-aware route simplifier for map event data.<br>
+*** Removes route points which would not be visible at the current map resolution, using the
+*** Douglas-Peucker algorithm with a tolerance expressed in meters (ie. a number of pixels times
+*** the meters-per-pixel of the displayed map).<br>
+*** <ul>
+*** <li>The following 'key' events are always retained: the first and last event of each
+***     device, events with a status code different from the previous event, events where the
+***     device stops or starts moving, and events with an invalid GeoPoint.</li>
+*** <li>The route is simplified separately between adjacent key events, and each such run is
+***     limited to <code>MAX_SEGMENT_SIZE</code> events, so the work per run is bounded
+***     regardless of the number of events in the route.</li>
+*** <li>If view bounds are specified, events outside of the view are simplified with a larger
+***     tolerance (see <code>OUTSIDE_VIEW_FACTOR</code>).</li>
+*** </ul>
+**/
+
+public class RouteSimplifier
+{
+
+    // ------------------------------------------------------------------------
+
+    public  static final double DEFAULT_PIXEL_TOLERANCE     = 2.0;
+    public  static final double OUTSIDE_VIEW_FACTOR         = 8.0;
+    public  static final int    MAX_SEGMENT_SIZE            = 5000;
+
+    private static final double RADIANS_PER_DEGREE          = Math.PI / 180.0;
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns a RouteSimplifier for a map of the specified pixel size displaying the specified
+    *** bounds.
+    *** @param pixelTol    The tolerance in pixels
+    *** @param W           The map pixel width
+    *** @param H           The map pixel height
+    *** @param mapBounds   The bounds displayed by the map
+    *** @param inViewOnly  True to simplify events outside of the map bounds with a larger tolerance
+    *** @return The RouteSimplifier, or null if the tolerance could not be determined
+    **/
+    public static RouteSimplifier getRouteSimplifier(double pixelTol, int W, int H,
+        GeoBounds mapBounds, boolean inViewOnly)
+    {
+        if ((pixelTol <= 0.0) || (mapBounds == null) || !mapBounds.isValid()) {
+            return null;
+        }
+        double mpp = mapBounds.getMetersPerPixel(W, H);
+        if (Double.isNaN(mpp) || (mpp <= 0.0)) {
+            return null;
+        }
+        return new RouteSimplifier(pixelTol * mpp, (inViewOnly? mapBounds : null));
+    }
+
+    // ------------------------------------------------------------------------
+
+    private double      toleranceM      = 0.0;
+    private GeoBounds   viewBounds      = null;
+
+    private long        inCount         = 0L;
+    private long        outCount        = 0L;
+
+    /**
+    *** Constructor
+    *** @param toleranceM  The tolerance in meters
+    *** @param viewBounds  The displayed map bounds (may be null)
+    **/
+    public RouteSimplifier(double toleranceM, GeoBounds viewBounds)
+    {
+        this.toleranceM = toleranceM;
+        this.viewBounds = ((viewBounds != null) && viewBounds.isValid())? viewBounds : null;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Gets the tolerance in meters
+    *** @return The tolerance in meters
+    **/
+    public double getToleranceMeters()
+    {
+        return this.toleranceM;
+    }
+
+    /**
+    *** Gets the displayed map bounds
+    *** @return The displayed map bounds, or null if not specified
+    **/
+    public GeoBounds getViewBounds()
+    {
+        return this.viewBounds;
+    }
+
+    /**
+    *** Returns the tolerance in meters for the specified location
+    **/
+    private double _getTolerance(double lat, double lon)
+    {
+        GeoBounds gb = this.viewBounds;
+        if ((gb == null) ||
+            ((lat >= gb.getMinLatitude() ) && (lat <= gb.getMaxLatitude() ) &&
+             (lon >= gb.getMinLongitude()) && (lon <= gb.getMaxLongitude())   )) {
+            return this.toleranceM;
+        } else {
+            return this.toleranceM * OUTSIDE_VIEW_FACTOR;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Simplifies the specified events.  The events are expected to be grouped by device, and
+    *** sorted by ascending timestamp within each device.
+    *** @param edp  The events to simplify
+    *** @return The retained events (in the original order)
+    **/
+    public EventDataProvider[] simplify(EventDataProvider edp[])
+    {
+
+        /* nothing to simplify? */
+        if ((edp == null) || (edp.length <= 2) || (this.toleranceM <= 0.0)) {
+            return edp;
+        }
+
+        /* location/tolerance of each event */
+        int      len     = edp.length;
+        double   lat[]   = new double[len];
+        double   lon[]   = new double[len];
+        double   tol[]   = new double[len];
+        boolean  keep[]  = new boolean[len];
+        for (int i = 0; i < len; i++) {
+            lat[i] = edp[i].getLatitude();
+            lon[i] = edp[i].getLongitude();
+            tol[i] = this._getTolerance(lat[i], lon[i]);
+        }
+
+        /* simplify runs between key events */
+        int      anchor  = -1;
+        String   lastDev = null;
+        for (int i = 0; i < len; i++) {
+            String  devID = edp[i].getDeviceID();
+            boolean valid = GeoPoint.isValid(lat[i], lon[i]);
+            boolean isKey;
+            if ((lastDev == null) || !lastDev.equals(devID)) {
+                // first event of device
+                isKey = true;
+                anchor = -1;
+            } else
+            if (((i + 1) >= len) || !devID.equals(edp[i + 1].getDeviceID())) {
+                // last event of device
+                isKey = true;
+            } else
+            if (!valid) {
+                isKey = true;
+            } else
+            if (edp[i].getStatusCode() != edp[i - 1].getStatusCode()) {
+                // status change
+                isKey = true;
+            } else
+            if ((edp[i].getSpeedKPH() > 0.0) != (edp[i - 1].getSpeedKPH() > 0.0)) {
+                // stop/start
+                isKey = true;
+            } else
+            if ((anchor >= 0) && ((i - anchor) >= MAX_SEGMENT_SIZE)) {
+                // bound the size of the run
+                isKey = true;
+            } else {
+                isKey = false;
+            }
+            lastDev = devID;
+            if (!isKey) {
+                continue;
+            }
+            keep[i] = true;
+            if (!valid) {
+                // invalid points break the route
+                anchor = -1;
+            } else {
+                if (anchor >= 0) {
+                    this._simplify(lat, lon, tol, keep, anchor, i);
+                }
+                anchor = i;
+            }
+        }
+
+        /* retained events */
+        Vector<EventDataProvider> list = new Vector<EventDataProvider>();
+        for (int i = 0; i < len; i++) {
+            if (keep[i]) {
+                list.add(edp[i]);
+            }
+        }
+        this.inCount  += len;
+        this.outCount += list.size();
+        return list.toArray(new EventDataProvider[list.size()]);
+
+    }
+
+    /**
+    *** Douglas-Peucker simplification of the events between the specified (retained) first and
+    *** last indices.  Uses an explicit stack rather than recursion.
+    **/
+    private void _simplify(double lat[], double lon[], double tol[], boolean keep[],
+        int first, int last)
+    {
+        if ((last - first) <= 1) {
+            return;
+        }
+
+        /* local equirectangular projection (meters) */
+        double lat0   = lat[first] * RADIANS_PER_DEGREE;
+        double mPerDY = GeoPoint.EARTH_MEAN_RADIUS_METERS * RADIANS_PER_DEGREE;
+        double mPerDX = mPerDY * Math.cos(lat0);
+
+        /* split until all events are within tolerance */
+        int stack[] = new int[64];
+        int sp = 0;
+        stack[sp++] = first;
+        stack[sp++] = last;
+        while (sp > 0) {
+            int e = stack[--sp];
+            int s = stack[--sp];
+            double ax = lon[s] * mPerDX, ay = lat[s] * mPerDY;
+            double bx = lon[e] * mPerDX, by = lat[e] * mPerDY;
+            double dx = bx - ax, dy = by - ay;
+            double segLen2 = (dx * dx) + (dy * dy);
+            double maxRatio = 1.0;
+            int    maxNdx   = -1;
+            for (int i = s + 1; i < e; i++) {
+                double px = (lon[i] * mPerDX) - ax;
+                double py = (lat[i] * mPerDY) - ay;
+                double d2;
+                if (segLen2 <= 0.0) {
+                    d2 = (px * px) + (py * py);
+                } else {
+                    double t = ((px * dx) + (py * dy)) / segLen2;
+                    if (t < 0.0) { t = 0.0; } else if (t > 1.0) { t = 1.0; }
+                    double qx = px - (t * dx);
+                    double qy = py - (t * dy);
+                    d2 = (qx * qx) + (qy * qy);
+                }
+                double ratio = Math.sqrt(d2) / tol[i];
+                if (ratio > maxRatio) {
+                    maxRatio = ratio;
+                    maxNdx   = i;
+                }
+            }
+            if (maxNdx > 0) {
+                keep[maxNdx] = true;
+                if ((sp + 4) > stack.length) {
+                    int newStack[] = new int[stack.length * 2];
+                    System.arraycopy(stack, 0, newStack, 0, sp);
+                    stack = newStack;
+                }
+                if ((maxNdx - s) > 1) {
+                    stack[sp++] = s;
+                    stack[sp++] = maxNdx;
+                }
+                if ((e - maxNdx) > 1) {
+                    stack[sp++] = maxNdx;
+                    stack[sp++] = e;
+                }
+            }
+        }
+
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns a String representation of this instance
+    *** @return A String representation of this instance
+    **/
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append("RouteSimplifier: ");
+        sb.append("tolerance=").append(StringTools.format(this.toleranceM,"0.0")).append("m");
+        if (this.viewBounds != null) {
+            sb.append(" view=[").append(this.viewBounds.toString()).append("]");
+        }
+        sb.append(" events=").append(this.inCount).append("/").append(this.outCount);
+        return sb.toString();
+    }
+
+}
@@ -19,6 +19,8 @@
 // Change History:
 //  2008/02/21  Martin D. Flynn
 //     -Initial release
+//  2010/01/11  Martin D. Flynn
+//     -Added support for caching compiled selectors (see "getCompiledSelector")
 // ----------------------------------------------------------------------------
 package org.opengts.db;
 
@@ -52,14 +54,121 @@ public abstract class RuleFactoryAdapter
         return m;
     }
 
+    /* return true if the specified selector result is considered a 'match' */
+    public static boolean IsMatch(Object eval)
+    {
+        if (eval == null) {
+            // no valid result
+            return false;
+        } else
+        if (eval instanceof Boolean) {
+            // Boolean value
+            return ((Boolean)eval).booleanValue();
+        } else
+        if (eval instanceof Number) {
+            // true if Number is non-zero
+            return (((Number)eval).longValue() != 0L);
+        } else {
+            // true for everything else
+            return true;
+        }
+    }
+
     // ------------------------------------------------------------------------
     // ------------------------------------------------------------------------
 
+    public  static final int    DEFAULT_MAXIMUM_COMPILED_SELECTORS  = 1000;
+
+    /**
+    *** CompiledSelector interface.<br>
+    *** A rule selector which has been parsed once (see <code>compileSelector</code>), and which
+    *** can then be evaluated against each event without re-parsing the selector text.
+    **/
+    public interface CompiledSelector
+    {
+        /**
+        *** Returns true if the selector was parsed without error
+        *** @return True if the selector is valid
+        **/
+        public boolean isValid();
+        /**
+        *** Returns false if this selector cannot match the specified event, based only on the
+        *** fields on which the selector depends (ie. the event status code).  Events for which
+        *** this method returns false need not be evaluated.
+        *** @param event  The EventData record
+        *** @return False if the selector cannot match the event
+        **/
+        public boolean isCandidate(EventData event);
+        /**
+        *** Returns true if this selector matches the specified event
+        *** @param event  The EventData record
+        *** @return True if the selector matches
+        **/
+        public boolean isMatch(EventData event);
+        /**
+        *** Returns the result of this selector for the specified event
+        *** @param event  The EventData record
+        *** @return The selector result
+        **/
+        public Object evaluate(EventData event);
+    }
+
+    // ------------------------------------------------------------------------
+
+    private Map<String,CompiledSelector> compiledSelectors = new LinkedHashMap<String,CompiledSelector>(64, 0.75F, true) {
+        protected boolean removeEldestEntry(Map.Entry<String,CompiledSelector> eldest) {
+            return (this.size() > DEFAULT_MAXIMUM_COMPILED_SELECTORS);
+        }
+    };
+
     public RuleFactoryAdapter() 
     {
         super();
     }
 
+    /**
+    *** Parses the specified selector.  Subclasses which support compiled selectors should
+    *** override this method.
+    *** @param selector  The rule selector (not blank)
+    *** @return The CompiledSelector, or null if compiled selectors are not supported
+    **/
+    protected CompiledSelector compileSelector(String selector)
+    {
+        return null;
+    }
+
+    /**
+    *** Returns the CompiledSelector for the specified selector.  Each distinct selector is
+    *** compiled once, and cached by selector text.
+    *** @param selector  The rule selector
+    *** @return The CompiledSelector, or null if the selector is blank, or if compiled selectors
+    ***         are not supported
+    **/
+    public CompiledSelector getCompiledSelector(String selector)
+    {
+        if (StringTools.isBlank(selector)) {
+            return null;
+        }
+        synchronized (this.compiledSelectors) {
+            CompiledSelector cs = this.compiledSelectors.get(selector);
+            if ((cs == null) && !this.compiledSelectors.containsKey(selector)) {
+                cs = this.compileSelector(selector);
+                this.compiledSelectors.put(selector, cs);
+            }
+            return cs;
+        }
+    }
+
+    /**
+    *** Clears all cached compiled selectors
+    **/
+    public void clearCompiledSelectors()
+    {
+        synchronized (this.compiledSelectors) {
+            this.compiledSelectors.clear();
+        }
+    }
+
     // ------------------------------------------------------------------------
 
     public abstract String getName();
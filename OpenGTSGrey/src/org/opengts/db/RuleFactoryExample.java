@@ -29,6 +29,13 @@
 //  2009/10/02  Martin D. Flynn
 //     -"executeSelector" and "executeRules" now return the executed action-mask,
 //      instead of just true/false.
+//  2010/01/11  Martin D. Flynn
+//     -Selectors are now parsed once into a cached compiled selector, rather than
+//      re-parsed for each event.  Selector functions may declare the status codes on
+//      which they depend, so that events with other status codes are rejected without
+//      evaluating the selector.
+//     -ACTION_VIA_QUEUE notifications (and ACTION_VIA_EMAIL notifications, when the
+//      NotificationQueue is enabled) are now sent via the NotificationQueue.
 // ----------------------------------------------------------------------------
 package org.opengts.db;
 
@@ -123,10 +130,24 @@ public class RuleFactoryExample
     /* interface for rule evaluation function */
     private static interface RuleFunction
     {
-        public Object evaluate(EventData ev, String arg);
+        public Object parseArgument(String arg);    // called once, when the selector is compiled
+        public int[]  getStatusCodes();             // status codes on which this function may be true (null for all)
+        public Object evaluate(EventData ev, Object arg);
         public String usage();
         public String description();
     }
+
+    /* rule evaluation function adapter */
+    private static abstract class RuleFunctionAdapter
+        implements RuleFunction
+    {
+        public Object parseArgument(String arg) {
+            return arg;
+        }
+        public int[] getStatusCodes() {
+            return null;
+        }
+    }
     
     // ------------------------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -140,8 +161,8 @@ public class RuleFactoryExample
         this.ftnMap = new HashMap<String,RuleFunction>();
 
         /* vehicle speeds over 100 kph */
-        this.ftnMap.put(SEL_OVER_100_KPH, new RuleFunction() {
-            public Object evaluate(EventData ev, String arg) {
+        this.ftnMap.put(SEL_OVER_100_KPH, new RuleFunctionAdapter() {
+            public Object evaluate(EventData ev, Object arg) {
                 return new Boolean(ev.getSpeedKPH() > 100.0);
             }
             public String usage() {
@@ -153,8 +174,8 @@ public class RuleFactoryExample
         });
 
         /* vehicle stopped */
-        this.ftnMap.put(SEL_IS_STOPPED, new RuleFunction() {
-            public Object evaluate(EventData ev, String arg) {
+        this.ftnMap.put(SEL_IS_STOPPED, new RuleFunctionAdapter() {
+            public Object evaluate(EventData ev, Object arg) {
                 return new Boolean(ev.getSpeedKPH() <= 0.0);
             }
             public String usage() {
@@ -166,9 +187,12 @@ public class RuleFactoryExample
         });
 
         /* vehicle overspeed (with argument) */
-        this.ftnMap.put(SEL_OVER_SPEED, new RuleFunction() {
-            public Object evaluate(EventData ev, String arg) {
-                double maxSpeed = StringTools.parseDouble(arg,99999.9);
+        this.ftnMap.put(SEL_OVER_SPEED, new RuleFunctionAdapter() {
+            public Object parseArgument(String arg) {
+                return new Double(StringTools.parseDouble(arg,99999.9));
+            }
+            public Object evaluate(EventData ev, Object arg) {
+                double maxSpeed = ((Double)arg).doubleValue();
                 return new Boolean(ev.getSpeedKPH() > maxSpeed);
             }
             public String usage() {
@@ -179,8 +203,11 @@ public class RuleFactoryExample
             }
         });
         /* vehicle arrives or departs geozone */
-        this.ftnMap.put(SEL_GEOZONE_EVENT, new RuleFunction() {
-            public Object evaluate(EventData ev, String arg) {
+        this.ftnMap.put(SEL_GEOZONE_EVENT, new RuleFunctionAdapter() {
+            public int[] getStatusCodes() {
+                return new int[] { StatusCodes.STATUS_GEOFENCE_ARRIVE, StatusCodes.STATUS_GEOFENCE_DEPART };
+            }
+            public Object evaluate(EventData ev, Object arg) {
                 
             	return new Boolean(ev.getStatusCode() == StatusCodes.STATUS_GEOFENCE_ARRIVE ||
                 		ev.getStatusCode() == StatusCodes.STATUS_GEOFENCE_DEPART);
@@ -289,109 +316,143 @@ public class RuleFactoryExample
 
     // ------------------------------------------------------------------------
 
-    /* check selector syntax */
-    public boolean checkSelectorSyntax(String selector) 
+    /* compiled selector term */
+    private static class SelectorTerm
     {
-        // perfrom syntax checking of the 'selector' value
-        if (StringTools.isBlank(selector)) {
-            // assume that an empty selector is valid
-            // (however, note that an empty/null selector is not a 'match')
-            return true;
-        } else {
-            // true if our function map contains the specified key
-            return this.ftnMap.containsKey(selector);
+        private RuleFunction ftn = null;
+        private Object       arg = null;
+        public SelectorTerm(RuleFunction ftn, Object arg) {
+            this.ftn = ftn;
+            this.arg = arg;
+        }
+        public Object evaluate(EventData event) {
+            return this.ftn.evaluate(event, this.arg);
         }
     }
 
-    // ------------------------------------------------------------------------
-
-    /* return true if the specified selector matches the specified event record */
-    public boolean isSelectorMatch(String selector, EventData event) 
+    /* compiled selector: a comma-separated list of functions, any of which may match */
+    private static class ExampleSelector
+        implements CompiledSelector
     {
-        String selList[] = StringTools.split(selector,',');
-        for (int i = 0; i < selList.length; i++) {
-            if (this._isSelectorMatch(selList[i],event)) {
+        private boolean         isValid     = true;
+        private SelectorTerm    terms[]     = null;
+        private Set<Integer>    statusCodes = null; // null for all status codes
+        public ExampleSelector(boolean valid, java.util.List<SelectorTerm> terms, Set<Integer> statusCodes) {
+            this.isValid     = valid;
+            this.terms       = terms.toArray(new SelectorTerm[terms.size()]);
+            this.statusCodes = statusCodes;
+        }
+        public boolean isValid() {
+            return this.isValid;
+        }
+        public boolean isCandidate(EventData event) {
+            if (this.terms.length == 0) {
+                return false;
+            } else
+            if (this.statusCodes == null) {
                 return true;
+            } else {
+                return this.statusCodes.contains(new Integer(event.getStatusCode()));
+            }
+        }
+        public boolean isMatch(EventData event) {
+            if (!this.isCandidate(event)) {
+                return false;
+            }
+            for (int i = 0; i < this.terms.length; i++) {
+                if (RuleFactoryAdapter.IsMatch(this.terms[i].evaluate(event))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        public Object evaluate(EventData event) {
+            if (this.terms.length == 0) {
+                return null;
+            } else
+            if (!this.isCandidate(event)) {
+                return Boolean.FALSE;
+            }
+            Object eval = null;
+            for (int i = 0; i < this.terms.length; i++) {
+                eval = this.terms[i].evaluate(event);
+                if ((eval instanceof Boolean) && ((Boolean)eval).booleanValue()) {
+                    // return Boolean value
+                    return eval;
+                } else
+                if ((eval instanceof Number) && (((Number)eval).longValue() != 0L)) {
+                    // return Number value
+                    return eval;
+                }
             }
+            return eval; // return last value
         }
-        return false;
     }
 
-    /* return true if the specified selector matches the specified event record */
-    private boolean _isSelectorMatch(String selector, EventData event) 
+    /* parse the specified selector */
+    protected CompiledSelector compileSelector(String selector)
     {
-        
-        /* valid selector */
-        if (StringTools.isBlank(selector)) {
-            return false;
+        boolean valid = true;
+        java.util.List<SelectorTerm> terms = new Vector<SelectorTerm>();
+        Set<Integer> statusCodes = new HashSet<Integer>();
+        String selList[] = StringTools.split(selector,',');
+        for (int i = 0; i < selList.length; i++) {
+            if (StringTools.isBlank(selList[i])) {
+                continue;
+            }
+            RuleFunction ftn = this.getFunction(selList[i]);
+            if (ftn == null) {
+                // no function, never matches
+                valid = false;
+                continue;
+            }
+            terms.add(new SelectorTerm(ftn, ftn.parseArgument(this.getArgument(selList[i]))));
+            int sc[] = ftn.getStatusCodes();
+            if (sc == null) {
+                statusCodes = null; // any status code
+            } else
+            if (statusCodes != null) {
+                for (int c = 0; c < sc.length; c++) {
+                    statusCodes.add(new Integer(sc[c]));
+                }
+            }
         }
+        return new ExampleSelector(valid, terms, statusCodes);
+    }
 
-        /* get function */
-        RuleFunction ftn = this.getFunction(selector);
-        if (ftn == null) {
-            // no function, no match
-            return false;
-        }
+    // ------------------------------------------------------------------------
 
-        /* evaluate function */
-        String arg = this.getArgument(selector);
-        Object eval = ftn.evaluate(event,arg);
-        if (eval == null) {
-            // no valid result, return false
-            return false;
-        }
-        
-        /* return boolean results */
-        if (eval instanceof Boolean) {
-            // return Boolean value
-            return ((Boolean)eval).booleanValue();
-        } else
-        if (eval instanceof Number) {
-            // return true if Number is non-zero
-            return (((Number)eval).longValue() != 0L);
-        } else {
-            // return true for everything else
+    /* check selector syntax */
+    public boolean checkSelectorSyntax(String selector) 
+    {
+        // perfrom syntax checking of the 'selector' value
+        if (StringTools.isBlank(selector)) {
+            // assume that an empty selector is valid
+            // (however, note that an empty/null selector is not a 'match')
             return true;
+        } else {
+            // true if all of the selector functions are defined
+            CompiledSelector cs = this.getCompiledSelector(selector);
+            return (cs != null) && cs.isValid();
         }
-
     }
 
     // ------------------------------------------------------------------------
 
-    /* return the result of the specified selector */
-    public Object evaluateSelector(String selector, EventData event) 
+    /* return true if the specified selector matches the specified event record */
+    public boolean isSelectorMatch(String selector, EventData event) 
     {
-        String selList[] = StringTools.split(selector,',');
-        Object eval = null;
-        for (int i = 0; i < selList.length; i++) {
-            eval = this._evaluateSelector(selList[i],event);
-            if ((eval instanceof Boolean) && ((Boolean)eval).booleanValue()) {
-                // return Boolean value
-                return eval;
-            } else
-            if ((eval instanceof Number) && (((Number)eval).longValue() != 0L)) {
-                // return Number value
-                return eval;
-            }
-        }
-        return eval; // return last value
+        CompiledSelector cs = this.getCompiledSelector(selector);
+        return (cs != null)? cs.isMatch(event) : false;
     }
 
+    // ------------------------------------------------------------------------
+
     /* return the result of the specified selector */
-    private Object _evaluateSelector(String selector, EventData event) 
+    public Object evaluateSelector(String selector, EventData event) 
     {
-
-        /* get function */
-        RuleFunction ftn = this.getFunction(selector);
-        if (ftn == null) {
-            // no function
-            return null;
-        }
-        
-        /* evaluate and return */
-        String arg = this.getArgument(selector);
-        return ftn.evaluate(event,arg);
-
+        CompiledSelector cs = this.getCompiledSelector(selector);
+        return (cs != null)? cs.evaluate(event) : null;
     }
 
     // ------------------------------------------------------------------------
@@ -534,8 +595,10 @@ public class RuleFactoryExample
             return success;
         }
 
-        /* send email */
-        if ((actionMask & RuleFactory.ACTION_VIA_EMAIL) != 0) {
+        /* send email (directly, or via the notification queue) */
+        boolean viaQueue = ((actionMask & RuleFactory.ACTION_VIA_QUEUE) != 0) ||
+            (((actionMask & RuleFactory.ACTION_VIA_EMAIL) != 0) && NotificationQueue.isEnabled());
+        if (viaQueue || ((actionMask & RuleFactory.ACTION_VIA_EMAIL) != 0)) {
             if (emailTo.size() <= 0) {
                 // no-one to which to send email
                 Print.logWarn("EMail requested, but no recipients specified");
@@ -546,6 +609,13 @@ public class RuleFactoryExample
                 // Issue a stack-trace to make sure we get noticed.
                 Print.logWarn("Cannot determine 'From' email address!!!");
                 success = false;
+            } else
+            if (viaQueue) {
+                NotificationQueue notifyQueue = NotificationQueue.getInstance();
+                if (!notifyQueue.add(evdb.getAccountID(), evdb.getDeviceID(), frEmail, toEmail, subj, body)) {
+                    Print.logWarn("Unable to queue notification [" + notifyQueue + "]");
+                    success = false;
+                }
             } else {
                 try {
                     SendMail.send(frEmail, toEmail, null, null, subj, body, null);
@@ -562,11 +632,6 @@ public class RuleFactoryExample
             // TODO: implement callback listener
         }
 
-        /* queue notification message */
-        if ((actionMask & RuleFactory.ACTION_VIA_QUEUE) != 0) {
-            // TODO: queue notofication message
-        }
-
         /* return success */
         return success;
 
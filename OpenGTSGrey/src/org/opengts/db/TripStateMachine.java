@@ -0,0 +1,877 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2009, GeoTelematic Solutions, Inc.
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Single-pass trip/stop state machine (moved from "MotionReport")
+// ----------------------------------------------------------------------------
+// Change History:
+//  2010/01/11  Martin D. Flynn
+//     -Initial release
+// ----------------------------------------------------------------------------
+package org.opengts.db;
+
+import java.lang.*;
+import java.util.*;
+
+import org.opengts.util.*;
+import org.opengts.dbtools.*;
+import org.opengts.db.tables.*;
+
+/**
+*** Single-pass trip/stop state machine.<br>
+*** EventData records for a single Device are passed to <code>processEvent</code> in ascending
+*** timestamp order, and each completed trip (start, drive, stop, stopped/idle elapsed time) is
+*** sent to the <code>TripHandler</code> as soon as it is known.  Only a constant amount of
+*** state is kept per Device, so the same instance may be used for report generation (over a
+*** streamed EventData selection), or incrementally as events are received (see
+*** <code>TripTracker</code>).  Instances are not thread-safe, use one instance per Device.
+**/
+
+public class TripStateMachine
+{
+
+    // ------------------------------------------------------------------------
+    // Trip start types
+
+    public  static final String MOTION_DEFAULT[]            = new String[] { "default" };
+    public  static final String MOTION_SPEED[]              = new String[] { "speed", "motion" };
+    public  static final String MOTION_IGNITION[]           = new String[] { "ignition" };
+    public  static final String MOTION_STARTSTOP[]          = new String[] { "start", "startstop" };
+
+    public  static final int    TRIP_ON_SPEED               = 0; // idle time
+    public  static final int    TRIP_ON_IGNITION            = 1; // no idle time
+    public  static final int    TRIP_ON_START               = 2; // idle time if ignition present
+
+    // ------------------------------------------------------------------------
+
+    /** TRIP_ON_SPEED only
+    *** Minimum speed used for determining in-motion when the device does not
+    *** support start/stop events
+    **/
+    public  static final double MIN_SPEED_KPH               = 5.0;
+
+    /** TRIP_ON_SPEED only
+    *** Default mimimum stopped elapsed time to be considered stopped
+    **/
+    public  static final long   MIN_STOPPED_TIME_SEC        = DateTime.MinuteSeconds(5);
+
+    /**
+    *** Default to delimit stop with ignition off (if this occurs before the minimum stopped time)
+    **/
+    public  static final boolean STOP_ON_IGNITION_OFF       = false;
+
+    // ------------------------------------------------------------------------
+
+    // During TRIP_ON_SPEED trip delimiters, set this value to 'true' to reset the
+    // elapsed stop time accumulation to start at the point of the defined 'stop'
+    // which is after the minimum elapsed stopped time has passed.  This does cause
+    // some user confustion, so if the above is unclear, leave this value 'false'.
+    private static final boolean SPEED_RESET_STOP_TIME      = false;
+
+    // ------------------------------------------------------------------------
+
+    private static final int    STATE_UNKNOWN               = 0;
+    private static final int    STATE_START                 = 1;
+    private static final int    STATE_STOP                  = 2;
+
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Trip handler interface
+    **/
+    public interface TripHandler
+    {
+
+        /**
+        *** Called when a trip has been delimited
+        *** @param trip  The delimited trip
+        **/
+        public void handleTrip(TripInfo trip);
+
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Trip information, as delimited by the state machine.<br>
+    *** A 'complete' trip is sent to the TripHandler when the following trip starts (at which
+    *** point the stopped elapsed time is known).  Incomplete trips are only sent when the
+    *** state machine is finished (see <code>TripStateMachine.finish</code>).
+    **/
+    public static class TripInfo
+    {
+        private String      accountID       = "";
+        private String      deviceID        = "";
+        private boolean     isComplete      = false;
+        private long        startTime       = 0L;
+        private GeoPoint    startGP         = null;
+        private String      startAddress    = "";
+        private double      startOdom       = 0.0;
+        private double      startFuel       = 0.0;
+        private long        stopTime        = 0L;
+        private GeoPoint    stopGP          = null;
+        private String      stopAddress     = "";
+        private double      stopOdom        = 0.0;
+        private double      stopFuel        = 0.0;
+        private long        driveTime       = 0L;
+        private double      driveDist       = 0.0;
+        private double      driveFuel       = 0.0;
+        private double      driveEcon       = 0.0;
+        private long        stopElapse      = 0L;
+        private long        idleElapse      = 0L;
+        private double      idleFuel        = 0.0;
+        public TripInfo(String acctID, String devID, boolean complete,
+            long startTime , GeoPoint startGP, String startAddress, double startOdom, double startFuel,
+            long stopTime  , GeoPoint stopGP , String stopAddress , double stopOdom , double stopFuel ,
+            long driveTime , double driveDist, double driveFuel   , double driveEcon,
+            long stopElapse, long idleElapse , double idleFuel) {
+            this.accountID      = StringTools.trim(acctID);
+            this.deviceID       = StringTools.trim(devID);
+            this.isComplete     = complete;
+            this.startTime      = startTime;
+            this.startGP        = startGP;
+            this.startAddress   = startAddress;
+            this.startOdom      = startOdom;
+            this.startFuel      = startFuel;
+            this.stopTime       = stopTime;
+            this.stopGP         = stopGP;
+            this.stopAddress    = stopAddress;
+            this.stopOdom       = stopOdom;
+            this.stopFuel       = stopFuel;
+            this.driveTime      = driveTime;
+            this.driveDist      = driveDist;
+            this.driveFuel      = driveFuel;
+            this.driveEcon      = driveEcon;
+            this.stopElapse     = stopElapse;
+            this.idleElapse     = idleElapse;
+            this.idleFuel       = idleFuel;
+        }
+        public String   getAccountID()      { return this.accountID; }
+        public String   getDeviceID()       { return this.deviceID; }
+        public boolean  isComplete()        { return this.isComplete; }
+        public long     getStartTime()      { return this.startTime; }      // may be 0L
+        public GeoPoint getStartGeoPoint()  { return this.startGP; }        // may be null
+        public String   getStartAddress()   { return this.startAddress; }   // may be null/blank
+        public double   getStartOdometer()  { return this.startOdom; }
+        public double   getStartFuel()      { return this.startFuel; }
+        public long     getStopTime()       { return this.stopTime; }       // may be <= 0L
+        public GeoPoint getStopGeoPoint()   { return this.stopGP; }         // may be null
+        public String   getStopAddress()    { return this.stopAddress; }    // may be null/blank
+        public double   getStopOdometer()   { return this.stopOdom; }
+        public double   getStopFuel()       { return this.stopFuel; }
+        public long     getDriveTime()      { return this.driveTime; }
+        public double   getDriveDistance()  { return this.driveDist; }      // kilometers
+        public double   getDriveFuel()      { return this.driveFuel; }      // liters
+        public double   getDriveEconomy()   { return this.driveEcon; }      // kilometers per liter
+        public long     getStopElapsed()    { return this.stopElapse; }
+        public long     getIdleElapsed()    { return this.idleElapse; }
+        public double   getIdleFuel()       { return this.idleFuel; }
+        public String toString() {
+            return this.accountID + "/" + this.deviceID + " " + this.startTime + " ==> " + this.stopTime;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns the trip start type for the specified Device and trip start type name
+    *** @param device  The Device
+    *** @param tripType  The trip start type name ("default", "speed", "ignition", "startstop")
+    *** @return The trip start type (TRIP_ON_SPEED, TRIP_ON_IGNITION, TRIP_ON_START)
+    **/
+    public static int getTripStartType(Device device, String tripType)
+    {
+        String tt = StringTools.trim(tripType).toLowerCase();
+        if (ListTools.contains(MOTION_DEFAULT,tt)) {
+            // "default"
+            DCServerConfig dcs = (device != null)? DCServerFactory.getServerConfig(device.getDeviceCode()) : null;
+            if ((dcs != null) && dcs.getStartStopSupported(false)) {
+                return TRIP_ON_START;
+            } else
+            if ((device != null) && (device.getIgnitionStatusCodes() != null)) {
+                return TRIP_ON_IGNITION;
+            } else {
+                return TRIP_ON_SPEED;
+            }
+        } else
+        if (ListTools.contains(MOTION_STARTSTOP,tt)) {
+            // "startstop"
+            return TRIP_ON_START;
+        } else
+        if (ListTools.contains(MOTION_IGNITION,tt)) {
+            // "ignition"
+            return TRIP_ON_IGNITION;
+        } else {
+            // "speed", "motion"
+            return TRIP_ON_SPEED;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    private String                      accountID           = "";
+    private String                      deviceID            = "";
+    private TripHandler                 tripHandler         = null;
+
+    private int                         tripStartType       = TRIP_ON_SPEED;
+    private double                      minSpeedKPH         = MIN_SPEED_KPH;        // TRIP_ON_SPEED only
+    private long                        minStoppedTimeSec   = MIN_STOPPED_TIME_SEC; // TRIP_ON_SPEED only
+    private boolean                     stopOnIgnitionOff   = STOP_ON_IGNITION_OFF;
+
+    private int                         ignitionCodes[]     = null;
+    private boolean                     isIgnitionOn        = false;
+    private EventData                   lastIgnitionEvent   = null;
+
+    private EventData                   idleStartEvent      = null;
+    private EventData                   idleStopEvent       = null;
+    private long                        idleAccumulator     = 0L;       // seconds
+
+    private boolean                     isInMotion          = false;
+    private EventData                   lastMotionEvent     = null;
+    private EventData                   pendingStopEvent    = null;     // TRIP_ON_SPEED only
+
+    private int                         lastStateChange     = STATE_UNKNOWN;
+
+    private long                        lastStartTime       = 0L;
+    private GeoPoint                    lastStartPoint      = null;
+    private String                      lastStartAddress    = "";
+    private double                      lastStartOdometer   = 0.0;
+    private double                      lastStartFuelUsed   = 0.0;
+
+    private long                        lastStopTime        = 0L;
+    private GeoPoint                    lastStopPoint       = null;
+    private String                      lastStopAddress     = "";
+    private double                      lastStopOdometer    = 0.0;
+    private double                      lastStopFuelUsed    = 0.0;
+
+    private long                        lastEventTime       = 0L;
+    private long                        eventCount          = 0L;
+    private long                        tripCount           = 0L;
+    private boolean                     isFinished          = false;
+
+    /**
+    *** Constructor
+    *** @param device            The Device
+    *** @param tripType          The trip start type name ("default", "speed", "ignition", "startstop")
+    *** @param minSpeedKPH       The minimum in-motion speed (TRIP_ON_SPEED only)
+    *** @param minStoppedTimeSec The minimum stopped elapsed time (TRIP_ON_SPEED only)
+    *** @param stopOnIgnitionOff True to delimit a stop with ignition-off
+    *** @param handler           The TripHandler called for each delimited trip
+    **/
+    public TripStateMachine(Device device, String tripType,
+        double minSpeedKPH, long minStoppedTimeSec, boolean stopOnIgnitionOff,
+        TripHandler handler)
+    {
+        this.accountID          = (device != null)? device.getAccountID() : "";
+        this.deviceID           = (device != null)? device.getDeviceID()  : "";
+        this.tripHandler        = handler;
+        this.tripStartType      = TripStateMachine.getTripStartType(device, tripType);
+        this.ignitionCodes      = (device != null)? device.getIgnitionStatusCodes() : null;
+        if ((this.tripStartType == TRIP_ON_IGNITION) && (this.ignitionCodes == null)) {
+            this.ignitionCodes  = new int[] { StatusCodes.STATUS_IGNITION_OFF, StatusCodes.STATUS_IGNITION_ON };
+        }
+        this.minSpeedKPH        = minSpeedKPH;
+        this.minStoppedTimeSec  = minStoppedTimeSec;
+        this.stopOnIgnitionOff  = stopOnIgnitionOff;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Gets the trip start type
+    *** @return The trip start type (TRIP_ON_SPEED, TRIP_ON_IGNITION, TRIP_ON_START)
+    **/
+    public int getTripStartType()
+    {
+        return this.tripStartType;
+    }
+
+    /**
+    *** Returns a String which identifies the configuration of this state machine.  State
+    *** machines with equal configuration keys delimit the same trips from the same events.
+    *** @return The configuration key
+    **/
+    public String getConfigKey()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append(this.tripStartType);
+        sb.append("|");
+        if (this.ignitionCodes != null) {
+            sb.append(this.ignitionCodes[0]).append(",").append(this.ignitionCodes[1]);
+        }
+        sb.append("|").append(this.minSpeedKPH);
+        sb.append("|").append(this.minStoppedTimeSec);
+        sb.append("|").append(this.stopOnIgnitionOff);
+        return sb.toString();
+    }
+
+    /**
+    *** Returns the status codes of the events required by this state machine
+    *** @return The status codes, or null if all events are required
+    **/
+    public int[] getStatusCodes()
+    {
+        if (this.tripStartType == TRIP_ON_START) {
+            // only start/stop events
+            if (this.ignitionCodes != null) {
+                return new int[] {
+                    StatusCodes.STATUS_MOTION_START,
+                    StatusCodes.STATUS_MOTION_STOP,
+                    this.ignitionCodes[0],              // ignition OFF
+                    this.ignitionCodes[1]               // ignition ON
+                };
+            } else {
+                return new int[] {
+                    StatusCodes.STATUS_MOTION_START,
+                    StatusCodes.STATUS_MOTION_STOP
+                };
+            }
+        } else
+        if (this.tripStartType == TRIP_ON_IGNITION) {
+            // only IgnitionOn/IgnitionOff events (this.ignitionCodes is non-null)
+            return new int[] {
+                this.ignitionCodes[0],                  // ignition OFF
+                this.ignitionCodes[1]                   // ignition ON
+            };
+        } else {
+            // TRIP_ON_SPEED: all status codes
+            return null;
+        }
+    }
+
+    /**
+    *** Returns true if only events with a valid GPS location are required by this state machine
+    *** @return True if only valid GPS events are required
+    **/
+    public boolean getValidGPSRequired()
+    {
+        // TRIP_ON_SPEED without ignition codes only needs GPS events
+        return (this.tripStartType == TRIP_ON_SPEED) && (this.ignitionCodes == null);
+    }
+
+    /**
+    *** Returns true if the specified event would be selected by the constraints returned by
+    *** <code>getStatusCodes</code> and <code>getValidGPSRequired</code>
+    *** @param ev  The EventData record
+    *** @return True if the event is relevant to this state machine
+    **/
+    public boolean isTripEvent(EventData ev)
+    {
+        if (ev == null) {
+            return false;
+        }
+        int sc[] = this.getStatusCodes();
+        if ((sc != null) && !ListTools.contains(sc, ev.getStatusCode())) {
+            return false;
+        }
+        if (this.getValidGPSRequired() && (ev.getLatitude() == 0.0) && (ev.getLongitude() == 0.0)) {
+            return false;
+        }
+        return true;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Gets the timestamp of the last event processed
+    *** @return The timestamp of the last event processed
+    **/
+    public long getLastEventTime()
+    {
+        return this.lastEventTime;
+    }
+
+    /**
+    *** Gets the number of events processed
+    *** @return The number of events processed
+    **/
+    public long getEventCount()
+    {
+        return this.eventCount;
+    }
+
+    /**
+    *** Gets the number of trips sent to the TripHandler
+    *** @return The number of trips
+    **/
+    public long getTripCount()
+    {
+        return this.tripCount;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /* send trip to handler */
+    private void _addTrip(boolean complete,
+        long startTime , GeoPoint startGP, String startAddress, double startOdom, double startFuel,
+        long stopTime  , GeoPoint stopGP , String stopAddress , double stopOdom , double stopFuel ,
+        long driveTime , double driveDist, double driveFuel   , double driveEcon,
+        long stopElapse, long idleElapse , double idleFuel)
+    {
+        this.tripCount++;
+        if (this.tripHandler != null) {
+            this.tripHandler.handleTrip(new TripInfo(this.accountID, this.deviceID, complete,
+                startTime , startGP  , startAddress, startOdom, startFuel,
+                stopTime  , stopGP   , stopAddress , stopOdom , stopFuel ,
+                driveTime , driveDist, driveFuel   , driveEcon,
+                stopElapse, idleElapse, idleFuel));
+        }
+    }
+
+    /**
+    *** Processes the next event (events must be processed in ascending timestamp order)
+    *** @param evRcd  The EventData record
+    **/
+    public void processEvent(EventData evRcd)
+    {
+        if ((evRcd == null) || this.isFinished) {
+            return;
+        }
+        int statusCode = evRcd.getStatusCode();
+        this.lastEventTime = evRcd.getTimestamp();
+        this.eventCount++;
+
+        /* ignition state change */
+        boolean ignitionChange = false;
+        if (this.tripStartType != TRIP_ON_IGNITION) {
+            if (this.ignitionCodes != null) {
+                // has ignition codes
+                if (this.isIgnitionOff(statusCode)) {
+                    // ignition OFF
+                    if ((this.lastIgnitionEvent == null) || this.isIgnitionOn) {
+                        ignitionChange         = true;
+                        this.isIgnitionOn      = false;
+                        this.lastIgnitionEvent = evRcd;
+                    } else {
+                        // ignition is already off
+                    }
+                } else
+                if (this.isIgnitionOn(statusCode)) {
+                    // ignition ON
+                    if ((this.lastIgnitionEvent == null) || !this.isIgnitionOn) {
+                        ignitionChange         = true;
+                        this.isIgnitionOn      = true;
+                        this.lastIgnitionEvent = evRcd;
+                    } else {
+                        // ignition is already on
+                    }
+                } else {
+                    // leave ignition state as-is
+                }
+            } else {
+                // no ignition codes
+            }
+        }
+
+        /* trip delimiter */
+        boolean isMotionStart = false;
+        boolean isMotionStop  = false;
+        boolean isIdleStart   = false;
+        boolean isIdleStop    = false;
+        if (this.tripStartType == TRIP_ON_IGNITION) {
+            // TRIP_ON_IGNITION
+            if (this.isIgnitionOn(statusCode)) {
+                // I've started moving
+                if ((this.lastIgnitionEvent == null) || !this.isIgnitionOn) {
+                    // ignition state changed to on
+                    ignitionChange              = true;
+                    this.isIgnitionOn           = true;
+                    this.lastIgnitionEvent      = evRcd;
+                    isMotionStart               = true;
+                    this.isInMotion             = true;
+                    this.lastMotionEvent        = evRcd;
+                  //isIdleStop                  = true; <== no idle for TRIP_ON_IGNITION
+                    this.idleStopEvent          = null;
+                } else {
+                    // ignition is already on
+                }
+            } else
+            if (this.isIgnitionOff(statusCode)) {
+                // I've stopped moving
+                if ((this.lastIgnitionEvent == null) || this.isIgnitionOn) {
+                    ignitionChange              = true;
+                    this.isIgnitionOn           = false;
+                    this.lastIgnitionEvent      = evRcd;
+                    isMotionStop                = true;
+                    this.isInMotion             = false;
+                    this.lastMotionEvent        = evRcd;
+                  //isIdleStart                 = true;  <== no idle for TRIP_ON_IGNITION
+                    this.idleStartEvent         = null;
+                } else {
+                    // ignition is already off
+                }
+            } else {
+                // not a motion state change event
+            }
+        } else
+        if (this.tripStartType == TRIP_ON_START) {
+            // TRIP_ON_START
+            if (this.isMotionStart(statusCode)) {
+                if (!this.isInMotion) {
+                    // I was stopped, I've now started moving (stop idle clock)
+                    isMotionStart                   = true;
+                    this.isInMotion                 = true;
+                    this.lastMotionEvent            = evRcd;
+                    if (!this.isIgnitionOn) {
+                        // force ignition ON when moving
+                        this.isIgnitionOn           = true;
+                        this.lastIgnitionEvent      = evRcd;
+                    }
+                    isIdleStop                      = true;
+                    this.idleStopEvent              = (this.ignitionCodes != null)? evRcd : null;
+                } else {
+                    // I'm already moving
+                }
+            } else
+            if (this.isMotionStop(statusCode)) {
+                if (this.isInMotion) {
+                    // I've stopped moving (start idle clock)
+                    isMotionStop                = true;
+                    this.isInMotion             = false;
+                    this.lastMotionEvent        = evRcd;
+                    if (this.isIgnitionOn && (this.ignitionCodes == null)) {
+                        // force ignition off if device does not have ignition codes
+                        this.isIgnitionOn       = false;
+                        this.lastIgnitionEvent  = evRcd;
+                    }
+                    isIdleStart                 = true;
+                    this.idleStartEvent         = (this.ignitionCodes != null)? evRcd : null;
+                } else {
+                    // I'm already stopped
+                }
+            } else
+            if (this.isIgnitionOff(statusCode) && this.stopOnIgnitionOff) {
+                if (this.isInMotion) {
+                    // I've stopped moving (start idle clock)
+                    isMotionStop                = true;
+                    this.isInMotion             = false;
+                    this.lastMotionEvent        = evRcd;
+                    isIdleStart                 = true;
+                    this.idleStartEvent         = (this.ignitionCodes != null)? evRcd : null;
+                } else {
+                    // I'm already stopped
+                }
+            } else {
+                // not a motion state change event
+                // check for idle change events while not moving
+                if (!this.isInMotion) {
+                    if (this.isIgnitionOn(statusCode)) {
+                        // ignition on while not moving, start idle clock
+                        isIdleStart             = true;
+                        this.idleStartEvent     = (this.ignitionCodes != null)? evRcd : null;
+                    } else
+                    if (this.isIgnitionOff(statusCode)) {
+                        isIdleStop              = true;
+                        this.idleStopEvent      = (this.ignitionCodes != null)? evRcd : null;
+                    }
+                }
+            }
+        } else
+        if (this.tripStartType == TRIP_ON_SPEED) {
+            if (evRcd.getSpeedKPH() >= this.minSpeedKPH) {
+                // I am moving
+                this.pendingStopEvent           = null; // always reset (for min stop time below)
+                if (!this.isInMotion) {
+                    // I wasn't moving before, now I've started moving
+                    isMotionStart               = true;
+                    this.isInMotion             = true;
+                    this.lastMotionEvent        = evRcd; // start of motion
+                    if (this.isIgnitionOn) {
+                        // ignition is already on.
+                    } else {
+                        // force ignition on (since were now moving)
+                        this.isIgnitionOn       = true;
+                        this.lastIgnitionEvent  = evRcd;
+                    }
+                } else {
+                    // I'm still moving
+                }
+            } else {
+                // I am not moving
+                if (this.isInMotion) {
+                    // I was moving, now I've stopped moving - maybe
+                    if (this.minStoppedTimeSec <= 0L) {
+                        // no minimum stopped-time, and we haven't already stopped
+                        isMotionStop                = true;
+                        this.isInMotion             = false;
+                        this.lastMotionEvent        = evRcd; // stop motion
+                        this.pendingStopEvent       = null;
+                    } else
+                    if (ignitionChange && !this.isIgnitionOn && this.stopOnIgnitionOff) {
+                        // ignition turned off while not moving, and we want to consider this as a stop
+                        isMotionStop                = true;
+                        this.isInMotion             = false;
+                        this.lastMotionEvent        = (this.pendingStopEvent != null)? this.pendingStopEvent : evRcd; // stop motion
+                        this.pendingStopEvent       = null;
+                    } else {
+                        // minimum stopped time in effect
+                        if (this.pendingStopEvent == null) {
+                            // start the stopped-time clock
+                            this.pendingStopEvent   = evRcd;
+                        } else {
+                            // check to see if we've met the minimum stopped time
+                            long deltaTimeSec = evRcd.getTimestamp() - this.pendingStopEvent.getTimestamp();
+                            if (deltaTimeSec >= this.minStoppedTimeSec) {
+                                // elapsed stop time exceeded limit
+                                isMotionStop         = true;
+                                this.isInMotion      = false;
+                                if (SPEED_RESET_STOP_TIME) {
+                                    // if we reset the stop event here, then the minimum stopped time will
+                                    // not be counted. (this does cause some user confusion, so this reset
+                                    // should not occur).
+                                    this.lastMotionEvent = evRcd; // stop motion
+                                } else {
+                                    this.lastMotionEvent = this.pendingStopEvent;
+                                }
+                                this.pendingStopEvent    = null;
+                            } else {
+                                // assume I'm still moving (ie. temporarily stopped)
+                            }
+                        }
+                    }
+                } else {
+                    // I'm still not moving
+                }
+            }
+        }
+        // isMotionStart            - true if motion changed from stop==>start
+        // isMotionStop             - true if motion changed from start==>stop
+        // this.isInMotion          - current motion state
+        // this.lastMotionEvent     - last motion delimiter event
+        // this.lastIgnitionEvent   - last ignition delimiter event
+        // isIdleStart              - true if idle changed from stop==>start
+        // isIdleStop               - true if idle changed from start==>stop
+        // this.idleStartEvent      - last idle start event
+        // this.idleStopEvent       - last idle stop event
+        // ignitionChange           - true if ignition changed state
+        // this.isIgnitionOn        - current ignition state
+
+        /* accrue idle time */
+        if (this.ignitionCodes != null) {
+            // 'idle' only valid if
+            if (isIdleStart) {
+                // just wait for 'stop'
+            } else
+            if (isIdleStop) {
+                // 'this.idleStopEvent' is non-null
+                if (this.idleStartEvent != null) {
+                    this.idleAccumulator += (this.idleStopEvent.getTimestamp() - this.idleStartEvent.getTimestamp());
+                } else {
+                    // 'this.idleStartEvent' not yet initialized (likely first occurance in report)
+                }
+                this.idleStartEvent = null;
+                this.idleStopEvent  = null;
+            }
+        }
+
+        // lastStart -> lastStop -> start
+        if (isMotionStart) {
+            EventData ev = this.lastMotionEvent; // start of motion
+            // 'this.isIgnitionOn' is 'true'
+
+            if (this.lastStateChange == STATE_START) {
+                // abnormal start ==> start
+                // we already have a 'start', we're missing an interleaving  'stop'
+                // the driving-time is not valid
+                // ('this.lastStopTime' will already be '0' here, since we didn't get an interleaving 'stop')
+                // ('this.lastStartTime' will be > 0 here, since we did get a previous 'start')
+                // We treat this START event as a STOP event
+                long     stopTime  = ev.getTimestamp();
+                GeoPoint stopPoint = ev.getGeoPoint();
+                String   stopAddr  = ev.getAddress();
+                double   stopOdom  = ev.getOdometerKM();
+                if (stopOdom <= 0.0) { stopOdom = ev.getDistanceKM(); }
+                double   stopFuel  = ev.getFieldValue(EventData.FLD_fuelTotal, 0.0);
+                long     driveTime = (this.lastStartTime > 0L)? (stopTime  - this.lastStartTime)     : 0L;
+                double   driveDist = (this.lastStartTime > 0L)? (stopOdom  - this.lastStartOdometer) : 0.0; // kilometers
+                double   driveFuel = (this.lastStartTime > 0L)? (stopFuel  - this.lastStartFuelUsed) : 0.0; // liters
+                double   driveEcon = (driveFuel > 0.0)? (driveDist / driveFuel) : -1.0; // kilometers per liter
+                long     stopElaps = 0L;
+                long     idleElaps = 0L;
+                double   idleFuel  = -1.0;
+                this._addTrip(true,
+                    this.lastStartTime, this.lastStartPoint, this.lastStartAddress, this.lastStartOdometer, this.lastStartFuelUsed,
+                    stopTime          , stopPoint          , stopAddr             , stopOdom              , stopFuel              ,
+                    driveTime, driveDist, driveFuel, driveEcon,
+                    stopElaps, idleElaps, idleFuel);
+                // continue with 'START'
+            } else
+            if (this.lastStopTime > 0) {
+                // normal start --> stop ==> start
+                long     driveTime = (this.lastStartTime > 0L)? (this.lastStopTime     - this.lastStartTime)     : 0L;
+                double   driveDist = (this.lastStartTime > 0L)? (this.lastStopOdometer - this.lastStartOdometer) : -1.0; // kilometers
+                double   driveFuel = (this.lastStartTime > 0L)? (this.lastStopFuelUsed - this.lastStartFuelUsed) : -1.0; // liters
+                double   driveEcon = (driveFuel > 0.0)? (driveDist / driveFuel) : 0.0; // kilometers per liter
+                long     stopElaps = ev.getTimestamp() - this.lastStopTime;
+                long     idleElaps = (this.idleAccumulator > 0L)? this.idleAccumulator : -1L;
+                double   idleFuel  = -1.0;
+                this._addTrip(true,
+                    this.lastStartTime, this.lastStartPoint, this.lastStartAddress, this.lastStartOdometer, this.lastStartFuelUsed,
+                    this.lastStopTime , this.lastStopPoint , this.lastStopAddress , this.lastStopOdometer , this.lastStopFuelUsed ,
+                    driveTime, driveDist, driveFuel, driveEcon,
+                    stopElaps, idleElaps, idleFuel);
+            }
+
+            this.lastStartTime      = ev.getTimestamp();
+            this.lastStartPoint     = ev.getGeoPoint();
+            this.lastStartAddress   = ev.getAddress();
+            this.lastStartOdometer  = ev.getOdometerKM();
+            if (this.lastStartOdometer <= 0.0) { this.lastStartOdometer = ev.getDistanceKM(); }
+            this.lastStartFuelUsed  = ev.getFieldValue(EventData.FLD_fuelTotal, 0.0);
+
+            this.lastStopTime       = 0L;
+            this.lastStopPoint      = null;
+            this.lastStopAddress    = null;
+            this.lastStopOdometer   = 0.0;
+            this.lastStopFuelUsed   = 0.0;
+            this.lastStateChange    = STATE_START;
+
+            /* clear idle accrual */
+            this.idleAccumulator    = 0L;
+
+        } else
+        if (isMotionStop) {
+            EventData ev = this.lastMotionEvent; // stop motion
+
+            if (this.lastStateChange == STATE_STOP) {
+                // abnormal start --> stop ==> stop
+                // we already have a 'stop', we're missing a 'start'.
+                // this condition can only occur for TRIP_ON_START or TRIP_ON_IGNITION
+                if ((this.lastStopTime > 0) && (this.lastIgnitionEvent != null) && (this.lastIgnitionEvent.getTimestamp() > this.lastStopTime)) {
+                    // inject a START at the last ignition event (no additional idle accural calculations)
+                    long     startTime  = this.lastIgnitionEvent.getTimestamp();
+                    GeoPoint startPoint = this.lastIgnitionEvent.getGeoPoint();
+                    String   startAddr  = this.lastIgnitionEvent.getAddress();
+                    double   startOdom  = this.lastIgnitionEvent.getOdometerKM();
+                    if (startOdom <= 0.0) { startOdom = this.lastIgnitionEvent.getDistanceKM(); }
+                    double   startFuel  = this.lastIgnitionEvent.getFieldValue(EventData.FLD_fuelTotal, 0.0);
+                    long     driveTime  = this.lastStopTime     - startTime;
+                    double   driveDist  = this.lastStopOdometer - startOdom; // kilometers
+                    double   driveFuel  = this.lastStopFuelUsed - startFuel; // liters
+                    double   driveEcon  = (driveFuel > 0.0)? (driveDist / driveFuel) : 0.0; // kilometers per liter
+                    long     stopElaps  = this.lastIgnitionEvent.getTimestamp() - this.lastStopTime;
+                    long     idleElaps  = (this.idleAccumulator > 0L)? this.idleAccumulator : -1L;
+                    double   idleFuel   = -1.0;
+                    this._addTrip(true,
+                        startTime         , startPoint         , startAddr            , startOdom             , startFuel             ,
+                        this.lastStopTime , this.lastStopPoint , this.lastStopAddress , this.lastStopOdometer , this.lastStopFuelUsed ,
+                        driveTime, driveDist, driveFuel, driveEcon,
+                        stopElaps, idleElaps, idleFuel);
+                    this.isIgnitionOn = true; // force to true, since we simulated a 'START'
+                    // 'this.lastIgnitionEvent' stays as-is
+                    // Continue with STOP
+                } else {
+                    // no interleaving ignition events
+                    // ignore the previous 'STOP'
+                }
+            }
+
+            this.lastStopTime       = ev.getTimestamp();
+            this.lastStopPoint      = ev.getGeoPoint();
+            this.lastStopAddress    = ev.getAddress();
+            this.lastStopOdometer   = ev.getOdometerKM();
+            if (this.lastStopOdometer <= 0.0) { this.lastStopOdometer = ev.getDistanceKM(); }
+            this.lastStopFuelUsed   = ev.getFieldValue(EventData.FLD_fuelTotal, 0.0);
+            this.lastStateChange    = STATE_STOP;
+
+            /* start idle accrual */
+            this.idleAccumulator    = 0L;
+
+        }
+
+    }
+
+    /**
+    *** Finishes this state machine, sending the last (incomplete) trip to the TripHandler.
+    *** No further events may be processed.
+    **/
+    public void finish()
+    {
+        if (this.isFinished) {
+            return;
+        }
+        this.isFinished = true;
+
+        /* last trip */
+        if (this.lastStopTime > 0) {
+            // we are stopped
+            long   driveTime = (this.lastStartTime > 0L)? (this.lastStopTime     - this.lastStartTime    ) : -1L;
+            double driveDist = (this.lastStartTime > 0L)? (this.lastStopOdometer - this.lastStartOdometer) : -1.0; // kilometers
+            double driveFuel = (this.lastStartTime > 0L)? (this.lastStopFuelUsed - this.lastStartFuelUsed) : -1.0; // liter
+            double driveEcon = (driveFuel > 0.0)? (driveDist / driveFuel) : 0.0; // kilometers per liter
+            long   stopElaps = -1L;
+            long   idleElaps = (this.idleAccumulator > 0L)? this.idleAccumulator : -1L;
+            double idleFuel  = -1.0;
+            this._addTrip(false,
+                this.lastStartTime, this.lastStartPoint, this.lastStartAddress, this.lastStartOdometer, this.lastStartFuelUsed,
+                this.lastStopTime , this.lastStopPoint , this.lastStopAddress , this.lastStopOdometer , this.lastStopFuelUsed ,
+                driveTime, driveDist, driveFuel, driveEcon,
+                stopElaps, idleElaps, idleFuel);
+        } else
+        if (this.lastStartTime > 0) {
+            // we haven't stopped during the range of this report
+            long   driveTime = -1L;
+            double driveDist = -1.0; // kilometers
+            double driveFuel = -1.0; // liters
+            double driveEcon = -1.0; // kilometers per liter
+            long   stopElaps = -1L;
+            long   idleElaps = -1L;
+            double idleFuel  = -1.0;
+            this._addTrip(false,
+                this.lastStartTime, this.lastStartPoint, this.lastStartAddress, this.lastStartOdometer, this.lastStartFuelUsed,
+                -1L               , null               , ""                   , -1.0                  , -1.0                  ,
+                driveTime, driveDist, driveFuel, driveEcon,
+                stopElaps, idleElaps, idleFuel);
+        }
+
+    }
+
+    // ------------------------------------------------------------------------
+
+    private boolean isIgnitionOn(int statusCode)
+    {
+        if (this.ignitionCodes != null) {
+            return (statusCode == this.ignitionCodes[1]);
+        } else {
+            return false;
+        }
+    }
+
+    private boolean isIgnitionOff(int statusCode)
+    {
+        if (this.ignitionCodes != null) {
+            return (statusCode == this.ignitionCodes[0]);
+        } else {
+            return false;
+        }
+    }
+
+    private boolean isMotionStart(int statusCode)
+    {
+        return (statusCode == StatusCodes.STATUS_MOTION_START);
+    }
+
+    private boolean isMotionStop(int statusCode)
+    {
+        return (statusCode == StatusCodes.STATUS_MOTION_STOP);
+    }
+
+}
@@ -0,0 +1,314 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2009, GeoTelematic Solutions, Inc.
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Incremental (ingest-time) trip delimiting into the Trip table
+// ----------------------------------------------------------------------------
+// Change History:
+//  2010/01/11  Martin D. Flynn
+//     -Initial release
+// ----------------------------------------------------------------------------
+package org.opengts.db;
+
+import java.lang.*;
+import java.util.*;
+
+import org.opengts.util.*;
+import org.opengts.dbtools.*;
+import org.opengts.db.tables.*;
+
+/**
+*** Incremental trip tracker.<br>
+*** When enabled (see <code>DBConfig.TRIP_TRACKER_ENABLED</code>), each received event is passed
+*** to a per-Device <code>TripStateMachine</code> (see <code>Device.insertEventData</code>), and
+*** completed trips are saved to the Trip table as they are delimited.  State machines are reset
+*** at the start of each day (in the Account time zone), so the Trip table holds the same trips
+*** that a MotionReport for that day would compute, allowing the report to read the precomputed
+*** trips rather than re-reading all of the day's events.<br>
+*** When a state machine is first created for a day (ie. at startup), it is brought up-to-date
+*** from the events already received for that day.  Events received out of order cause the
+*** affected day(s) to be recomputed when the next in-order event is received.  Out-of-order
+*** events are retained until their day is recomputed.  Recomputed days merge the stored events
+*** with the retained events, and with all events still queued in the <code>EventDataWriter</code>
+*** (see <code>EventDataWriter.getPendingEvents</code>).
+**/
+
+public class TripTracker
+{
+
+    // ------------------------------------------------------------------------
+
+    public  static final int    DEFAULT_MAXIMUM_DEVICES     = 10000;
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns true if incremental trip tracking is enabled
+    *** @return True if incremental trip tracking is enabled
+    **/
+    public static boolean isEnabled()
+    {
+        return RTConfig.getBoolean(DBConfig.TRIP_TRACKER_ENABLED, false) && TripTracker.tableExists();
+    }
+
+    private static int tripTableExists = -1;
+
+    /* return true if the Trip table exists (checked once) */
+    private static boolean tableExists()
+    {
+        if (tripTableExists < 0) {
+            try {
+                tripTableExists = Trip.getFactory().tableExists()? 1 : 0;
+            } catch (DBException dbe) {
+                Print.logException("Checking Trip table existence", dbe);
+                tripTableExists = 0;
+            }
+            if (tripTableExists == 0) {
+                Print.logWarn("Trip table does not exist, trip tracking disabled");
+            }
+        }
+        return (tripTableExists > 0);
+    }
+
+    /**
+    *** Creates a TripStateMachine for the specified Device, configured per the TripTracker
+    *** runtime properties
+    *** @param device   The Device
+    *** @param handler  The TripHandler
+    *** @return The TripStateMachine
+    **/
+    public static TripStateMachine createTripStateMachine(Device device, TripStateMachine.TripHandler handler)
+    {
+        return new TripStateMachine(device,
+            RTConfig.getString( DBConfig.TRIP_TRACKER_TRIP_START_TYPE, TripStateMachine.MOTION_SPEED[0]),
+            RTConfig.getDouble( DBConfig.TRIP_TRACKER_MIN_SPEED_KPH  , TripStateMachine.MIN_SPEED_KPH),
+            RTConfig.getLong(   DBConfig.TRIP_TRACKER_MIN_STOPPED_SEC, TripStateMachine.MIN_STOPPED_TIME_SEC),
+            RTConfig.getBoolean(DBConfig.TRIP_TRACKER_STOP_ON_IGN_OFF, TripStateMachine.STOP_ON_IGNITION_OFF),
+            handler);
+    }
+
+    /**
+    *** Returns the start of the day containing the specified time, in the time zone used by the
+    *** TripTracker for the specified Device (the Account time zone)
+    *** @param device  The Device
+    *** @param timeSec The time (in seconds)
+    *** @return The start of the day
+    **/
+    public static long getDayStart(Device device, long timeSec)
+    {
+        TimeZone tz = TripTracker._getTimeZone(device);
+        return (new DateTime(timeSec, tz)).getDayStart(tz);
+    }
+
+    /**
+    *** Returns the end of the day containing the specified time, in the time zone used by the
+    *** TripTracker for the specified Device (the Account time zone)
+    *** @param device  The Device
+    *** @param timeSec The time (in seconds)
+    *** @return The end of the day
+    **/
+    public static long getDayEnd(Device device, long timeSec)
+    {
+        TimeZone tz = TripTracker._getTimeZone(device);
+        return (new DateTime(timeSec, tz)).getDayEnd(tz);
+    }
+
+    private static TimeZone _getTimeZone(Device device)
+    {
+        Account account = (device != null)? device.getAccount() : null;
+        return (account != null)? account.getTimeZone(null) : null;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /* per-Device trip state */
+    private static class DeviceTrips
+        implements TripStateMachine.TripHandler
+    {
+        private long                dayStart    = 0L;
+        private long                dayEnd      = 0L;
+        private TripStateMachine    tsm         = null;
+        private Map<Long,java.util.List<EventData>> dirtyDays = null; // days with out-of-order events
+        public DeviceTrips() {
+            super();
+        }
+        public void handleTrip(TripStateMachine.TripInfo trip) {
+            if (trip.isComplete()) {
+                try {
+                    Trip.saveTrip(trip);
+                } catch (DBException dbe) {
+                    Print.logException("Unable to save Trip: " + trip, dbe);
+                }
+            }
+        }
+        public void processEvent(Device device, EventData ev) throws DBException {
+            long ts = ev.getTimestamp();
+            if ((this.tsm == null) || (ts > this.dayEnd)) {
+                // first event, or start of a new day
+                this.dayStart = TripTracker.getDayStart(device, ts);
+                this.dayEnd   = TripTracker.getDayEnd(device, ts);
+                java.util.List<EventData> pending = this._removeDirtyDay(this.dayStart);
+                this._recomputeDirtyDays(device);
+                this.tsm      = this._recompute(device, this.dayStart, this.dayEnd, pending, ev);
+            } else
+            if ((ts < this.dayStart) || (ts < this.tsm.getLastEventTime())) {
+                // out of order, recompute affected day when the next in-order event arrives.
+                // the event is retained, since it may still be queued in the EventDataWriter.
+                if (this.dirtyDays == null) { this.dirtyDays = new HashMap<Long,java.util.List<EventData>>(); }
+                Long dayS = new Long(TripTracker.getDayStart(device, ts));
+                java.util.List<EventData> pending = this.dirtyDays.get(dayS);
+                if (pending == null) {
+                    pending = new Vector<EventData>();
+                    this.dirtyDays.put(dayS, pending);
+                }
+                pending.add(ev);
+            } else
+            if (this.dirtyDays != null) {
+                // in-order event, recompute days with prior out-of-order events
+                java.util.List<EventData> pending = this._removeDirtyDay(this.dayStart);
+                this._recomputeDirtyDays(device);
+                if (pending != null) {
+                    this.tsm = this._recompute(device, this.dayStart, this.dayEnd, pending, ev);
+                } else
+                if (this.tsm.isTripEvent(ev)) {
+                    this.tsm.processEvent(ev);
+                }
+            } else
+            if (this.tsm.isTripEvent(ev)) {
+                this.tsm.processEvent(ev);
+            }
+        }
+        private java.util.List<EventData> _removeDirtyDay(long dayS) {
+            return (this.dirtyDays != null)? this.dirtyDays.remove(new Long(dayS)) : null;
+        }
+        private void _recomputeDirtyDays(Device device) throws DBException {
+            if (this.dirtyDays != null) {
+                for (Long ds : this.dirtyDays.keySet()) {
+                    long dayS = ds.longValue();
+                    long dayE = TripTracker.getDayEnd(device, dayS);
+                    this._recompute(device, dayS, dayE, this.dirtyDays.get(ds), null);
+                }
+                this.dirtyDays = null;
+            }
+        }
+        /* recompute the trips for the specified day, including the specified received events, and any events queued in the EventDataWriter (which may not yet have been written) */
+        private TripStateMachine _recompute(Device device, long dayS, long dayE, java.util.List<EventData> pending, EventData ev) throws DBException {
+            String acctID = device.getAccountID();
+            String devID  = device.getDeviceID();
+            TripStateMachine t = TripTracker.createTripStateMachine(device, this);
+            Trip.deleteTrips(acctID, devID, dayS, dayE);
+            java.util.List<EventData> recvList = new Vector<EventData>();
+            if (pending != null) {
+                recvList.addAll(pending);
+            }
+            if (ev != null) {
+                recvList.add(ev);
+            }
+            // pending events must be obtained before reading the table (a pending event may be
+            // written while the table is read, but is then skipped as a duplicate)
+            Vector<EventData> evList = new Vector<EventData>();
+            for (EventData p : EventDataWriter.getPendingEvents(acctID, devID, dayS, dayE, recvList)) {
+                if (t.isTripEvent(p)) { evList.add(p); }
+            }
+            int evNdx = 0;
+            DBRecordCursor<EventData> cursor = EventData.getRangeEventCursor(
+                acctID, devID,
+                dayS, dayE,
+                t.getStatusCodes(), t.getValidGPSRequired(),
+                EventData.LimitType.FIRST, -1L, true,
+                null);
+            try {
+                for (EventData e = cursor.nextRecord(); e != null; e = cursor.nextRecord()) {
+                    e.setDevice(device);
+                    long eTime = e.getTimestamp();
+                    for (; (evNdx < evList.size()) && (evList.get(evNdx).getTimestamp() < eTime); evNdx++) {
+                        t.processEvent(evList.get(evNdx));
+                    }
+                    if (TripTracker._isPending(evList, evNdx, e)) {
+                        continue; // the pending (received) event is processed instead
+                    }
+                    t.processEvent(e);
+                }
+            } finally {
+                cursor.close();
+            }
+            for (; evNdx < evList.size(); evNdx++) {
+                t.processEvent(evList.get(evNdx)); // not yet written
+            }
+            Print.logDebug("Recomputed trips: %s/%s [%d events, %d trips]", acctID, devID, t.getEventCount(), t.getTripCount());
+            return t;
+        }
+    }
+
+    /* return true if the list (sorted by timestamp, starting at the specified index) contains the specified event timestamp/statusCode */
+    private static boolean _isPending(java.util.List<EventData> evList, int ndx, EventData e)
+    {
+        for (int i = ndx; (i < evList.size()) && (evList.get(i).getTimestamp() == e.getTimestamp()); i++) {
+            if (evList.get(i).getStatusCode() == e.getStatusCode()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final Map<String,DeviceTrips> deviceMap = new LinkedHashMap<String,DeviceTrips>(64, 0.75F, true) {
+        protected boolean removeEldestEntry(Map.Entry<String,DeviceTrips> eldest) {
+            int maxSize = RTConfig.getInt(DBConfig.TRIP_TRACKER_MAXIMUM_DEVICES, DEFAULT_MAXIMUM_DEVICES);
+            return (this.size() > maxSize);
+        }
+    };
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Updates the trips for the Device of the specified event
+    *** @param device  The Device
+    *** @param ev      The received EventData record
+    **/
+    public static void processEvent(Device device, EventData ev)
+    {
+        if ((device == null) || (ev == null) || !TripTracker.isEnabled()) {
+            return;
+        }
+
+        /* get Device trip state */
+        String key = device.getAccountID() + "/" + device.getDeviceID();
+        DeviceTrips dt;
+        synchronized (deviceMap) {
+            dt = deviceMap.get(key);
+            if (dt == null) {
+                dt = new DeviceTrips();
+                deviceMap.put(key, dt);
+            }
+        }
+
+        /* process event */
+        synchronized (dt) {
+            try {
+                dt.processEvent(device, ev);
+            } catch (DBException dbe) {
+                Print.logException("Unable to update trips: " + key, dbe);
+                synchronized (deviceMap) {
+                    deviceMap.remove(key); // start over on next event
+                }
+            }
+        }
+
+    }
+
+}
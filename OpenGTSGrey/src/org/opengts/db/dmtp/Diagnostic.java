@@ -349,7 +349,7 @@ public class Diagnostic
         /* get Properties */
         Diagnostic d[] = null;
         try {
-            DBProvider.lockTables(new String[] { TABLE_NAME() }, null);
+            DBProvider.lockTablesForRead(new String[] { TABLE_NAME() });
             //d = (Diagnostic[])DBRecord.select(Diagnostic.getFactory(), dsel.toString(false));
             d = DBRecord.select(dsel); // select:DBSelect
         } finally {
@@ -417,7 +417,7 @@ public class PendingPacket
         /* get PendingPackets */
         PendingPacket pp[] = null;
         try {
-            DBProvider.lockTables(new String[] { TABLE_NAME() }, null);
+            DBProvider.lockTablesForRead(new String[] { TABLE_NAME() });
             //pp = (PendingPacket[])DBRecord.select(PendingPacket.getFactory(), dsel.toString(false));
             pp = DBRecord.select(dsel); // select:DBSelect
         } finally {
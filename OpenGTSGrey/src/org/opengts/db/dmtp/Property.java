@@ -350,7 +350,7 @@ public class Property
         /* get Properties */
         Property p[] = null;
         try {
-            DBProvider.lockTables(new String[] { TABLE_NAME() }, null);
+            DBProvider.lockTablesForRead(new String[] { TABLE_NAME() });
             //p = (Property[])DBRecord.select(Property.getFactory(), dsel.toString(false));
             p = DBRecord.select(dsel); // select:DBSelect
         } finally {
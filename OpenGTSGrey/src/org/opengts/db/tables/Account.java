@@ -71,6 +71,8 @@
 //  2009/04/02  Martin D. Flynn
 //     -Added 'FLD_retainedEventAge'.
 //     -Added check for invalid ID during Account '-list'
+//  2010/01/11  Martin D. Flynn
+//     -Refresh/invalidate DeviceIdentityCache entries when an Account is saved/deleted
 // ----------------------------------------------------------------------------
 package org.opengts.db.tables;
 
@@ -579,6 +581,10 @@ public class Account
         public DBFactory<Account> getFactory() {
             return Account.getFactory();
         }
+        protected void recordDidDelete() {
+            DeviceIdentityCache.invalidateAccount((String)this.getFieldValues().getFieldValue(FLD_accountID));
+            super.recordDidDelete();
+        }
     }
 
     /* factory constructor */
@@ -611,6 +617,19 @@ public class Account
 
     // ------------------------------------------------------------------------
 
+    /**
+    *** Callback after record has been be updated in the table
+    **/
+    protected void recordDidUpdate()
+    {
+        if (DeviceIdentityCache.isEnabled()) {
+            DeviceIdentityCache.putAccount(this);
+        }
+        super.recordDidUpdate();
+    }
+
+    // ------------------------------------------------------------------------
+
     /* table description */
     public static String getTableDescription(Locale loc)
     {
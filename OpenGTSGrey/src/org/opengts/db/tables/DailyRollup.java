@@ -0,0 +1,764 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2009, GeoTelematic Solutions, Inc.
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Change History:
+//  2010/01/11  Martin D. Flynn
+//     -Initial release
+// ----------------------------------------------------------------------------
+package org.opengts.db.tables;
+
+import java.lang.*;
+import java.util.*;
+import java.math.*;
+import java.io.*;
+import java.sql.*;
+
+import org.opengts.util.*;
+import org.opengts.dbtools.*;
+
+import org.opengts.db.*;
+import org.opengts.db.tables.*;
+
+public class DailyRollup
+    extends DeviceRecord<DailyRollup>
+{
+
+    // ------------------------------------------------------------------------
+
+    /* events with speeds at/above this value are considered "moving" */
+    public  static final double MIN_MOVING_SPEED_KPH        = 5.0;
+
+    /* ignition state */
+    private static final int    IGNITION_UNKNOWN            = -1;
+    private static final int    IGNITION_OFF                = 0;
+    private static final int    IGNITION_ON                 = 1;
+
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+    // SQL table definition below
+
+    /* table name */
+    public static final String _TABLE_NAME              = "DailyRollup";
+    public static String TABLE_NAME() { return DBProvider.translateTableName(_TABLE_NAME); }
+
+    /* field definition */
+    public static final String FLD_dayStartTime         = "dayStartTime";
+    public static final String FLD_eventCount           = "eventCount";
+    public static final String FLD_validGPSCount        = "validGPSCount";
+    public static final String FLD_statusCodeCounts     = "statusCodeCounts";
+    public static final String FLD_firstEventTime       = "firstEventTime";
+    public static final String FLD_lastEventTime        = "lastEventTime";
+    public static final String FLD_lastLatitude         = "lastLatitude";
+    public static final String FLD_lastLongitude        = "lastLongitude";
+    public static final String FLD_lastSpeedKPH         = "lastSpeedKPH";
+    public static final String FLD_ignitionState        = "ignitionState";
+    public static final String FLD_startOdometerKM      = "startOdometerKM";
+    public static final String FLD_stopOdometerKM       = "stopOdometerKM";
+    public static final String FLD_distanceKM           = "distanceKM";
+    public static final String FLD_maxSpeedKPH          = "maxSpeedKPH";
+    public static final String FLD_movingSpeedKPH       = "movingSpeedKPH";
+    public static final String FLD_movingCount          = "movingCount";
+    public static final String FLD_movingElapsed        = "movingElapsed";
+    public static final String FLD_stoppedElapsed       = "stoppedElapsed";
+    public static final String FLD_idleElapsed          = "idleElapsed";
+    public static final String FLD_geozoneVisits        = "geozoneVisits";
+    private static DBField FieldInfo[] = {
+        // DailyRollup fields
+        newField_accountID(true),
+        newField_deviceID(true),
+        new DBField(FLD_dayStartTime    , Long.TYPE     , DBField.TYPE_UINT32      , "Day Start Timestamp"  , "key=true"),
+        new DBField(FLD_eventCount      , Long.TYPE     , DBField.TYPE_UINT32      , "Event Count"          , ""),
+        new DBField(FLD_validGPSCount   , Long.TYPE     , DBField.TYPE_UINT32      , "Valid GPS Event Count", ""),
+        new DBField(FLD_statusCodeCounts, String.class  , DBField.TYPE_TEXT        , "Status Code Counts"   , ""),
+        new DBField(FLD_firstEventTime  , Long.TYPE     , DBField.TYPE_UINT32      , "First Event Timestamp", ""),
+        new DBField(FLD_lastEventTime   , Long.TYPE     , DBField.TYPE_UINT32      , "Last Event Timestamp" , ""),
+        new DBField(FLD_lastLatitude    , Double.TYPE   , DBField.TYPE_DOUBLE      , "Last Latitude"        , "format=#0.00000"),
+        new DBField(FLD_lastLongitude   , Double.TYPE   , DBField.TYPE_DOUBLE      , "Last Longitude"       , "format=#0.00000"),
+        new DBField(FLD_lastSpeedKPH    , Double.TYPE   , DBField.TYPE_DOUBLE      , "Last Speed KPH"       , "format=#0.0"),
+        new DBField(FLD_ignitionState   , Integer.TYPE  , DBField.TYPE_INT16       , "Ignition State"       , ""),
+        new DBField(FLD_startOdometerKM , Double.TYPE   , DBField.TYPE_DOUBLE      , "Start Odometer KM"    , "format=#0.0"),
+        new DBField(FLD_stopOdometerKM  , Double.TYPE   , DBField.TYPE_DOUBLE      , "Stop Odometer KM"     , "format=#0.0"),
+        new DBField(FLD_distanceKM      , Double.TYPE   , DBField.TYPE_DOUBLE      , "GPS Distance KM"      , "format=#0.0"),
+        new DBField(FLD_maxSpeedKPH     , Double.TYPE   , DBField.TYPE_DOUBLE      , "Maximum Speed KPH"    , "format=#0.0"),
+        new DBField(FLD_movingSpeedKPH  , Double.TYPE   , DBField.TYPE_DOUBLE      , "Total Moving Speed"   , "format=#0.0"),
+        new DBField(FLD_movingCount     , Long.TYPE     , DBField.TYPE_UINT32      , "Moving Event Count"   , ""),
+        new DBField(FLD_movingElapsed   , Long.TYPE     , DBField.TYPE_INT32       , "Moving Elapsed Sec"   , ""),
+        new DBField(FLD_stoppedElapsed  , Long.TYPE     , DBField.TYPE_INT32       , "Stopped Elapsed Sec"  , ""),
+        new DBField(FLD_idleElapsed     , Long.TYPE     , DBField.TYPE_INT32       , "Idle Elapsed Sec"     , ""),
+        new DBField(FLD_geozoneVisits   , String.class  , DBField.TYPE_TEXT        , "Geozone Arrivals"     , ""),
+        // Common fields
+        newField_lastUpdateTime(),
+        newField_creationTime(),
+    };
+
+    /* key class */
+    public static class Key
+        extends DeviceKey<DailyRollup>
+    {
+        public Key() {
+            super();
+        }
+        public Key(String accountId, String deviceId, long dayStartTime) {
+            super.setFieldValue(FLD_accountID   , ((accountId != null)? accountId.toLowerCase() : ""));
+            super.setFieldValue(FLD_deviceID    , ((deviceId  != null)? deviceId .toLowerCase() : ""));
+            super.setFieldValue(FLD_dayStartTime, dayStartTime);
+        }
+        public DBFactory<DailyRollup> getFactory() {
+            return DailyRollup.getFactory();
+        }
+    }
+
+    /* factory constructor */
+    private static DBFactory<DailyRollup> factory = null;
+    public static DBFactory<DailyRollup> getFactory()
+    {
+        if (factory == null) {
+            factory = DBFactory.createDBFactory(
+                DailyRollup.TABLE_NAME(),
+                DailyRollup.FieldInfo,
+                DBFactory.KeyType.PRIMARY,
+                DailyRollup.class,
+                DailyRollup.Key.class,
+                false/*editable*/, true/*viewable*/);
+            factory.addParentTable(Account.TABLE_NAME());
+            factory.addParentTable(Device.TABLE_NAME());
+        }
+        return factory;
+    }
+
+    /* Bean instance */
+    public DailyRollup()
+    {
+        super();
+    }
+
+    /* database record */
+    public DailyRollup(DailyRollup.Key key)
+    {
+        super(key);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /* table description */
+    public static String getTableDescription(Locale loc)
+    {
+        I18N i18n = I18N.getI18N(DailyRollup.class, loc);
+        return i18n.getString("DailyRollup.description",
+            "This table contains " +
+            "per-Device daily aggregates (event counts, distance, speed, moving/idle time) " +
+            "of received events, maintained incrementally when the RollupTracker is enabled."
+            );
+    }
+
+    // SQL table definition above
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+    // Bean access fields below
+
+    public long getDayStartTime()
+    {
+        return this.getFieldValue(FLD_dayStartTime, 0L);
+    }
+
+    private void setDayStartTime(long v)
+    {
+        this.setFieldValue(FLD_dayStartTime, v);
+    }
+
+    public long getEventCount()
+    {
+        return this.getFieldValue(FLD_eventCount, 0L);
+    }
+
+    public void setEventCount(long v)
+    {
+        this.setFieldValue(FLD_eventCount, v);
+    }
+
+    public long getValidGPSCount()
+    {
+        return this.getFieldValue(FLD_validGPSCount, 0L);
+    }
+
+    public void setValidGPSCount(long v)
+    {
+        this.setFieldValue(FLD_validGPSCount, v);
+    }
+
+    public String getStatusCodeCounts()
+    {
+        String v = (String)this.getFieldValue(FLD_statusCodeCounts);
+        return StringTools.trim(v);
+    }
+
+    public void setStatusCodeCounts(String v)
+    {
+        this.setFieldValue(FLD_statusCodeCounts, StringTools.trim(v));
+    }
+
+    public long getFirstEventTime()
+    {
+        return this.getFieldValue(FLD_firstEventTime, 0L);
+    }
+
+    public void setFirstEventTime(long v)
+    {
+        this.setFieldValue(FLD_firstEventTime, v);
+    }
+
+    public long getLastEventTime()
+    {
+        return this.getFieldValue(FLD_lastEventTime, 0L);
+    }
+
+    public void setLastEventTime(long v)
+    {
+        this.setFieldValue(FLD_lastEventTime, v);
+    }
+
+    public GeoPoint getLastGeoPoint()
+    {
+        double lat = this.getFieldValue(FLD_lastLatitude , 0.0);
+        double lon = this.getFieldValue(FLD_lastLongitude, 0.0);
+        return GeoPoint.isValid(lat,lon)? new GeoPoint(lat,lon) : null;
+    }
+
+    public void setLastGeoPoint(GeoPoint gp)
+    {
+        this.setFieldValue(FLD_lastLatitude , (gp != null)? gp.getLatitude()  : 0.0);
+        this.setFieldValue(FLD_lastLongitude, (gp != null)? gp.getLongitude() : 0.0);
+    }
+
+    public double getLastSpeedKPH()
+    {
+        return this.getFieldValue(FLD_lastSpeedKPH, 0.0);
+    }
+
+    public void setLastSpeedKPH(double v)
+    {
+        this.setFieldValue(FLD_lastSpeedKPH, v);
+    }
+
+    public int getIgnitionState()
+    {
+        return this.getFieldValue(FLD_ignitionState, IGNITION_UNKNOWN);
+    }
+
+    public void setIgnitionState(int v)
+    {
+        this.setFieldValue(FLD_ignitionState, v);
+    }
+
+    public double getStartOdometerKM()
+    {
+        return this.getFieldValue(FLD_startOdometerKM, 0.0);
+    }
+
+    public void setStartOdometerKM(double v)
+    {
+        this.setFieldValue(FLD_startOdometerKM, v);
+    }
+
+    public double getStopOdometerKM()
+    {
+        return this.getFieldValue(FLD_stopOdometerKM, 0.0);
+    }
+
+    public void setStopOdometerKM(double v)
+    {
+        this.setFieldValue(FLD_stopOdometerKM, v);
+    }
+
+    public double getDistanceKM()
+    {
+        return this.getFieldValue(FLD_distanceKM, 0.0);
+    }
+
+    public void setDistanceKM(double v)
+    {
+        this.setFieldValue(FLD_distanceKM, v);
+    }
+
+    public double getMaxSpeedKPH()
+    {
+        return this.getFieldValue(FLD_maxSpeedKPH, 0.0);
+    }
+
+    public void setMaxSpeedKPH(double v)
+    {
+        this.setFieldValue(FLD_maxSpeedKPH, v);
+    }
+
+    public double getMovingSpeedKPH()
+    {
+        return this.getFieldValue(FLD_movingSpeedKPH, 0.0);
+    }
+
+    public void setMovingSpeedKPH(double v)
+    {
+        this.setFieldValue(FLD_movingSpeedKPH, v);
+    }
+
+    public long getMovingCount()
+    {
+        return this.getFieldValue(FLD_movingCount, 0L);
+    }
+
+    public void setMovingCount(long v)
+    {
+        this.setFieldValue(FLD_movingCount, v);
+    }
+
+    public long getMovingElapsed()
+    {
+        return this.getFieldValue(FLD_movingElapsed, 0L);
+    }
+
+    public void setMovingElapsed(long v)
+    {
+        this.setFieldValue(FLD_movingElapsed, v);
+    }
+
+    public long getStoppedElapsed()
+    {
+        return this.getFieldValue(FLD_stoppedElapsed, 0L);
+    }
+
+    public void setStoppedElapsed(long v)
+    {
+        this.setFieldValue(FLD_stoppedElapsed, v);
+    }
+
+    public long getIdleElapsed()
+    {
+        return this.getFieldValue(FLD_idleElapsed, 0L);
+    }
+
+    public void setIdleElapsed(long v)
+    {
+        this.setFieldValue(FLD_idleElapsed, v);
+    }
+
+    public String getGeozoneVisits()
+    {
+        String v = (String)this.getFieldValue(FLD_geozoneVisits);
+        return StringTools.trim(v);
+    }
+
+    public void setGeozoneVisits(String v)
+    {
+        this.setFieldValue(FLD_geozoneVisits, StringTools.trim(v));
+    }
+
+    // Bean access fields above
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    public String toString()
+    {
+        return this.getAccountID() + "/" + this.getDeviceID() + "/" + this.getDayStartTime();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /* overridden to set default values */
+    public void setCreationDefaultValues()
+    {
+        this.setIgnitionState(IGNITION_UNKNOWN);
+        //super.setRuntimeDefaultValues();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns the odometer delta (reported odometer) for this day
+    *** @return The odometer delta in kilometers, or 0.0 if the device does not report an odometer
+    **/
+    public double getOdometerDeltaKM()
+    {
+        double startKM = this.getStartOdometerKM();
+        double stopKM  = this.getStopOdometerKM();
+        return ((startKM > 0.0) && (stopKM > startKM))? (stopKM - startKM) : 0.0;
+    }
+
+    /**
+    *** Returns the average moving speed for this day
+    *** @return The average moving speed (kilometers per hour)
+    **/
+    public double getAverageSpeedKPH()
+    {
+        long cnt = this.getMovingCount();
+        return (cnt > 0L)? (this.getMovingSpeedKPH() / (double)cnt) : 0.0;
+    }
+
+    /**
+    *** Returns the count of events with the specified status code
+    *** @param statusCode  The status code
+    *** @return The event count
+    **/
+    public long getStatusCodeCount(int statusCode)
+    {
+        Long cnt = this.getStatusCodeCountMap().get(new Integer(statusCode));
+        return (cnt != null)? cnt.longValue() : 0L;
+    }
+
+    /**
+    *** Returns a map of status codes to event counts
+    *** @return The status code count map
+    **/
+    public Map<Integer,Long> getStatusCodeCountMap()
+    {
+        Map<Integer,Long> map = new TreeMap<Integer,Long>();
+        Map<String,Long> m = DailyRollup._decodeCounts(this.getStatusCodeCounts());
+        for (String k : m.keySet()) {
+            int sc = StringTools.parseHexInt(k, StatusCodes.STATUS_NONE);
+            if (sc != StatusCodes.STATUS_NONE) {
+                map.put(new Integer(sc), m.get(k));
+            }
+        }
+        return map;
+    }
+
+    /**
+    *** Returns a map of Geozone IDs to the number of arrivals into the Geozone
+    *** @return The Geozone arrival count map
+    **/
+    public Map<String,Long> getGeozoneVisitMap()
+    {
+        return DailyRollup._decodeCounts(this.getGeozoneVisits());
+    }
+
+    /* decode "key=count,key=count" */
+    private static Map<String,Long> _decodeCounts(String s)
+    {
+        Map<String,Long> map = new TreeMap<String,Long>();
+        if (!StringTools.isBlank(s)) {
+            String kv[] = StringTools.parseString(s, ',');
+            for (int i = 0; i < kv.length; i++) {
+                int p = kv[i].lastIndexOf('=');
+                if (p > 0) {
+                    String k = kv[i].substring(0,p).trim();
+                    long   c = StringTools.parseLong(kv[i].substring(p+1), 0L);
+                    map.put(k, new Long(c));
+                }
+            }
+        }
+        return map;
+    }
+
+    /* encode "key=count,key=count" */
+    private static String _encodeCounts(Map<String,Long> map)
+    {
+        StringBuffer sb = new StringBuffer();
+        for (String k : map.keySet()) {
+            if (sb.length() > 0) { sb.append(","); }
+            sb.append(k).append("=").append(map.get(k));
+        }
+        return sb.toString();
+    }
+
+    /* increment the count of the specified key */
+    private static String _incrementCount(String s, String key)
+    {
+        Map<String,Long> map = DailyRollup._decodeCounts(s);
+        Long cnt = map.get(key);
+        map.put(key, new Long((cnt != null)? (cnt.longValue() + 1L) : 1L));
+        return DailyRollup._encodeCounts(map);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Adds the specified event to the aggregates of this day.  Events are expected to be
+    *** added in ascending timestamp order (elapsed time and distance are accumulated from
+    *** the previously added event).
+    *** @param ev         The EventData record
+    *** @param ignCodes   The Device ignition off/on status codes (may be null)
+    **/
+    public void addEvent(EventData ev, int ignCodes[])
+    {
+        if (ev == null) {
+            return;
+        }
+        long   ts    = ev.getTimestamp();
+        int    sc    = ev.getStatusCode();
+        double speed = ev.getSpeedKPH();
+        double odom  = ev.getOdometerKM();
+
+        /* elapsed time since the last event (attributed to the state of the last event) */
+        long lastTime = this.getLastEventTime();
+        if ((lastTime > 0L) && (ts > lastTime)) {
+            long deltaSec = ts - lastTime;
+            if (this.getLastSpeedKPH() >= MIN_MOVING_SPEED_KPH) {
+                this.setMovingElapsed(this.getMovingElapsed() + deltaSec);
+            } else {
+                this.setStoppedElapsed(this.getStoppedElapsed() + deltaSec);
+                if (this.getIgnitionState() == IGNITION_ON) {
+                    this.setIdleElapsed(this.getIdleElapsed() + deltaSec);
+                }
+            }
+        }
+
+        /* counts */
+        this.setEventCount(this.getEventCount() + 1L);
+        this.setStatusCodeCounts(DailyRollup._incrementCount(this.getStatusCodeCounts(), StringTools.toHexString(sc,16)));
+        if ((this.getFirstEventTime() <= 0L) || (ts < this.getFirstEventTime())) {
+            this.setFirstEventTime(ts);
+        }
+        if (ts > lastTime) {
+            this.setLastEventTime(ts);
+        }
+
+        /* ignition */
+        if (ignCodes != null) {
+            if (sc == ignCodes[0]) {
+                this.setIgnitionState(IGNITION_OFF);
+            } else
+            if (sc == ignCodes[1]) {
+                this.setIgnitionState(IGNITION_ON);
+            }
+        }
+
+        /* GPS distance/speed */
+        if (ev.isValidGeoPoint()) {
+            GeoPoint gp     = ev.getGeoPoint();
+            GeoPoint lastGP = this.getLastGeoPoint();
+            this.setValidGPSCount(this.getValidGPSCount() + 1L);
+            if (lastGP != null) {
+                this.setDistanceKM(this.getDistanceKM() + lastGP.kilometersToPoint(gp));
+            }
+            this.setLastGeoPoint(gp);
+            this.setLastSpeedKPH(speed);
+            if (speed > this.getMaxSpeedKPH()) {
+                this.setMaxSpeedKPH(speed);
+            }
+            if (speed >= MIN_MOVING_SPEED_KPH) {
+                this.setMovingSpeedKPH(this.getMovingSpeedKPH() + speed);
+                this.setMovingCount(this.getMovingCount() + 1L);
+            }
+        }
+
+        /* reported odometer */
+        if (odom > 0.0) {
+            if ((this.getStartOdometerKM() <= 0.0) || (odom < this.getStartOdometerKM())) {
+                this.setStartOdometerKM(odom);
+            }
+            if (odom > this.getStopOdometerKM()) {
+                this.setStopOdometerKM(odom);
+            }
+        }
+
+        /* geozone arrivals */
+        if (sc == StatusCodes.STATUS_GEOFENCE_ARRIVE) {
+            String gzID = ev.getGeozoneID();
+            if (!StringTools.isBlank(gzID)) {
+                this.setGeozoneVisits(DailyRollup._incrementCount(this.getGeozoneVisits(), gzID));
+            }
+        }
+
+    }
+
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Gets the rollup for the specified Device day
+    *** @param acctID    The Account ID
+    *** @param devID     The Device ID
+    *** @param dayStart  The day start time
+    *** @param create    True to create (but not save) a new rollup if it does not already exist
+    *** @return The rollup, or null if it does not exist and 'create' is false
+    *** @throws DBException if a DB error occurs
+    **/
+    public static DailyRollup getDailyRollup(String acctID, String devID, long dayStart, boolean create)
+        throws DBException
+    {
+        DailyRollup.Key key = new DailyRollup.Key(acctID, devID, dayStart);
+        if (key.exists()) {
+            return key.getDBRecord(true);
+        } else
+        if (create) {
+            DailyRollup dr = key.getDBRecord();
+            dr.setCreationDefaultValues();
+            return dr;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+    *** Deletes the rollups for the specified Device for the days starting within the specified range
+    *** @param acctID     The Account ID
+    *** @param devID      The Device ID
+    *** @param timeStart  The range start time
+    *** @param timeEnd    The range end time
+    *** @throws DBException if a DB error occurs
+    **/
+    public static void deleteDailyRollups(String acctID, String devID, long timeStart, long timeEnd)
+        throws DBException
+    {
+        // [DELETE FROM DailyRollup WHERE accountID='acct' AND deviceID='dev' AND dayStartTime>=start AND dayStartTime<=end]
+        try {
+            DBDelete ddel = new DBDelete(DailyRollup.getFactory());
+            ddel.setWhere(DailyRollup.getWhereClause(acctID, devID, timeStart, timeEnd));
+            DBConnection.getDefaultConnection().executeUpdate(ddel.toString());
+        } catch (SQLException sqe) {
+            throw new DBException("DailyRollup deletion", sqe);
+        }
+    }
+
+    /* [DB]WHERE ( <Condition...> ) */
+    private static String getWhereClause(String acctID, String devID, long timeStart, long timeEnd)
+    {
+        DBWhere dwh = new DBWhere(DailyRollup.getFactory());
+        dwh.append(dwh.AND(
+            dwh.EQ(DailyRollup.FLD_accountID, acctID),
+            dwh.EQ(DailyRollup.FLD_deviceID , devID)
+        ));
+        if (timeStart >= 0L) {
+            dwh.append(dwh.AND_(dwh.GE(DailyRollup.FLD_dayStartTime, timeStart)));
+        }
+        if ((timeEnd >= 0L) && (timeEnd >= timeStart)) {
+            dwh.append(dwh.AND_(dwh.LE(DailyRollup.FLD_dayStartTime, timeEnd)));
+        }
+        return dwh.WHERE(dwh.toString());
+    }
+
+    /**
+    *** Returns the rollups for the specified Device for the days starting within the specified
+    *** range (in ascending day order)
+    *** @param acctID     The Account ID
+    *** @param devID      The Device ID
+    *** @param timeStart  The range start time
+    *** @param timeEnd    The range end time
+    *** @return The array of rollups (does not return null)
+    *** @throws DBException if a DB error occurs
+    **/
+    public static DailyRollup[] getDailyRollups(String acctID, String devID, long timeStart, long timeEnd)
+        throws DBException
+    {
+        if (StringTools.isBlank(acctID) || StringTools.isBlank(devID)) {
+            return new DailyRollup[0];
+        }
+
+        /* select */
+        // DBSelect: [SELECT * FROM DailyRollup] <Where> ORDER BY dayStartTime
+        DBSelect<DailyRollup> dsel = new DBSelect<DailyRollup>(DailyRollup.getFactory());
+        dsel.setWhere(DailyRollup.getWhereClause(acctID, devID, timeStart, timeEnd));
+        dsel.setOrderByFields(FLD_dayStartTime);
+        dsel.setOrderAscending(true);
+
+        /* get records */
+        DailyRollup rollups[] = null;
+        try {
+            DBProvider.lockTablesForRead(new String[] { TABLE_NAME() });
+            rollups = DBRecord.select(dsel, null);
+        } finally {
+            DBProvider.unlockTables();
+        }
+        return (rollups != null)? rollups : new DailyRollup[0];
+
+    }
+
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    private static final String ARG_ACCOUNT[]   = new String[] { "account" , "acct"  , "a" };
+    private static final String ARG_DEVICE[]    = new String[] { "device"  , "dev"   , "d" };
+    private static final String ARG_FROM[]      = new String[] { "from"    , "start"       };
+    private static final String ARG_TO[]        = new String[] { "to"      , "end"         };
+    private static final String ARG_BACKFILL[]  = new String[] { "backfill"                };
+
+    private static void usage()
+    {
+        Print.sysPrintln("Usage:");
+        Print.sysPrintln("  java ... " + DailyRollup.class.getName() + " {options}");
+        Print.sysPrintln("Common Options:");
+        Print.sysPrintln("  -account=<id>   Acount ID which owns Device");
+        Print.sysPrintln("  -device=<id>    Device ID (all Account devices if not specified)");
+        Print.sysPrintln("  -from=<date>    Start date YYYY/MM/DD (default 30 days ago)");
+        Print.sysPrintln("  -to=<date>      End date YYYY/MM/DD (default today)");
+        Print.sysPrintln("  -backfill       Recompute the daily rollups from the EventData table");
+        System.exit(1);
+    }
+
+    public static void main(String args[])
+    {
+        DBConfig.cmdLineInit(args,true);  // main
+        String acctID  = RTConfig.getString(ARG_ACCOUNT, "");
+        String devID   = RTConfig.getString(ARG_DEVICE , "");
+
+        /* account-id specified? */
+        if (StringTools.isBlank(acctID)) {
+            Print.logError("Account-ID not specified.");
+            usage();
+        }
+
+        /* get account */
+        Account acct = null;
+        try {
+            acct = Account.getAccount(acctID); // may throw DBException
+            if (acct == null) {
+                Print.logError("Account-ID does not exist: " + acctID);
+                usage();
+            }
+        } catch (DBException dbe) {
+            Print.logException("Error loading Account: " + acctID, dbe);
+            System.exit(99);
+        }
+        TimeZone tz = acct.getTimeZone(null);
+
+        /* backfill */
+        if (RTConfig.getBoolean(ARG_BACKFILL, false)) {
+            long nowTime = DateTime.getCurrentTimeSec();
+            DateTime fr  = EventData.parseDate(RTConfig.getString(ARG_FROM,""), tz);
+            DateTime to  = EventData.parseDate(RTConfig.getString(ARG_TO  ,""), tz);
+            long timeStart = (fr != null)? fr.getDayStart(tz) : (new DateTime(nowTime - DateTime.DaySeconds(30), tz)).getDayStart(tz);
+            long timeEnd   = (to != null)? to.getDayEnd(tz)   : (new DateTime(nowTime, tz)).getDayEnd(tz);
+            try {
+                String devIDs[];
+                if (!StringTools.isBlank(devID)) {
+                    devIDs = new String[] { devID };
+                } else {
+                    OrderedSet<String> d = Device.getDeviceIDsForAccount(acctID, null);
+                    devIDs = d.toArray(new String[d.size()]);
+                }
+                for (int i = 0; i < devIDs.length; i++) {
+                    Device device = Device.getDevice(acct, devIDs[i]);
+                    if (device == null) {
+                        Print.logError("Device-ID does not exist: " + acctID + "/" + devIDs[i]);
+                        continue;
+                    }
+                    int days = RollupTracker.backfill(device, timeStart, timeEnd);
+                    Print.sysPrintln("Backfilled " + acctID + "/" + devIDs[i] + " [" + days + " days]");
+                }
+            } catch (DBException dbe) {
+                Print.logException("Error backfilling DailyRollup", dbe);
+                System.exit(99);
+            }
+            System.exit(0);
+        }
+
+        /* no options specified */
+        Print.logWarn("Missing options ...");
+        usage();
+
+    }
+
+}
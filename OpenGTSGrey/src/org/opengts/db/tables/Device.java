@@ -100,6 +100,20 @@
 //     -Added FLD_expectAck, FLD_lastAckCommand, FLD_lastAckTime
 //  2009/12/16  Martin D. Flynn
 //     -Added command-line check for "Periodic Maintenance/Service Due" (-maintkm=email)
+//  2010/01/11  Martin D. Flynn
+//     -"insertEventData" optionally queues records to the EventDataWriter write-behind buffer
+//     -Refresh/invalidate DeviceIdentityCache entries when a Device is saved/deleted
+//     -"insertEventData" optionally queues slow reverse-geocodes to the ReverseGeocodeQueue
+//     -Added 'getDevices' for reading multiple Devices with a single query
+//     -Invalidate cached User Device authorizations when a Device is deleted
+//     -"insertEventData" updates the incrementally tracked trips (see TripTracker)
+//     -"insertEventData" updates the daily rollups (see RollupTracker)
+//     -"insertEventData" posts location changes to the EventUpdateFeed
+//     -Added 'getUpdatedDevices' for polling Device location changes
+//     -The background event update thread pool queue is now bounded (see
+//      "Device.backgroundQueueSize" and "Device.backgroundRejectPolicy")
+//     -Future EventDate action/limit are read through RTConfig property handles (and
+//      now follow runtime configuration reloads)
 // ----------------------------------------------------------------------------
 package org.opengts.db.tables;
 
@@ -150,9 +164,28 @@ public class Device // Asset
 
     // ------------------------------------------------------------------------
 
+    /* maximum number of devices per 'getDevices' query */
+    private static final int SELECT_BLOCK_SIZE = 200;
+
+    // ------------------------------------------------------------------------
+
     /* Event update background thread */
     private static final int BACKGROUND_THREAD_POOL_SIZE = 25;
-    private static ThreadPool BackgroundThreadPool = new ThreadPool("DeviceEventUpdate", BACKGROUND_THREAD_POOL_SIZE);
+    private static ThreadPool BackgroundThreadPool = null;
+
+    /* return the background event update thread pool */
+    private static ThreadPool getBackgroundThreadPool()
+    {
+        synchronized (Device.class) {
+            if (BackgroundThreadPool == null) {
+                BackgroundThreadPool = new ThreadPool("DeviceEventUpdate",
+                    RTConfig.getInt(DBConfig.DEVICE_BACKGROUND_THREADS, BACKGROUND_THREAD_POOL_SIZE),
+                    RTConfig.getInt(DBConfig.DEVICE_BACKGROUND_QUEUE_SIZE, 0),
+                    ThreadPool.parseRejectPolicy(RTConfig.getString(DBConfig.DEVICE_BACKGROUND_REJECT_POLICY,""), ThreadPool.REJECT_CALLER_RUNS));
+            }
+            return BackgroundThreadPool;
+        }
+    }
 
     // ------------------------------------------------------------------------
     // border crossing flags (see 'borderCrossing' column)
@@ -324,43 +357,41 @@ public class Device // Asset
     public static final int FUTURE_DATE_DISABLED    = 0;
     public static final int FUTURE_DATE_TRUNCATE    = 1;
 
-    private static int  FutureEventDateAction = FUTURE_DATE_UNDEFINED;
+    // "Device.futureDate.action=" (parsed once per configuration version)
+    private static RTConfig.Handle<Integer> FutureEventDateAction = 
+        new RTConfig.Handle<Integer>(DBConfig.DEVICE_FUTURE_DATE_ACTION, new Integer(FUTURE_DATE_DISABLED), false) {
+            protected Integer _getValue(String key, Integer dft, boolean dftOk) {
+                String act = RTConfig.getString(key, "", dftOk);
+                if (act.equalsIgnoreCase("ignore")   ||
+                    act.equalsIgnoreCase("skip")     ||
+                    act.equalsIgnoreCase("-1")         ) {
+                    return new Integer(FUTURE_DATE_IGNORE);
+                } else
+                if (act.equalsIgnoreCase("truncate") ||
+                    act.equalsIgnoreCase("1")          ) {
+                    return new Integer(FUTURE_DATE_TRUNCATE);
+                } else
+                if (StringTools.isBlank(act)         ||
+                    act.equalsIgnoreCase("disabled") ||
+                    act.equalsIgnoreCase("disable")  ||
+                    act.equalsIgnoreCase("0")          ) {
+                    return new Integer(FUTURE_DATE_DISABLED);
+                } else {
+                    Print.logError("Invalid property value %s => %s", key, act);
+                    return dft;
+                }
+            }
+        };
     public static int futureEventDateAction()
     {
-        // TODO: synchronize?
-        if (FutureEventDateAction == FUTURE_DATE_UNDEFINED) {
-            // "Device.futureDate.action="
-            String act = RTConfig.getString(DBConfig.DEVICE_FUTURE_DATE_ACTION,"");
-            if (act.equalsIgnoreCase("ignore")   ||
-                act.equalsIgnoreCase("skip")     ||
-                act.equalsIgnoreCase("-1")         ) {
-                FutureEventDateAction = FUTURE_DATE_IGNORE;
-            } else
-            if (act.equalsIgnoreCase("truncate") ||
-                act.equalsIgnoreCase("1")          ) {
-                FutureEventDateAction = FUTURE_DATE_TRUNCATE;
-            } else
-            if (StringTools.isBlank(act)         ||
-                act.equalsIgnoreCase("disabled") ||
-                act.equalsIgnoreCase("disable")  ||
-                act.equalsIgnoreCase("0")          ) {
-                FutureEventDateAction = FUTURE_DATE_DISABLED;
-            } else {
-                Print.logError("Invalid property value %s => %s", DBConfig.DEVICE_FUTURE_DATE_ACTION, act);
-                FutureEventDateAction = FUTURE_DATE_DISABLED;
-            }
-        }
-        return FutureEventDateAction;
+        return FutureEventDateAction.get().intValue();
     }
 
-    private static long FutureEventDateMaxSec = -999L;
+    private static RTConfig.LongHandle FutureEventDateMaxSec = 
+        new RTConfig.LongHandle(DBConfig.DEVICE_FUTURE_DATE_MAX_SEC, 0L);
     public static long futureEventDateMaximumSec()
     {
-        // TODO: synchronize?
-        if (FutureEventDateMaxSec == -999L) {
-            FutureEventDateMaxSec = RTConfig.getLong(DBConfig.DEVICE_FUTURE_DATE_MAX_SEC,0L);
-        }
-        return FutureEventDateMaxSec;
+        return FutureEventDateMaxSec.getLong();
     }
 
     // ------------------------------------------------------------------------
@@ -631,6 +662,14 @@ public class Device // Asset
         public DBFactory<Device> getFactory() {
             return Device.getFactory();
         }
+        protected void recordDidDelete() {
+            DeviceIdentityCache.invalidateDevice(
+                (String)this.getFieldValues().getFieldValue(FLD_accountID),
+                (String)this.getFieldValues().getFieldValue(FLD_deviceID));
+            DeviceAuthorizationCache.invalidateAccount( // DeviceList entries are also deleted
+                (String)this.getFieldValues().getFieldValue(FLD_accountID));
+            super.recordDidDelete();
+        }
     }
 
     /* factory constructor */
@@ -2363,16 +2402,27 @@ public class Device // Asset
         //}
 
         /* save EventData record */
-        try {
-            evdb.save(); // insert();
-            // may be re-saved after deferred reverse-geocode
-        } catch (DBException dbe) {
-            // save failed
-            Print.logError("EventData save failed: " + dbe);
-            return false;
+        if ((extUpdate == EXT_UPDATE_NONE) && EventDataWriter.isEnabled() &&
+            EventDataWriter.getInstance().add(evdb)) {
+            // queued for write-behind batch insertion (may block if the buffer is full)
+            // (records requiring deferred updates are always saved immediately)
+        } else {
+            try {
+                evdb.save(); // insert();
+                // may be re-saved after deferred reverse-geocode
+            } catch (DBException dbe) {
+                // save failed
+                Print.logError("EventData save failed: " + dbe);
+                return false;
+            }
         }
 
         /* check rules and return */
+        if ((extUpdate == EXT_UPDATE_ADDRESS) && ReverseGeocodeQueue.isEnabled() &&
+            ReverseGeocodeQueue.getInstance().add(evdb)) {
+            // queued for background reverse-geocoding (coalesced by location)
+            Print.logDebug("Address update queued for background reverse-geocoding");
+        } else
         if (extUpdate != EXT_UPDATE_NONE) {
             // queue for background processing
             final int extUpd = extUpdate;
@@ -2381,13 +2431,28 @@ public class Device // Asset
                     Device.this._postEventInsertionProcessing(evdb, extUpd);
                 }
             };
-            BackgroundThreadPool.run(job);
+            Device.getBackgroundThreadPool().run(job);
             Print.logDebug("Address update queued for background operation");
         } else {
             // check event rules now and perform appropriate action if necessary
             //this.checkEventRules(evdb);
         }
 
+        /* incremental trip tracking */
+        if (TripTracker.isEnabled()) {
+            TripTracker.processEvent(this, evdb);
+        }
+
+        /* daily rollups */
+        if (RollupTracker.isEnabled()) {
+            RollupTracker.processEvent(this, evdb);
+        }
+
+        /* live map update feed */
+        if (EventUpdateFeed.isEnabled()) {
+            EventUpdateFeed.processEvent(this, evdb);
+        }
+
         /* check rules */
         if (this.checkEventRules(evdb)) {
             // Fields may have changed: (NOTE: not yet saved)
@@ -2482,6 +2547,17 @@ public class Device // Asset
         },null);
     }
 
+    /**
+    *** Callback after record has been be updated in the table
+    **/
+    protected void recordDidUpdate()
+    {
+        if (DeviceIdentityCache.isEnabled()) {
+            DeviceIdentityCache.deviceUpdated(this);
+        }
+        super.recordDidUpdate();
+    }
+
     public void updateChangedEventFields()
         throws DBException
     {
@@ -2963,6 +3039,70 @@ public class Device // Asset
         }
     }
 
+    /* get devices for the specified list of device IDs (does not return null) */
+    // Devices are read in blocks of device IDs, rather than with one query per device.
+    // Device IDs which do not exist are omitted from the returned map.
+    public static Map<String,Device> getDevices(Account account, java.util.Collection<String> devIDs)
+        throws DBException
+    {
+        Map<String,Device> devMap = new HashMap<String,Device>();
+        if ((account == null) || ListTools.isEmpty(devIDs)) {
+            return devMap;
+        }
+        String acctID = account.getAccountID();
+        java.util.List<String> idList = new Vector<String>(devIDs);
+        for (int b = 0; b < idList.size(); b += SELECT_BLOCK_SIZE) {
+            java.util.List<String> block = idList.subList(b, Math.min(b + SELECT_BLOCK_SIZE, idList.size()));
+            // DBSelect: SELECT * FROM Device WHERE ((accountID='acct') AND ((deviceID='dev1') OR ...))
+            DBSelect<Device> dsel = new DBSelect<Device>(Device.getFactory());
+            DBWhere dwh = dsel.createDBWhere();
+            dsel.setWhere(dwh.WHERE(dwh.AND(
+                dwh.EQ(Device.FLD_accountID,acctID),
+                dwh.INLIST(Device.FLD_deviceID,block.toArray())
+            )));
+            Device devs[] = DBRecord.select(dsel, null);
+            if (devs != null) {
+                for (int i = 0; i < devs.length; i++) {
+                    devs[i].setAccount(account);
+                    devMap.put(devs[i].getDeviceID(), devs[i]);
+                }
+            }
+        }
+        return devMap;
+    }
+
+    /* get the last location of the Devices updated since the specified time (does not return null) */
+    // Only the key and last valid location fields are read.
+    public static Device[] getUpdatedDevices(String acctID, long sinceTime)
+        throws DBException
+    {
+        if (StringTools.isBlank(acctID)) {
+            return new Device[0];
+        }
+        // DBSelect: SELECT accountID,deviceID,... FROM Device WHERE ((accountID='acct') AND (lastUpdateTime>=123456789))
+        DBSelect<Device> dsel = new DBSelect<Device>(Device.getFactory());
+        dsel.setSelectedFields(
+            Device.FLD_accountID,
+            Device.FLD_deviceID,
+            Device.FLD_lastValidLatitude,
+            Device.FLD_lastValidLongitude,
+            Device.FLD_lastGPSTimestamp,
+            Device.FLD_lastUpdateTime);
+        DBWhere dwh = dsel.createDBWhere();
+        if (sinceTime > 0L) {
+            dsel.setWhere(dwh.WHERE(dwh.AND(
+                dwh.EQ(Device.FLD_accountID,acctID),
+                dwh.GE(Device.FLD_lastUpdateTime,sinceTime)
+            )));
+        } else {
+            dsel.setWhere(dwh.WHERE(
+                dwh.EQ(Device.FLD_accountID,acctID)
+            ));
+        }
+        Device devs[] = DBRecord.select(dsel, null);
+        return (devs != null)? devs : new Device[0];
+    }
+
     /* get device */
     // Note: does NOT return null (throws exception if not found)
     public static Device getDevice(Account account, String devID, boolean create)
@@ -3296,12 +3436,12 @@ public class Device // Asset
                     } else {
                         Print.logError("*** Unable to insert EventData record!!!");
                     }
-                    BackgroundThreadPool.stopThreads();
-                    if (BackgroundThreadPool.getSize() > 0) {
+                    Device.getBackgroundThreadPool().stopThreads();
+                    if (Device.getBackgroundThreadPool().getSize() > 0) {
                         do {
                             Print.sysPrintln("Waiting for background threads to complete ...");
                             try { Thread.sleep(3000L); } catch (Throwable t) {}
-                        } while (BackgroundThreadPool.getSize() > 0);
+                        } while (Device.getBackgroundThreadPool().getSize() > 0);
                     }
                     Print.sysPrintln("... done");
                     System.exit(0);
@@ -23,6 +23,8 @@
 //     -Moved to "org.opengts.db.tables"
 //  2007/09/16  Martin D. Flynn
 //     -Integrated DBSelect
+//  2010/01/11  Martin D. Flynn
+//     -Invalidate cached User Device authorizations when a DeviceGroup is deleted
 // ----------------------------------------------------------------------------
 package org.opengts.db.tables;
 
@@ -108,6 +110,10 @@ public class DeviceGroup
         public DBFactory<DeviceGroup> getFactory() {
             return DeviceGroup.getFactory();
         }
+        protected void recordDidDelete() {
+            DeviceAuthorizationCache.invalidateAccount((String)this.getFieldValues().getFieldValue(FLD_accountID));
+            super.recordDidDelete();
+        }
     }
     
     /* factory constructor */
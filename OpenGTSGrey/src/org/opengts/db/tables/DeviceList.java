@@ -19,6 +19,8 @@
 // Change History:
 //  2007/06/13  Martin D. Flynn
 //     -Initial release
+//  2010/01/11  Martin D. Flynn
+//     -Invalidate cached User Device authorizations when DeviceList entries change
 // ----------------------------------------------------------------------------
 package org.opengts.db.tables;
 
@@ -73,6 +75,10 @@ public class DeviceList
         public DBFactory<DeviceList> getFactory() {
             return DeviceList.getFactory();
         }
+        protected void recordDidDelete() {
+            DeviceAuthorizationCache.invalidateAccount((String)this.getFieldValues().getFieldValue(FLD_accountID));
+            super.recordDidDelete();
+        }
     }
     
     /* factory constructor */
@@ -119,6 +125,15 @@ public class DeviceList
             );
     }
 
+    /**
+    *** Callback after record has been be inserted into the table
+    **/
+    protected void recordDidInsert()
+    {
+        DeviceAuthorizationCache.invalidateAccount(this.getAccountID());
+        super.recordDidInsert();
+    }
+
     // SQL table definition above
     // ------------------------------------------------------------------------
     // ------------------------------------------------------------------------
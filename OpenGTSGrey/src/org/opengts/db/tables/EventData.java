@@ -99,6 +99,12 @@
 //     -Changed 'FLD_driver' to 'FLD_driverID', and 'FLD_entity' to 'FLD_entityID'
 //  2009/12/16  Martin D. Flynn
 //     -Added field FLD_driverMessage, FLD_jobNumber to 'CustomFieldInfo' group.
+//  2010/01/11  Martin D. Flynn
+//     -Range event queries use 'DBProvider.lockTablesForRead' (honors read consistency mode)
+//     -Added 'getRangeEventCursor' for streaming (row-by-row) range event selection
+//     -Reverse-geocoding now checks the shared ReverseGeocodeProvider cache (if enabled)
+//     -Added 'getLastEvents' for set-based retrieval of the last event of multiple devices
+//     -Optionally range-partitioned by month on 'timestamp' (see DBConfig.EVENTDATA_PARTITIONED)
 // ----------------------------------------------------------------------------
 package org.opengts.db.tables;
 
@@ -185,6 +191,9 @@ public class EventData
 
     public static final EventData[] EMPTY_ARRAY         = new EventData[0];
 
+    /* maximum number of devices per 'getLastEvents' query */
+    private static final int        LAST_EVENT_BLOCK_SIZE = 200;
+
     // ------------------------------------------------------------------------
     // GPS fix type
 
@@ -414,6 +423,10 @@ public class EventData
                 false/*editable*/,false/*viewable*/);
             factory.addParentTable(Account.TABLE_NAME());
             factory.addParentTable(Device.TABLE_NAME());
+            if (RTConfig.getBoolean(DBConfig.EVENTDATA_PARTITIONED,false)) {
+                // range queries on FLD_timestamp are pruned to the matching monthly partitions
+                factory.setPartitionField(FLD_timestamp);
+            }
         }
         return factory;
     }
@@ -1106,23 +1119,31 @@ public class EventData
             return false;
         }
 
+        /* check provider cache (a cached address is always a 'fast' operation) */
+        ReverseGeocodeCache rgCache = ReverseGeocodeCache.getProviderCache(rgp); // null if disabled
+        ReverseGeocode rg = (rgCache != null)? rgCache.getReverseGeocode(gp) : null;
+
         /* fast operations only? */
-        if (fastOnly && !rgp.isFastOperation()) {
+        if ((rg == null) && fastOnly && !rgp.isFastOperation()) {
             // We've requested a fast operation only, and this operation is slow.
             // It's up to the caller to see that this operation is queued in a background thread.
             throw new SlowOperationException("'fast' requested, and this operation is 'slow'");
         }
 
         /* finally, get the address for this point */
-        ReverseGeocode rg = null;
-        try {
-            // make sure the Domain properties are available to RTConfig
-            privLabel.pushRTProperties();   // stack properties (may be redundant in servlet environment)
-            rg = rgp.getReverseGeocode(gp); // get the reverse-geocode
-        } catch (Throwable th) {
-            // ignore
-        } finally {
-            privLabel.popRTProperties();    // remove from stack
+        if (rg == null) {
+            try {
+                // make sure the Domain properties are available to RTConfig
+                privLabel.pushRTProperties();   // stack properties (may be redundant in servlet environment)
+                rg = rgp.getReverseGeocode(gp); // get the reverse-geocode
+            } catch (Throwable th) {
+                // ignore
+            } finally {
+                privLabel.popRTProperties();    // remove from stack
+            }
+            if ((rg != null) && (rgCache != null)) {
+                rgCache.addReverseGeocode(gp, rg);
+            }
         }
         if (rg != null) {
             if (rg.hasFullAddress()) {
@@ -2107,7 +2128,7 @@ public class EventData
         /* get events */
         EventData ed[] = null;
         try {
-            DBProvider.lockTables(new String[] { TABLE_NAME() }, null);
+            DBProvider.lockTablesForRead(new String[] { TABLE_NAME() });
             ed = DBRecord.select(dsel, null); // select:DBSelect
         } finally {
             DBProvider.unlockTables();
@@ -2219,7 +2240,7 @@ public class EventData
         /* get events */
         EventData ed[] = null;
         try {
-            DBProvider.lockTables(new String[] { TABLE_NAME() }, null);
+            DBProvider.lockTablesForRead(new String[] { TABLE_NAME() });
             //ed = (EventData[])DBRecord.select(EventData.getFactory(), dsel.toString(false), rcdHandler);
             ed = DBRecord.select(dsel, rcdHandler); // select:DBSelect
             // 'ed' _may_ be empty if (rcdHandler != null)
@@ -2247,6 +2268,197 @@ public class EventData
 
     }
 
+    /* get a streaming cursor over a range of EventData records (does not return null) */
+    // Records are read row-by-row, on a separate connection, without table locking.  The
+    // cursor must be closed if it is not read to the end.
+    public static DBRecordCursor<EventData> getRangeEventCursor(
+        String acctId, 
+        String devId,
+        long timeStart, long timeEnd,
+        int statCode[],
+        boolean validGPS,
+        EventData.LimitType limitType, long limit, boolean ascending,
+        String addtnlSelect)
+        throws DBException
+    {
+        return EventData.getRangeEventCursor(
+            acctId, devId,
+            timeStart, timeEnd,
+            statCode,
+            validGPS,
+            limitType, limit, ascending,
+            addtnlSelect,
+            null);
+    }
+
+    /* get a streaming cursor over a range of EventData records (does not return null) */
+    // Records are read row-by-row on the specified streaming connection (see 
+    // "DBRecordCursor.openStreamingConnection"), or on a separate connection if null.
+    public static DBRecordCursor<EventData> getRangeEventCursor(
+        String acctId, 
+        String devId,
+        long timeStart, long timeEnd,
+        int statCode[],
+        boolean validGPS,
+        EventData.LimitType limitType, long limit, boolean ascending,
+        String addtnlSelect,
+        DBConnection streamConn)
+        throws DBException
+    {
+
+        /* get record selector */
+        DBSelect<EventData> dsel = EventData._createRangeEventSelector(
+            acctId, devId, 
+            timeStart, timeEnd,
+            statCode,
+            validGPS, 
+            limitType, limit, ascending,
+            addtnlSelect);
+
+        /* invalid arguments? */
+        if (dsel == null) {
+            return new DBRecordCursor<EventData>(EMPTY_ARRAY);
+        }
+
+        /* records must be reordered? */
+        if (dsel.isOrderAscending() != ascending) {
+            // "last" N records: selection is bounded by the limit, reorder in memory
+            return new DBRecordCursor<EventData>(EventData.getRangeEvents(
+                acctId, devId, 
+                timeStart, timeEnd,
+                statCode,
+                validGPS, 
+                limitType, limit, ascending,
+                addtnlSelect,
+                null));
+        }
+
+        /* streaming cursor */
+        return new DBRecordCursor<EventData>(dsel, streamConn);
+
+    }
+
+    /* return the last (most recent) event for each of the specified devices (does not return null) */
+    // Rather than one query per device, the devices are processed in blocks, with two queries
+    // per block:
+    //   1) SELECT deviceID,MAX(timestamp) FROM EventData WHERE <devices/criteria> GROUP BY deviceID
+    //   2) SELECT * FROM EventData WHERE <criteria> AND ((deviceID=<dev> AND timestamp=<max>) OR ...)
+    // Both are resolved from the EventData primary key (accountID,deviceID,timestamp,statusCode).
+    // The returned events are in the order of the specified device IDs (devices which have no
+    // matching events are omitted).
+    public static EventData[] getLastEvents(
+        String acctId, java.util.List<String> devIds,
+        long timeStart, long timeEnd,
+        int statCode[],
+        boolean validGPS)
+        throws DBException
+    {
+
+        /* invalid arguments */
+        if (StringTools.isBlank(acctId) || ListTools.isEmpty(devIds)) {
+            return EMPTY_ARRAY;
+        } else
+        if ((timeStart > 0L) && (timeEnd > 0L) && (timeStart > timeEnd)) {
+            return EMPTY_ARRAY;
+        }
+
+        /* common criteria */
+        DBWhere cwh = new DBWhere(EventData.getFactory());
+        StringBuffer criteria = new StringBuffer();
+        if ((statCode != null) && (statCode.length > 0)) {
+            criteria.append(cwh.AND_(cwh.INLIST(EventData.FLD_statusCode,statCode)));
+        }
+        if (validGPS) {
+            criteria.append(cwh.AND_(cwh.OR(cwh.NE(EventData.FLD_latitude,0L),cwh.NE(EventData.FLD_longitude,0L))));
+        }
+        String tableName = EventData.getFactory().getTableName();
+
+        /* read blocks of devices */
+        Map<String,EventData> evMap = new HashMap<String,EventData>();
+        for (int b = 0; b < devIds.size(); b += LAST_EVENT_BLOCK_SIZE) {
+            java.util.List<String> block = devIds.subList(b, Math.min(b + LAST_EVENT_BLOCK_SIZE, devIds.size()));
+
+            /* last timestamp for each device */
+            DBWhere dwh = new DBWhere(EventData.getFactory());
+            StringBuffer sql = new StringBuffer();
+            sql.append("SELECT ").append(FLD_deviceID).append(",MAX(").append(FLD_timestamp).append(")");
+            sql.append(" FROM ").append(tableName);
+            sql.append(" WHERE (");
+            sql.append(dwh.AND(dwh.EQ(FLD_accountID,acctId),dwh.INLIST(FLD_deviceID,block.toArray())));
+            sql.append(criteria);
+            if (timeStart >= 0L) {
+                sql.append(dwh.AND_(dwh.GE(FLD_timestamp,timeStart)));
+            }
+            if ((timeEnd >= 0L) && (timeEnd >= timeStart)) {
+                sql.append(dwh.AND_(dwh.LE(FLD_timestamp,timeEnd)));
+            }
+            sql.append(")");
+            sql.append(" GROUP BY ").append(FLD_deviceID);
+            java.util.List<String> devTimes = new Vector<String>();
+            Statement stmt = null;
+            ResultSet rs   = null;
+            try {
+                DBProvider.lockTablesForRead(new String[] { TABLE_NAME() });
+                stmt = DBConnection.getDefaultConnection().execute(sql.toString());
+                rs   = stmt.getResultSet();
+                while (rs.next()) {
+                    String devId = rs.getString(1);
+                    long   maxTS = rs.getLong(2);
+                    devTimes.add(dwh.AND(dwh.EQ(FLD_deviceID,devId),dwh.EQ(FLD_timestamp,maxTS)));
+                }
+            } catch (SQLException sqe) {
+                throw new DBException("Last Event Timestamps", sqe);
+            } finally {
+                if (rs   != null) { try { rs.close();   } catch (Throwable t) {} }
+                if (stmt != null) { try { stmt.close(); } catch (Throwable t) {} }
+                DBProvider.unlockTables();
+            }
+            if (devTimes.isEmpty()) {
+                continue; // no events for any device in this block
+            }
+
+            /* last event for each device */
+            StringBuffer where = new StringBuffer();
+            where.append(dwh.EQ(FLD_accountID,acctId));
+            where.append(" AND (");
+            for (int i = 0; i < devTimes.size(); i++) {
+                if (i > 0) { where.append(" OR "); }
+                where.append(devTimes.get(i));
+            }
+            where.append(")");
+            where.append(criteria);
+            DBSelect<EventData> dsel = new DBSelect<EventData>(EventData.getFactory());
+            dsel.setWhere(dwh.WHERE(where.toString()));
+            EventData ed[] = null;
+            try {
+                DBProvider.lockTablesForRead(new String[] { TABLE_NAME() });
+                ed = DBRecord.select(dsel, null); // select:DBSelect
+            } finally {
+                DBProvider.unlockTables();
+            }
+            if (ed != null) {
+                for (int i = 0; i < ed.length; i++) {
+                    // more than one status code may share the last timestamp, keep the first
+                    if (!evMap.containsKey(ed[i].getDeviceID())) {
+                        evMap.put(ed[i].getDeviceID(), ed[i]);
+                    }
+                }
+            }
+
+        }
+
+        /* return in device order */
+        java.util.List<EventData> evList = new Vector<EventData>();
+        for (String devId : devIds) {
+            EventData ev = evMap.get(devId);
+            if (ev != null) {
+                evList.add(ev);
+            }
+        }
+        return evList.toArray(new EventData[evList.size()]);
+
+    }
+
     /* return count in range of EventData records */
     public static long countRangeEvents(
         String acctId, String devId,
@@ -2275,7 +2487,7 @@ public class EventData
         /* count events */
         long recordCount = 0L;
         try {
-            DBProvider.lockTables(new String[] { TABLE_NAME() }, null);
+            DBProvider.lockTablesForRead(new String[] { TABLE_NAME() });
             recordCount = DBRecord.getRecordCount(dsel);
         } finally {
             DBProvider.unlockTables();
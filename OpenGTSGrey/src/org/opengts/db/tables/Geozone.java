@@ -69,6 +69,9 @@
 //     -Added boolean field "zoomRegion"
 //  2009/12/16  Martin D. Flynn
 //     -Added table column FLD_priority (keyed)
+//  2010/01/11  Martin D. Flynn
+//     -Added per-account in-memory Geozone index for point lookups (see "isIndexEnabled")
+//     -Geozone queries use 'DBProvider.lockTablesForRead' (honors read consistency mode)
 // ----------------------------------------------------------------------------
 package org.opengts.db.tables;
 
@@ -257,6 +260,10 @@ public class Geozone
         public DBFactory<Geozone> getFactory() {
             return Geozone.getFactory();
         }
+        protected void recordDidDelete() {
+            Geozone.invalidateIndex((String)this.getFieldValues().getFieldValue(FLD_accountID));
+            super.recordDidDelete();
+        }
     }
 
     /* factory constructor */
@@ -1515,6 +1522,24 @@ public class Geozone
         this.zoneChanged = false;
     }
 
+    /**
+    *** Callback after record has been be inserted into the table
+    **/
+    protected void recordDidInsert()
+    {
+        Geozone.invalidateIndex(this.getAccountID());
+        super.recordDidInsert();
+    }
+
+    /**
+    *** Callback after record has been be updated in the table
+    **/
+    protected void recordDidUpdate()
+    {
+        Geozone.invalidateIndex(this.getAccountID());
+        super.recordDidUpdate();
+    }
+
     // ------------------------------------------------------------------------
     // ------------------------------------------------------------------------
 
@@ -1665,38 +1690,47 @@ public class Geozone
         if ((gp == null) || !gp.isValid()) {
             return null;
         }
-        
-        /* where clause */
-        // DBSelect: [SELECT] WHERE <Where> ORDER BY geozoneID,sortID
-        DBSelect<Geozone> dsel = new DBSelect<Geozone>(Geozone.getFactory());
-        dsel.setWhere(Geozone.getWhereClause(
-            acctId,                     // accountID
-            zoneID,                     // geozoneID
-            -1,                         // sortID
-            gp,                         // GeoPoint
-            false,                      // clientUpload
-            reverseGeocodeOnly          // reverseGeocode
-            ));
-        if (Geozone.supportsPriority()) {
-            dsel.setOrderByFields(FLD_priority, FLD_sortID);
-        } else {
-            dsel.setOrderByFields(FLD_sortID);
-        }
-        
+
         /* get Geozones */
+        boolean useIndex = Geozone.isIndexEnabled();
         Geozone gz[] = null;
-        try {
-            DBProvider.lockTables(new String[] { TABLE_NAME() }, null);
-            //gz = (Geozone[])DBRecord.select(Geozone.getFactory(), dsel.toString(false));
-            gz = DBRecord.select(dsel); // select:DBSelect
-        } catch (DBException dbe) {
-            Print.logError("Geozone error: " + dbe);
-            return null;
-        } finally {
+        if (useIndex) {
+            // candidate zones from in-memory index (in priority/sortID order)
             try {
-                DBProvider.unlockTables();
+                gz = Geozone.getGeozoneIndex(acctId).getCandidates(zoneID, gp, reverseGeocodeOnly);
             } catch (DBException dbe) {
-                // ignore
+                Print.logError("Geozone error: " + dbe);
+                return null;
+            }
+        } else {
+            // DBSelect: [SELECT] WHERE <Where> ORDER BY geozoneID,sortID
+            DBSelect<Geozone> dsel = new DBSelect<Geozone>(Geozone.getFactory());
+            dsel.setWhere(Geozone.getWhereClause(
+                acctId,                     // accountID
+                zoneID,                     // geozoneID
+                -1,                         // sortID
+                gp,                         // GeoPoint
+                false,                      // clientUpload
+                reverseGeocodeOnly          // reverseGeocode
+                ));
+            if (Geozone.supportsPriority()) {
+                dsel.setOrderByFields(FLD_priority, FLD_sortID);
+            } else {
+                dsel.setOrderByFields(FLD_sortID);
+            }
+            try {
+                DBProvider.lockTablesForRead(new String[] { TABLE_NAME() });
+                //gz = (Geozone[])DBRecord.select(Geozone.getFactory(), dsel.toString(false));
+                gz = DBRecord.select(dsel); // select:DBSelect
+            } catch (DBException dbe) {
+                Print.logError("Geozone error: " + dbe);
+                return null;
+            } finally {
+                try {
+                    DBProvider.unlockTables();
+                } catch (DBException dbe) {
+                    // ignore
+                }
             }
         }
         
@@ -1724,7 +1758,9 @@ public class Geozone
             if (gz[g].containsPoint(gp)) {
                 if (thisDesc.equals("") && !lastDesc.equals("")) {
                     // make sure the returned description is valid (if possible)
-                    gz[g].setDescription(lastDesc);
+                    Geozone zone = useIndex? gz[g]._copyRecord() : gz[g]; // don't modify indexed zone
+                    zone.setDescription(lastDesc);
+                    return zone;
                 }
                 return gz[g];
             }
@@ -1831,6 +1867,21 @@ public class Geozone
         /* selection point */
         GeoPoint selGP = gp; // non-null
 
+        /* check in-memory index */
+        if (Geozone.isIndexEnabled()) {
+            try {
+                Geozone gz[] = Geozone.getGeozoneIndex(acctId).getCandidates(zoneId, selGP, false);
+                for (int g = 0; g < gz.length; g++) {
+                    if (gz[g].containsPoint(gp)) {
+                        return true;
+                    }
+                }
+                return false;
+            } catch (DBException dbe) {
+                throw new DBNotFoundException("Geozone error: " + dbe);
+            }
+        }
+
         /* where clause */
         // DBSelect: [SELECT] WHERE <Where> ORDER BY geozoneID,sortID
         DBSelect<Geozone> dsel = new DBSelect<Geozone>(Geozone.getFactory());
@@ -1847,7 +1898,7 @@ public class Geozone
         /* get Geozones */
         Geozone gz[] = null;
         try {
-            DBProvider.lockTables(new String[] { TABLE_NAME() }, null);
+            DBProvider.lockTablesForRead(new String[] { TABLE_NAME() });
             //gz = (Geozone[])DBRecord.select(Geozone.getFactory(), dsel.toString(false));
             gz = DBRecord.select(dsel); // select:DBSelect
         } catch (DBException dbe) {
@@ -1880,6 +1931,328 @@ public class Geozone
 
     }
 
+    // ------------------------------------------------------------------------
+    // In-memory Geozone index
+    // Point lookups ("getGeozone", "containsPoint") are answered from a per-account
+    // grid index over the zone bounding boxes, loaded lazily with a single select.
+    // Geozones saved/deleted in this JVM invalidate the account index immediately.
+    // Changes made by other processes (ie. the web interface) are detected by 
+    // periodically comparing the account Geozone record count and most recent
+    // 'lastUpdateTime' (see DBConfig.GEOZONE_INDEX_CHECK_INTERVAL_SEC).
+    // Index loads/checks are serialized per account, so a slow load for one account
+    // does not delay lookups for other accounts.
+
+    private static final double INDEX_CELL_SIZE_DEG         = 0.10;  // ~11km of latitude
+    private static final int    INDEX_MAX_ZONE_CELLS        = 400;   // larger zones are always tested
+    private static final long   INDEX_CHECK_INTERVAL_SEC    = 60L;
+
+    private static final Map<String,GeozoneIndex> GeozoneIndexMap = new HashMap<String,GeozoneIndex>();
+    private static final Map<String,Object> GeozoneIndexLoadLocks = new HashMap<String,Object>();
+    private static long         GeozoneIndexGeneration      = 0L;
+
+    /**
+    *** Returns true if Geozone point lookups should use the in-memory index
+    *** @return True if the in-memory index is enabled
+    **/
+    public static boolean isIndexEnabled()
+    {
+        return RTConfig.getBoolean(DBConfig.GEOZONE_INDEX_ENABLED, true);
+    }
+
+    /**
+    *** Discards the in-memory Geozone index for the specified account.  The index
+    *** will be reloaded on the next Geozone point lookup for this account.
+    *** @param acctId  The account ID (null to discard the indices of all accounts)
+    **/
+    public static void invalidateIndex(String acctId)
+    {
+        synchronized (GeozoneIndexMap) {
+            if (acctId == null) {
+                GeozoneIndexMap.clear();
+            } else {
+                GeozoneIndexMap.remove(acctId);
+            }
+            GeozoneIndexGeneration++;
+        }
+    }
+
+    /**
+    *** Gets the current in-memory Geozone index for the specified account, loading
+    *** (or reloading) the index from the table if necessary.
+    **/
+    private static GeozoneIndex getGeozoneIndex(String acctId)
+        throws DBException
+    {
+
+        /* current index */
+        GeozoneIndex gzi;
+        synchronized (GeozoneIndexMap) {
+            gzi = GeozoneIndexMap.get(acctId);
+        }
+        long nowMS = System.currentTimeMillis();
+        if ((gzi != null) && !gzi.isCheckRequired(nowMS)) {
+            return gzi;
+        }
+
+        /* account load lock */
+        Object loadLock;
+        synchronized (GeozoneIndexMap) {
+            loadLock = GeozoneIndexLoadLocks.get(acctId);
+            if (loadLock == null) {
+                loadLock = new Object();
+                GeozoneIndexLoadLocks.put(acctId, loadLock);
+            }
+        }
+
+        /* load/check index (one thread at a time per account) */
+        synchronized (loadLock) {
+            long gen;
+            synchronized (GeozoneIndexMap) {
+                gzi = GeozoneIndexMap.get(acctId); // may have been loaded while we were waiting
+                gen = GeozoneIndexGeneration;
+            }
+            if ((gzi != null) && !gzi.isCheckRequired(nowMS)) {
+                return gzi;
+            }
+            long sig[] = GeozoneIndex.getSignature(acctId);
+            if ((gzi != null) && gzi.hasSignature(sig)) {
+                gzi.setCheckTime(nowMS);
+            } else {
+                Geozone gz[] = GeozoneIndex.loadZones(acctId);
+                gzi = new GeozoneIndex(acctId, gz, sig, nowMS);
+                Print.logDebug("Loaded Geozone index: %s [%d zones]", acctId, gz.length);
+            }
+            synchronized (GeozoneIndexMap) {
+                if (gen == GeozoneIndexGeneration) {
+                    // only cache if not invalidated while loading
+                    GeozoneIndexMap.put(acctId, gzi);
+                }
+            }
+            return gzi;
+        }
+
+    }
+
+    /**
+    *** Per-account grid index over Geozone bounding boxes
+    **/
+    private static class GeozoneIndex
+    {
+
+        /* load all Geozones for the account, in lookup order */
+        public static Geozone[] loadZones(String acctId)
+            throws DBException
+        {
+            // DBSelect: [SELECT] WHERE accountID='acct' ORDER BY priority,sortID,geozoneID
+            DBSelect<Geozone> dsel = new DBSelect<Geozone>(Geozone.getFactory());
+            DBWhere dwh = dsel.createDBWhere();
+            dsel.setWhere(dwh.WHERE(dwh.EQ(FLD_accountID,acctId)));
+            if (Geozone.supportsPriority()) {
+                dsel.setOrderByFields(FLD_priority, FLD_sortID, FLD_geozoneID);
+            } else {
+                dsel.setOrderByFields(FLD_sortID, FLD_geozoneID);
+            }
+            try {
+                DBProvider.lockTablesForRead(new String[] { TABLE_NAME() });
+                Geozone gz[] = DBRecord.select(dsel); // select:DBSelect
+                return (gz != null)? gz : new Geozone[0];
+            } finally {
+                try {
+                    DBProvider.unlockTables();
+                } catch (DBException dbe) {
+                    // ignore
+                }
+            }
+        }
+
+        /* return the record count and most recent 'lastUpdateTime' for the account Geozones */
+        public static long[] getSignature(String acctId)
+            throws DBException
+        {
+            DBFactory<Geozone> fact = Geozone.getFactory();
+            // DBSelect: SELECT COUNT(*) FROM Geozone WHERE accountID='acct'
+            DBWhere cntWh = new DBWhere(fact);
+            long count = DBRecord.getRecordCount(fact, cntWh.WHERE(cntWh.EQ(FLD_accountID,acctId)));
+            // DBSelect: SELECT lastUpdateTime FROM Geozone WHERE accountID='acct' ORDER BY lastUpdateTime DESC LIMIT 1
+            long lastUpd = 0L;
+            if (fact.hasField(FLD_lastUpdateTime)) {
+                DBSelect<Geozone> dsel = new DBSelect<Geozone>(fact);
+                DBWhere dwh = dsel.createDBWhere();
+                dsel.setSelectedFields(FLD_lastUpdateTime);
+                dsel.setWhere(dwh.WHERE(dwh.EQ(FLD_accountID,acctId)));
+                dsel.setOrderByFields(FLD_lastUpdateTime);
+                dsel.setOrderAscending(false); // descending
+                dsel.setLimit(1);
+                Statement stmt = null;
+                ResultSet rs = null;
+                try {
+                    stmt = DBRecord.execute(dsel.toString());
+                    rs = stmt.getResultSet();
+                    if (rs.next()) {
+                        lastUpd = rs.getLong(FLD_lastUpdateTime);
+                    }
+                } catch (SQLException sqe) {
+                    throw new DBException("Geozone lastUpdateTime", sqe);
+                } finally {
+                    if (rs   != null) { try { rs.close();   } catch (Throwable t) {} }
+                    if (stmt != null) { try { stmt.close(); } catch (Throwable t) {} }
+                }
+            }
+            return new long[] { count, lastUpd };
+        }
+
+        /* grid cell key for the specified lat/lon cell indices */
+        private static long cellKey(int latCell, int lonCell)
+        {
+            return ((long)latCell << 16) | (long)lonCell;
+        }
+
+        private static int latCell(double lat)
+        {
+            return (int)Math.floor((lat +  90.0) / INDEX_CELL_SIZE_DEG);
+        }
+
+        private static int lonCell(double lon)
+        {
+            return (int)Math.floor((lon + 180.0) / INDEX_CELL_SIZE_DEG);
+        }
+
+        // --------------------------------
+
+        private String          accountID   = null;
+        private Geozone         zones[]     = null;
+        private Map<Long,int[]> cellMap     = null;
+        private int             largeZones[]= null;
+        private long            signature[] = null;
+        private volatile long   checkTimeMS = 0L;
+
+        public GeozoneIndex(String acctId, Geozone gz[], long sig[], long nowMS)
+        {
+            this.accountID   = acctId;
+            this.zones       = gz;
+            this.signature   = sig;
+            this.checkTimeMS = nowMS;
+            Map<Long,java.util.List<Integer>> cells = new HashMap<Long,java.util.List<Integer>>();
+            java.util.List<Integer> large = new Vector<Integer>();
+            for (int z = 0; z < gz.length; z++) {
+                double minLat = gz[z].getMinLatitude(),  maxLat = gz[z].getMaxLatitude();
+                double minLon = gz[z].getMinLongitude(), maxLon = gz[z].getMaxLongitude();
+                if ((minLat > maxLat) || (minLon > maxLon)) {
+                    continue; // invalid bounding box, will never match
+                }
+                int latC0 = latCell(minLat), latC1 = latCell(maxLat);
+                int lonC0 = lonCell(minLon), lonC1 = lonCell(maxLon);
+                if (((long)(latC1 - latC0 + 1) * (long)(lonC1 - lonC0 + 1)) > INDEX_MAX_ZONE_CELLS) {
+                    large.add(new Integer(z));
+                    continue;
+                }
+                for (int latC = latC0; latC <= latC1; latC++) {
+                    for (int lonC = lonC0; lonC <= lonC1; lonC++) {
+                        Long key = new Long(cellKey(latC,lonC));
+                        java.util.List<Integer> list = cells.get(key);
+                        if (list == null) {
+                            list = new Vector<Integer>();
+                            cells.put(key, list);
+                        }
+                        list.add(new Integer(z));
+                    }
+                }
+            }
+            this.cellMap = new HashMap<Long,int[]>();
+            for (Long key : cells.keySet()) {
+                this.cellMap.put(key, GeozoneIndex.toIntArray(cells.get(key)));
+            }
+            this.largeZones = GeozoneIndex.toIntArray(large);
+        }
+
+        private static int[] toIntArray(java.util.List<Integer> list)
+        {
+            int a[] = new int[list.size()];
+            for (int i = 0; i < a.length; i++) {
+                a[i] = list.get(i).intValue();
+            }
+            return a;
+        }
+
+        public boolean isCheckRequired(long nowMS)
+        {
+            long intvSec = RTConfig.getLong(DBConfig.GEOZONE_INDEX_CHECK_INTERVAL_SEC, INDEX_CHECK_INTERVAL_SEC);
+            return (intvSec > 0L) && ((nowMS - this.checkTimeMS) >= (intvSec * 1000L));
+        }
+
+        public void setCheckTime(long nowMS)
+        {
+            this.checkTimeMS = nowMS;
+        }
+
+        public boolean hasSignature(long sig[])
+        {
+            return (sig != null) && (sig[0] == this.signature[0]) && (sig[1] == this.signature[1]);
+        }
+
+        /**
+        *** Returns the Geozones whose bounding box contains the specified point, in 
+        *** the same order as the equivalent "getWhereClause" select.  The returned
+        *** Geozone instances are shared by the index and must not be modified.
+        **/
+        public Geozone[] getCandidates(String zoneID, GeoPoint gp, boolean reverseGeocodeOnly)
+        {
+            double lat = gp.getLatitude();
+            double lon = gp.getLongitude();
+            int cellZones[] = this.cellMap.get(new Long(cellKey(latCell(lat),lonCell(lon))));
+            if (cellZones == null) { cellZones = new int[0]; }
+            int bigZones[]  = this.largeZones;
+            boolean anyZone = StringTools.isBlank(zoneID);
+            java.util.List<Geozone> list = new Vector<Geozone>();
+            for (int c = 0, b = 0; (c < cellZones.length) || (b < bigZones.length);) {
+                // merge both (ascending) lists to preserve lookup order
+                int z;
+                if ((b >= bigZones.length) || ((c < cellZones.length) && (cellZones[c] < bigZones[b]))) {
+                    z = cellZones[c++];
+                } else {
+                    z = bigZones[b++];
+                }
+                Geozone gz = this.zones[z];
+                if ((gz.getMinLatitude()  > lat) || (gz.getMaxLatitude()  < lat) ||
+                    (gz.getMinLongitude() > lon) || (gz.getMaxLongitude() < lon)   ) {
+                    continue;
+                } else
+                if (!anyZone && !gz.getGeozoneID().equalsIgnoreCase(zoneID)) {
+                    continue;
+                } else
+                if (reverseGeocodeOnly && !gz.isReverseGeocode()) {
+                    continue;
+                }
+                list.add(gz);
+            }
+            return list.toArray(new Geozone[list.size()]);
+        }
+
+        public String toString()
+        {
+            return this.accountID + " [" + this.zones.length + " zones]";
+        }
+
+    }
+
+    /**
+    *** Returns a copy of this Geozone record
+    **/
+    private Geozone _copyRecord()
+    {
+        Geozone gz = new Geozone(new Geozone.Key(this.getAccountID(), this.getGeozoneID(), this.getSortID()));
+        DBFieldValues srcVals = this.getRecordKey().getFieldValues();
+        DBFieldValues dstVals = gz.getRecordKey().getFieldValues();
+        DBField fld[] = Geozone.getFactory().getFields();
+        for (int i = 0; i < fld.length; i++) {
+            String fn = fld[i].getName();
+            if (srcVals.hasFieldValue(fn)) {
+                dstVals.setFieldValue(fn, srcVals.getFieldValue(fn));
+            }
+        }
+        return gz;
+    }
+
     // ------------------------------------------------------------------------
 
     /* return all Geozones matching specified clientID (should be at most one match, since this came from the client) */
@@ -1910,7 +2283,7 @@ public class Geozone
         /* get clientID Geozones */
         Geozone gz[] = null;
         try {
-            DBProvider.lockTables(new String[] { TABLE_NAME() }, null);
+            DBProvider.lockTablesForRead(new String[] { TABLE_NAME() });
             //gz = (Geozone[])DBRecord.select(Geozone.getFactory(), dsel.toString(false));
             gz = DBRecord.select(dsel); // select:DBSelect
         } catch (DBException dbe) {
@@ -1958,7 +2331,7 @@ public class Geozone
         /* get Geozones */
         Geozone gz[] = null;
         try {
-            DBProvider.lockTables(new String[] { TABLE_NAME() }, null);
+            DBProvider.lockTablesForRead(new String[] { TABLE_NAME() });
             //gz = (Geozone[])DBRecord.select(Geozone.getFactory(), dsel.toString(false));
             gz = DBRecord.select(dsel); // select:DBSelect
         } catch (DBException dbe) {
@@ -2136,7 +2509,7 @@ public class Geozone
         /* get Geozones */
         Geozone gz[] = null;
         try {
-            DBProvider.lockTables(new String[] { TABLE_NAME() }, null);
+            DBProvider.lockTablesForRead(new String[] { TABLE_NAME() });
             //gz = (Geozone[])DBRecord.select(Geozone.getFactory(), dsel.toString(false));
             gz = DBRecord.select(dsel); // select:DBSelect
         } catch (DBException dbe) {
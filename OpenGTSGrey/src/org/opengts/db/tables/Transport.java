@@ -25,6 +25,8 @@
 //     -Added FLD_maxPingCount
 //  2009/11/01  Martin D. Flynn
 //     -Added FLD_expectAck, FLD_lastAckCommand, FLD_lastAckTime
+//  2010/01/11  Martin D. Flynn
+//     -DCS Device lookups optionally use the DeviceIdentityCache
 // ----------------------------------------------------------------------------
 package org.opengts.db.tables;
 
@@ -248,6 +250,10 @@ public class Transport
         public DBFactory<Transport> getFactory() {
             return Transport.getFactory();
         }
+        protected void recordDidDelete() {
+            DeviceIdentityCache.invalidateDevice((String)this.getFieldValues().getFieldValue(FLD_accountID), null);
+            super.recordDidDelete();
+        }
     }
 
     /* factory constructor */
@@ -281,6 +287,30 @@ public class Transport
     
     // ------------------------------------------------------------------------
 
+    /**
+    *** Callback after record has been be inserted into the table
+    **/
+    protected void recordDidInsert()
+    {
+        if (DeviceIdentityCache.isEnabled()) {
+            DeviceIdentityCache.invalidateDevice(this.getAccountID(), null);
+        }
+        super.recordDidInsert();
+    }
+
+    /**
+    *** Callback after record has been be updated in the table
+    **/
+    protected void recordDidUpdate()
+    {
+        if (DeviceIdentityCache.isEnabled()) {
+            DeviceIdentityCache.invalidateDevice(this.getAccountID(), this.getTargetDeviceID());
+        }
+        super.recordDidUpdate();
+    }
+
+    // ------------------------------------------------------------------------
+
     /* table description */
     public static String getTableDescription(Locale loc)
     {
@@ -1413,6 +1443,28 @@ public class Transport
             return null; // just say it doesn't exist
         }
 
+        /* check cache */
+        if (DeviceIdentityCache.isEnabled()) {
+            Device dev = DeviceIdentityCache.getDeviceByUniqueID(uniqId);
+            if (dev == null) {
+                dev = Transport._loadDeviceByUniqueID(uniqId);
+                DeviceIdentityCache.putDeviceByUniqueID(uniqId, dev);
+            }
+            return dev;
+        }
+
+        /* load device */
+        return Transport._loadDeviceByUniqueID(uniqId);
+
+    }
+
+    /**
+    *** Loads a Device record based on a Unique-ID (bypassing the DeviceIdentityCache)
+    **/
+    private static Device _loadDeviceByUniqueID(String uniqId)
+        throws DBException
+    {
+
         /* lookup UniqueXID entry? */
         if (UniqueXID.isUniqueQueryEnabled()) {
             UniqueXID uniqXp = null;
@@ -1504,7 +1556,9 @@ public class Transport
         }
 
         /* get account */
-        Account account = Account.getAccount(accountID); // may throw DBException
+        Account account = DeviceIdentityCache.isEnabled()?
+            DeviceIdentityCache.getAccount(accountID) :  // may throw DBException
+            Account.getAccount(accountID);                // may throw DBException
         if (account == null) {
             Print.logError("Account-ID does not exist: " + accountID);
             return null;
@@ -1537,6 +1591,30 @@ public class Transport
             return null; // just say it doesn't exist
         }
 
+        /* check cache */
+        if (DeviceIdentityCache.isEnabled()) {
+            String acctID = account.getAccountID();
+            Device dev = DeviceIdentityCache.getDeviceByTransportID(acctID, xportID);
+            if (dev == null) {
+                dev = Transport._loadDeviceByTransportID(account, xportID);
+                DeviceIdentityCache.putDeviceByTransportID(acctID, xportID, dev);
+            }
+            return dev;
+        }
+
+        /* load device */
+        return Transport._loadDeviceByTransportID(account, xportID);
+
+    }
+
+    /**
+    *** Loads a Device record based on the Account and Transport/Device IDs (bypassing the
+    *** DeviceIdentityCache)
+    **/
+    private static Device _loadDeviceByTransportID(Account account, String xportID)
+        throws DBException
+    {
+
         /* lookup Transport entry */
         if (Transport.isTransportQueryEnabled()) {
             try {
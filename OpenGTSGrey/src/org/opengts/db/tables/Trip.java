@@ -0,0 +1,477 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2009, GeoTelematic Solutions, Inc.
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Change History:
+//  2010/01/11  Martin D. Flynn
+//     -Initial release
+// ----------------------------------------------------------------------------
+package org.opengts.db.tables;
+
+import java.lang.*;
+import java.util.*;
+import java.math.*;
+import java.io.*;
+import java.sql.*;
+
+import org.opengts.util.*;
+import org.opengts.dbtools.*;
+
+import org.opengts.db.*;
+import org.opengts.db.tables.*;
+
+public class Trip
+    extends DeviceRecord<Trip>
+{
+
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+    // SQL table definition below
+
+    /* table name */
+    public static final String _TABLE_NAME              = "Trip";
+    public static String TABLE_NAME() { return DBProvider.translateTableName(_TABLE_NAME); }
+
+    /* field definition */
+    public static final String FLD_stopTime             = "stopTime";
+    public static final String FLD_startTime            = "startTime";
+    public static final String FLD_startLatitude        = "startLatitude";
+    public static final String FLD_startLongitude       = "startLongitude";
+    public static final String FLD_startAddress         = "startAddress";
+    public static final String FLD_startOdometerKM      = "startOdometerKM";
+    public static final String FLD_startFuelTotal       = "startFuelTotal";
+    public static final String FLD_stopLatitude         = "stopLatitude";
+    public static final String FLD_stopLongitude        = "stopLongitude";
+    public static final String FLD_stopAddress          = "stopAddress";
+    public static final String FLD_stopOdometerKM       = "stopOdometerKM";
+    public static final String FLD_stopFuelTotal        = "stopFuelTotal";
+    public static final String FLD_driveElapsed         = "driveElapsed";
+    public static final String FLD_driveDistanceKM      = "driveDistanceKM";
+    public static final String FLD_driveFuel            = "driveFuel";
+    public static final String FLD_stopElapsed          = "stopElapsed";
+    public static final String FLD_idleElapsed          = "idleElapsed";
+    private static DBField FieldInfo[] = {
+        // Trip fields
+        newField_accountID(true),
+        newField_deviceID(true),
+        new DBField(FLD_stopTime        , Long.TYPE     , DBField.TYPE_UINT32      , "Stop Timestamp"       , "key=true"),
+        new DBField(FLD_startTime       , Long.TYPE     , DBField.TYPE_UINT32      , "Start Timestamp"      , ""),
+        new DBField(FLD_startLatitude   , Double.TYPE   , DBField.TYPE_DOUBLE      , "Start Latitude"       , "format=#0.00000"),
+        new DBField(FLD_startLongitude  , Double.TYPE   , DBField.TYPE_DOUBLE      , "Start Longitude"      , "format=#0.00000"),
+        new DBField(FLD_startAddress    , String.class  , DBField.TYPE_STRING(90)  , "Start Address"        , "utf8=true"),
+        new DBField(FLD_startOdometerKM , Double.TYPE   , DBField.TYPE_DOUBLE      , "Start Odometer KM"    , "format=#0.0"),
+        new DBField(FLD_startFuelTotal  , Double.TYPE   , DBField.TYPE_DOUBLE      , "Start Total Fuel Used", "format=#0.0"),
+        new DBField(FLD_stopLatitude    , Double.TYPE   , DBField.TYPE_DOUBLE      , "Stop Latitude"        , "format=#0.00000"),
+        new DBField(FLD_stopLongitude   , Double.TYPE   , DBField.TYPE_DOUBLE      , "Stop Longitude"       , "format=#0.00000"),
+        new DBField(FLD_stopAddress     , String.class  , DBField.TYPE_STRING(90)  , "Stop Address"         , "utf8=true"),
+        new DBField(FLD_stopOdometerKM  , Double.TYPE   , DBField.TYPE_DOUBLE      , "Stop Odometer KM"     , "format=#0.0"),
+        new DBField(FLD_stopFuelTotal   , Double.TYPE   , DBField.TYPE_DOUBLE      , "Stop Total Fuel Used" , "format=#0.0"),
+        new DBField(FLD_driveElapsed    , Long.TYPE     , DBField.TYPE_INT32       , "Driving Elapsed Sec"  , ""),
+        new DBField(FLD_driveDistanceKM , Double.TYPE   , DBField.TYPE_DOUBLE      , "Driving Distance KM"  , "format=#0.0"),
+        new DBField(FLD_driveFuel       , Double.TYPE   , DBField.TYPE_DOUBLE      , "Driving Fuel Used"    , "format=#0.0"),
+        new DBField(FLD_stopElapsed     , Long.TYPE     , DBField.TYPE_INT32       , "Stopped Elapsed Sec"  , ""),
+        new DBField(FLD_idleElapsed     , Long.TYPE     , DBField.TYPE_INT32       , "Idle Elapsed Sec"     , ""),
+        // Common fields
+        newField_lastUpdateTime(),
+        newField_creationTime(),
+    };
+
+    /* key class */
+    public static class Key
+        extends DeviceKey<Trip>
+    {
+        public Key() {
+            super();
+        }
+        public Key(String accountId, String deviceId, long stopTime) {
+            super.setFieldValue(FLD_accountID, ((accountId != null)? accountId.toLowerCase() : ""));
+            super.setFieldValue(FLD_deviceID , ((deviceId  != null)? deviceId .toLowerCase() : ""));
+            super.setFieldValue(FLD_stopTime , stopTime);
+        }
+        public DBFactory<Trip> getFactory() {
+            return Trip.getFactory();
+        }
+    }
+
+    /* factory constructor */
+    private static DBFactory<Trip> factory = null;
+    public static DBFactory<Trip> getFactory()
+    {
+        if (factory == null) {
+            factory = DBFactory.createDBFactory(
+                Trip.TABLE_NAME(),
+                Trip.FieldInfo,
+                DBFactory.KeyType.PRIMARY,
+                Trip.class,
+                Trip.Key.class,
+                false/*editable*/, true/*viewable*/);
+            factory.addParentTable(Account.TABLE_NAME());
+            factory.addParentTable(Device.TABLE_NAME());
+        }
+        return factory;
+    }
+
+    /* Bean instance */
+    public Trip()
+    {
+        super();
+    }
+
+    /* database record */
+    public Trip(Trip.Key key)
+    {
+        super(key);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /* table description */
+    public static String getTableDescription(Locale loc)
+    {
+        I18N i18n = I18N.getI18N(Trip.class, loc);
+        return i18n.getString("Trip.description",
+            "This table contains " +
+            "the Device trips (start/drive/stop) delimited from received events, " +
+            "maintained incrementally when the TripTracker is enabled."
+            );
+    }
+
+    // SQL table definition above
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+    // Bean access fields below
+
+    public long getStopTime()
+    {
+        return this.getFieldValue(FLD_stopTime, 0L);
+    }
+
+    private void setStopTime(long v)
+    {
+        this.setFieldValue(FLD_stopTime, v);
+    }
+
+    public long getStartTime()
+    {
+        return this.getFieldValue(FLD_startTime, 0L);
+    }
+
+    public void setStartTime(long v)
+    {
+        this.setFieldValue(FLD_startTime, v);
+    }
+
+    public GeoPoint getStartGeoPoint()
+    {
+        double lat = this.getFieldValue(FLD_startLatitude , 0.0);
+        double lon = this.getFieldValue(FLD_startLongitude, 0.0);
+        return GeoPoint.isValid(lat,lon)? new GeoPoint(lat,lon) : null;
+    }
+
+    public void setStartGeoPoint(GeoPoint gp)
+    {
+        this.setFieldValue(FLD_startLatitude , (gp != null)? gp.getLatitude()  : 0.0);
+        this.setFieldValue(FLD_startLongitude, (gp != null)? gp.getLongitude() : 0.0);
+    }
+
+    public String getStartAddress()
+    {
+        String v = (String)this.getFieldValue(FLD_startAddress);
+        return StringTools.trim(v);
+    }
+
+    public void setStartAddress(String v)
+    {
+        this.setFieldValue(FLD_startAddress, StringTools.trim(v));
+    }
+
+    public double getStartOdometerKM()
+    {
+        return this.getFieldValue(FLD_startOdometerKM, 0.0);
+    }
+
+    public void setStartOdometerKM(double v)
+    {
+        this.setFieldValue(FLD_startOdometerKM, v);
+    }
+
+    public double getStartFuelTotal()
+    {
+        return this.getFieldValue(FLD_startFuelTotal, 0.0);
+    }
+
+    public void setStartFuelTotal(double v)
+    {
+        this.setFieldValue(FLD_startFuelTotal, v);
+    }
+
+    public GeoPoint getStopGeoPoint()
+    {
+        double lat = this.getFieldValue(FLD_stopLatitude , 0.0);
+        double lon = this.getFieldValue(FLD_stopLongitude, 0.0);
+        return GeoPoint.isValid(lat,lon)? new GeoPoint(lat,lon) : null;
+    }
+
+    public void setStopGeoPoint(GeoPoint gp)
+    {
+        this.setFieldValue(FLD_stopLatitude , (gp != null)? gp.getLatitude()  : 0.0);
+        this.setFieldValue(FLD_stopLongitude, (gp != null)? gp.getLongitude() : 0.0);
+    }
+
+    public String getStopAddress()
+    {
+        String v = (String)this.getFieldValue(FLD_stopAddress);
+        return StringTools.trim(v);
+    }
+
+    public void setStopAddress(String v)
+    {
+        this.setFieldValue(FLD_stopAddress, StringTools.trim(v));
+    }
+
+    public double getStopOdometerKM()
+    {
+        return this.getFieldValue(FLD_stopOdometerKM, 0.0);
+    }
+
+    public void setStopOdometerKM(double v)
+    {
+        this.setFieldValue(FLD_stopOdometerKM, v);
+    }
+
+    public double getStopFuelTotal()
+    {
+        return this.getFieldValue(FLD_stopFuelTotal, 0.0);
+    }
+
+    public void setStopFuelTotal(double v)
+    {
+        this.setFieldValue(FLD_stopFuelTotal, v);
+    }
+
+    public long getDriveElapsed()
+    {
+        return this.getFieldValue(FLD_driveElapsed, 0L);
+    }
+
+    public void setDriveElapsed(long v)
+    {
+        this.setFieldValue(FLD_driveElapsed, v);
+    }
+
+    public double getDriveDistanceKM()
+    {
+        return this.getFieldValue(FLD_driveDistanceKM, 0.0);
+    }
+
+    public void setDriveDistanceKM(double v)
+    {
+        this.setFieldValue(FLD_driveDistanceKM, v);
+    }
+
+    public double getDriveFuel()
+    {
+        return this.getFieldValue(FLD_driveFuel, 0.0);
+    }
+
+    public void setDriveFuel(double v)
+    {
+        this.setFieldValue(FLD_driveFuel, v);
+    }
+
+    public long getStopElapsed()
+    {
+        return this.getFieldValue(FLD_stopElapsed, 0L);
+    }
+
+    public void setStopElapsed(long v)
+    {
+        this.setFieldValue(FLD_stopElapsed, v);
+    }
+
+    public long getIdleElapsed()
+    {
+        return this.getFieldValue(FLD_idleElapsed, 0L);
+    }
+
+    public void setIdleElapsed(long v)
+    {
+        this.setFieldValue(FLD_idleElapsed, v);
+    }
+
+    // Bean access fields above
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    public String toString()
+    {
+        return this.getAccountID() + "/" + this.getDeviceID() + "/" + this.getStopTime();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /* overridden to set default values */
+    public void setCreationDefaultValues()
+    {
+        //super.setRuntimeDefaultValues();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns the time at which the trip following this trip started (ie. the time at
+    *** which this trip was delimited by the TripStateMachine)
+    *** @return The start time of the following trip
+    **/
+    public long getNextStartTime()
+    {
+        long stopElapsed = this.getStopElapsed();
+        return this.getStopTime() + ((stopElapsed > 0L)? stopElapsed : 0L);
+    }
+
+    /**
+    *** Returns a TripStateMachine.TripInfo instance containing the values of this record
+    *** @return The TripInfo instance
+    **/
+    public TripStateMachine.TripInfo getTripInfo()
+    {
+        double driveFuel = this.getDriveFuel();
+        double driveEcon = (driveFuel > 0.0)? (this.getDriveDistanceKM() / driveFuel) : 0.0;
+        return new TripStateMachine.TripInfo(this.getAccountID(), this.getDeviceID(), true,
+            this.getStartTime()   , this.getStartGeoPoint(), this.getStartAddress(), this.getStartOdometerKM(), this.getStartFuelTotal(),
+            this.getStopTime()    , this.getStopGeoPoint() , this.getStopAddress() , this.getStopOdometerKM() , this.getStopFuelTotal() ,
+            this.getDriveElapsed(), this.getDriveDistanceKM(), driveFuel, driveEcon,
+            this.getStopElapsed() , this.getIdleElapsed()  , -1.0);
+    }
+
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Saves the specified (complete) trip
+    *** @param trip  The delimited trip
+    *** @throws DBException if a DB error occurs
+    **/
+    public static void saveTrip(TripStateMachine.TripInfo trip)
+        throws DBException
+    {
+        if ((trip == null) || !trip.isComplete() || (trip.getStopTime() <= 0L)) {
+            return;
+        }
+        Trip.Key tripKey = new Trip.Key(trip.getAccountID(), trip.getDeviceID(), trip.getStopTime());
+        Trip t = tripKey.getDBRecord(); // (may already exist, 'save' will update)
+        t.setStartTime(trip.getStartTime());
+        t.setStartGeoPoint(trip.getStartGeoPoint());
+        t.setStartAddress(trip.getStartAddress());
+        t.setStartOdometerKM(trip.getStartOdometer());
+        t.setStartFuelTotal(trip.getStartFuel());
+        t.setStopGeoPoint(trip.getStopGeoPoint());
+        t.setStopAddress(trip.getStopAddress());
+        t.setStopOdometerKM(trip.getStopOdometer());
+        t.setStopFuelTotal(trip.getStopFuel());
+        t.setDriveElapsed(trip.getDriveTime());
+        t.setDriveDistanceKM(trip.getDriveDistance());
+        t.setDriveFuel(trip.getDriveFuel());
+        t.setStopElapsed(trip.getStopElapsed());
+        t.setIdleElapsed(trip.getIdleElapsed());
+        t.save();
+    }
+
+    /**
+    *** Deletes all trips for the specified Device which were stopped within the specified range
+    *** @param acctID     The Account ID
+    *** @param devID      The Device ID
+    *** @param timeStart  The range start time
+    *** @param timeEnd    The range end time
+    *** @throws DBException if a DB error occurs
+    **/
+    public static void deleteTrips(String acctID, String devID, long timeStart, long timeEnd)
+        throws DBException
+    {
+        // [DELETE FROM Trip WHERE accountID='acct' AND deviceID='dev' AND stopTime>=start AND stopTime<=end]
+        try {
+            DBDelete ddel = new DBDelete(Trip.getFactory());
+            ddel.setWhere(Trip.getWhereClause(acctID, devID, timeStart, timeEnd));
+            DBConnection.getDefaultConnection().executeUpdate(ddel.toString());
+        } catch (SQLException sqe) {
+            throw new DBException("Trip deletion", sqe);
+        }
+    }
+
+    /* [DB]WHERE ( <Condition...> ) */
+    private static String getWhereClause(String acctID, String devID, long timeStart, long timeEnd)
+    {
+        DBWhere dwh = new DBWhere(Trip.getFactory());
+        dwh.append(dwh.AND(
+            dwh.EQ(Trip.FLD_accountID, acctID),
+            dwh.EQ(Trip.FLD_deviceID , devID)
+        ));
+        if (timeStart >= 0L) {
+            dwh.append(dwh.AND_(dwh.GE(Trip.FLD_stopTime, timeStart)));
+        }
+        if ((timeEnd >= 0L) && (timeEnd >= timeStart)) {
+            dwh.append(dwh.AND_(dwh.LE(Trip.FLD_stopTime, timeEnd)));
+        }
+        return dwh.WHERE(dwh.toString());
+    }
+
+    /**
+    *** Returns the trips for the specified Device which were stopped within the specified range
+    *** (in ascending stop time order)
+    *** @param acctID     The Account ID
+    *** @param devID      The Device ID
+    *** @param timeStart  The range start time
+    *** @param timeEnd    The range end time
+    *** @return The array of trips (does not return null)
+    *** @throws DBException if a DB error occurs
+    **/
+    public static Trip[] getTrips(String acctID, String devID, long timeStart, long timeEnd)
+        throws DBException
+    {
+        if (StringTools.isBlank(acctID) || StringTools.isBlank(devID)) {
+            return new Trip[0];
+        }
+
+        /* select */
+        // DBSelect: [SELECT * FROM Trip] <Where> ORDER BY stopTime
+        DBSelect<Trip> dsel = new DBSelect<Trip>(Trip.getFactory());
+        dsel.setWhere(Trip.getWhereClause(acctID, devID, timeStart, timeEnd));
+        dsel.setOrderByFields(FLD_stopTime);
+        dsel.setOrderAscending(true);
+
+        /* get records */
+        Trip trips[] = null;
+        try {
+            DBProvider.lockTablesForRead(new String[] { TABLE_NAME() });
+            trips = DBRecord.select(dsel, null);
+        } finally {
+            DBProvider.unlockTables();
+        }
+        return (trips != null)? trips : new Trip[0];
+
+    }
+
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    public static void main(String argv[])
+    {
+        DBConfig.cmdLineInit(argv,true);  // main
+        Print.logWarn("No command-line options available for this table");
+    }
+
+}
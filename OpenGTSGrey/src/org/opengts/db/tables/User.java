@@ -43,6 +43,8 @@
 //     -Changed 'getUsersForContactEmail' to return a list of 'User' objects.
 //     -Changed unspecified 'gender' text from "Unknown" to "n/a" (not applicable)
 //     -Added fields 'FLD_preferredDeviceID', 'FLD_roleID'
+//  2010/01/11  Martin D. Flynn
+//     -'isAuthorizedDevice' now uses the cached authorized Device set (DeviceAuthorizationCache)
 // ----------------------------------------------------------------------------
 package org.opengts.db.tables;
 
@@ -237,6 +239,12 @@ public class User
         public DBFactory<User> getFactory() {
             return User.getFactory();
         }
+        protected void recordDidDelete() {
+            DeviceAuthorizationCache.invalidateUser(
+                (String)this.getFieldValues().getFieldValue(FLD_accountID),
+                (String)this.getFieldValues().getFieldValue(FLD_userID));
+            super.recordDidDelete();
+        }
     }
 
     /* factory constructor */
@@ -280,6 +288,15 @@ public class User
             );
     }
 
+    /**
+    *** Callback after record has been be updated in the table
+    **/
+    protected void recordDidUpdate()
+    {
+        DeviceAuthorizationCache.invalidateUser(this.getAccountID(), this.getUserID());
+        super.recordDidUpdate();
+    }
+
     // SQL table definition above
     // ------------------------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -797,6 +814,8 @@ public class User
         } catch (Throwable th) { // DBException, SQLException
             Print.logException("Error deleting existing DeviceGroup entries from the User GroupList table", th);
             return;
+        } finally {
+            DeviceAuthorizationCache.invalidateUser(accountID, userID);
         }
 
         /* add new entries */
@@ -949,6 +968,15 @@ public class User
     {
         if (StringTools.isBlank(deviceID)) {
             return false;
+        } else
+        if (DeviceAuthorizationCache.isEnabled()) {
+            // cached authorized device set
+            if (DeviceAuthorizationCache.isAuthorizedDevice(this, deviceID)) {
+                return true;
+            } else {
+                Print.logInfo("Not authorized device for user '%s': %s", this.getUserID(), deviceID);
+                return false;
+            }
         } else {
             java.util.List<String> groupList = this.getDeviceGroups(false/*refresh*/);
             if (ListTools.isEmpty(groupList)) {
@@ -1381,7 +1409,7 @@ public class User
         /* count users */
         long recordCount = 0L;
         try {
-            DBProvider.lockTables(new String[] { TABLE_NAME() }, null);
+            DBProvider.lockTablesForRead(new String[] { TABLE_NAME() });
             recordCount = DBRecord.getRecordCount(dsel);
         } finally {
             DBProvider.unlockTables();
@@ -21,6 +21,8 @@
 // Change History:
 //  2008/10/16  Martin D. Flynn
 //     -Initial release
+//  2010/01/11  Martin D. Flynn
+//     -Invalidate cached User Device authorizations when UserDevice entries change
 // ----------------------------------------------------------------------------
 package org.opengts.db.tables;
 
@@ -74,6 +76,12 @@ public class UserDevice
         public DBFactory<UserDevice> getFactory() {
             return UserDevice.getFactory();
         }
+        protected void recordDidDelete() {
+            DeviceAuthorizationCache.invalidateUser(
+                (String)this.getFieldValues().getFieldValue(FLD_accountID),
+                (String)this.getFieldValues().getFieldValue(FLD_userID));
+            super.recordDidDelete();
+        }
     }
     
     /* factory constructor */
@@ -119,6 +127,15 @@ public class UserDevice
             );
     }
 
+    /**
+    *** Callback after record has been be inserted into the table
+    **/
+    protected void recordDidInsert()
+    {
+        DeviceAuthorizationCache.invalidateUser(this.getAccountID(), this.getUserID());
+        super.recordDidInsert();
+    }
+
     // SQL table definition above
     // ------------------------------------------------------------------------
     // ------------------------------------------------------------------------
@@ -61,6 +61,9 @@
 //  2009/09/23  Martin D. Flynn
 //     -Enable VALIDATE_CREATE_TABLE[t] option if VALIDATE_ADD_COLUMNS[c] specified 
 //      on "-tables" command-line argument.
+//  2010/01/11  Martin D. Flynn
+//     -Added "-partitions", "-partition", and "-dropPartitions" commands for monthly
+//      range-partitioned tables.
 // ----------------------------------------------------------------------------
 package org.opengts.dbtools;
 
@@ -727,6 +730,12 @@ public class DBAdmin
     public  static final String ARG_LAST[]      = new String[] { "last"      };
     public  static final String ARG_OVERWRITE[] = new String[] { "overwrite" };
     public  static final String ARG_BEAN[]      = new String[] { "bean"      };
+    public  static final String ARG_PARTITIONS[]= new String[] { "partitions" };
+    public  static final String ARG_PARTITION[] = new String[] { "partition" };
+    public  static final String ARG_DROP_PARTS[]= new String[] { "dropPartitions" };
+    public  static final String ARG_MONTHS[]    = new String[] { "months"    };
+    public  static final String ARG_BEFORE[]    = new String[] { "before"    };
+    public  static final String ARG_KEEP[]      = new String[] { "keepMonths", "keep" };
   //public  static final String ARG_HIBXML[]    = new String[] { "hibxml"    };
   //public  static final String ARG_RELOAD[]    = new String[] { "reload"    };
 
@@ -748,6 +757,9 @@ public class DBAdmin
         // -dump=<table> -dir=<Destination_Dir>
         // -load=<table> -dir=<Source_Dir>
         // -drop=<table>
+        // -partitions=<table>
+        // -partition=<table> [-months=<Months>]
+        // -dropPartitions=<table> [-before=<YYYY/MM/DD>|-keepMonths=<Months>]
 
         /* if specified, the argument specified for "-db" must match 'DBProvider.getDBName()' */
         if (RTConfig.hasProperty(ARG_DB)) {
@@ -1093,6 +1105,101 @@ public class DBAdmin
             }
         }
 
+        /* partitions: list table partitions */
+        // bin/exe DBAdmin -partitions=<Table>
+        if (RTConfig.hasProperty(ARG_PARTITIONS)) {
+            execCmd++;
+            String partTbl = RTConfig.getString(ARG_PARTITIONS, null);
+            DBFactory dbf = !StringTools.isBlank(partTbl)? DBAdmin.getTableFactory(partTbl) : null;
+            if (dbf != null) {
+                try {
+                    OrderedMap<String,Long> partMap = dbf.getPartitions();
+                    if (partMap.isEmpty()) {
+                        Print.logInfo("Table is not partitioned: " + partTbl);
+                    } else {
+                        Print.logInfo("Table partitions: " + partTbl);
+                        for (String name : partMap.keySet()) {
+                            long bound = partMap.get(name).longValue();
+                            String desc = (bound == Long.MAX_VALUE)? "MAXVALUE" : (new DateTime(bound,DateTime.getGMTTimeZone())).toString();
+                            Print.logInfo("  " + name + " [less than " + desc + "]");
+                        }
+                    }
+                } catch (DBException dbe) {
+                    Print.logException("Unable to read table partitions: " + partTbl, dbe);
+                    return DBAdminExec.ERROR;
+                }
+            } else {
+                Print.logError("No DBFactory for table: " + partTbl);
+                return DBAdminExec.ERROR;
+            }
+        }
+
+        /* partition: partition table, or add monthly partitions */
+        // bin/exe DBAdmin -partition=<Table> [-months=<Months>]
+        if (RTConfig.hasProperty(ARG_PARTITION)) {
+            execCmd++;
+            String partTbl = RTConfig.getString(ARG_PARTITION, null);
+            DBFactory dbf = !StringTools.isBlank(partTbl)? DBAdmin.getTableFactory(partTbl) : null;
+            if (dbf != null) {
+                int  months    = RTConfig.getInt(ARG_MONTHS, DBProvider.DEFAULT_PARTITION_MONTHS);
+                long untilTime = DBProvider.getPartitionMonthStart(DateTime.getCurrentTimeSec(), months);
+                try {
+                    if (dbf.getPartitions().isEmpty()) {
+                        Print.logInfo("Partitioning table (this may take some time): " + partTbl);
+                        dbf.partitionTable(untilTime);
+                        Print.logInfo("Table partitioned: " + partTbl);
+                    } else {
+                        int count = dbf.addPartitions(untilTime);
+                        Print.logInfo("Added " + count + " partition(s): " + partTbl);
+                    }
+                } catch (DBException dbe) {
+                    Print.logException("Unable to partition table: " + partTbl, dbe);
+                    return DBAdminExec.ERROR;
+                }
+            } else {
+                Print.logError("No DBFactory for table: " + partTbl);
+                return DBAdminExec.ERROR;
+            }
+        }
+
+        /* dropPartitions: drop old table partitions */
+        // bin/exe DBAdmin -dropPartitions=<Table> [-before=<YYYY/MM/DD>|-keepMonths=<Months>]
+        if (RTConfig.hasProperty(ARG_DROP_PARTS)) {
+            execCmd++;
+            String partTbl = RTConfig.getString(ARG_DROP_PARTS, null);
+            DBFactory dbf = !StringTools.isBlank(partTbl)? DBAdmin.getTableFactory(partTbl) : null;
+            long beforeTime = 0L;
+            if (RTConfig.hasProperty(ARG_BEFORE)) {
+                try {
+                    DateTime before = DateTime.parseArgumentDate(RTConfig.getString(ARG_BEFORE,""), DateTime.getGMTTimeZone(), false);
+                    beforeTime = (before != null)? before.getTimeSec() : 0L;
+                } catch (DateTime.DateParseException dpe) {
+                    Print.logError("Invalid '-before' date: " + dpe.getMessage());
+                }
+            } else
+            if (RTConfig.hasProperty(ARG_KEEP)) {
+                int keep = RTConfig.getInt(ARG_KEEP, 0);
+                beforeTime = (keep > 0)? DBProvider.getPartitionMonthStart(DateTime.getCurrentTimeSec(), 1 - keep) : 0L;
+            }
+            if (dbf == null) {
+                Print.logError("No DBFactory for table: " + partTbl);
+                return DBAdminExec.ERROR;
+            } else
+            if (beforeTime <= 0L) {
+                Print.logError("Missing/invalid '-before' or '-keepMonths' argument");
+                return DBAdminExec.ERROR;
+            } else {
+                Print.logInfo("Dropping partitions prior to: " + (new DateTime(beforeTime,DateTime.getGMTTimeZone())));
+                try {
+                    int count = dbf.dropPartitions(beforeTime);
+                    Print.logInfo("Dropped " + count + " partition(s): " + partTbl);
+                } catch (DBException dbe) {
+                    Print.logException("Unable to drop table partitions: " + partTbl, dbe);
+                    return DBAdminExec.ERROR;
+                }
+            }
+        }
+
         /* load: load table data from flatfile */
         // bin/exe DBAdmin -load=<Table> -dir=<Source_Dir>
         if (loadFile != null) {
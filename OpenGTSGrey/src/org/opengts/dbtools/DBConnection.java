@@ -29,6 +29,11 @@
 //     -Added "Row-by-Row" option on the 'createStatement' method per MySQL "feature"
 //      work-around for large result-sets.
 //      [see "http://forums.mysql.com/read.php?39,152636,153012#msg-153012"]
+//  2010/01/11  Martin D. Flynn
+//     -Added optional pooled connection mode (see DBConnectionPool), and
+//      'releaseThreadConnections' to return connections to the pool/DataSource.
+//     -Added PreparedStatement execution with a per-connection statement cache.
+//     -Row-by-row statements use a bounded fetch size for non-MySQL providers.
 // ----------------------------------------------------------------------------
 package org.opengts.dbtools;
 
@@ -114,6 +119,9 @@ public class DBConnection
     // (see DBProvider.isTableLockingEnabled)
     public  static boolean      ALWAYS_NEW_CONNECTION   = false;
 
+    /* fetch size for row-by-row statements (non-MySQL providers) */
+    private static int          ROW_BY_ROW_FETCH_SIZE   = 100;
+
     /* this connection timeout must be less than what is configured in the database server */
     private static long         CONNECTION_TIMEOUT      = 6L * 3600L; // 6 hours
 
@@ -121,6 +129,46 @@ public class DBConnection
 
     private static String       LastSQLExecuted         = null;
 
+    // ------------------------------------------------------------------------
+    // PreparedStatement support
+
+    private static Boolean      UsePreparedStatements   = null;
+    private static int          StatementCacheSize      = -1;
+
+    /**
+    *** Sets a flag indicating that keyed record access (insert/update/reload/exists)
+    *** should use parameterized PreparedStatements
+    *** @param usePS  True to use PreparedStatements, false otherwise
+    **/
+    public static void setUsePreparedStatements(boolean usePS)
+    {
+        UsePreparedStatements = new Boolean(usePS);
+    }
+
+    /**
+    *** Returns true if keyed record access should use parameterized PreparedStatements
+    *** @return True if keyed record access should use parameterized PreparedStatements
+    **/
+    public static boolean getUsePreparedStatements()
+    {
+        if (UsePreparedStatements == null) {
+            UsePreparedStatements = new Boolean(RTConfig.getBoolean(RTKey.DB_PREPARED_STATEMENTS,false));
+        }
+        return UsePreparedStatements.booleanValue();
+    }
+
+    /**
+    *** Returns the maximum number of PreparedStatements cached per connection
+    *** @return The maximum number of cached PreparedStatements (0 to disable caching)
+    **/
+    public static int getStatementCacheSize()
+    {
+        if (StatementCacheSize < 0) {
+            StatementCacheSize = Math.max(0, RTConfig.getInt(RTKey.DB_STATEMENT_CACHE_SIZE,50));
+        }
+        return StatementCacheSize;
+    }
+
     // ------------------------------------------------------------------------
 
     private static DataSource   DBDataSource            = null;
@@ -258,6 +306,24 @@ public class DBConnection
         return dbConnectionsMap;
     }
 
+    /**
+    *** Releases all connections held by the current thread back to the connection pool
+    *** (or DataSource).  This should be called by long-lived threads (ie. DCS client
+    *** session threads) when they no longer need database access, to allow the connection
+    *** to be used by other threads.  Has no effect on dedicated (non-pooled) connections.
+    *** @return The number of connections released
+    **/
+    public static int releaseThreadConnections()
+    {
+        int count = 0;
+        for (DBConnection dbc : DBConnection.getDBConnectionMap().values()) {
+            if (dbc.releaseConnection()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     // ------------------------------------------------------------------------
     // ------------------------------------------------------------------------
 
@@ -269,6 +335,11 @@ public class DBConnection
     private String      password            = null;
     
     private Connection  dbConnection        = null;
+    private DBConnectionPool connPool       = null;
+    private boolean     tablesLocked        = false;
+
+    private Map<String,PreparedStatement> stmtCache = null;
+    private Set<Statement> stmtInUse        = null;
     
     private long        connectOpenCount    = 0L;
     private long        connectCloseCount   = 0L;
@@ -365,6 +436,12 @@ public class DBConnection
             //    max_connections=500
             //    max_user_connections=500
             String user = this.getUser();
+            if ((USE_DRIVER_MANAGER || (DBConnection.DBDataSource == null)) && DBConnectionPool.isEnabled()) {
+                // borrow from the shared connection pool
+                String pass = StringTools.isBlank(user)? null : this.getPassword();
+                this.connPool = DBConnectionPool.getPool(this.getUri(), user, pass);
+                this.dbConnection = this.connPool.borrowConnection(CONNECTION_TIMEOUT);
+            } else
             if (StringTools.isBlank(user)) {
                 //Print.logInfo("Obtaining connection without a user/password ...");
                 if (USE_DRIVER_MANAGER || (DBConnection.DBDataSource == null)) {
@@ -386,8 +463,12 @@ public class DBConnection
             /* save connection time */
             this.connectTime = DateTime.getCurrentTimeSec();
             this.connectOpenCount++;
-            Print.logInfo("New Connection: [" + this.threadName + "]" + 
-                " openCount=" + this.connectOpenCount + ", closeCount=" + this.connectCloseCount);
+            if (this.connPool != null) {
+                Print.logDebug("Pooled Connection: [" + this.threadName + "] " + this.connPool);
+            } else {
+                Print.logInfo("New Connection: [" + this.threadName + "]" + 
+                    " openCount=" + this.connectOpenCount + ", closeCount=" + this.connectCloseCount);
+            }
 
         }
 
@@ -402,6 +483,17 @@ public class DBConnection
     **/
     public void closeConnection()
     {
+        this._clearStatementCache();
+        this.tablesLocked = false; // released with the connection
+        if (this.connPool != null) {
+            // discard pooled connection
+            if (this.dbConnection != null) {
+                this.connPool.releaseConnection(this.dbConnection, true);
+                this.connectCloseCount++;
+                this.dbConnection = null;
+            }
+            this.connPool = null;
+        } else
         if (this.dbConnection != null) {
             try {
                 if (!this.dbConnection.isClosed()) {
@@ -425,6 +517,46 @@ public class DBConnection
         }
     }
 
+    /**
+    *** Releases the current database connection back to the connection pool (or DataSource).
+    *** Dedicated (non-pooled) connections, and connections with locked tables, are retained.
+    *** @return True if the connection was released
+    **/
+    public boolean releaseConnection()
+    {
+        if (this.dbConnection == null) {
+            return false;
+        } else
+        if (this.tablesLocked) {
+            Print.logWarn("Tables are locked, connection not released: [" + this.threadName + "]");
+            return false;
+        } else
+        if (this.connPool != null) {
+            this._clearStatementCache();
+            this.connPool.releaseConnection(this.dbConnection, false);
+            this.dbConnection = null;
+            this.connPool = null;
+            return true;
+        } else
+        if (!USE_DRIVER_MANAGER && (DBConnection.DBDataSource != null)) {
+            this.closeConnection(); // returned to DataSource pool
+            this.dbConnection = null;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+    *** Sets the table lock state of this connection.  Connections with locked tables are
+    *** not released back to the connection pool.
+    *** @param locked  True if tables are currently locked on this connection
+    **/
+    /* package */ void setTablesLocked(boolean locked)
+    {
+        this.tablesLocked = locked;
+    }
+
     /**
     *** Returns true if the current database connection is closed
     *** @return True if the current database connection is closed
@@ -485,7 +617,11 @@ public class DBConnection
         if (rowByRow) {
             // see "http://forums.mysql.com/read.php?39,152636,153012#msg-153012"
             stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY,ResultSet.CONCUR_READ_ONLY);
-            stmt.setFetchSize(Integer.MIN_VALUE);
+            if (DBProvider.getProvider().getID() == DBProvider.DB_MYSQL) {
+                stmt.setFetchSize(Integer.MIN_VALUE); // MySQL: stream rows
+            } else {
+                stmt.setFetchSize(ROW_BY_ROW_FETCH_SIZE);
+            }
         } else {
             stmt = conn.createStatement();
         }
@@ -726,6 +862,251 @@ public class DBConnection
 
     // ------------------------------------------------------------------------
 
+    /**
+    *** Returns a PreparedStatement for the specified SQL.  If statement caching is enabled,
+    *** a previously prepared statement for the same SQL is returned (unless it is currently
+    *** in use).  The returned statement must be released with <code>releaseStatement</code>.
+    *** @param sql  The parameterized SQL statement
+    *** @param rtnAutoIncrVal True if auto-generated keys should be returned
+    *** @return The PreparedStatement
+    *** @throws SQLException  If an SQL error occurs
+    **/
+    public PreparedStatement prepareStatement(String sql, boolean rtnAutoIncrVal)
+        throws SQLException
+    {
+        Connection conn = this.getConnection(); // may clear the statement cache
+        int cacheSize = DBConnection.getStatementCacheSize();
+        if (cacheSize <= 0) {
+            return this._prepareStatement(conn, sql, rtnAutoIncrVal);
+        }
+
+        /* init cache */
+        if (this.stmtCache == null) {
+            final int maxSize = cacheSize;
+            this.stmtCache = new LinkedHashMap<String,PreparedStatement>(16, 0.75F, true) {
+                protected boolean removeEldestEntry(Map.Entry<String,PreparedStatement> eldest) {
+                    if (this.size() > maxSize) {
+                        PreparedStatement ps = eldest.getValue();
+                        if (!DBConnection.this.stmtInUse.remove(ps)) {
+                            try { ps.close(); } catch (Throwable t) {}
+                        } // else closed when released
+                        return true;
+                    }
+                    return false;
+                }
+            };
+            this.stmtInUse = new HashSet<Statement>();
+        }
+
+        /* get cached statement */
+        String key = rtnAutoIncrVal? ("+" + sql) : sql;
+        PreparedStatement ps = this.stmtCache.get(key);
+        if (ps == null) {
+            ps = this._prepareStatement(conn, sql, rtnAutoIncrVal);
+            this.stmtCache.put(key, ps);
+        } else
+        if (this.stmtInUse.contains(ps)) {
+            // nested use of the same statement, return an uncached statement
+            return this._prepareStatement(conn, sql, rtnAutoIncrVal);
+        } else {
+            ps.clearParameters();
+        }
+        this.stmtInUse.add(ps);
+        return ps;
+
+    }
+
+    private PreparedStatement _prepareStatement(Connection conn, String sql, boolean rtnAutoIncrVal)
+        throws SQLException
+    {
+        if (rtnAutoIncrVal) {
+            return conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+        } else {
+            return conn.prepareStatement(sql);
+        }
+    }
+
+    /**
+    *** Releases a statement returned by <code>prepareStatement</code> or <code>execute</code>.
+    *** Cached statements are retained for reuse, all others are closed.
+    *** @param stmt  The statement to release
+    **/
+    public void releaseStatement(Statement stmt)
+    {
+        if (stmt == null) {
+            // ignore
+        } else
+        if ((this.stmtInUse != null) && this.stmtInUse.remove(stmt) && this.stmtCache.containsValue(stmt)) {
+            // cached, keep open
+        } else {
+            try { stmt.close(); } catch (Throwable t) {}
+        }
+    }
+
+    /**
+    *** Closes all cached PreparedStatements
+    **/
+    private void _clearStatementCache()
+    {
+        if (this.stmtCache != null) {
+            for (PreparedStatement ps : this.stmtCache.values()) {
+                try { ps.close(); } catch (Throwable t) {}
+            }
+            this.stmtCache = null;
+            this.stmtInUse = null;
+        }
+    }
+
+    /**
+    *** Sets the PreparedStatement parameter values
+    **/
+    private static void _setParameters(PreparedStatement ps, DBField fld[], Object val[])
+        throws SQLException
+    {
+        if (fld != null) {
+            for (int i = 0; i < fld.length; i++) {
+                fld[i].setParameterValue(ps, i + 1, val[i]);
+            }
+        }
+    }
+
+    /**
+    *** Returns the SQL statement, with parameter values inserted (for display purposes only)
+    **/
+    private static String _showSQL(String sql, DBField fld[], Object val[])
+    {
+        if (ListTools.isEmpty(fld)) {
+            return sql;
+        }
+        StringBuffer sb = new StringBuffer(sql);
+        sb.append("  [");
+        for (int i = 0; i < fld.length; i++) {
+            if (i > 0) { sb.append(","); }
+            sb.append(fld[i].getQValue(val[i]));
+        }
+        sb.append("]");
+        return sb.toString();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Execute the specified parameterized SQL query.  The returned ResultSet must be closed
+    *** and its statement released (see <code>releaseStatement</code>) by the caller.
+    *** @param sql  The parameterized SQL statement to execute
+    *** @param fld  The fields describing each parameter
+    *** @param val  The parameter values
+    *** @return The returned ResultSet
+    *** @throws SQLException  If an SQL error occurs
+    *** @throws DBException   If a database error occurs
+    **/
+    public ResultSet executeQuery(String sql, DBField fld[], Object val[])
+        throws SQLException, DBException
+    {
+        try {
+            if (ShowExecutedSQL) { 
+                Print.logInfo("SQL: " + _showSQL(sql,fld,val)); 
+            }
+            return this._executeQuery(sql, fld, val); // may throw DBException
+        } catch (SQLException sqe) { // "Communication link failure: java.io.IOException"
+            String sqlMsg = sqe.getMessage();
+            if ((sqlMsg.indexOf("IOException" ) >= 0) || 
+                (sqlMsg.indexOf("EOFException") >= 0)   ) {
+                this.closeConnection();
+                return this._executeQuery(sql, fld, val); // may throw DBException
+            } else {
+                throw sqe;
+            }
+        }
+    }
+
+    private ResultSet _executeQuery(String sql, DBField fld[], Object val[])
+        throws SQLException, DBException
+    {
+        PreparedStatement ps = null;
+        try {
+            LastSQLExecuted = sql;
+            ps = this.prepareStatement(sql, false);
+            DBConnection._setParameters(ps, fld, val);
+            return ps.executeQuery();
+        } catch (SQLException sqe) {
+            this.releaseStatement(ps);
+            if (StringTools.className(sqe).equals("com.mysql.jdbc.CommunicationsException")) {
+                // MySQL: can occur if the server is not running, or server can't be found
+                throw new DBException("JDBC Error", sqe);
+            } else {
+                throw sqe;
+            }
+        }
+    }
+
+    /**
+    *** Execute the specified parameterized SQL update
+    *** @param sql  The parameterized SQL statement to execute
+    *** @param fld  The fields describing each parameter
+    *** @param val  The parameter values
+    *** @param rtnAutoIncrVal If auto-generated fields (ie. "auto_increment")
+    ***        should be returned
+    *** @return The generated auto increment value or -1
+    *** @throws SQLException  If an SQL error occurs
+    *** @throws DBException   If a database error occurs
+    **/
+    public long executeUpdate(String sql, DBField fld[], Object val[], boolean rtnAutoIncrVal)
+        throws SQLException, DBException
+    {
+        try {
+            if (ShowExecutedSQL) { 
+                Print.logInfo("SQL: " + _showSQL(sql,fld,val)); 
+            }
+            return this._executeUpdate(sql, fld, val, rtnAutoIncrVal); // may throw DBException
+        } catch (SQLException sqe) { // "Communication link failure: java.io.IOException"
+            String sqlMsg = sqe.getMessage();
+            if ((sqlMsg.indexOf("IOException" ) >= 0) || 
+                (sqlMsg.indexOf("EOFException") >= 0)   ) {
+                this.closeConnection();
+                return this._executeUpdate(sql, fld, val, rtnAutoIncrVal); // may throw DBException
+            } else {
+                throw sqe;
+            }
+        }
+    }
+
+    private long _executeUpdate(String sql, DBField fld[], Object val[], boolean rtnAutoIncrVal)
+        throws SQLException, DBException
+    {
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            LastSQLExecuted = sql;
+            ps = this.prepareStatement(sql, rtnAutoIncrVal);
+            DBConnection._setParameters(ps, fld, val);
+            ps.executeUpdate();
+            if (rtnAutoIncrVal) {
+                rs = ps.getGeneratedKeys();
+                if (rs.next()) {
+                    return rs.getLong(1);
+                } else {
+                    Print.logError("Expected Auto-Increment value not found!");
+                    return -1L;
+                }
+            } else {
+                return -1L;
+            }
+        } catch (SQLException sqe) {
+            if (StringTools.className(sqe).equals("com.mysql.jdbc.CommunicationsException")) {
+                // MySQL: can occur if the server is not running, or server can't be found
+                throw new DBException("JDBC Error", sqe);
+            } else {
+                throw sqe;
+            }
+        } finally {
+            if (rs != null) { try { rs.close(); } catch (Throwable t) {} }
+            this.releaseStatement(ps);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
     /** 
     *** DEBUG: Main entry point used for testing/debugging
     *** @param argv  The command-line arguments
@@ -0,0 +1,335 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2009, GeoTelematic Solutions, Inc.
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Shared pool of JDBC connections used by DBConnection in pooled mode
+// ----------------------------------------------------------------------------
+// Change History:
+//  2010/01/11  Martin D. Flynn
+//     -Initial release
+// ----------------------------------------------------------------------------
+package org.opengts.dbtools;
+
+import java.lang.*;
+import java.util.*;
+
+import java.sql.*; // DriverManager
+
+import org.opengts.util.*;
+
+/**
+*** <code>DBConnectionPool</code> is a bounded pool of JDBC connections shared by
+*** all threads for a specific URI/user.  When pooling is enabled (see
+*** <code>RTKey.DB_CONNECTION_POOL</code>), each <code>DBConnection</code> borrows a
+*** connection from this pool when first used, and returns it when the owning thread
+*** calls <code>DBConnection.releaseThreadConnections()</code>.  Connections borrowed
+*** by threads which have since terminated are reclaimed automatically.
+**/
+
+public class DBConnectionPool
+{
+
+    // ------------------------------------------------------------------------
+
+    public  static final int    DEFAULT_MAX_ACTIVE      = 100;
+    public  static final int    DEFAULT_MAX_IDLE        = 30;
+    public  static final long   DEFAULT_MAX_WAIT_MS     = 10000L;
+
+    // ------------------------------------------------------------------------
+
+    private static Map<String,DBConnectionPool> poolMap = new HashMap<String,DBConnectionPool>();
+
+    /**
+    *** Returns true if the connection pool mode has been enabled
+    *** @return True if the connection pool mode has been enabled
+    **/
+    public static boolean isEnabled()
+    {
+        return RTConfig.getBoolean(RTKey.DB_CONNECTION_POOL, false);
+    }
+
+    /**
+    *** Gets the connection pool for the specified URI/user
+    *** @param uri  The connection URI
+    *** @param user The user name (may be blank)
+    *** @param pass The password
+    *** @return The connection pool
+    **/
+    public static DBConnectionPool getPool(String uri, String user, String pass)
+    {
+        String key = StringTools.trim(user) + "@" + uri;
+        synchronized (poolMap) {
+            DBConnectionPool pool = poolMap.get(key);
+            if (pool == null) {
+                pool = new DBConnectionPool(uri, user, pass,
+                    RTConfig.getInt( RTKey.DB_CONNECTION_POOL_MAX_ACTIVE, DEFAULT_MAX_ACTIVE),
+                    RTConfig.getInt( RTKey.DB_CONNECTION_POOL_MAX_IDLE  , DEFAULT_MAX_IDLE),
+                    RTConfig.getLong(RTKey.DB_CONNECTION_POOL_MAX_WAIT  , DEFAULT_MAX_WAIT_MS));
+                poolMap.put(key, pool);
+            }
+            return pool;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Idle pooled connection
+    **/
+    private static class IdleConnection
+    {
+        public Connection   connection  = null;
+        public long         idleTime    = 0L;
+        public IdleConnection(Connection conn) {
+            this.connection = conn;
+            this.idleTime   = DateTime.getCurrentTimeSec();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private String                          dbUri           = null;
+    private String                          userName        = null;
+    private String                          password        = null;
+
+    private int                             maxActive       = DEFAULT_MAX_ACTIVE;
+    private int                             maxIdle         = DEFAULT_MAX_IDLE;
+    private long                            maxWaitMS       = DEFAULT_MAX_WAIT_MS;
+
+    private java.util.List<IdleConnection>  idleList        = new Vector<IdleConnection>();
+    private Map<Connection,Thread>          activeMap       = new HashMap<Connection,Thread>();
+    private int                             pendingCount    = 0;    // connections being created
+
+    private long                            createCount     = 0L;
+    private long                            borrowCount     = 0L;
+    private long                            waitCount       = 0L;
+    private long                            reclaimCount    = 0L;
+
+    /**
+    *** Constructor
+    *** @param uri       The connection URI
+    *** @param user      The user name (may be blank)
+    *** @param pass      The password
+    *** @param maxActive The maximum number of borrowed connections
+    *** @param maxIdle   The maximum number of idle connections retained
+    *** @param maxWaitMS The maximum time to wait for an available connection
+    **/
+    public DBConnectionPool(String uri, String user, String pass, int maxActive, int maxIdle, long maxWaitMS)
+    {
+        this.dbUri     = uri;
+        this.userName  = user;
+        this.password  = pass;
+        this.maxActive = Math.max(1, maxActive);
+        this.maxIdle   = Math.max(0, maxIdle);
+        this.maxWaitMS = Math.max(0L, maxWaitMS);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Borrows a connection from this pool, creating a new connection if necessary.
+    *** If the maximum number of connections are currently borrowed, this method waits
+    *** up to the configured maximum wait time for a connection to be returned.
+    *** @param idleTimeoutSec  Idle connections older than this are closed rather than reused
+    *** @return The borrowed connection
+    *** @throws SQLException  If a connection could not be obtained
+    **/
+    public Connection borrowConnection(long idleTimeoutSec)
+        throws SQLException
+    {
+        Thread thisThread = Thread.currentThread();
+        long nowSec = DateTime.getCurrentTimeSec();
+        java.util.List<Connection> expired = new Vector<Connection>();
+        try {
+            synchronized (this.activeMap) {
+                long waitUntil = System.currentTimeMillis() + this.maxWaitMS;
+                for (;;) {
+
+                    /* reuse an idle connection */
+                    while (!this.idleList.isEmpty()) {
+                        IdleConnection ic = this.idleList.remove(this.idleList.size() - 1); // most recent
+                        if ((nowSec - ic.idleTime) > idleTimeoutSec) {
+                            expired.add(ic.connection); // closed below, outside of the lock
+                            continue;
+                        }
+                        try {
+                            if (ic.connection.isClosed()) {
+                                continue;
+                            }
+                        } catch (SQLException sqe) {
+                            expired.add(ic.connection);
+                            continue;
+                        }
+                        this.activeMap.put(ic.connection, thisThread);
+                        this.borrowCount++;
+                        return ic.connection;
+                    }
+
+                    /* reserve room for a new connection (created below, outside of the lock) */
+                    if (((this.activeMap.size() + this.pendingCount) < this.maxActive) || (this._reclaimConnections() > 0)) {
+                        this.pendingCount++;
+                        break;
+                    }
+
+                    /* wait for a connection to be returned */
+                    long waitMS = waitUntil - System.currentTimeMillis();
+                    if (waitMS <= 0L) {
+                        throw new SQLException("Connection pool exhausted [active=" + this.activeMap.size() + "]");
+                    }
+                    this.waitCount++;
+                    try { this.activeMap.wait(waitMS); } catch (InterruptedException ie) { /*ignore*/ }
+                    nowSec = DateTime.getCurrentTimeSec();
+
+                }
+            }
+        } finally {
+            for (Connection conn : expired) {
+                DBConnectionPool._close(conn);
+            }
+        }
+
+        /* create a new connection */
+        // may take a while (ie. network connect/authentication), other threads may use the pool meanwhile
+        Connection conn = null;
+        try {
+            conn = this._createConnection();
+            return conn;
+        } finally {
+            synchronized (this.activeMap) {
+                this.pendingCount--;
+                if (conn != null) {
+                    this.activeMap.put(conn, thisThread);
+                    this.createCount++;
+                    this.borrowCount++;
+                } else {
+                    this.activeMap.notifyAll(); // reserved room is available again
+                }
+            }
+        }
+
+    }
+
+    /**
+    *** Returns a borrowed connection to this pool
+    *** @param conn     The borrowed connection
+    *** @param discard  True to close the connection rather than returning it to the idle pool
+    **/
+    public void releaseConnection(Connection conn, boolean discard)
+    {
+        if (conn == null) {
+            return;
+        }
+        synchronized (this.activeMap) {
+            this.activeMap.remove(conn);
+            if (!discard && (this.idleList.size() < this.maxIdle)) {
+                this.idleList.add(new IdleConnection(conn));
+            } else {
+                DBConnectionPool._close(conn);
+            }
+            this.activeMap.notifyAll();
+        }
+    }
+
+    /**
+    *** Closes connections borrowed by threads which are no longer alive, making room for
+    *** new connections.  (must be called while synchronized on 'activeMap')
+    *** @return The number of reclaimed connections
+    **/
+    private int _reclaimConnections()
+    {
+        int count = 0;
+        for (Iterator<Map.Entry<Connection,Thread>> i = this.activeMap.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<Connection,Thread> me = i.next();
+            if (!me.getValue().isAlive()) {
+                i.remove();
+                // any table locks held by the terminated thread are released when the connection is closed
+                DBConnectionPool._close(me.getKey());
+                count++;
+            }
+        }
+        if (count > 0) {
+            this.reclaimCount += count;
+            Print.logWarn("Reclaimed " + count + " connection(s) from terminated threads");
+        }
+        return count;
+    }
+
+    /**
+    *** Creates a new connection
+    **/
+    private Connection _createConnection()
+        throws SQLException
+    {
+        // May throw SQLException due to
+        //    com.mysql.jdbc.exceptions.jdbc4.MySQLNonTransientConnectionException: Too many connections
+        if (StringTools.isBlank(this.userName)) {
+            return DriverManager.getConnection(this.dbUri);
+        } else {
+            return DriverManager.getConnection(this.dbUri, this.userName, this.password);
+        }
+    }
+
+    /**
+    *** Closes the specified connection, ignoring any errors
+    **/
+    private static void _close(Connection conn)
+    {
+        try {
+            conn.close();
+        } catch (Throwable th) {
+            // ignore
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Closes all idle connections in this pool
+    **/
+    public void closeIdleConnections()
+    {
+        synchronized (this.activeMap) {
+            for (IdleConnection ic : this.idleList) {
+                DBConnectionPool._close(ic.connection);
+            }
+            this.idleList.clear();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns a String representation of this pool
+    *** @return A String representation of this pool
+    **/
+    public String toString()
+    {
+        synchronized (this.activeMap) {
+            StringBuffer sb = new StringBuffer();
+            sb.append("active=").append(this.activeMap.size());
+            sb.append(", pending=").append(this.pendingCount);
+            sb.append(", idle=").append(this.idleList.size());
+            sb.append(", created=").append(this.createCount);
+            sb.append(", borrowed=").append(this.borrowCount);
+            sb.append(", waits=").append(this.waitCount);
+            sb.append(", reclaimed=").append(this.reclaimCount);
+            return sb.toString();
+        }
+    }
+
+}
@@ -23,6 +23,8 @@
 //     -Integrated logging changes made to Print
 //  2007/01/25  Martin D. Flynn
 //     -Integrated with "OpenGTS"
+//  2010/01/11  Martin D. Flynn
+//     -Added 'isTransient'
 // ----------------------------------------------------------------------------
 package org.opengts.dbtools;
 
@@ -72,6 +74,40 @@ public class DBException
     {
         return (this.getCause() instanceof SQLException);
     }
+
+    /**
+    *** Returns true if the cause of this exception is a condition which may succeed if the 
+    *** operation is retried (ie. lost database connection, deadlock, or lock wait timeout).
+    *** Errors which will fail again if retried (ie. syntax error, invalid column, invalid 
+    *** data) are not transient.
+    *** @return True if this exception represents a transient database error
+    **/
+    public boolean isTransient()
+    {
+        Throwable cause = this.getCause();
+        if (!(cause instanceof SQLException)) {
+            return false;
+        }
+        SQLException sqe = (SQLException)cause;
+        if (StringTools.className(sqe).endsWith("CommunicationsException")) {
+            // MySQL: server not running, or server can't be found
+            return true;
+        }
+        String sqlState = sqe.getSQLState();
+        if ((sqlState != null) && (sqlState.startsWith("08") || sqlState.startsWith("40"))) {
+            // SQLState class "08" (connection exception), "40" (transaction rollback)
+            return true;
+        }
+        switch (sqe.getErrorCode()) {
+            case DBFactory.SQLERR_LOCK_WAIT_TIMEOUT:
+            case DBFactory.SQLERR_DEADLOCK         :
+            case DBFactory.SQLERR_SERVER_GONE_AWAY :
+            case DBFactory.SQLERR_SERVER_LOST      :
+                return true;
+            default:
+                return false;
+        }
+    }
     
     // ----------------------------------------------------------------------------
 
@@ -73,6 +73,10 @@
 //     -Added 'soapXML' argument to various methods.
 //  2009/11/01  Martin D. Flynn
 //     -Added support for 'autoIndex' field
+//  2010/01/11  Martin D. Flynn
+//     -Added support for monthly range-partitioned tables (see 'setPartitionField')
+//     -Added per-table field value slot layout (see 'getFieldLayout')
+//     -Added transient error codes (see 'DBException.isTransient')
 // ----------------------------------------------------------------------------
 package org.opengts.dbtools;
 
@@ -162,6 +166,10 @@ public class DBFactory<gDBR extends DBRecord>
     //   1064 - Statement syntax error
     //   1100 - Didn't lock all tables
     //   1146 - Table doesn't exist
+    //   1205 - Lock wait timeout exceeded
+    //   1213 - Deadlock found when trying to get lock
+    //   2006 - MySQL server has gone away
+    //   2013 - Lost connection to MySQL server during query
     //   ...
 
     // MySQL
@@ -173,6 +181,10 @@ public class DBFactory<gDBR extends DBRecord>
     public static final int SQLERR_SYNTAX_ERROR         =  1064;
     public static final int SQLERR_TABLE_NOTLOCKED      =  1100;
     public static final int SQLERR_TABLE_NONEXIST       =  1146;
+    public static final int SQLERR_LOCK_WAIT_TIMEOUT    =  1205;
+    public static final int SQLERR_DEADLOCK             =  1213;
+    public static final int SQLERR_SERVER_GONE_AWAY     =  2006;
+    public static final int SQLERR_SERVER_LOST          =  2013;
     
     // SQLServer
     public static final int MSQL_ERR_INVALID_OBJECT     =   208; 
@@ -261,10 +273,13 @@ public class DBFactory<gDBR extends DBRecord>
     private OrderedMap<String,DBField>              fieldMap            = null;
     private boolean                                 fieldArrayReady     = false;
     private DBField                                 fieldArray[]        = null;     // optimization
+    private DBFieldLayout                           fieldLayout         = null;
     
     private boolean                                 editable            = true;
     private boolean                                 viewable            = true;
 
+    private String                                  partitionField      = null;
+
     private Vector<String>                          parentTables        = new Vector<String>();
     private DBFactory<? extends DBRecord>           childFactories[]    = null;
     
@@ -433,7 +448,7 @@ public class DBFactory<gDBR extends DBRecord>
         /* force creation of field array now */
         this.fieldArray = null;
         this.fieldArrayReady = false;
-        this.getFields();
+        this.fieldLayout = new DBFieldLayout(this.getFields());
 
         /* add this DBFactory to the list of managed factories */
         DBFactory.factoryList.add(this);
@@ -830,6 +845,15 @@ public class DBFactory<gDBR extends DBRecord>
         return this.fieldArray;
     }
 
+    /**
+    *** Returns the field value slot layout for the records of this DBFactory
+    *** @return The DBFieldLayout
+    **/
+    public DBFieldLayout getFieldLayout()
+    {
+        return this.fieldLayout;
+    }
+
     /**
     *** Returns a set of DBFields defined by this DBFactory
     *** @param fieldNames  A set of field names representing fields to return (null for all)
@@ -1849,6 +1873,104 @@ public class DBFactory<gDBR extends DBRecord>
         }
     }
 
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Sets the field on which this table is range-partitioned (by month).  The field must be
+    *** a time (Unix Epoch seconds) field which is included in the primary key.  Partitioning
+    *** is only applied to tables created (or converted) after this field has been set.
+    *** @param fldName  The partition field name, or null if this table is not partitioned
+    **/
+    public void setPartitionField(String fldName)
+    {
+        this.partitionField = !StringTools.isBlank(fldName)? fldName : null;
+    }
+
+    /**
+    *** Gets the field on which this table is range-partitioned
+    *** @return The partition field name, or null if this table is not partitioned
+    **/
+    public String getPartitionField()
+    {
+        return this.partitionField;
+    }
+
+    /**
+    *** Returns true if this table is range-partitioned
+    *** @return True if this table is range-partitioned
+    **/
+    public boolean isPartitioned()
+    {
+        return (this.partitionField != null);
+    }
+
+    /**
+    *** Returns the existing partitions of the table represented by this DBFactory
+    *** @return A map of partition names to the (exclusive) upper time bound of each partition,
+    ***         in partition order.  The upper bound of the 'MAXVALUE' partition is returned as
+    ***         Long.MAX_VALUE.  The map is empty if the table is not partitioned.
+    *** @throws DBException   If a database error occurs
+    **/
+    public OrderedMap<String,Long> getPartitions()
+        throws DBException
+    {
+        try {
+            return DBProvider.getTablePartitions(this.getTableName());
+        } catch (SQLException sqe) {
+            throw new DBException("Table partitions", sqe);
+        }
+    }
+
+    /**
+    *** Converts the existing (non-partitioned) table represented by this DBFactory into a
+    *** monthly range-partitioned table.  Note that this rebuilds the entire table.
+    *** @param untilTime  Monthly partitions are created through the month containing this time
+    *** @throws DBException   If a database error occurs
+    **/
+    public void partitionTable(long untilTime)
+        throws DBException
+    {
+        try {
+            DBProvider.partitionTable(this, untilTime);
+        } catch (SQLException sqe) {
+            throw new DBException("Partition table", sqe);
+        }
+    }
+
+    /**
+    *** Adds monthly partitions to the table represented by this DBFactory, through the month
+    *** containing the specified time.
+    *** @param untilTime  Monthly partitions are created through the month containing this time
+    *** @return The number of partitions added
+    *** @throws DBException   If a database error occurs
+    **/
+    public int addPartitions(long untilTime)
+        throws DBException
+    {
+        try {
+            return DBProvider.addTablePartitions(this, untilTime);
+        } catch (SQLException sqe) {
+            throw new DBException("Add table partitions", sqe);
+        }
+    }
+
+    /**
+    *** Drops all partitions of the table represented by this DBFactory which contain only
+    *** records prior to the specified time.
+    *** @param beforeTime  Partitions with an upper bound at or before this time are dropped
+    *** @return The number of partitions dropped
+    *** @throws DBException   If a database error occurs
+    **/
+    public int dropPartitions(long beforeTime)
+        throws DBException
+    {
+        try {
+            return DBProvider.dropTablePartitions(this, beforeTime);
+        } catch (SQLException sqe) {
+            throw new DBException("Drop table partitions", sqe);
+        }
+    }
+
     // ------------------------------------------------------------------------
         
     public    static final String _DUMP_EXT_TXT         = "." + ARCHIVE_EXT_TXT;
@@ -46,6 +46,8 @@
 //     -Added changes to support UTF8 character sets
 //  2009/05/01  Martin D. Flynn
 //     -Added DateTime datatype
+//  2010/01/11  Martin D. Flynn
+//     -Added 'setParameterValue' for PreparedStatement parameter binding
 // ----------------------------------------------------------------------------
 package org.opengts.dbtools;
 
@@ -1245,6 +1247,49 @@ public class DBField
         }
     }
 
+    /**
+    *** Sets the specified value as a PreparedStatement parameter, converted as appropriate
+    *** for this field type (the parameterized equivalent of <code>getQValue</code>)
+    *** @param ps   The PreparedStatement
+    *** @param ndx  The parameter index (1-based)
+    *** @param v    The value to set
+    *** @throws SQLException  If an SQL error occurs
+    **/
+    public void setParameterValue(PreparedStatement ps, int ndx, Object v)
+        throws SQLException
+    {
+        Object obj = (v instanceof DBFieldType)? ((DBFieldType)v).getObject() : v;
+        Class<?> jvc = this.getTypeClass();
+        if (this.isBLOB()) {
+            if (obj instanceof byte[]) {
+                ps.setBytes(ndx, (byte[])obj);
+            } else {
+                String vs  = DBFieldValues.toStringValue(obj);
+                String hex = vs.startsWith("0x")? vs.substring(2) : vs;
+                ps.setBytes(ndx, StringTools.parseHex(hex, new byte[0]));
+            }
+        } else
+        if ((jvc == Integer.class) || (jvc == Integer.TYPE)) {
+            ps.setInt(ndx, StringTools.parseInt(obj, 0));
+        } else
+        if ((jvc == Long.class) || (jvc == Long.TYPE)) {
+            ps.setLong(ndx, StringTools.parseLong(obj, 0L));
+        } else
+        if ((jvc == Float.class) || (jvc == Float.TYPE)) {
+            ps.setFloat(ndx, StringTools.parseFloat(obj, 0.0F));
+        } else
+        if ((jvc == Double.class) || (jvc == Double.TYPE)) {
+            ps.setDouble(ndx, StringTools.parseDouble(obj, 0.0));
+        } else
+        if ((jvc == Boolean.class) || (jvc == Boolean.TYPE)) {
+            boolean b = (obj instanceof Number)? (((Number)obj).intValue() != 0) : StringTools.parseBoolean(obj, false);
+            ps.setInt(ndx, b? 1 : 0);
+        } else {
+            // String, DateTime ("yyyy-MM-dd HH:mm:ss" GMT), other DBFieldType values
+            ps.setString(ndx, DBFieldValues.toStringValue(obj));
+        }
+    }
+
     // ------------------------------------------------------------------------
     // ------------------------------------------------------------------------
 
@@ -0,0 +1,189 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2009, GeoTelematic Solutions, Inc.
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Change History:
+//  2010/01/11  Martin D. Flynn
+//     -Initial release
+// ----------------------------------------------------------------------------
+package org.opengts.dbtools;
+
+import java.lang.*;
+import java.util.*;
+
+import org.opengts.util.*;
+
+/**
+*** <code>DBFieldLayout</code> is the fixed field/value slot layout of the records of a single
+*** table, shared by all DBFieldValues instances for that table (see <code>DBFactory.getFieldLayout</code>).<br>
+*** Each field is assigned an index (its position in the DBFactory field array), and a slot in
+*** either the primitive value array (int, long, float, double, and boolean fields), or the
+*** Object value array (all other fields) of a DBFieldValues instance.
+**/
+
+public class DBFieldLayout
+{
+
+    // ------------------------------------------------------------------------
+
+    public  static final int    TYPE_OBJECT     = 0;
+    public  static final int    TYPE_INT        = 1;
+    public  static final int    TYPE_LONG       = 2;
+    public  static final int    TYPE_FLOAT      = 3;
+    public  static final int    TYPE_DOUBLE     = 4;
+    public  static final int    TYPE_BOOLEAN    = 5;
+
+    /**
+    *** Returns the value slot type for the specified field
+    *** @param fld  The DBField
+    *** @return The value slot type
+    **/
+    public static int getSlotType(DBField fld)
+    {
+        if (fld.isTypeInteger()) {
+            return TYPE_INT;
+        } else
+        if (fld.isTypeLong()) {
+            return TYPE_LONG;
+        } else
+        if (fld.isTypeFloat()) {
+            return TYPE_FLOAT;
+        } else
+        if (fld.isTypeDouble()) {
+            return TYPE_DOUBLE;
+        } else
+        if (fld.isTypeBoolean()) {
+            return TYPE_BOOLEAN;
+        } else {
+            return TYPE_OBJECT;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private DBField             fields[]        = null;
+    private int                 slotType[]      = null;
+    private int                 slot[]          = null;
+    private int                 primCount       = 0;
+    private int                 objCount        = 0;
+    private Map<String,Integer> indexMap        = null;
+    private Map<String,String>  caseMap         = null; // order is not important
+
+    /**
+    *** Constructor
+    *** @param fields  The table fields (in DBFactory field order)
+    **/
+    public DBFieldLayout(DBField fields[])
+    {
+        this.fields   = (fields != null)? fields : new DBField[0];
+        this.slotType = new int[this.fields.length];
+        this.slot     = new int[this.fields.length];
+        this.indexMap = new HashMap<String,Integer>();
+        this.caseMap  = new HashMap<String,String>();
+        for (int i = 0; i < this.fields.length; i++) {
+            String fldName = this.fields[i].getName();
+            this.slotType[i] = DBFieldLayout.getSlotType(this.fields[i]);
+            this.slot[i]     = (this.slotType[i] == TYPE_OBJECT)? this.objCount++ : this.primCount++;
+            this.indexMap.put(fldName, new Integer(i));
+            this.caseMap.put(fldName.toLowerCase(), fldName);
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns the number of fields
+    *** @return The number of fields
+    **/
+    public int getFieldCount()
+    {
+        return this.fields.length;
+    }
+
+    /**
+    *** Returns the DBField at the specified index
+    *** @param ndx  The field index
+    *** @return The DBField
+    **/
+    public DBField getField(int ndx)
+    {
+        return this.fields[ndx];
+    }
+
+    /**
+    *** Returns the index of the specified field name
+    *** @param fldName  The field name (case sensitive)
+    *** @return The field index, or -1 if the field is not defined
+    **/
+    public int getFieldIndex(String fldName)
+    {
+        Integer ndx = (fldName != null)? this.indexMap.get(fldName) : null;
+        return (ndx != null)? ndx.intValue() : -1;
+    }
+
+    /**
+    *** Converts the specified field name to the proper case
+    *** @param fldName  The case-insensitive field name
+    *** @return The field name in proper case, or null if the field is not defined
+    **/
+    public String getFieldName(String fldName)
+    {
+        return (fldName != null)? this.caseMap.get(fldName.toLowerCase()) : null;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns the value slot type of the field at the specified index
+    *** @param ndx  The field index
+    *** @return The value slot type
+    **/
+    public int getSlotType(int ndx)
+    {
+        return this.slotType[ndx];
+    }
+
+    /**
+    *** Returns the value slot of the field at the specified index.  This is an index into
+    *** either the primitive value array, or the Object value array, depending on the slot type.
+    *** @param ndx  The field index
+    *** @return The value slot
+    **/
+    public int getSlot(int ndx)
+    {
+        return this.slot[ndx];
+    }
+
+    /**
+    *** Returns the number of primitive value slots
+    *** @return The number of primitive value slots
+    **/
+    public int getPrimitiveSlotCount()
+    {
+        return this.primCount;
+    }
+
+    /**
+    *** Returns the number of Object value slots
+    *** @return The number of Object value slots
+    **/
+    public int getObjectSlotCount()
+    {
+        return this.objCount;
+    }
+
+}
@@ -36,6 +36,10 @@
 //  2009/05/24  Martin D. Flynn
 //     -Made "_setFieldValue(DBField fld, Object newVal)" public to allow direct
 //      access to other modules.
+//  2010/01/11  Martin D. Flynn
+//     -Field values are now stored in primitive/Object arrays indexed by the field slots
+//      of the shared per-table DBFieldLayout (previously a per-record map of boxed values).
+//     -Added typed getters ('getIntValue', 'getLongValue', 'getDoubleValue', ...)
 // ----------------------------------------------------------------------------
 package org.opengts.dbtools;
 
@@ -72,35 +76,143 @@ public class DBFieldValues
     // ------------------------------------------------------------------------
     
     private DBRecordKey                 recordKey = null;
-    private OrderedMap<String,Object>   valueMap  = null;
-    private OrderedMap<String,DBField>  fieldMap  = null;
-    private Map<String,String>          caseMap   = null; // order is not important
+    private DBFieldLayout               layout    = null;
+
+    // Values are stored by field slot (see DBFieldLayout).  Int/long/boolean values are
+    // stored as-is, float/double values are stored as their 'floatToIntBits'/'doubleToLongBits'
+    // representation (consistent with Float/Double 'equals').
+    private long                        primVals[]  = null;
+    private Object                      objVals[]   = null;
+    private long                        setMask[]   = null; // value has been set (by field index)
+    private long                        nullMask[]  = null; // primitive value has been set to null
     
     private boolean                     mustExist = true;
 
-    /**
-    *** Constructor
-    **/
-    private DBFieldValues()
-    {
-        this.valueMap  = new OrderedMap<String,Object>();
-        this.fieldMap  = new OrderedMap<String,DBField>();
-        this.caseMap   = new HashMap<String,String>();
-    }
-
     /**
     *** Constructor
     *** @param rcdKey  The DBRecordKey associated with this field value container
     **/
     public DBFieldValues(DBRecordKey rcdKey)
     {
-        this();
         this.recordKey = rcdKey;
-        DBField fld[]  = rcdKey.getFields();
-        for (int i = 0; i < fld.length; i++) {
-            String fldName = fld[i].getName();
-            this.fieldMap.put(fldName, fld[i]);
-            this.caseMap.put(fldName.toLowerCase(),fldName);
+        this.layout    = rcdKey.getFactory().getFieldLayout();
+        int maskLen    = (this.layout.getFieldCount() + 63) / 64;
+        this.primVals  = new long[this.layout.getPrimitiveSlotCount()];
+        this.objVals   = new Object[this.layout.getObjectSlotCount()];
+        this.setMask   = new long[maskLen];
+        this.nullMask  = new long[maskLen];
+    }
+
+    // ------------------------------------------------------------------------
+
+    /* return true if the value at the specified field index has been set */
+    private boolean _isSet(int ndx)
+    {
+        return ((this.setMask[ndx >> 6] & (1L << (ndx & 63))) != 0L);
+    }
+
+    /* return true if the value at the specified field index has been set to a non-null value */
+    private boolean _hasValue(int ndx)
+    {
+        long bit = 1L << (ndx & 63);
+        if ((this.setMask[ndx >> 6] & bit) == 0L) {
+            return false;
+        } else
+        if (this.layout.getSlotType(ndx) == DBFieldLayout.TYPE_OBJECT) {
+            return (this.objVals[this.layout.getSlot(ndx)] != null);
+        } else {
+            return ((this.nullMask[ndx >> 6] & bit) == 0L);
+        }
+    }
+
+    /* return the value at the specified field index (boxed if primitive) */
+    private Object _getValue(int ndx)
+    {
+        if (!this._isSet(ndx)) {
+            return null;
+        }
+        int slot = this.layout.getSlot(ndx);
+        switch (this.layout.getSlotType(ndx)) {
+            case DBFieldLayout.TYPE_OBJECT:
+                return this.objVals[slot];
+            case DBFieldLayout.TYPE_INT:
+                return this._hasValue(ndx)? new Integer((int)this.primVals[slot]) : null;
+            case DBFieldLayout.TYPE_LONG:
+                return this._hasValue(ndx)? new Long(this.primVals[slot]) : null;
+            case DBFieldLayout.TYPE_FLOAT:
+                return this._hasValue(ndx)? new Float(Float.intBitsToFloat((int)this.primVals[slot])) : null;
+            case DBFieldLayout.TYPE_DOUBLE:
+                return this._hasValue(ndx)? new Double(Double.longBitsToDouble(this.primVals[slot])) : null;
+            case DBFieldLayout.TYPE_BOOLEAN:
+                return this._hasValue(ndx)? new Boolean(this.primVals[slot] != 0L) : null;
+        }
+        return null;
+    }
+
+    /* store the value at the specified field index (value type has already been validated) */
+    private void _putValue(int ndx, Object val)
+    {
+        long bit  = 1L << (ndx & 63);
+        int  slot = this.layout.getSlot(ndx);
+        this.setMask[ndx >> 6] |= bit;
+        int type = this.layout.getSlotType(ndx);
+        if (type == DBFieldLayout.TYPE_OBJECT) {
+            this.objVals[slot] = val;
+        } else
+        if (val == null) {
+            this.nullMask[ndx >> 6] |= bit;
+        } else {
+            this.nullMask[ndx >> 6] &= ~bit;
+            switch (type) {
+                case DBFieldLayout.TYPE_INT:
+                case DBFieldLayout.TYPE_LONG:
+                    this.primVals[slot] = ((Number)val).longValue();
+                    break;
+                case DBFieldLayout.TYPE_FLOAT:
+                    this.primVals[slot] = (long)Float.floatToIntBits(((Number)val).floatValue());
+                    break;
+                case DBFieldLayout.TYPE_DOUBLE:
+                    this.primVals[slot] = Double.doubleToLongBits(((Number)val).doubleValue());
+                    break;
+                case DBFieldLayout.TYPE_BOOLEAN:
+                    this.primVals[slot] = ((Boolean)val).booleanValue()? 1L : 0L;
+                    break;
+            }
+        }
+    }
+
+    /* return the field index of the specified field, if it is of the specified primitive type */
+    private int _getPrimitiveIndex(String fldName, int type)
+    {
+        int ndx = this.layout.getFieldIndex(fldName);
+        return ((ndx >= 0) && (this.layout.getSlotType(ndx) == type))? ndx : -1;
+    }
+
+    /* set the primitive value at the specified field index */
+    private boolean _setPrimitiveValue(int ndx, long val)
+    {
+        int  slot    = this.layout.getSlot(ndx);
+        long bit     = 1L << (ndx & 63);
+        boolean chg  = !this._hasValue(ndx) || (this.primVals[slot] != val);
+        this.primVals[slot] = val;
+        this.setMask[ndx >> 6]  |=  bit;
+        this.nullMask[ndx >> 6] &= ~bit;
+        this._fireChanged(this.layout.getField(ndx), chg);
+        return true;
+    }
+
+    /* notify the DBRecord of a changed field value */
+    private void _fireChanged(DBField fld, boolean changed)
+    {
+        DBRecord rcd = this.recordKey._getDBRecord();
+        if (rcd != null) {
+            if (changed) {
+                rcd.setChanged(fld.getName());
+            }
+        } else
+        if (!fld.isKeyField()) {
+            // should not be setting a non-key field if there is no associated DBRecord
+            Print.logStackTrace("DBRecordKey does not point to a DBRecord! ...");
         }
     }
 
@@ -149,10 +261,12 @@ public class DBFieldValues
     public void clearFieldValues()
     {
         if (this.recordKey != null) {
-            DBField fld[] = this.recordKey.getFields();
-            for (int i = 0; i < fld.length; i++) {
-                if (!fld[i].isPrimaryKey()) {
-                    this._setFieldValue(fld[i], (Object)null);
+            for (int ndx = 0; ndx < this.layout.getFieldCount(); ndx++) {
+                DBField fld = this.layout.getField(ndx);
+                if (!fld.isPrimaryKey()) {
+                    boolean chg = this._hasValue(ndx);
+                    this._putValue(ndx, null);
+                    this._fireChanged(fld, chg);
                 }
             }
         } else {
@@ -247,8 +361,13 @@ public class DBFieldValues
 
         /* store value */
         String fldName = fld.getName();
-        Object oldVal = this._getFieldValue(fldName, true);
-        this.valueMap.put(fldName, newVal);
+        int ndx = this.layout.getFieldIndex(fldName);
+        if (ndx < 0) {
+            Print.logStackTrace("Field not found: " + this.getTableName() + "." + fldName);
+            return false;
+        }
+        Object oldVal = this._getValue(ndx);
+        this._putValue(ndx, newVal);
         DBRecord rcd = this.recordKey._getDBRecord();
         if (rcd != null) {
             rcd.setChanged(fldName, oldVal, newVal);
@@ -314,6 +433,10 @@ public class DBFieldValues
     **/
     public boolean setOptionalFieldValue(String fldName, int val) 
     {
+        int ndx = this._getPrimitiveIndex(fldName, DBFieldLayout.TYPE_INT);
+        if (ndx >= 0) {
+            return this._setPrimitiveValue(ndx, (long)val);
+        }
         return this._setFieldValue(fldName, false, (Object)(new Integer(val)));
     }
 
@@ -325,6 +448,10 @@ public class DBFieldValues
     **/
     public boolean setFieldValue(String fldName, int val) 
     {
+        int ndx = this._getPrimitiveIndex(fldName, DBFieldLayout.TYPE_INT);
+        if (ndx >= 0) {
+            return this._setPrimitiveValue(ndx, (long)val);
+        }
         return this._setFieldValue(fldName, true, (Object)(new Integer(val)));
     }
 
@@ -336,6 +463,10 @@ public class DBFieldValues
     **/
     public boolean setOptionalFieldValue(String fldName, long val) 
     {
+        int ndx = this._getPrimitiveIndex(fldName, DBFieldLayout.TYPE_LONG);
+        if (ndx >= 0) {
+            return this._setPrimitiveValue(ndx, val);
+        }
         return this._setFieldValue(fldName, false, (Object)(new Long(val)));
     }
           /**
@@ -346,6 +477,10 @@ public class DBFieldValues
     **/
     public boolean setFieldValue(String fldName, long val) 
     {
+        int ndx = this._getPrimitiveIndex(fldName, DBFieldLayout.TYPE_LONG);
+        if (ndx >= 0) {
+            return this._setPrimitiveValue(ndx, val);
+        }
         return this._setFieldValue(fldName, true, (Object)(new Long(val)));
     }
 
@@ -357,6 +492,10 @@ public class DBFieldValues
     **/
     public boolean setOptionalFieldValue(String fldName, float val) 
     {
+        int ndx = this._getPrimitiveIndex(fldName, DBFieldLayout.TYPE_FLOAT);
+        if (ndx >= 0) {
+            return this._setPrimitiveValue(ndx, (long)Float.floatToIntBits(val));
+        }
         return this._setFieldValue(fldName, false, (Object)(new Float(val)));
     }
 
@@ -368,6 +507,10 @@ public class DBFieldValues
     **/
     public boolean setFieldValue(String fldName, float val) 
     {
+        int ndx = this._getPrimitiveIndex(fldName, DBFieldLayout.TYPE_FLOAT);
+        if (ndx >= 0) {
+            return this._setPrimitiveValue(ndx, (long)Float.floatToIntBits(val));
+        }
         return this._setFieldValue(fldName, true, (Object)(new Float(val)));
     }
 
@@ -379,6 +522,10 @@ public class DBFieldValues
     **/
     public boolean setOptionalFieldValue(String fldName, double val) 
     {
+        int ndx = this._getPrimitiveIndex(fldName, DBFieldLayout.TYPE_DOUBLE);
+        if (ndx >= 0) {
+            return this._setPrimitiveValue(ndx, Double.doubleToLongBits(val));
+        }
         return this._setFieldValue(fldName, false, (Object)(new Double(val)));
     }
 
@@ -390,6 +537,10 @@ public class DBFieldValues
     **/
     public boolean setFieldValue(String fldName, double val) 
     {
+        int ndx = this._getPrimitiveIndex(fldName, DBFieldLayout.TYPE_DOUBLE);
+        if (ndx >= 0) {
+            return this._setPrimitiveValue(ndx, Double.doubleToLongBits(val));
+        }
         return this._setFieldValue(fldName, true, (Object)(new Double(val)));
     }
 
@@ -401,6 +552,10 @@ public class DBFieldValues
     **/
     public boolean setOptionalFieldValue(String fldName, boolean val) 
     {
+        int ndx = this._getPrimitiveIndex(fldName, DBFieldLayout.TYPE_BOOLEAN);
+        if (ndx >= 0) {
+            return this._setPrimitiveValue(ndx, (val? 1L : 0L));
+        }
         return this._setFieldValue(fldName, false, (Object)(new Boolean(val)));
     }
 
@@ -412,6 +567,10 @@ public class DBFieldValues
     **/
     public boolean setFieldValue(String fldName, boolean val) 
     {
+        int ndx = this._getPrimitiveIndex(fldName, DBFieldLayout.TYPE_BOOLEAN);
+        if (ndx >= 0) {
+            return this._setPrimitiveValue(ndx, (val? 1L : 0L));
+        }
         return this._setFieldValue(fldName, true, (Object)(new Boolean(val)));
     }
 
@@ -487,8 +646,8 @@ public class DBFieldValues
             for (int i = 0; i < fld.length; i++) {
                 if (setKeyFields || !fld[i].isPrimaryKey()) {
                     try {
-                        Object val = fld[i].getResultSetValue(rs); // may throw exception if field does not exist
-                        this._setFieldValue(fld[i], val);
+                        // may throw exception if field does not exist
+                        this._setResultSetValue(fld[i], rs);
                     } catch (SQLException sqe) {
                         // we want to ignore "Column 'xxxx' not found" errors [found: SQLState:S0022;ErrorCode:0]
                         int errCode = sqe.getErrorCode(); // in the test we performed, this was '0' (thus useless)
@@ -514,6 +673,38 @@ public class DBFieldValues
         }
     }
 
+    /* set the field value from the specified ResultSet (primitive values are not boxed) */
+    private void _setResultSetValue(DBField fld, ResultSet rs)
+        throws SQLException
+    {
+        int ndx = this.layout.getFieldIndex(fld.getName());
+        if ((ndx < 0) || (rs == null)) {
+            this._setFieldValue(fld, fld.getResultSetValue(rs));
+            return;
+        }
+        String n = fld.getName();
+        switch (this.layout.getSlotType(ndx)) {
+            case DBFieldLayout.TYPE_INT:
+                this._setPrimitiveValue(ndx, (long)rs.getInt(n));
+                break;
+            case DBFieldLayout.TYPE_LONG:
+                this._setPrimitiveValue(ndx, rs.getLong(n));
+                break;
+            case DBFieldLayout.TYPE_FLOAT:
+                this._setPrimitiveValue(ndx, (long)Float.floatToIntBits(rs.getFloat(n)));
+                break;
+            case DBFieldLayout.TYPE_DOUBLE:
+                this._setPrimitiveValue(ndx, Double.doubleToLongBits(rs.getDouble(n)));
+                break;
+            case DBFieldLayout.TYPE_BOOLEAN:
+                this._setPrimitiveValue(ndx, (rs.getInt(n) != 0)? 1L : 0L);
+                break;
+            default:
+                this._setFieldValue(fld, fld.getResultSetValue(rs));
+                break;
+        }
+    }
+
     /**
     *** Sets all field values from the specified ResultSet
     *** @param valMap  The Field==>Value map
@@ -566,11 +757,7 @@ public class DBFieldValues
     **/
     public String getFieldName(String fldName)
     {
-        if (fldName != null) {
-            return this.caseMap.get(fldName.toLowerCase());
-        } else {
-            return null;
-        }
+        return this.layout.getFieldName(fldName);
     }
     
     // ------------------------------------------------------------------------
@@ -583,7 +770,7 @@ public class DBFieldValues
     public boolean hasField(String fldName)
     {
         // if true, the field is defined
-        return (fldName != null)? this.fieldMap.containsKey(fldName) : false;
+        return (this.layout.getFieldIndex(fldName) >= 0);
     }
 
     /**
@@ -594,7 +781,8 @@ public class DBFieldValues
     public boolean hasFieldValue(String fldName)
     {
         // if true, the field, and its value, are defined
-        return (fldName != null)? this.valueMap.containsKey(fldName) : false;
+        int ndx = this.layout.getFieldIndex(fldName);
+        return (ndx >= 0)? this._isSet(ndx) : false;
     }
 
     // ------------------------------------------------------------------------
@@ -607,15 +795,10 @@ public class DBFieldValues
     **/
     protected Object _getFieldValue(String fldName, boolean requiredField) 
     {
-        Object val = (fldName != null)? this.valueMap.get(fldName) : null;
-        if (val != null) {
-            // field value found (or undefined)
-            return val;
-        } else
-        if (this.hasField(fldName)) {
-            // field name found, but value is null (which may be the case if the value was undefined)
-            //Print.logError("Field value is null: " + fldName);
-            return null;
+        int ndx = this.layout.getFieldIndex(fldName);
+        if (ndx >= 0) {
+            // field value found (null if the value is undefined)
+            return this._getValue(ndx);
         } else
         if (requiredField && !this.getIgnoreInvalidFields()) {
             Print.logStackTrace("Field not found: " + fldName);
@@ -702,6 +885,141 @@ public class DBFieldValues
         return this._getFieldValue(fldName, true, rtnDft);
     }
 
+    /* return the field index of the specified field if it has a non-null value, else -1 */
+    private int _getValueIndex(String fldName, boolean requiredField)
+    {
+        int ndx = this.layout.getFieldIndex(fldName);
+        if (ndx < 0) {
+            if (requiredField && !this.getIgnoreInvalidFields()) {
+                Print.logStackTrace("Field not found: " + fldName);
+            }
+            return -1;
+        }
+        return this._hasValue(ndx)? ndx : -1;
+    }
+
+    /**
+    *** Gets the 'int' value for the specified field name, without boxing primitive values
+    *** @param fldName  The field name for the value retrieved
+    *** @param requiredField  True to indicate that this field is required (warnings displayed if field is not found)
+    *** @param dft      The default value returned if the field is not numeric, or has not been set
+    *** @return The field value
+    **/
+    public int getIntValue(String fldName, boolean requiredField, int dft)
+    {
+        int ndx = this._getValueIndex(fldName, requiredField);
+        if (ndx < 0) { return dft; }
+        int slot = this.layout.getSlot(ndx); // index into either 'primVals' or 'objVals'
+        switch (this.layout.getSlotType(ndx)) {
+            case DBFieldLayout.TYPE_INT    :
+            case DBFieldLayout.TYPE_LONG   : return (int)this.primVals[slot];
+            case DBFieldLayout.TYPE_FLOAT  : return (int)Float.intBitsToFloat((int)this.primVals[slot]);
+            case DBFieldLayout.TYPE_DOUBLE : return (int)Double.longBitsToDouble(this.primVals[slot]);
+            case DBFieldLayout.TYPE_BOOLEAN: return dft;
+        }
+        Object obj = this.objVals[slot];
+        return (obj instanceof Number)? ((Number)obj).intValue() : dft;
+    }
+
+    /**
+    *** Gets the 'long' value for the specified field name, without boxing primitive values
+    *** @param fldName  The field name for the value retrieved
+    *** @param requiredField  True to indicate that this field is required (warnings displayed if field is not found)
+    *** @param dft      The default value returned if the field is not numeric, or has not been set
+    *** @return The field value
+    **/
+    public long getLongValue(String fldName, boolean requiredField, long dft)
+    {
+        int ndx = this._getValueIndex(fldName, requiredField);
+        if (ndx < 0) { return dft; }
+        int slot = this.layout.getSlot(ndx); // index into either 'primVals' or 'objVals'
+        switch (this.layout.getSlotType(ndx)) {
+            case DBFieldLayout.TYPE_INT    : return (long)(int)this.primVals[slot];
+            case DBFieldLayout.TYPE_LONG   : return this.primVals[slot];
+            case DBFieldLayout.TYPE_FLOAT  : return (long)Float.intBitsToFloat((int)this.primVals[slot]);
+            case DBFieldLayout.TYPE_DOUBLE : return (long)Double.longBitsToDouble(this.primVals[slot]);
+            case DBFieldLayout.TYPE_BOOLEAN: return dft;
+        }
+        Object obj = this.objVals[slot];
+        return (obj instanceof Number)? ((Number)obj).longValue() : dft;
+    }
+
+    /**
+    *** Gets the 'float' value for the specified field name, without boxing primitive values
+    *** @param fldName  The field name for the value retrieved
+    *** @param requiredField  True to indicate that this field is required (warnings displayed if field is not found)
+    *** @param dft      The default value returned if the field is not numeric, or has not been set
+    *** @return The field value
+    **/
+    public float getFloatValue(String fldName, boolean requiredField, float dft)
+    {
+        int ndx = this._getValueIndex(fldName, requiredField);
+        if (ndx < 0) { return dft; }
+        int slot = this.layout.getSlot(ndx); // index into either 'primVals' or 'objVals'
+        switch (this.layout.getSlotType(ndx)) {
+            case DBFieldLayout.TYPE_INT    : return (float)(int)this.primVals[slot];
+            case DBFieldLayout.TYPE_LONG   : return (float)this.primVals[slot];
+            case DBFieldLayout.TYPE_FLOAT  : return Float.intBitsToFloat((int)this.primVals[slot]);
+            case DBFieldLayout.TYPE_DOUBLE : return (float)Double.longBitsToDouble(this.primVals[slot]);
+            case DBFieldLayout.TYPE_BOOLEAN: return dft;
+        }
+        Object obj = this.objVals[slot];
+        return (obj instanceof Number)? ((Number)obj).floatValue() : dft;
+    }
+
+    /**
+    *** Gets the 'double' value for the specified field name, without boxing primitive values
+    *** @param fldName  The field name for the value retrieved
+    *** @param requiredField  True to indicate that this field is required (warnings displayed if field is not found)
+    *** @param dft      The default value returned if the field is not numeric, or has not been set
+    *** @return The field value
+    **/
+    public double getDoubleValue(String fldName, boolean requiredField, double dft)
+    {
+        int ndx = this._getValueIndex(fldName, requiredField);
+        if (ndx < 0) { return dft; }
+        int slot = this.layout.getSlot(ndx); // index into either 'primVals' or 'objVals'
+        switch (this.layout.getSlotType(ndx)) {
+            case DBFieldLayout.TYPE_INT    : return (double)(int)this.primVals[slot];
+            case DBFieldLayout.TYPE_LONG   : return (double)this.primVals[slot];
+            case DBFieldLayout.TYPE_FLOAT  : return (double)Float.intBitsToFloat((int)this.primVals[slot]);
+            case DBFieldLayout.TYPE_DOUBLE : return Double.longBitsToDouble(this.primVals[slot]);
+            case DBFieldLayout.TYPE_BOOLEAN: return dft;
+        }
+        Object obj = this.objVals[slot];
+        return (obj instanceof Number)? ((Number)obj).doubleValue() : dft;
+    }
+
+    /**
+    *** Gets the 'boolean' value for the specified field name, without boxing primitive values.
+    *** Numeric values are returned as true if non-zero.
+    *** @param fldName  The field name for the value retrieved
+    *** @param requiredField  True to indicate that this field is required (warnings displayed if field is not found)
+    *** @param dft      The default value returned if the field is not boolean/numeric, or has not been set
+    *** @return The field value
+    **/
+    public boolean getBooleanValue(String fldName, boolean requiredField, boolean dft)
+    {
+        int ndx = this._getValueIndex(fldName, requiredField);
+        if (ndx < 0) { return dft; }
+        switch (this.layout.getSlotType(ndx)) {
+            case DBFieldLayout.TYPE_BOOLEAN: return (this.primVals[this.layout.getSlot(ndx)] != 0L);
+            case DBFieldLayout.TYPE_OBJECT : break;
+            default                        : return (this.getIntValue(fldName, requiredField, 0) != 0);
+        }
+        Object obj = this.objVals[this.layout.getSlot(ndx)];
+        if (obj instanceof Boolean) {
+            return ((Boolean)obj).booleanValue();
+        } else
+        if (obj instanceof Number) {
+            return (((Number)obj).intValue() != 0);
+        } else {
+            return dft;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
     /**
     *** Gets the String representation of the field value
     *** @param fldName  The field name for the value retrieved
@@ -60,6 +60,12 @@
 //      creation (previously required an additional call to "dbAdmin -tables=ca").
 //  2009/05/01  Martin D. Flynn
 //     -Added DateTime datatype
+//  2010/01/11  Martin D. Flynn
+//     -Added multi-row 'insertRecordsIntoTable' (optionally updating existing records, MySQL only)
+//     -Added 'lockTablesForRead' and read consistency modes (see RTKey.DB_READ_CONSISTENCY)
+//     -Added table lock wait statistics
+//     -'insertRecordIntoTable'/'updateRecordInTable' optionally use PreparedStatements
+//     -Added monthly range partitioning support (MySQL only, see 'DBFactory.setPartitionField')
 // ----------------------------------------------------------------------------
 package org.opengts.dbtools;
 
@@ -1162,7 +1168,9 @@ public class DBProvider
         DBField fields[]    = factory.getFields();
         DBField priKeys[]   = factory.getKeyFields();
         String priKeyType   = factory.getKeyType();
-        DBProvider.createTable(tableName, fields, priKeys, priKeyType, factory.getAlternateIndexes());
+        DBAlternateIndex altIndexes[] = factory.getAlternateIndexes();
+        String partField    = DBProvider.supportsPartitioning()? factory.getPartitionField() : null;
+        DBProvider.createTable(tableName, fields, priKeys, priKeyType, altIndexes, partField);
     }
 
     /**
@@ -1177,6 +1185,24 @@ public class DBProvider
     **/
     public static void createTable(String tableName, DBField flds[], DBField priKeys[], String keyType, DBAlternateIndex altIndexes[])
         throws SQLException, DBException
+    {
+        DBProvider.createTable(tableName, flds, priKeys, keyType, altIndexes, null);
+    }
+
+    /**
+    *** Create the specified SQL table
+    *** @param tableName The table name
+    *** @param flds      The table columns
+    *** @param priKeys   The table primary keys
+    *** @param keyType   The key type
+    *** @param altIndexes The table alternate indexes
+    *** @param partField The field on which the table is range-partitioned by month (null if the
+    ***                  table is not to be partitioned)
+    *** @throws SQLException  If an SQL error occurs
+    *** @throws DBException   If a database error occurs
+    **/
+    public static void createTable(String tableName, DBField flds[], DBField priKeys[], String keyType, DBAlternateIndex altIndexes[], String partField)
+        throws SQLException, DBException
     {
         DBProvider dbp = DBProvider.getProvider();
         int dbProvID = dbp.getID();
@@ -1225,6 +1251,21 @@ public class DBProvider
             sb.append(" ").append(indexType);
         }
 
+        /* partitions */
+        if (partField != null) {
+            if (!DBProvider._canPartition(tableName, flds, altIndexes)) {
+                Print.logWarn("Table will not be partitioned: " + tableName);
+            } else {
+                // MySQL: ... PARTITION BY RANGE (<field>) ( PARTITION <name> VALUES LESS THAN (<time>), ... )
+                long nowTime = DateTime.getCurrentTimeSec();
+                long untilTime = DBProvider.getPartitionMonthStart(nowTime, DEFAULT_PARTITION_MONTHS);
+                sb.append(" PARTITION BY RANGE (").append(partField).append(") (");
+                sb.append(DBProvider._getPartitionDefinitions(nowTime, untilTime));
+                sb.append(")");
+                Print.logInfo("Adding monthly partitions: " + tableName + "." + partField);
+            }
+        }
+
         /* create table */
         DBFactory.executeUpdate(sb.toString());
 
@@ -1380,6 +1421,305 @@ public class DBProvider
         DBFactory.executeUpdate(altSB.toString());
     }
 
+    // ------------------------------------------------------------------------
+    // Table partitions
+    // Tables are range-partitioned on a time field (Unix Epoch seconds) with one partition per
+    // month (GMT), named "pYYYYMM", plus a final "pmax" partition which catches any records
+    // beyond the last monthly partition.  The partition field must be part of the primary key,
+    // and MySQL prunes the partitions which cannot match the range specified on this field in
+    // the WHERE clause of a query.  Dropping a partition removes all of its records at once.
+
+    public  static final String     PARTITION_MAXVALUE_NAME     = "pmax";
+    public  static final int        DEFAULT_PARTITION_MONTHS    = 3;
+
+    /**
+    *** Returns true if this DBProvider supports partitioned tables
+    *** @return True if this DBProvider supports partitioned tables
+    **/
+    public static boolean supportsPartitioning()
+    {
+        return (DBProvider.getProvider().getID() == DB_MYSQL);
+    }
+
+    /**
+    *** Returns the start of the month (GMT) containing the specified time, offset by the
+    *** specified number of months
+    *** @param timeSec     The time (Unix Epoch seconds)
+    *** @param deltaMonths The number of months to add
+    *** @return The start of the month
+    **/
+    public static long getPartitionMonthStart(long timeSec, int deltaMonths)
+    {
+        Calendar cal = new GregorianCalendar(DateTime.getGMTTimeZone());
+        cal.setTimeInMillis(timeSec * 1000L);
+        cal.set(Calendar.DAY_OF_MONTH, 1);
+        cal.set(Calendar.HOUR_OF_DAY , 0);
+        cal.set(Calendar.MINUTE      , 0);
+        cal.set(Calendar.SECOND      , 0);
+        cal.set(Calendar.MILLISECOND , 0);
+        cal.add(Calendar.MONTH, deltaMonths);
+        return cal.getTimeInMillis() / 1000L;
+    }
+
+    /* return the name of the monthly partition with the specified upper bound */
+    private static String _getPartitionName(long upperBound)
+    {
+        Calendar cal = new GregorianCalendar(DateTime.getGMTTimeZone());
+        cal.setTimeInMillis((upperBound - 1L) * 1000L);
+        int year  = cal.get(Calendar.YEAR);
+        int month = cal.get(Calendar.MONTH) + 1;
+        return "p" + year + ((month < 10)? "0" : "") + month;
+    }
+
+    /* return the monthly partition definitions after 'fromTime' through 'untilTime' */
+    private static String _getPartitionDefinitions(long fromTime, long untilTime)
+    {
+        // MySQL: PARTITION p200912 VALUES LESS THAN (1262304000), ..., PARTITION pmax VALUES LESS THAN MAXVALUE
+        StringBuffer sb = new StringBuffer();
+        long bound = DBProvider.getPartitionMonthStart(fromTime, 1);
+        long until = DBProvider.getPartitionMonthStart(untilTime, 1);
+        for (; bound <= until; bound = DBProvider.getPartitionMonthStart(bound, 1)) {
+            sb.append("PARTITION ").append(DBProvider._getPartitionName(bound));
+            sb.append(" VALUES LESS THAN (").append(bound).append("),");
+        }
+        sb.append("PARTITION ").append(PARTITION_MAXVALUE_NAME).append(" VALUES LESS THAN MAXVALUE");
+        return sb.toString();
+    }
+
+    /* return true if the specified table can be partitioned */
+    private static boolean _canPartition(String tableName, DBField flds[], DBAlternateIndex altIndexes[])
+    {
+        // MySQL requires that every unique index include the partitioning field
+        for (int fx = 0; fx < flds.length; fx++) {
+            if (flds[fx].isAutoIncrement()) {
+                Print.logWarn("Partitioning not supported with 'auto_increment' field: " + tableName+"."+flds[fx].getName());
+                return false;
+            }
+        }
+        if (altIndexes != null) {
+            for (int i = 0; i < altIndexes.length; i++) {
+                if (altIndexes[i].isUnique()) {
+                    Print.logWarn("Partitioning not supported with unique alternate index: " + tableName+"."+altIndexes[i].getIndexName());
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+    *** Returns the existing partitions of the specified table
+    *** @param tableName The table name
+    *** @return A map of partition names to the (exclusive) upper time bound of each partition,
+    ***         in partition order ('MAXVALUE' is returned as Long.MAX_VALUE).  The map is empty
+    ***         if the table is not partitioned.
+    *** @throws SQLException  If an SQL error occurs
+    *** @throws DBException   If a database error occurs
+    **/
+    public static OrderedMap<String,Long> getTablePartitions(String tableName)
+        throws SQLException, DBException
+    {
+        OrderedMap<String,Long> partMap = new OrderedMap<String,Long>();
+        if (!DBProvider.supportsPartitioning()) {
+            return partMap;
+        }
+
+        /* select partitions */
+        // MySQL: SELECT PARTITION_NAME,PARTITION_DESCRIPTION FROM information_schema.PARTITIONS WHERE ...
+        StringBuffer sb = new StringBuffer();
+        sb.append("SELECT PARTITION_NAME,PARTITION_DESCRIPTION FROM information_schema.PARTITIONS");
+        sb.append(" WHERE TABLE_SCHEMA=").append(DBField.quote(DBProvider.getDBName()));
+        sb.append(" AND TABLE_NAME=").append(DBField.quote(tableName));
+        sb.append(" ORDER BY PARTITION_ORDINAL_POSITION");
+        Statement stmt = null;
+        ResultSet rs   = null;
+        try {
+            stmt = DBFactory.execute(sb.toString());
+            rs = stmt.getResultSet();
+            while (rs.next()) {
+                String name = rs.getString("PARTITION_NAME");
+                if (StringTools.isBlank(name)) {
+                    continue; // not partitioned
+                }
+                String desc = StringTools.trim(rs.getString("PARTITION_DESCRIPTION"));
+                long bound = desc.equalsIgnoreCase("MAXVALUE")? Long.MAX_VALUE : StringTools.parseLong(desc, 0L);
+                partMap.put(name, new Long(bound));
+            }
+        } finally {
+            if (rs   != null) { try { rs.close();   } catch (Throwable t) {} }
+            if (stmt != null) { try { stmt.close(); } catch (Throwable t) {} }
+        }
+        return partMap;
+
+    }
+
+    /**
+    *** Converts the existing table for the specified DBFactory into a monthly range-partitioned
+    *** table.  Monthly partitions are created from the month of the oldest record through the
+    *** month containing 'untilTime'.  Note that MySQL rebuilds the entire table.
+    *** @param dbFact    The DBFactory
+    *** @param untilTime Monthly partitions are created through the month containing this time
+    *** @throws SQLException  If an SQL error occurs
+    *** @throws DBException   If a database error occurs
+    **/
+    public static void partitionTable(DBFactory dbFact, long untilTime)
+        throws SQLException, DBException
+    {
+        String tableName = dbFact.getTableName();
+        String partField = dbFact.getPartitionField();
+        if (!DBProvider.supportsPartitioning()) {
+            throw new DBException("Partitioning not supported by DBProvider: " + DBProvider.getProvider().getJDBCName());
+        } else
+        if (partField == null) {
+            throw new DBException("Table partition field not defined: " + tableName);
+        } else
+        if (!DBProvider._canPartition(tableName, dbFact.getFields(), dbFact.getAlternateIndexes())) {
+            throw new DBException("Table cannot be partitioned: " + tableName);
+        } else
+        if (!DBProvider.getTablePartitions(tableName).isEmpty()) {
+            throw new DBException("Table is already partitioned: " + tableName);
+        }
+
+        /* oldest record */
+        // MySQL: SELECT MIN(<field>) FROM <table>
+        long fromTime = DateTime.getCurrentTimeSec();
+        Statement stmt = null;
+        ResultSet rs   = null;
+        try {
+            stmt = DBFactory.execute("SELECT MIN(" + partField + ") FROM " + tableName);
+            rs = stmt.getResultSet();
+            if (rs.next()) {
+                long minTime = rs.getLong(1);
+                if ((minTime > 0L) && (minTime < fromTime)) {
+                    fromTime = minTime;
+                }
+            }
+        } finally {
+            if (rs   != null) { try { rs.close();   } catch (Throwable t) {} }
+            if (stmt != null) { try { stmt.close(); } catch (Throwable t) {} }
+        }
+
+        /* partition */
+        // MySQL: ALTER TABLE <table> PARTITION BY RANGE (<field>) ( PARTITION ... )
+        StringBuffer sb = new StringBuffer();
+        sb.append("ALTER TABLE ").append(tableName);
+        sb.append(" PARTITION BY RANGE (").append(partField).append(") (");
+        sb.append(DBProvider._getPartitionDefinitions(fromTime, Math.max(fromTime,untilTime)));
+        sb.append(")");
+        DBFactory.executeUpdate(sb.toString());
+
+    }
+
+    /**
+    *** Adds monthly partitions to the partitioned table for the specified DBFactory, through
+    *** the month containing 'untilTime'.  New partitions are split from the 'MAXVALUE'
+    *** partition, which should be empty if partitions are added ahead of time.
+    *** @param dbFact    The DBFactory
+    *** @param untilTime Monthly partitions are created through the month containing this time
+    *** @return The number of partitions added
+    *** @throws SQLException  If an SQL error occurs
+    *** @throws DBException   If a database error occurs
+    **/
+    public static int addTablePartitions(DBFactory dbFact, long untilTime)
+        throws SQLException, DBException
+    {
+        String tableName = dbFact.getTableName();
+        OrderedMap<String,Long> partMap = DBProvider.getTablePartitions(tableName);
+        if (partMap.isEmpty()) {
+            throw new DBException("Table is not partitioned: " + tableName);
+        }
+
+        /* last monthly partition */
+        String maxName   = null;
+        long   lastBound = 0L;
+        for (String name : partMap.keySet()) {
+            long bound = partMap.get(name).longValue();
+            if (bound == Long.MAX_VALUE) {
+                maxName = name;
+            } else
+            if (bound > lastBound) {
+                lastBound = bound;
+            }
+        }
+
+        /* new partitions */
+        long first = (lastBound > 0L)?
+            DBProvider.getPartitionMonthStart(lastBound, 1) :
+            DBProvider.getPartitionMonthStart(DateTime.getCurrentTimeSec(), 1);
+        long until = DBProvider.getPartitionMonthStart(untilTime, 1);
+        if (first > until) {
+            return 0; // already exist
+        }
+        StringBuffer parts = new StringBuffer();
+        int count = 0;
+        for (long b = first; b <= until; b = DBProvider.getPartitionMonthStart(b, 1)) {
+            if (count > 0) { parts.append(","); }
+            parts.append("PARTITION ").append(DBProvider._getPartitionName(b));
+            parts.append(" VALUES LESS THAN (").append(b).append(")");
+            count++;
+        }
+
+        /* add */
+        StringBuffer sb = new StringBuffer();
+        sb.append("ALTER TABLE ").append(tableName);
+        if (maxName != null) {
+            // MySQL: ALTER TABLE <table> REORGANIZE PARTITION pmax INTO ( PARTITION ..., PARTITION pmax ... )
+            sb.append(" REORGANIZE PARTITION ").append(maxName).append(" INTO (");
+            sb.append(parts);
+            sb.append(",PARTITION ").append(maxName).append(" VALUES LESS THAN MAXVALUE)");
+        } else {
+            // MySQL: ALTER TABLE <table> ADD PARTITION ( PARTITION ... )
+            sb.append(" ADD PARTITION (").append(parts).append(")");
+        }
+        DBFactory.executeUpdate(sb.toString());
+        return count;
+
+    }
+
+    /**
+    *** Drops the partitions of the partitioned table for the specified DBFactory which contain
+    *** only records prior to 'beforeTime'.  The 'MAXVALUE' partition, and the last remaining
+    *** partition, are never dropped.
+    *** @param dbFact     The DBFactory
+    *** @param beforeTime Partitions with an upper bound at or before this time are dropped
+    *** @return The number of partitions dropped
+    *** @throws SQLException  If an SQL error occurs
+    *** @throws DBException   If a database error occurs
+    **/
+    public static int dropTablePartitions(DBFactory dbFact, long beforeTime)
+        throws SQLException, DBException
+    {
+        String tableName = dbFact.getTableName();
+        OrderedMap<String,Long> partMap = DBProvider.getTablePartitions(tableName);
+        if (partMap.isEmpty()) {
+            throw new DBException("Table is not partitioned: " + tableName);
+        }
+
+        /* partitions to drop */
+        java.util.List<String> dropList = new Vector<String>();
+        for (String name : partMap.keySet()) {
+            long bound = partMap.get(name).longValue();
+            if ((bound != Long.MAX_VALUE) && (bound <= beforeTime)) {
+                dropList.add(name);
+            }
+        }
+        if (dropList.size() >= partMap.size()) {
+            dropList.remove(dropList.size() - 1); // MySQL requires at least one partition
+        }
+        if (dropList.isEmpty()) {
+            return 0;
+        }
+
+        /* drop */
+        // MySQL: ALTER TABLE <table> DROP PARTITION <name>,...
+        StringBuffer sb = new StringBuffer();
+        sb.append("ALTER TABLE ").append(tableName).append(" DROP PARTITION ");
+        sb.append(StringTools.join(dropList.toArray(new String[dropList.size()]), ","));
+        DBFactory.executeUpdate(sb.toString());
+        return dropList.size();
+
+    }
+
     // ------------------------------------------------------------------------
 
     /**
@@ -1464,6 +1804,9 @@ public class DBProvider
         // Derby:      INSERT INTO <table> (<column>,<column>,...) VALUES (<value>,<value>,...)
         // PostgreSQL: INSERT INTO <table> (<column>,<column>,...) VALUES (<value>,<value>,...)
         boolean addedField = false;
+        boolean usePS = DBConnection.getUsePreparedStatements();
+        java.util.List<DBField> psFld = new Vector<DBField>();
+        java.util.List<Object>  psVal = new Vector<Object>();
         sb.append("INSERT INTO ").append(tableName);
         StringBuffer colSB = new StringBuffer();
         StringBuffer valSB = new StringBuffer();
@@ -1481,9 +1824,14 @@ public class DBProvider
                     valSB.append(","); 
                 }
                 Object fldVal = fieldValues.getFieldValue(fldName,true);
-                String dbVal  = field[i].getQValue(fldVal);
                 colSB.append(fldName);
-                valSB.append(dbVal);
+                if (usePS) {
+                    valSB.append("?");
+                    psFld.add(field[i]);
+                    psVal.add(fldVal);
+                } else {
+                    valSB.append(field[i].getQValue(fldVal));
+                }
                 addedField = true;
             } else {
                 // ignore non-existant columns
@@ -1516,12 +1864,18 @@ public class DBProvider
         /* execute */
         if (addedField) {
             // ResultSet rs = <Statement>.getGeneratedKeys();
+            DBField psFlds[] = usePS? psFld.toArray(new DBField[psFld.size()]) : null;
             if (autoIncrField != null) {
-                long autoIncrVal = DBRecord.executeUpdate(sb.toString(), true);
+                long autoIncrVal = usePS?
+                    DBConnection.getDefaultConnection().executeUpdate(sb.toString(), psFlds, psVal.toArray(), true) :
+                    DBRecord.executeUpdate(sb.toString(), true);
                 if (autoIncrVal >= 0) {
                     Print.logDebug("Auto-Increment value: " + autoIncrVal);
                     fieldValues.setFieldValue(autoIncrField.getName(), autoIncrVal);
                 }
+            } else
+            if (usePS) {
+                DBConnection.getDefaultConnection().executeUpdate(sb.toString(), psFlds, psVal.toArray(), false);
             } else {
                 DBRecord.executeUpdate(sb.toString());
             }
@@ -1532,6 +1886,113 @@ public class DBProvider
         }
         
     }
+
+    /**
+    *** Assemble a single multi-row insert statement (and execute) for the specified records.
+    *** All records must be from the same table.  'auto_increment' field values are not
+    *** returned for records inserted with this method.
+    *** @param recs The records to insert
+    *** @return The number of records inserted
+    *** @throws SQLException  If an SQL error occurs (ie. duplicate key on any record)
+    *** @throws DBException   If a database error occurs
+    **/
+    public static int insertRecordsIntoTable(DBRecord recs[])
+        throws SQLException, DBException
+    {
+        return DBProvider.insertRecordsIntoTable(recs, false);
+    }
+
+    /**
+    *** Assemble a single multi-row insert statement (and execute) for the specified records.
+    *** All records must be from the same table.  'auto_increment' field values are not
+    *** returned for records inserted with this method.
+    *** @param recs   The records to insert
+    *** @param update True to update the non-key fields of records which already exist
+    ***               (MySQL "ON DUPLICATE KEY UPDATE").  Ignored for other providers, where
+    ***               an existing record causes the insert to fail.
+    *** @return The number of records inserted (or updated)
+    *** @throws SQLException  If an SQL error occurs (ie. duplicate key on any record)
+    *** @throws DBException   If a database error occurs
+    **/
+    public static int insertRecordsIntoTable(DBRecord recs[], boolean update)
+        throws SQLException, DBException
+    {
+
+        /* nothing to insert? */
+        if ((recs == null) || (recs.length == 0)) {
+            return 0;
+        }
+
+        /* columns (from first record) */
+        // MySQL:      INSERT INTO <table> (<column>,...) VALUES (<value>,...),(<value>,...),...
+        // SQLServer:  INSERT INTO <table> (<column>,...) VALUES (<value>,...),(<value>,...),...
+        // Derby:      INSERT INTO <table> (<column>,...) VALUES (<value>,...),(<value>,...),...
+        // PostgreSQL: INSERT INTO <table> (<column>,...) VALUES (<value>,...),(<value>,...),...
+        DBRecordKey recKey = recs[0].getRecordKey();
+        String tableName = recKey.getTableName();
+        Map existingColumns = recKey.getFactory().getExistingColumnMap(false);
+        DBField field[] = recKey.getFields();
+        java.util.List<DBField> insFields = new Vector<DBField>();
+        StringBuffer sb = new StringBuffer();
+        sb.append("INSERT INTO ").append(tableName).append(" (");
+        for (int i = 0; i < field.length; i++) {
+            String fldName = field[i].getName();
+            if (field[i].isAutoIncrement()) {
+                // we skip 'auto_increment' fields on INSERT
+                continue;
+            }
+            if ((existingColumns == null) || existingColumns.containsKey(fldName)) {
+                if (!insFields.isEmpty()) { sb.append(","); }
+                sb.append(fldName);
+                insFields.add(field[i]);
+            } else {
+                // ignore non-existant columns
+                Print.logWarn("Field does not exist: " + tableName + "." + fldName + " [ignored]");
+            }
+        }
+        sb.append(") VALUES ");
+        if (insFields.isEmpty()) {
+            Print.logInfo("Nothing was inserted!!! [" + tableName + "]");
+            return 0;
+        }
+
+        /* values */
+        for (int r = 0; r < recs.length; r++) {
+            DBFieldValues fieldValues = recs[r].getRecordKey().getFieldValues();
+            if (!fieldValues.getTableName().equals(tableName)) {
+                throw new DBException("Multi-row insert requires records from a single table");
+            }
+            if (r > 0) { sb.append(","); }
+            sb.append("(");
+            for (int i = 0; i < insFields.size(); i++) {
+                DBField fld = insFields.get(i);
+                if (i > 0) { sb.append(","); }
+                Object fldVal = fieldValues.getFieldValue(fld.getName(),true);
+                sb.append(fld.getQValue(fldVal));
+            }
+            sb.append(")");
+        }
+
+        /* update existing records */
+        // MySQL: ... ON DUPLICATE KEY UPDATE <column>=VALUES(<column>),...
+        if (update && (DBProvider.getProvider().getID() == DB_MYSQL)) {
+            StringBuffer upd = new StringBuffer();
+            for (DBField fld : insFields) {
+                if (!fld.isPrimaryKey()) {
+                    if (upd.length() > 0) { upd.append(","); }
+                    upd.append(fld.getName()).append("=VALUES(").append(fld.getName()).append(")");
+                }
+            }
+            if (upd.length() > 0) {
+                sb.append(" ON DUPLICATE KEY UPDATE ").append(upd);
+            }
+        }
+
+        /* execute */
+        DBRecord.executeUpdate(sb.toString());
+        return recs.length;
+
+    }
     
     /**
     *** Assemble an update statement (and execute) for the specified record and
@@ -1590,6 +2051,9 @@ public class DBProvider
         DBFieldValues fieldValues = recKey.getFieldValues();
         DBField field[] = recKey.getFields();
         boolean addedField = false;
+        boolean usePS = DBConnection.getUsePreparedStatements();
+        java.util.List<DBField> psFld = new Vector<DBField>();
+        java.util.List<Object>  psVal = new Vector<Object>();
         for (int i = 0; i < field.length; i++) {
             String fldName = field[i].getName();
             if ((updFldSet == null) || updFldSet.contains(fldName)) {
@@ -1611,8 +2075,13 @@ public class DBProvider
                     // update existing columns
                     if (addedField) { sb.append(", "); }
                     Object fldVal = fieldValues.getFieldValue(fldName,true);
-                    String dbVal  = field[i].getQValue(fldVal);
-                    sb.append(fldName).append("=").append(dbVal);
+                    if (usePS) {
+                        sb.append(fldName).append("=?");
+                        psFld.add(field[i]);
+                        psVal.add(fldVal);
+                    } else {
+                        sb.append(fldName).append("=").append(field[i].getQValue(fldVal));
+                    }
                     addedField = true;
                 } else {
                     // ignore non-existant columns (ie. field defined in Java class, but not in MySQL table)
@@ -1622,11 +2091,23 @@ public class DBProvider
         }
 
         /* where */
-        sb.append(recKey.getWhereClause(DBWhere.KEY_FULL));
+        if (usePS) {
+            DBField whereFlds[] = recKey._getWhereKeyFields(null, DBWhere.KEY_FULL);
+            sb.append(DBRecordKey._getPreparedWhereClause(whereFlds));
+            psFld.addAll(Arrays.asList(whereFlds));
+            psVal.addAll(Arrays.asList(recKey._getFieldValues(whereFlds)));
+        } else {
+            sb.append(recKey.getWhereClause(DBWhere.KEY_FULL));
+        }
 
         /* execute */
         if (addedField) {
-            DBRecord.executeUpdate(sb.toString());
+            if (usePS) {
+                DBField psFlds[] = psFld.toArray(new DBField[psFld.size()]);
+                DBConnection.getDefaultConnection().executeUpdate(sb.toString(), psFlds, psVal.toArray(), false);
+            } else {
+                DBRecord.executeUpdate(sb.toString());
+            }
             return true;
         } else {
             Print.logInfo("Nothing was updated!!! [" + tableName + "]");
@@ -1811,6 +2292,96 @@ public class DBProvider
     private static int              lockSeq        = 0;
     private static int              unlockSeq      = 0;
 
+    // Read consistency modes for read-only locks (see "lockTablesForRead")
+    //  "lock"     - MySQL "LOCK TABLES ... READ" (default)
+    //  "snapshot" - MySQL "START TRANSACTION WITH CONSISTENT SNAPSHOT" ... "COMMIT"
+    //               (InnoDB: non-blocking consistent reads.  MyISAM: no locking)
+    //  "none"     - no locking, each SELECT is an independent (autocommit) read
+    public  static final int        READ_LOCK      = 0;
+    public  static final int        READ_SNAPSHOT  = 1;
+    public  static final int        READ_NONE      = 2;
+
+    private static final long       LOCK_WAIT_WARNING_MS = 2000L;
+
+    private static int              readConsistency     = -1;
+    private static ThreadLocal<Boolean> readSnapshot    = new ThreadLocal<Boolean>();
+
+    private static Object           lockStatsLock       = new Object();
+    private static long             lockCount           = 0L;  // executed LOCK TABLES
+    private static long             lockWaitTotalMS     = 0L;
+    private static long             lockWaitMaxMS       = 0L;
+    private static long             snapshotReadCount   = 0L;  // read locks replaced by snapshot
+    private static long             unlockedReadCount   = 0L;  // read locks skipped
+
+    /**
+    *** Gets the read consistency mode used for read-only table locks
+    *** @return The read consistency mode (READ_LOCK, READ_SNAPSHOT, READ_NONE)
+    **/
+    public static int getReadConsistency()
+    {
+        if (readConsistency < 0) {
+            String rc = RTConfig.getString(RTKey.DB_READ_CONSISTENCY, "lock");
+            if (rc.equalsIgnoreCase("snapshot") || rc.equalsIgnoreCase("transaction")) {
+                readConsistency = READ_SNAPSHOT;
+            } else
+            if (rc.equalsIgnoreCase("none")) {
+                readConsistency = READ_NONE;
+            } else {
+                readConsistency = READ_LOCK;
+            }
+            Print.logDebug("Table read consistency: " + rc);
+        }
+        return readConsistency;
+    }
+
+    /**
+    *** Sets the read consistency mode used for read-only table locks
+    *** @param mode The read consistency mode (READ_LOCK, READ_SNAPSHOT, READ_NONE)
+    **/
+    public static void setReadConsistency(int mode)
+    {
+        readConsistency = ((mode >= READ_LOCK) && (mode <= READ_NONE))? mode : READ_LOCK;
+    }
+
+    /**
+    *** Returns the total time (in milliseconds) spent waiting to acquire table locks
+    *** @return The total lock wait time in milliseconds
+    **/
+    public static long getLockWaitTimeMS()
+    {
+        synchronized (lockStatsLock) {
+            return lockWaitTotalMS;
+        }
+    }
+
+    /**
+    *** Returns the number of table locks acquired
+    *** @return The number of table locks acquired
+    **/
+    public static long getLockCount()
+    {
+        synchronized (lockStatsLock) {
+            return lockCount;
+        }
+    }
+
+    /**
+    *** Returns a String containing the table lock statistics
+    *** @return The table lock statistics
+    **/
+    public static String getLockStatistics()
+    {
+        synchronized (lockStatsLock) {
+            StringBuffer sb = new StringBuffer();
+            sb.append("locks=").append(lockCount);
+            sb.append(", waitMS=").append(lockWaitTotalMS);
+            sb.append(", maxWaitMS=").append(lockWaitMaxMS);
+            sb.append(", snapshotReads=").append(snapshotReadCount);
+            sb.append(", unlockedReads=").append(unlockedReadCount);
+            return sb.toString();
+        }
+    }
+
     /**
     *** Returns true if table locking is enabled
     *** @return True if table locking is enabled
@@ -1852,6 +2423,21 @@ public class DBProvider
     {
         return DBProvider._lockTables(writeTables, readTables, false);
     }
+
+    /**
+    *** Lock specified tables for a read-only query.  Depending on the current read
+    *** consistency mode (see "getReadConsistency"), this either locks the tables for
+    *** reading, starts a consistent snapshot transaction, or does nothing.  In all cases,
+    *** "unlockTables" must be called when the query has completed.
+    *** @param readTables The array of tables to lock for reading
+    *** @return True if the query was successful
+    *** @throws DBException   If a database error occurs
+    **/
+    public static boolean lockTablesForRead(String readTables[])
+        throws DBException
+    {
+        return DBProvider._lockTables(null, readTables, false, true);
+    }
     
     /**
     *** Lock specified tables for write/read
@@ -1865,6 +2451,23 @@ public class DBProvider
     private static boolean _lockTables(String writeTables[], String readTables[], boolean forceLock)
         throws DBException
     {
+        return DBProvider._lockTables(writeTables, readTables, forceLock, false);
+    }
+
+    /**
+    *** Lock specified tables for write/read
+    *** @param writeTables The array of tables to lock for writing
+    *** @param readTables The array of tables to lock for reading
+    *** @param forceLock If the lock query should be attemped whether or not 
+    ***        locking is enabled
+    *** @param readOnly True if the lock is for a read-only query (the read consistency
+    ***        mode will be honored)
+    *** @return True if the query was successful
+    *** @throws DBException   If a database error occurs
+    **/
+    private static boolean _lockTables(String writeTables[], String readTables[], boolean forceLock, boolean readOnly)
+        throws DBException
+    {
 
         /* keep track of how many times we attempt a lock (this is never decremented) */
         ++DBProvider.lockSeq;
@@ -1889,6 +2492,28 @@ public class DBProvider
             Print.logStackTrace("Location of prior table locking", DBProvider.lockLevel.peek());
         }
         
+        /* read-only lock: read consistency mode */
+        if (readOnly && (writeTables == null) && (forceLock || DBProvider.isTableLockingEnabled())) {
+            int rc = DBProvider.getReadConsistency();
+            if (rc == READ_NONE) {
+                synchronized (lockStatsLock) { unlockedReadCount++; }
+                return true;
+            } else
+            if (rc == READ_SNAPSHOT) {
+                try {
+                    // MySQL: START TRANSACTION WITH CONSISTENT SNAPSHOT
+                    DBRecord.executeUpdate("START TRANSACTION WITH CONSISTENT SNAPSHOT");
+                    DBConnection.getDefaultConnection().setTablesLocked(true);
+                    DBProvider.readSnapshot.set(Boolean.TRUE);
+                    synchronized (lockStatsLock) { snapshotReadCount++; }
+                    return true;
+                } catch (SQLException sqe) {
+                    Print.logSQLError("start transaction " + readTables[0], sqe);
+                    return false;
+                }
+            }
+        }
+
         try {
             
             // MySQL: LOCK TABLES ...
@@ -1918,15 +2543,26 @@ public class DBProvider
             if (forceLock || DBProvider.isTableLockingEnabled()) {
                 Throwable t = new Throwable();
                 t.fillInStackTrace();
+                long startMS = System.currentTimeMillis();
                 DBRecord.executeUpdate(sb.toString());
+                long waitMS = System.currentTimeMillis() - startMS;
+                DBConnection.getDefaultConnection().setTablesLocked(true);
                 DBProvider.lockLevel.push(t);
+                synchronized (lockStatsLock) {
+                    lockCount++;
+                    lockWaitTotalMS += waitMS;
+                    if (waitMS > lockWaitMaxMS) { lockWaitMaxMS = waitMS; }
+                }
+                if (waitMS >= LOCK_WAIT_WARNING_MS) {
+                    Print.logWarn("Lock wait " + waitMS + " ms: " + sb);
+                }
             }
             
             return true;
             
         } catch (SQLException sqe) {
             //this.setLastCaughtSQLException(sqe);
-            Print.logSQLError("lock " + writeTables[0], sqe);
+            Print.logSQLError("lock " + ((writeTables != null)? writeTables[0] : readTables[0]), sqe);
             return false;
         }
         
@@ -1967,12 +2603,32 @@ public class DBProvider
             return false;
         }
 
+        /* commit read snapshot */
+        if (DBProvider.readSnapshot.get() != null) {
+            DBProvider.readSnapshot.remove();
+            try {
+                // MySQL: COMMIT
+                DBRecord.executeUpdate("COMMIT");
+                DBConnection.getDefaultConnection().setTablesLocked(false);
+                return true;
+            } catch (SQLException sqe) {
+                Print.logSQLError("commit snapshot", sqe);
+                return false;
+            }
+        }
+
         /* lock tables */
         try {
-            if (DBProvider.isTableLockingEnabled() || !DBProvider.lockLevel.empty()) {
+            if (!DBProvider.isTableLockingEnabled() && DBProvider.lockLevel.empty()) {
+                // nothing locked
+            } else
+            if ((DBProvider.getReadConsistency() == READ_NONE) && DBProvider.lockLevel.empty()) {
+                // read lock skipped
+            } else {
                 // MySQL: UNLOCK TABLES
                 String unlockSql = "UNLOCK TABLES";
                 DBRecord.executeUpdate(unlockSql);
+                DBConnection.getDefaultConnection().setTablesLocked(false);
                 if (!DBProvider.lockLevel.empty()) {
                     DBProvider.lockLevel.pop();
                 } else {
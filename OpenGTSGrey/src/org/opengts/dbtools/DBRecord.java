@@ -52,6 +52,11 @@
 //     -Added 'virtual' flag to allow disabling save/reload.
 //  2009/09/23  Clifton Flynn / Martin D. Flynn
 //     -Added 'soapXML' argument to various methods.
+//  2010/01/11  Martin D. Flynn
+//     -Added 'insertRecords'/'saveRecords' for multi-row inserts.
+//     -'reload' optionally uses a PreparedStatement
+//     -Typed field getters read primitive values directly from DBFieldValues (no boxing)
+//     -Added 'setInsertTime' for records created by one thread and inserted by another
 // ----------------------------------------------------------------------------
 package org.opengts.dbtools;
 
@@ -744,16 +749,26 @@ public abstract class DBRecord<gDBR extends DBRecord>
         }
         
         /* reload from DB */
+        DBConnection dbc = DBConnection.getDefaultConnection();
         Statement stmt = null;
         ResultSet rs = null;
         try {
             DBRecordKey<gDBR> recKey = this.getRecordKey();
             // DBSelect: SELECT * FROM <table> <where>
             DBSelect<gDBR> dsel = new DBSelect<gDBR>(recKey.getFactory());
-            String wh = recKey.getWhereClause(DBWhere.KEY_FULL);
-            dsel.setWhere(wh);
-            stmt = DBRecord.execute(dsel.toString());
-            rs = stmt.getResultSet();
+            String wh;
+            if (DBConnection.getUsePreparedStatements()) {
+                DBField whereFlds[] = recKey._getWhereKeyFields(null, DBWhere.KEY_FULL);
+                wh = DBRecordKey._getPreparedWhereClause(whereFlds);
+                dsel.setWhere(wh);
+                rs = dbc.executeQuery(dsel.toString(), whereFlds, recKey._getFieldValues(whereFlds));
+                stmt = rs.getStatement();
+            } else {
+                wh = recKey.getWhereClause(DBWhere.KEY_FULL);
+                dsel.setWhere(wh);
+                stmt = dbc.execute(dsel.toString());
+                rs = stmt.getResultSet();
+            }
             if (rs.next()) {
                 this.setFieldValues(rs);
                 this.clearChanged();
@@ -768,7 +783,7 @@ public abstract class DBRecord<gDBR extends DBRecord>
             throw new DBException("Reload", sqe);
         } finally {
             if (rs   != null) { try{ rs.close();   } catch (Throwable t) {} }
-            if (stmt != null) { try{ stmt.close(); } catch (Throwable t) {} }
+            if (stmt != null) { dbc.releaseStatement(stmt); }
         }
     }
     
@@ -1051,10 +1066,7 @@ public abstract class DBRecord<gDBR extends DBRecord>
         try {
 
             /* creation time/user */
-            long nowTime = DateTime.getCurrentTimeSec();
-            this.setCreationTime(nowTime);
-            this.setLastUpdateTime(nowTime);
-            this.setLastUpdateUser(DBRecord.GetCurrentUser());
+            this.setInsertTime();
 
             /* insert */
             this.recordWillInsert();
@@ -1076,6 +1088,38 @@ public abstract class DBRecord<gDBR extends DBRecord>
         }
     }
 
+    /**
+    *** Inserts this DBRecord, for which 'recordWillInsert' has already been called (see
+    *** 'insertRecords'/'saveRecords').  If the record already exists, it is either updated, 
+    *** or skipped.
+    *** @param update  True to update the record if it already exists
+    *** @return True if the record was inserted/updated, false if it already exists and was skipped
+    *** @throws DBException if a database error occurs.
+    **/
+    private boolean _insertPrepared(boolean update)
+        throws DBException
+    {
+        try {
+            DBProvider.insertRecordIntoTable(this);
+            this.recordDidInsert();
+            this.clearChanged();
+            return true;
+        } catch (SQLException sqe) {
+            this.setLastCaughtSQLException(sqe);
+            DBRecordKey<gDBR> dbKey = this.getRecordKey();
+            if (this.isLastCaughtSQLExceptionErrorCode(DBFactory.SQLERR_DUPLICATE_KEY)) {
+                if (update) {
+                    this.update(); // may throw DBException
+                    return true;
+                }
+                Print.logInfo("Duplicate Key Skipped: [" + dbKey.getTableName() + "] " + dbKey);
+                return false;
+            } else {
+                throw new DBException("Unable to insert record  [" + dbKey.getTableName() + "] '" + dbKey + "'", sqe);
+            }
+        }
+    }
+
     // ------------------------------------------------------------------------
 
     /**
@@ -1202,6 +1246,129 @@ public abstract class DBRecord<gDBR extends DBRecord>
             this.insert();      // may throw DBException
         }
     }
+
+    /**
+    *** Sets the creation time, last update time, and last update user of this record to the
+    *** current time/user, prior to insertion.  This allows a record which is created by one 
+    *** thread to be stamped by that thread, and inserted later by another thread (see
+    *** <code>insertRecords(rcds,false)</code>).
+    **/
+    public void setInsertTime()
+    {
+        long nowTime = DateTime.getCurrentTimeSec();
+        this.setCreationTime(nowTime);
+        this.setLastUpdateTime(nowTime);
+        this.setLastUpdateUser(DBRecord.GetCurrentUser());
+    }
+
+    /**
+    *** Inserts the specified DBRecords (which must all be from the same table) into the 
+    *** database using a single multi-row insert statement.  If the multi-row insert fails
+    *** (ie. one of the records already exists), each record is then inserted individually.
+    *** @param rcds  The records to insert
+    *** @return The number of records inserted
+    *** @throws DBException if a database error occurs.
+    **/
+    public static <T extends DBRecord> int insertRecords(T rcds[])
+        throws DBException
+    {
+        return DBRecord.insertRecords(rcds, true);
+    }
+
+    /**
+    *** Inserts the specified DBRecords (which must all be from the same table) into the 
+    *** database using a single multi-row insert statement.  If the multi-row insert fails
+    *** (ie. one of the records already exists), each record is then inserted individually.
+    *** Records which already exist, or which fail individually with a non-transient error,
+    *** are skipped (and logged), transient errors (see <code>DBException.isTransient</code>)
+    *** are thrown to the caller.
+    *** @param rcds           The records to insert
+    *** @param setInsertTime  True to set the creation/last-update time of each record, false
+    ***                       if already set by the caller (see <code>setInsertTime</code>)
+    *** @return The number of records inserted (not including skipped records)
+    *** @throws DBException if a database error occurs.
+    **/
+    public static <T extends DBRecord> int insertRecords(T rcds[], boolean setInsertTime)
+        throws DBException
+    {
+        return DBRecord._insertRecords(rcds, setInsertTime, false);
+    }
+
+    /**
+    *** Saves the specified DBRecords (which must all be from the same table), inserting new
+    *** records, and updating records which already exist (as <code>save()</code> does for a 
+    *** single record).  MySQL saves all records using a single multi-row "INSERT ... ON DUPLICATE
+    *** KEY UPDATE" statement.  For other providers, or if the multi-row statement fails, each 
+    *** record is then inserted (or updated, if it already exists) individually.
+    *** Records which fail individually with a non-transient error are skipped (and logged),
+    *** transient errors (see <code>DBException.isTransient</code>) are thrown to the caller.
+    *** @param rcds           The records to save
+    *** @param setInsertTime  True to set the creation/last-update time of each record, false
+    ***                       if already set by the caller (see <code>setInsertTime</code>)
+    *** @return The number of records inserted or updated (not including skipped records)
+    *** @throws DBException if a database error occurs.
+    **/
+    public static <T extends DBRecord> int saveRecords(T rcds[], boolean setInsertTime)
+        throws DBException
+    {
+        return DBRecord._insertRecords(rcds, setInsertTime, true);
+    }
+
+    /* multi-row insert, optionally updating existing records */
+    private static <T extends DBRecord> int _insertRecords(T rcds[], boolean setInsertTime, boolean update)
+        throws DBException
+    {
+
+        /* nothing to insert? */
+        if (ListTools.isEmpty(rcds)) {
+            return 0;
+        }
+
+        /* creation time/user */
+        for (int i = 0; i < rcds.length; i++) {
+            if (!rcds[i].isOkToSave()) {
+                throw new DBException("Update not allowed");
+            }
+            if (setInsertTime) {
+                rcds[i].setInsertTime();
+            }
+            rcds[i].recordWillInsert();
+        }
+
+        /* insert */
+        try {
+            DBProvider.insertRecordsIntoTable(rcds, update);
+            for (int i = 0; i < rcds.length; i++) {
+                rcds[i].recordDidInsert();
+                rcds[i].clearChanged();
+            }
+            return rcds.length;
+        } catch (SQLException sqe) {
+            String tableName = rcds[0].getRecordKey().getTableName();
+            DBException mre = new DBException("Multi-row insert failed [" + tableName + "]", sqe);
+            if (mre.isTransient()) {
+                // lost connection, deadlock, etc. (the caller may retry)
+                throw mre;
+            }
+            // insert each record individually ('recordWillInsert' has already been called)
+            Print.logWarn("Multi-row insert failed [" + tableName + "]: " + sqe);
+            int count = 0;
+            for (int i = 0; i < rcds.length; i++) {
+                try {
+                    if (((DBRecord)rcds[i])._insertPrepared(update)) {
+                        count++;
+                    }
+                } catch (DBException dbe) {
+                    if (dbe.isTransient()) {
+                        throw dbe;
+                    }
+                    Print.logError("Unable to insert record [" + tableName + "] '" + rcds[i].getRecordKey() + "': " + dbe);
+                }
+            }
+            return count;
+        }
+
+    }
     
     // ------------------------------------------------------------------------
 
@@ -1629,15 +1796,7 @@ public abstract class DBRecord<gDBR extends DBRecord>
     **/
     public boolean getOptionalFieldValue(String fldName, boolean dft)
     {
-        Object obj = this.getOptionalFieldValue(fldName);
-        if (obj instanceof Boolean) {
-            return ((Boolean)obj).booleanValue();
-        } else 
-        if (obj instanceof Number) {
-            return (((Number)obj).intValue() != 0)? true : false;
-        } else {
-            return dft;
-        }
+        return this.getRecordKey().getFieldValues().getBooleanValue(fldName, false, dft);
     }
 
     /**
@@ -1650,15 +1809,7 @@ public abstract class DBRecord<gDBR extends DBRecord>
     **/
     public boolean getFieldValue(String fldName, boolean dft)
     {
-        Object obj = this.getFieldValue(fldName);
-        if (obj instanceof Boolean) {
-            return ((Boolean)obj).booleanValue();
-        } else 
-        if (obj instanceof Number) {
-            return (((Number)obj).intValue() != 0)? true : false;
-        } else {
-            return dft;
-        }
+        return this.getRecordKey().getFieldValues().getBooleanValue(fldName, true, dft);
     }
 
     /**
@@ -1722,8 +1873,7 @@ public abstract class DBRecord<gDBR extends DBRecord>
     **/
     public int getOptionalFieldValue(String fldName, int dft)
     {
-        Object obj = this.getOptionalFieldValue(fldName);
-        return (obj instanceof Number)? ((Number)obj).intValue() : dft;
+        return this.getRecordKey().getFieldValues().getIntValue(fldName, false, dft);
     }
 
     /**
@@ -1736,8 +1886,7 @@ public abstract class DBRecord<gDBR extends DBRecord>
     **/
     public int getFieldValue(String fldName, int dft)
     {
-        Object obj = this.getFieldValue(fldName);
-        return (obj instanceof Number)? ((Number)obj).intValue() : dft;
+        return this.getRecordKey().getFieldValues().getIntValue(fldName, true, dft);
     }
 
     /**
@@ -1801,8 +1950,7 @@ public abstract class DBRecord<gDBR extends DBRecord>
     **/
     public long getOptionalFieldValue(String fldName, long dft)
     {
-        Object obj = this.getOptionalFieldValue(fldName);
-        return (obj instanceof Number)? ((Number)obj).longValue() : dft;
+        return this.getRecordKey().getFieldValues().getLongValue(fldName, false, dft);
     }
 
     /**
@@ -1815,8 +1963,7 @@ public abstract class DBRecord<gDBR extends DBRecord>
     **/
     public long getFieldValue(String fldName, long dft)
     {
-        Object obj = this.getFieldValue(fldName);
-        return (obj instanceof Number)? ((Number)obj).longValue() : dft;
+        return this.getRecordKey().getFieldValues().getLongValue(fldName, true, dft);
     }
 
     /**
@@ -1880,8 +2027,7 @@ public abstract class DBRecord<gDBR extends DBRecord>
     **/
     public float getOptionalFieldValue(String fldName, float dft)
     {
-        Object obj = this.getOptionalFieldValue(fldName);
-        return (obj instanceof Number)? ((Number)obj).floatValue() : dft;
+        return this.getRecordKey().getFieldValues().getFloatValue(fldName, false, dft);
     }
 
     /**
@@ -1894,8 +2040,7 @@ public abstract class DBRecord<gDBR extends DBRecord>
     **/
     public float getFieldValue(String fldName, float dft)
     {
-        Object obj = this.getFieldValue(fldName);
-        return (obj instanceof Number)? ((Number)obj).floatValue() : dft;
+        return this.getRecordKey().getFieldValues().getFloatValue(fldName, true, dft);
     }
 
     /**
@@ -1959,8 +2104,7 @@ public abstract class DBRecord<gDBR extends DBRecord>
     **/
     public double getOptionalFieldValue(String fldName, double dft)
     {
-        Object obj = this.getOptionalFieldValue(fldName);
-        return (obj instanceof Number)? ((Number)obj).doubleValue() : dft;
+        return this.getRecordKey().getFieldValues().getDoubleValue(fldName, false, dft);
     }
 
     /**
@@ -1973,8 +2117,7 @@ public abstract class DBRecord<gDBR extends DBRecord>
     **/
     public double getFieldValue(String fldName, double dft)
     {
-        Object obj = this.getFieldValue(fldName);
-        return (obj instanceof Number)? ((Number)obj).doubleValue() : dft;
+        return this.getRecordKey().getFieldValues().getDoubleValue(fldName, true, dft);
     }
 
     /**
@@ -0,0 +1,305 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2009, GeoTelematic Solutions, Inc.
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Change History:
+//  2010/01/11  Martin D. Flynn
+//     -Initial release
+// ----------------------------------------------------------------------------
+package org.opengts.dbtools;
+
+import java.lang.*;
+import java.util.*;
+import java.sql.*;
+
+import org.opengts.util.*;
+
+/**
+*** <code>DBRecordCursor</code> is a forward-only cursor over a DBRecord selection.<br>
+*** Unlike <code>DBRecord.select</code>, which returns a fully materialized array, records
+*** are created one at a time as the underlying ResultSet is read in row-by-row (streaming)
+*** mode, so memory use does not grow with the size of the selection.<br>
+*** The selection is executed on a separate connection (the streaming ResultSet occupies its
+*** connection until closed), allowing other queries to be made on the current thread while
+*** the cursor is open.  A streaming connection may be shared by several cursors which are read
+*** one after another (see <code>openStreamingConnection</code>), in which case the connection
+*** is not closed with the cursor.  The cursor is closed automatically when the last record has
+*** been read, otherwise <code>close()</code> must be called.<br>
+*** Errors reading the selection are thrown from <code>nextRecord</code> as a DBException, and
+*** from the Iterator methods as a <code>DBRecordCursor.FetchException</code>.
+**/
+
+public class DBRecordCursor<DBR extends DBRecord>
+    implements Iterator<DBR>
+{
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Unchecked exception thrown by the Iterator methods when the selection could not be read
+    **/
+    public static class FetchException
+        extends RuntimeException
+    {
+        public FetchException(DBException dbe) {
+            super(dbe.getMessage(), dbe);
+        }
+        public DBException getDBException() {
+            return (DBException)this.getCause();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Opens a new connection for streaming selections, which may be shared by several cursors
+    *** read one after another.  The caller must close the connection when done
+    *** (see <code>closeStreamingConnection</code>).
+    *** @return The new DBConnection
+    **/
+    public static DBConnection openStreamingConnection()
+    {
+        return new DBConnection(DBProvider.getDBUri(true), DBProvider.getDBUsername(), DBProvider.getDBPassword());
+    }
+
+    /**
+    *** Closes a connection opened with <code>openStreamingConnection</code>
+    *** @param dbc  The DBConnection to close (may be null)
+    **/
+    public static void closeStreamingConnection(DBConnection dbc)
+    {
+        if (dbc != null) {
+            if (!dbc.releaseConnection()) {
+                dbc.closeConnection();
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private DBFactory<DBR>      factory         = null;
+
+    private DBConnection        dbConnection    = null;
+    private boolean             ownConnection   = false;
+    private Statement           stmt            = null;
+    private ResultSet           resultSet       = null;
+
+    private Iterator<DBR>       iterator        = null;
+
+    private DBR                 nextRecord      = null;
+    private boolean             isClosed        = false;
+    private long                readCount       = 0L;
+
+    /**
+    *** Constructor
+    *** @param records An array of DBRecords (already selected)
+    **/
+    public DBRecordCursor(DBR records[])
+    {
+        super();
+        this.iterator = ListTools.toIterator(records);
+    }
+
+    /**
+    *** Constructor
+    *** @param dsel  The DBSelect selection criteria
+    *** @throws DBException if a DB access error occurs
+    **/
+    public DBRecordCursor(DBSelect<DBR> dsel)
+        throws DBException
+    {
+        this(dsel, null);
+    }
+
+    /**
+    *** Constructor
+    *** @param dsel        The DBSelect selection criteria
+    *** @param streamConn  The streaming connection on which the selection is executed (not
+    ***                    closed with this cursor), or null to open a separate connection for
+    ***                    this cursor.  No other cursor may be open on this connection.
+    *** @throws DBException if a DB access error occurs
+    **/
+    public DBRecordCursor(DBSelect<DBR> dsel, DBConnection streamConn)
+        throws DBException
+    {
+        super();
+        this.factory       = dsel.getFactory();
+        this.ownConnection = (streamConn == null);
+        this.dbConnection  = this.ownConnection? DBRecordCursor.openStreamingConnection() : streamConn;
+        try {
+            this.stmt      = this.dbConnection.execute(dsel.toString(), true); // row-by-row
+            this.resultSet = this.stmt.getResultSet();
+        } catch (SQLException sqe) {
+            this.close();
+            throw new DBException("Record Selection", sqe);
+        } catch (DBException dbe) {
+            this.close();
+            throw dbe;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns true if another DBRecord is available from this cursor
+    *** @return True if another DBRecord is available
+    **/
+    public boolean hasNext()
+    {
+        if (this.nextRecord == null) {
+            try {
+                this.nextRecord = this._fetch();
+            } catch (DBException dbe) {
+                throw new FetchException(dbe);
+            }
+        }
+        return (this.nextRecord != null);
+    }
+
+    /**
+    *** Returns the next DBRecord from this cursor
+    *** @return The next DBRecord
+    *** @throws NoSuchElementException if there are no more records
+    **/
+    public DBR next()
+    {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException("No more records");
+        }
+        DBR rcd = this.nextRecord;
+        this.nextRecord = null;
+        this.readCount++;
+        return rcd;
+    }
+
+    /**
+    *** Returns the next DBRecord from this cursor, or null if there are no more records
+    *** @return The next DBRecord, or null if there are no more records
+    *** @throws DBException if the selection could not be read
+    **/
+    public DBR nextRecord()
+        throws DBException
+    {
+        DBR rcd = this.nextRecord;
+        if (rcd == null) {
+            rcd = this._fetch();
+            if (rcd == null) {
+                return null;
+            }
+        }
+        this.nextRecord = null;
+        this.readCount++;
+        return rcd;
+    }
+
+    /**
+    *** Unsupported operation
+    *** @throws UnsupportedOperationException always
+    **/
+    public void remove()
+    {
+        throw new UnsupportedOperationException("DBRecordCursor.remove");
+    }
+
+    /**
+    *** Returns the number of records returned by this cursor so far
+    *** @return The number of records returned
+    **/
+    public long getReadCount()
+    {
+        return this.readCount;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Reads the next record from the underlying ResultSet (or array iterator)
+    *** @return The next record, or null if there are no more records
+    *** @throws DBException if the selection could not be read (the cursor is closed)
+    **/
+    private DBR _fetch()
+        throws DBException
+    {
+
+        /* closed? */
+        if (this.isClosed) {
+            return null;
+        }
+
+        /* array iterator */
+        if (this.iterator != null) {
+            if (this.iterator.hasNext()) {
+                return this.iterator.next();
+            } else {
+                this.close();
+                return null;
+            }
+        }
+
+        /* ResultSet */
+        try {
+            while ((this.resultSet != null) && this.resultSet.next()) {
+                DBRecordKey<DBR> rcdKey = this.factory.createKey(this.resultSet); // may throw DBException
+                if (rcdKey != null) {
+                    DBR rcd = rcdKey.getDBRecord();
+                    rcd.setFieldValues(this.resultSet);
+                    return rcd;
+                }
+            }
+        } catch (SQLException sqe) {
+            this.close();
+            throw new DBException("Record Cursor [" + this.factory.getTableName() + "]", sqe);
+        } catch (DBException dbe) {
+            this.close();
+            throw dbe;
+        }
+
+        /* end of data */
+        this.close();
+        return null;
+
+    }
+
+    /**
+    *** Closes this cursor, and releases the underlying ResultSet and connection
+    **/
+    public void close()
+    {
+        if (!this.isClosed) {
+            this.isClosed = true;
+            if (this.resultSet != null) { try { this.resultSet.close(); } catch (Throwable t) {} }
+            if (this.stmt      != null) { try { this.stmt.close();      } catch (Throwable t) {} }
+            if (this.ownConnection) {
+                DBRecordCursor.closeStreamingConnection(this.dbConnection);
+            }
+            this.resultSet    = null;
+            this.stmt         = null;
+            this.dbConnection = null;
+            this.iterator     = null;
+        }
+    }
+
+    /**
+    *** Returns true if this cursor has been closed
+    *** @return True if this cursor has been closed
+    **/
+    public boolean isClosed()
+    {
+        return this.isClosed;
+    }
+
+}
@@ -46,6 +46,9 @@
 //     -Added 'soapXML' argument to various methods.
 //  2009/11/01  Martin D. Flynn
 //     -Added support for 'autoIndex' field
+//  2010/01/11  Martin D. Flynn
+//     -Added 'recordDidDelete' callback
+//     -Keyed 'exists' lookups optionally use a PreparedStatement
 // ----------------------------------------------------------------------------
 package org.opengts.dbtools;
 
@@ -382,12 +385,21 @@ public abstract class DBRecordKey<gDBR extends DBRecord>
         dsel.setWhere(this._getWhereClause(altIndexName, whereKeyType));
 
         /* get keyed record */
+        DBConnection dbc = DBConnection.getDefaultConnection();
         Statement stmt = null;
         ResultSet rs = null;
         boolean exists = false;
         try {
-            stmt = DBConnection.getDefaultConnection().execute(dsel.toString()); // may throw DBException
-            rs = stmt.getResultSet();
+            if (DBConnection.getUsePreparedStatements()) {
+                // SELECT <Key> FROM <TableName> WHERE (<Key>=?) ...
+                DBField whereFlds[] = this._getWhereKeyFields(altIndexName, whereKeyType);
+                String sql = "SELECT " + firstKey + " FROM " + dsel.getTableName() + DBRecordKey._getPreparedWhereClause(whereFlds);
+                rs = dbc.executeQuery(sql, whereFlds, this._getFieldValues(whereFlds)); // may throw DBException
+                stmt = rs.getStatement();
+            } else {
+                stmt = dbc.execute(dsel.toString()); // may throw DBException
+                rs = stmt.getResultSet();
+            }
             exists = rs.next();
         } catch (SQLException sqe) {
             if (sqe.getErrorCode() == DBFactory.SQLERR_TABLE_NOTLOCKED) {
@@ -405,7 +417,7 @@ public abstract class DBRecordKey<gDBR extends DBRecord>
             }
         } finally {
             if (rs   != null) { try { rs.close();   } catch (Throwable t) {} }
-            if (stmt != null) { try { stmt.close(); } catch (Throwable t) {} }
+            if (stmt != null) { dbc.releaseStatement(stmt); }
         }
         
         return exists;
@@ -532,6 +544,16 @@ public abstract class DBRecordKey<gDBR extends DBRecord>
         ddel.setWhere(this._getWhereClause(altIndexName, whereKeyType));
         //Print.logInfo("DBDelete: " + ddel);
         DBConnection.getDefaultConnection().executeUpdate(ddel.toString());
+        this.recordDidDelete();
+    }
+
+    /**
+    *** Callback after the record(s) matching this key have been deleted from the table.
+    *** (this key may be a partial key when deleting dependent children records)
+    **/
+    protected void recordDidDelete()
+    {
+        // override to be notified of deletions
     }
     
     protected void _deleteDependencies()
@@ -597,6 +619,60 @@ public abstract class DBRecordKey<gDBR extends DBRecord>
         throws DBException
     {
 
+        /* key fields */
+        DBField whereFlds[] = this._getWhereKeyFields(altIndexName, whereKeyType);
+
+        /* WHERE */
+        DBWhere dwh = new DBWhere(this.getFactory());
+        DBFieldValues fldVals = this.getFieldValues();
+        for (int i = 0; i < whereFlds.length; i++) {
+            String fldName = whereFlds[i].getName();
+            String fev = dwh.EQ(fldName,fldVals.getFieldValueAsString(fldName));
+            if (i > 0) {
+                dwh.append(dwh.AND_(fev));
+            } else {
+                dwh.append(fev);
+            }
+        }
+
+        return (whereFlds.length > 1)? dwh.WHERE(dwh.toString()) : dwh.WHERE_(dwh.toString());
+        
+    }
+
+    /**
+    *** Return the parameterized 'WHERE' clause for the specified key fields
+    *** (ie. " WHERE ( (key1=?) AND (key2=?) )")
+    *** @param whereFlds  The key fields (see "_getWhereKeyFields")
+    *** @return The parameterized 'WHERE' clause
+    **/
+    protected static String _getPreparedWhereClause(DBField whereFlds[])
+    {
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < whereFlds.length; i++) {
+            if (i > 0) { sb.append(" AND "); }
+            sb.append("(").append(whereFlds[i].getName()).append("=?)");
+        }
+        if (whereFlds.length > 1) {
+            return " WHERE ( " + sb + " )";
+        } else
+        if (whereFlds.length == 1) {
+            return " WHERE " + sb;
+        } else {
+            return "";
+        }
+    }
+
+    /**
+    *** Returns the key fields which will be included in the 'WHERE' clause for this key
+    *** @param altIndexName The alternate index name. If null or blank, uses 
+    ***        primary keys instead
+    *** @param whereKeyType The where key type. One of the constants from DBWhere
+    *** @return The 'WHERE' clause key fields
+    **/
+    protected DBField[] _getWhereKeyFields(String altIndexName, int whereKeyType)
+        throws DBException
+    {
+
         /* key fields */
         boolean usePrimaryKey = StringTools.isBlank(altIndexName);
         DBField keyFlds[] = usePrimaryKey? this.getKeyFields() : this.getAltKeyFields(altIndexName);
@@ -604,22 +680,15 @@ public abstract class DBRecordKey<gDBR extends DBRecord>
             throw new DBException("No keys found!"); 
         }
 
-        /* WHERE */
-        DBWhere dwh = new DBWhere(this.getFactory());
+        /* WHERE fields */
         DBFieldValues fldVals = this.getFieldValues();
-        int keyCnt = 0;
+        java.util.List<DBField> whereFlds = new Vector<DBField>();
         boolean hasPartialKey = false;
         for (int i = 0; i < keyFlds.length; i++) {
             String fldName = keyFlds[i].getName();
             if (fldVals.hasFieldValue(fldName)) {
                 if (!hasPartialKey || (whereKeyType == DBWhere.KEY_PARTIAL_ALL)) {
-                    String fev = dwh.EQ(fldName,fldVals.getFieldValueAsString(fldName));
-                    if (keyCnt > 0) {
-                        dwh.append(dwh.AND_(fev));
-                    } else {
-                        dwh.append(fev);
-                    }
-                    keyCnt++;
+                    whereFlds.add(keyFlds[i]);
                 } else {
                     // whereKeyType == DBWhere.KEY_PARTIAL_FIRST, and we found a subsequent key
                     String m = "Additional partial key in 'WHERE' clause! [" + this.getTableName() + "." + fldName + "]";
@@ -656,10 +725,25 @@ public abstract class DBRecordKey<gDBR extends DBRecord>
             }
         }
 
-        return (keyCnt > 1)? dwh.WHERE(dwh.toString()) : dwh.WHERE_(dwh.toString());
+        return whereFlds.toArray(new DBField[whereFlds.size()]);
         
     }
 
+    /**
+    *** Returns the current values of the specified fields
+    *** @param flds  The fields
+    *** @return The field values
+    **/
+    protected Object[] _getFieldValues(DBField flds[])
+    {
+        DBFieldValues fldVals = this.getFieldValues();
+        Object vals[] = new Object[flds.length];
+        for (int i = 0; i < flds.length; i++) {
+            vals[i] = fldVals.getFieldValue(flds[i].getName());
+        }
+        return vals;
+    }
+
     // ------------------------------------------------------------------------
 
     /* package */ gDBR _getDBRecord()
@@ -19,13 +19,32 @@
 // Change History:
 //  2009/12/16  Martin D. Flynn
 //     -Initial release
+//  2010/01/11  Martin D. Flynn
+//     -Replaced non-blocking read/write lock counters (which dropped lookups/inserts
+//      under contention) with lock-striped LRU segments.
+//     -Entries now expire based on the time they were cached, and are evicted in
+//      LRU order when a segment is full (no full-map trimming scans).
+//     -Cache keys are quantized latitude/longitude values (see 'setKeyDecimals').
+//     -Added hit/miss/eviction statistics, and optional persistence to a file.
+//     -Added per-ReverseGeocodeProvider shared caches (see 'getProviderCache').
 // ----------------------------------------------------------------------------
 package org.opengts.geocoder;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.io.*;
 
 import org.opengts.util.*;
 
+import org.opengts.db.DBConfig;
+
+/**
+*** <code>ReverseGeocodeCache</code> is a thread-safe cache of ReverseGeocode results keyed by
+*** a quantized GeoPoint.  The cache is divided into a fixed number of independently locked
+*** segments, each of which is an access-ordered map, so lookups and inserts are O(1) and
+*** threads only contend when they access the same segment.
+**/
+
 public class ReverseGeocodeCache
 {
 
@@ -33,22 +52,21 @@ public class ReverseGeocodeCache
 
     private static final long   DEFAULT_MAX_AGE_SEC     = DateTime.MinuteSeconds(60);
     private static final int    DEFAULT_MAX_SIZE        = 1000;
-    private static final String GEOPOINT_DECIMAL        = "4";
+    private static final int    DEFAULT_KEY_DECIMALS    = 4;    // approx 11 meters
+    private static final int    MAX_KEY_DECIMALS        = 6;
+
+    private static final int    DEFAULT_PROVIDER_MAX_SIZE       = 10000;
+    private static final long   DEFAULT_PROVIDER_MAX_AGE_SEC    = DateTime.DaySeconds(1);
+
+    private static final int    SEGMENT_COUNT           = 16;   // must be a power of 2
+
+    private static final int    FILE_MAGIC              = 0x52474331; // "RGC1"
+    private static final String FILE_EXTENSION          = ".rgcache";
     
     private static  boolean     DEBUG                   = false;
 
     // ------------------------------------------------------------------------
     
-    private static String formatGeoPoint(GeoPoint gp)
-    {
-        StringBuffer sb = new StringBuffer();
-        String fmt = GEOPOINT_DECIMAL;
-        sb.append(GeoPoint.formatLatitude( gp.getLatitude() , fmt, null));
-        sb.append(GeoPoint.PointSeparator);
-        sb.append(GeoPoint.formatLongitude(gp.getLongitude(), fmt, null));
-        return sb.toString();
-    }
-    
     private static long currentTimeSec()
     {
         if (DEBUG) {
@@ -58,6 +76,91 @@ public class ReverseGeocodeCache
         }
     }
 
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+    // Shared per-provider caches
+
+    private static Map<String,ReverseGeocodeCache> providerCacheMap = new HashMap<String,ReverseGeocodeCache>();
+    private static Thread                          shutdownHook     = null;
+
+    /**
+    *** Returns true if shared ReverseGeocodeProvider caching has been enabled
+    *** @return True if shared ReverseGeocodeProvider caching has been enabled
+    **/
+    public static boolean isProviderCacheEnabled()
+    {
+        return RTConfig.getBoolean(DBConfig.RGCACHE_ENABLED, false);
+    }
+
+    /**
+    *** Returns the shared cache for the specified ReverseGeocodeProvider.  The cache is
+    *** created (and loaded from the persistence directory, if configured) when first requested.
+    *** @param rgp  The ReverseGeocodeProvider
+    *** @return The shared cache, or null if provider caching has not been enabled
+    **/
+    public static ReverseGeocodeCache getProviderCache(ReverseGeocodeProvider rgp)
+    {
+        if ((rgp == null) || !ReverseGeocodeCache.isProviderCacheEnabled()) {
+            return null;
+        }
+        String name = StringTools.trim(rgp.getName());
+        synchronized (providerCacheMap) {
+            ReverseGeocodeCache rgc = providerCacheMap.get(name);
+            if (rgc == null) {
+                rgc = new ReverseGeocodeCache(
+                    RTConfig.getInt( DBConfig.RGCACHE_MAXIMUM_SIZE   , DEFAULT_PROVIDER_MAX_SIZE),
+                    RTConfig.getLong(DBConfig.RGCACHE_MAXIMUM_AGE_SEC, DEFAULT_PROVIDER_MAX_AGE_SEC));
+                rgc.setKeyDecimals(RTConfig.getInt(DBConfig.RGCACHE_KEY_DECIMALS, DEFAULT_KEY_DECIMALS));
+                File dir = RTConfig.getFile(DBConfig.RGCACHE_PERSIST_DIR, null);
+                if (dir != null) {
+                    rgc.setPersistFile(new File(dir, StringTools.isBlank(name)? ("default" + FILE_EXTENSION) : (name + FILE_EXTENSION)));
+                    rgc.loadCache();
+                    ReverseGeocodeCache._addShutdownHook();
+                }
+                providerCacheMap.put(name, rgc);
+                Print.logInfo("Created ReverseGeocodeCache for provider '%s' [maxSize=%d, maxAge=%d]",
+                    name, rgc.getMaxSize(), rgc.getMaxAgeSec());
+            }
+            return rgc;
+        }
+    }
+
+    /**
+    *** Saves all shared caches which have a persistence file (called at shutdown)
+    **/
+    public static void saveProviderCaches()
+    {
+        java.util.List<ReverseGeocodeCache> list = null;
+        synchronized (providerCacheMap) {
+            list = new Vector<ReverseGeocodeCache>(providerCacheMap.values());
+        }
+        for (ReverseGeocodeCache rgc : list) {
+            if (rgc.getPersistFile() != null) {
+                rgc.saveCache();
+            }
+        }
+    }
+
+    /**
+    *** Registers a shutdown hook which saves the shared caches (must be synchronized on 'providerCacheMap')
+    **/
+    private static void _addShutdownHook()
+    {
+        if (shutdownHook == null) {
+            shutdownHook = new Thread("ReverseGeocodeCache-shutdown") {
+                public void run() {
+                    ReverseGeocodeCache.saveProviderCaches();
+                }
+            };
+            try {
+                Runtime.getRuntime().addShutdownHook(shutdownHook);
+            } catch (IllegalStateException ise) {
+                // already shutting down
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
     // ------------------------------------------------------------------------
 
     public static class RGItem
@@ -68,6 +171,10 @@ public class ReverseGeocodeCache
             this.revGeocode = rg;
             this.updateTimestamp();
         }
+        public RGItem(ReverseGeocode rg, long timestamp) {
+            this.revGeocode = rg;
+            this.timestamp  = timestamp;
+        }
         public long getTimestamp() {
             return this.timestamp;
         }
@@ -81,13 +188,40 @@ public class ReverseGeocodeCache
     
     // ------------------------------------------------------------------------
     
-    private Map<String,RGItem>  rgCacheMap       = new HashMap<String,RGItem>();
+    /**
+    *** Cache segment: an access-ordered (LRU) map which evicts its eldest entry when full
+    **/
+    private class Segment
+        extends LinkedHashMap<Long,RGItem>
+    {
+        public Segment() {
+            super(64, 0.75F, true);
+        }
+        protected boolean removeEldestEntry(Map.Entry<Long,RGItem> eldest) {
+            if (this.size() > ReverseGeocodeCache.this.getSegmentMaxSize()) {
+                ReverseGeocodeCache.this.evictCount.incrementAndGet();
+                return true;
+            } else {
+                return false;
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private Segment             segments[]       = null;
     private int                 maxCacheSize     = DEFAULT_MAX_SIZE;
     private long                maxAgeSec        = DEFAULT_MAX_AGE_SEC;
+    private int                 keyDecimals      = DEFAULT_KEY_DECIMALS;
+    private double              keyScale         = 10000.0;
 
-    private Object              mapLock          = new Object();
-    private int                 readLockCount    = 0;
-    private int                 writeLockCount   = 0;
+    private File                persistFile      = null;
+
+    private AtomicLong          hitCount         = new AtomicLong(0L);
+    private AtomicLong          missCount        = new AtomicLong(0L);
+    private AtomicLong          addCount         = new AtomicLong(0L);
+    private AtomicLong          evictCount       = new AtomicLong(0L);
+    private AtomicLong          expireCount      = new AtomicLong(0L);
 
     public ReverseGeocodeCache()
     {
@@ -97,6 +231,10 @@ public class ReverseGeocodeCache
     public ReverseGeocodeCache(int maxSize, long maxAge)
     {
         super();
+        this.segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < this.segments.length; i++) {
+            this.segments[i] = new Segment();
+        }
         this.setMaxSize(maxSize);
         this.setMaxAgeSec(maxAge);
     }
@@ -117,6 +255,11 @@ public class ReverseGeocodeCache
         return this.maxCacheSize;
     }
 
+    private int getSegmentMaxSize()
+    {
+        return (this.maxCacheSize + SEGMENT_COUNT - 1) / SEGMENT_COUNT;
+    }
+
     // ------------------------------------------------------------------------
 
     public void setMaxAgeSec(long maxAge)
@@ -129,34 +272,55 @@ public class ReverseGeocodeCache
         return this.maxAgeSec;
     }
 
-    // ------------------------------------------------------------------------
     // ------------------------------------------------------------------------
 
-    private boolean getReadLock()
+    /**
+    *** Sets the number of latitude/longitude decimal places used to form the cache key.
+    *** GeoPoints which are equal when rounded to this number of places share a cache entry.
+    *** (4 places is approximately 11 meters).  Changing this value clears the cache.
+    *** @param decimals  The number of decimal places [0..6]
+    **/
+    public void setKeyDecimals(int decimals)
     {
-        boolean rtn = false;
-        synchronized (this.mapLock) {
-            if (this.writeLockCount == 0) {
-                this.readLockCount++;
-                rtn = true;
+        int dec = (decimals < 0)? DEFAULT_KEY_DECIMALS : Math.min(decimals, MAX_KEY_DECIMALS);
+        if (dec != this.keyDecimals) {
+            this.clear();
+            this.keyDecimals = dec;
+            this.keyScale    = Math.pow(10.0, (double)dec);
             }
         }
-        return rtn;
+
+    /**
+    *** Gets the number of latitude/longitude decimal places used to form the cache key
+    *** @return The number of decimal places
+    **/
+    public int getKeyDecimals()
+    {
+        return this.keyDecimals;
     }
 
-    private boolean releaseReadLock()
+    /**
+    *** Returns the quantized cache key for the specified GeoPoint
+    **/
+    private long _getKey(GeoPoint gp)
     {
-        boolean rtn = false;
-        synchronized (this.mapLock) {
-            if (this.readLockCount > 0) {
-                this.readLockCount--;
-                rtn = true;
-            } else {
-                Print.logStackTrace("Read lock released, with no active lock");
+        long latKey = Math.round(gp.getLatitude()  * this.keyScale);
+        long lonKey = Math.round(gp.getLongitude() * this.keyScale);
+        return (latKey << 32) | (lonKey & 0xFFFFFFFFL);
             }
+
+    /**
+    *** Returns the segment which holds the specified key
+    **/
+    private Segment _getSegment(long key)
+    {
+        int h = (int)(key ^ (key >>> 32));
+        h ^= (h >>> 16) ^ (h >>> 8);
+        return this.segments[h & (SEGMENT_COUNT - 1)];
         }
-        return rtn;
-    }
+
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
 
     public ReverseGeocode getReverseGeocode(GeoPoint gp)
     {
@@ -164,20 +328,23 @@ public class ReverseGeocodeCache
 
         /* get ReverseGeocode */
         if ((gp != null) && gp.isValid()) {
-            boolean readLocked = false;
-            try {
-                readLocked = this.getReadLock();
-                if (readLocked) {
-                    RGItem rgi = this.rgCacheMap.get(formatGeoPoint(gp));
+            Long    key = new Long(this._getKey(gp));
+            Segment seg = this._getSegment(key.longValue());
+            synchronized (seg) {
+                RGItem rgi = seg.get(key);
                     if (rgi != null) {
-                        rgi.updateTimestamp();
+                    if (rgi.getTimestamp() <= (currentTimeSec() - this.maxAgeSec)) {
+                        seg.remove(key);
+                        this.expireCount.incrementAndGet();
+                    } else {
                         rg = rgi.getReverseGeocode();
                     }
                 }
-            } finally {
-                if (readLocked) {
-                    this.releaseReadLock();
                 }
+            if (rg != null) {
+                this.hitCount.incrementAndGet();
+            } else {
+                this.missCount.incrementAndGet();
             }
         }
 
@@ -186,77 +353,285 @@ public class ReverseGeocodeCache
 
     }
 
-    // ------------------------------------------------------------------------
+    public boolean addReverseGeocode(GeoPoint gp, ReverseGeocode rg)
+    {
+        if ((gp != null) && gp.isValid() && (rg != null)) {
+            this._put(this._getKey(gp), new RGItem(rg));
+            this.addCount.incrementAndGet();
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private void _put(long key, RGItem rgi)
+    {
+        Segment seg = this._getSegment(key);
+        synchronized (seg) {
+            seg.put(new Long(key), rgi); // may evict eldest entry
+        }
+    }
+
     // ------------------------------------------------------------------------
 
-    private boolean getWriteLock()
+    /**
+    *** Removes all entries from this cache
+    **/
+    public void clear()
     {
-        boolean rtn = false;
-        synchronized (this.mapLock) {
-            if ((this.writeLockCount == 0) && (this.readLockCount == 0)) {
-                this.writeLockCount++;
-                rtn = true;
+        for (int i = 0; i < this.segments.length; i++) {
+            synchronized (this.segments[i]) {
+                this.segments[i].clear();
             }
         }
-        return rtn;
     }
 
-    private boolean releaseWriteLock()
+    /**
+    *** Returns the number of entries currently in this cache
+    *** @return The number of entries currently in this cache
+    **/
+    public int size()
     {
-        boolean rtn = false;
-        synchronized (this.mapLock) {
-            if (this.writeLockCount > 0) {
-                this.writeLockCount--;
-                rtn = true;
-            } else {
-                Print.logStackTrace("Write lock released, with no active lock");
+        int size = 0;
+        for (int i = 0; i < this.segments.length; i++) {
+            synchronized (this.segments[i]) {
+                size += this.segments[i].size();
             }
         }
-        return rtn;
+        return size;
     }
 
-    public boolean addReverseGeocode(GeoPoint gp, ReverseGeocode rg)
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Gets the number of lookups which found a cached entry
+    *** @return The hit count
+    **/
+    public long getHitCount()
     {
-        boolean rtn = false;
-        if ((gp != null) && gp.isValid() && (rg != null)) {
-            boolean writeLocked = false;
-            try {
-                writeLocked = this.getWriteLock();
-                if (writeLocked) {
-                    this.rgCacheMap.put(formatGeoPoint(gp), new RGItem(rg));
-                    rtn = true;
-                    int rgSize = this.rgCacheMap.size();
-                    if (rgSize > this.maxCacheSize) {
-                        if (DEBUG) { Print.logInfo("\n\nTrimming cache ..."); }
-                        long maxTime = currentTimeSec() - this.maxAgeSec;
-                        for (Iterator<String> i = this.rgCacheMap.keySet().iterator(); i.hasNext();) {
-                            String key = i.next();
-                            RGItem rgi = this.rgCacheMap.get(key);
-                            if (rgi.getTimestamp() <= maxTime) {
-                                i.remove();
-                            }
-                        }
-                        if (DEBUG) { Print.logInfo("Old size="+rgSize +" New size="+this.rgCacheMap.size()); }
-                        if (this.rgCacheMap.size() > this.maxCacheSize) {
-                            Print.logWarn("Unable to trim ReverseGeocodeCache entries: " + this.rgCacheMap.size());
-                            long minSec = DateTime.MinuteSeconds(15);
-                            if (this.maxAgeSec > (2L * minSec)) {
-                                this.maxAgeSec -= minSec;
-                            } else {
-                                this.maxAgeSec = this.maxAgeSec / 2L;
+        return this.hitCount.get();
+    }
+
+    /**
+    *** Gets the number of lookups which did not find a cached entry
+    *** @return The miss count
+    **/
+    public long getMissCount()
+    {
+        return this.missCount.get();
+    }
+
+    /**
+    *** Gets the ratio of hits to total lookups
+    *** @return The hit rate [0.0 .. 1.0]
+    **/
+    public double getHitRate()
+    {
+        long hit   = this.getHitCount();
+        long total = hit + this.getMissCount();
+        return (total > 0L)? ((double)hit / (double)total) : 0.0;
+    }
+
+    /**
+    *** Gets the number of entries evicted because the cache was full
+    *** @return The eviction count
+    **/
+    public long getEvictionCount()
+    {
+        return this.evictCount.get();
+    }
+
+    /**
+    *** Gets the number of entries removed because they exceeded the maximum age
+    *** @return The expiration count
+    **/
+    public long getExpirationCount()
+    {
+        return this.expireCount.get();
+    }
+
+    /**
+    *** Resets the statistics counters
+    **/
+    public void resetStatistics()
+    {
+        this.hitCount.set(0L);
+        this.missCount.set(0L);
+        this.addCount.set(0L);
+        this.evictCount.set(0L);
+        this.expireCount.set(0L);
+    }
+
+    /**
+    *** Returns a String representation of the cache statistics
+    *** @return A String representation of the cache statistics
+    **/
+    public String toString()
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append("size=").append(this.size()).append("/").append(this.getMaxSize());
+        sb.append(", hits=").append(this.getHitCount());
+        sb.append(", misses=").append(this.getMissCount());
+        sb.append(", hitRate=").append(StringTools.format(this.getHitRate() * 100.0,"0.0")).append("%");
+        sb.append(", added=").append(this.addCount.get());
+        sb.append(", evicted=").append(this.getEvictionCount());
+        sb.append(", expired=").append(this.getExpirationCount());
+        return sb.toString();
+    }
+
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Sets the file used to persist this cache
+    *** @param file  The persistence file (null to disable persistence)
+    **/
+    public void setPersistFile(File file)
+    {
+        this.persistFile = file;
+    }
+
+    /**
+    *** Gets the file used to persist this cache
+    *** @return The persistence file, or null if persistence is disabled
+    **/
+    public File getPersistFile()
+    {
+        return this.persistFile;
+    }
+
+    /**
+    *** Loads unexpired cache entries from the persistence file
+    *** @return The number of entries loaded
+    **/
+    public int loadCache()
+    {
+        File file = this.getPersistFile();
+        if ((file == null) || !file.isFile()) {
+            return 0;
+        }
+        int count = 0;
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (dis.readInt() != FILE_MAGIC) {
+                Print.logWarn("Invalid ReverseGeocodeCache file: " + file);
+                return 0;
+            } else
+            if (dis.readInt() != this.getKeyDecimals()) {
+                Print.logInfo("ReverseGeocodeCache key decimals changed, ignoring file: " + file);
+                return 0;
+            }
+            long minTime = currentTimeSec() - this.maxAgeSec;
+            int  size    = dis.readInt();
+            for (int i = 0; i < size; i++) {
+                long key = dis.readLong();
+                long ts  = dis.readLong();
+                ReverseGeocode rg = new ReverseGeocode();
+                rg.setFullAddress(  _readString(dis));
+                rg.setStreetAddress(_readString(dis));
+                rg.setCity(         _readString(dis));
+                rg.setStateProvince(_readString(dis));
+                rg.setPostalCode(   _readString(dis));
+                rg.setCountryCode(  _readString(dis));
+                rg.setSubdivision(  _readString(dis));
+                rg.setSpeedLimitKPH(dis.readDouble());
+                int toll = dis.readByte();
+                if (toll >= 0) {
+                    rg.setIsTollRoad(toll == 1);
+                }
+                if (ts > minTime) {
+                    this._put(key, new RGItem(rg, ts));
+                    count++;
+            }
+        }
+            Print.logInfo("Loaded %d ReverseGeocodeCache entries from %s", count, file);
+        } catch (IOException ioe) {
+            Print.logError("Unable to load ReverseGeocodeCache file: " + file + " [" + ioe + "]");
+        } finally {
+            if (dis != null) { try { dis.close(); } catch (IOException ioe) {/*ignore*/} }
+        }
+        return count;
+    }
+
+    /**
+    *** Saves the current cache entries to the persistence file
+    *** @return True if the cache was saved
+    **/
+    public boolean saveCache()
+    {
+        File file = this.getPersistFile();
+        if (file == null) {
+            return false;
+    }
+
+        /* snapshot entries */
+        java.util.List<Map.Entry<Long,RGItem>> list = new Vector<Map.Entry<Long,RGItem>>();
+        for (int i = 0; i < this.segments.length; i++) {
+            synchronized (this.segments[i]) {
+                for (Map.Entry<Long,RGItem> me : this.segments[i].entrySet()) {
+                    list.add(new AbstractMap.SimpleEntry<Long,RGItem>(me.getKey(), me.getValue()));
                             }
                         }
                     }
-                } else {
-                    Print.logInfo("Unable to obtain write lock");
+
+        /* write to temporary file, then rename */
+        File tmpFile = new File(file.getPath() + ".tmp");
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            dos.writeInt(FILE_MAGIC);
+            dos.writeInt(this.getKeyDecimals());
+            dos.writeInt(list.size());
+            for (Map.Entry<Long,RGItem> me : list) {
+                ReverseGeocode rg = me.getValue().getReverseGeocode();
+                dos.writeLong(me.getKey().longValue());
+                dos.writeLong(me.getValue().getTimestamp());
+                _writeString(dos, rg.getFullAddress());
+                _writeString(dos, rg.getStreetAddress());
+                _writeString(dos, rg.getCity());
+                _writeString(dos, rg.getStateProvince());
+                _writeString(dos, rg.getPostalCode());
+                _writeString(dos, rg.getCountryCode());
+                _writeString(dos, rg.getSubdivision());
+                dos.writeDouble(rg.getSpeedLimitKPH());
+                dos.writeByte(rg.hasIsTollRoad()? (rg.getIsTollRoad()? 1 : 0) : -1);
                 }
+            dos.close();
+            dos = null;
+            if (file.exists() && !file.delete()) {
+                Print.logError("Unable to replace ReverseGeocodeCache file: " + file);
+                return false;
+            } else
+            if (!tmpFile.renameTo(file)) {
+                Print.logError("Unable to rename ReverseGeocodeCache file: " + tmpFile);
+                return false;
+            }
+            Print.logInfo("Saved %d ReverseGeocodeCache entries to %s", list.size(), file);
+            return true;
+        } catch (IOException ioe) {
+            Print.logError("Unable to save ReverseGeocodeCache file: " + file + " [" + ioe + "]");
+            return false;
             } finally {
-                if (writeLocked) {
-                    this.releaseWriteLock();
+            if (dos != null) { try { dos.close(); } catch (IOException ioe) {/*ignore*/} }
+        }
+
+    }
+
+    private static void _writeString(DataOutputStream dos, String s)
+        throws IOException
+    {
+        dos.writeBoolean(s != null);
+        if (s != null) {
+            dos.writeUTF(s);
                 }
             }
-        }
-        return rtn;
+
+    private static String _readString(DataInputStream dis)
+        throws IOException
+    {
+        return dis.readBoolean()? dis.readUTF() : null;
     }
 
     // ------------------------------------------------------------------------
@@ -273,17 +648,17 @@ public class ReverseGeocodeCache
         double baseLon = -142.0000;
         Random rand = new Random();
         
-        for (;;) {
+        for (long n = 1L;; n++) {
             double lat = baseLat + ((double)rand.nextInt(100) / 100.0);
             double lon = baseLon + ((double)rand.nextInt(100) / 100.0);
             GeoPoint gp = new GeoPoint(lat, lon);
             
             ReverseGeocode rg = rgc.getReverseGeocode(gp);
-            if (rg != null) {
-                Print.sysPrintln("Found RG: " + gp);
-            } else {
+            if (rg == null) {
                 rgc.addReverseGeocode(gp, new ReverseGeocode());
-                //Print.sysPrintln("Added RG: " + gp);
+            }
+            if ((n % 1000000L) == 0L) {
+                Print.sysPrintln("Cache: " + rgc);
             }
             
         }
@@ -22,6 +22,9 @@
 //  2009/08/23  Martin D. Flynn
 //     -Fixed improper handling of speed/heading (thanks to Lyudmil Shoshorov 
 //      for finding this issue).
+//  2010/01/11  Martin D. Flynn
+//     -Account lookups optionally use the DeviceIdentityCache
+//     -Event field values are now held in primitive fields (previously RTProperties)
 // ----------------------------------------------------------------------------
 package org.opengts.servers;
 
@@ -42,8 +45,39 @@ public class GPSEvent
 
     // ------------------------------------------------------------------------
 
+    // field value presence mask
+    private static final int    FLD_TIMESTAMP       = 0x0001;
+    private static final int    FLD_STATUSCODE      = 0x0002;
+    private static final int    FLD_LATITUDE        = 0x0004;
+    private static final int    FLD_LONGITUDE       = 0x0008;
+    private static final int    FLD_GPSAGE          = 0x0010;
+    private static final int    FLD_SATCOUNT        = 0x0020;
+    private static final int    FLD_BATTERY         = 0x0040;
+    private static final int    FLD_SPEED           = 0x0080;
+    private static final int    FLD_HEADING         = 0x0100;
+    private static final int    FLD_ALTITUDE        = 0x0200;
+    private static final int    FLD_ODOMETER        = 0x0400;
+    private static final int    FLD_INPUTMASK       = 0x0800;
+
+    // ------------------------------------------------------------------------
+
     private DCServerConfig  server          = null;
-    private RTProperties    fieldValues     = null;
+
+    // Event field values are held in primitive fields (rather than a property map of boxed
+    // values), since a GPSEvent is created for every packet received.
+    private int             fieldMask       = 0;
+    private long            timestamp       = 0L;
+    private int             statusCode      = StatusCodes.STATUS_LOCATION;
+    private double          latitude        = 0.0;
+    private double          longitude       = 0.0;
+    private long            gpsAge          = 0L;
+    private int             satelliteCount  = -1;
+    private double          batteryLevel    = 0.0;
+    private double          speedKPH        = 0.0;
+    private double          heading         = 0.0;
+    private double          altitude        = 0.0;
+    private double          odometerKM      = 0.0;
+    private long            inputMask       = 0L;
     
     private Device          device          = null;
     private DataTransport   dataXPort       = null;
@@ -56,7 +90,6 @@ public class GPSEvent
     public GPSEvent(DCServerConfig server, String ipAddress, int clientPort, String modemID)
     {
         this.server      = server;
-        this.fieldValues = new RTProperties();
         this._setDevice(this.loadDevice(modemID), ipAddress, clientPort);
     }
 
@@ -66,7 +99,6 @@ public class GPSEvent
     public GPSEvent(DCServerConfig server, String ipAddress, int clientPort, String acctID, String devID)
     {
         this.server      = server;
-        this.fieldValues = new RTProperties();
         this._setDevice(this.loadDevice(acctID,devID), ipAddress, clientPort);
     }
     
@@ -92,7 +124,9 @@ public class GPSEvent
             return this.loadDevice(devID);
         } else {
             try {
-                Account account = Account.getAccount(acctID);
+                Account account = DeviceIdentityCache.isEnabled()?
+                    DeviceIdentityCache.getAccount(acctID) :
+                    Account.getAccount(acctID);
                 if (account == null) {
                     Print.logError("Account-ID not found: " + acctID);
                     return null;
@@ -171,6 +205,35 @@ public class GPSEvent
     // ------------------------------------------------------------------------
     // ------------------------------------------------------------------------
 
+    /**
+    *** Clears all event field values, allowing this GPSEvent to be reused for the next event
+    *** received from the same Device
+    **/
+    public void clearFieldValues()
+    {
+        this.fieldMask      = 0;
+        this.timestamp      = 0L;
+        this.statusCode     = StatusCodes.STATUS_LOCATION;
+        this.latitude       = 0.0;
+        this.longitude      = 0.0;
+        this.gpsAge         = 0L;
+        this.satelliteCount = -1;
+        this.batteryLevel   = 0.0;
+        this.speedKPH       = 0.0;
+        this.heading        = 0.0;
+        this.altitude       = 0.0;
+        this.odometerKM     = 0.0;
+        this.inputMask      = 0L;
+    }
+
+    /* return true if the specified field value has been set */
+    private boolean _hasField(int fld)
+    {
+        return ((this.fieldMask & fld) != 0);
+    }
+
+    // ------------------------------------------------------------------------
+
     public boolean insertEventData(long fixtime, int statusCode)
     {
         this.setTimestamp(fixtime);
@@ -254,34 +317,36 @@ public class GPSEvent
 
     public void setTimestamp(long timestamp) 
     {
-        this.fieldValues.setLong(EventData.FLD_timestamp, timestamp);
+        this.timestamp = timestamp;
+        this.fieldMask |= FLD_TIMESTAMP;
     }
     
     public boolean hasTimestamp()
     {
-        return this.fieldValues.hasProperty(EventData.FLD_timestamp);
+        return this._hasField(FLD_TIMESTAMP);
     }
 
     public long getTimestamp() 
     {
-        return this.fieldValues.getLong(EventData.FLD_timestamp, 0L);
+        return this.timestamp;
     }
 
     // ------------------------------------------------------------------------
 
     public void setStatusCode(int code) 
     {
-        this.fieldValues.setInt(EventData.FLD_statusCode, code);
+        this.statusCode = code;
+        this.fieldMask |= FLD_STATUSCODE;
     }
     
     public boolean hasStatusCode()
     {
-        return this.fieldValues.hasProperty(EventData.FLD_statusCode);
+        return this._hasField(FLD_STATUSCODE);
     }
 
     public int getStatusCode() 
     {
-        return this.fieldValues.getInt(EventData.FLD_statusCode, StatusCodes.STATUS_LOCATION);
+        return this.statusCode;
     }
 
     // ------------------------------------------------------------------------
@@ -306,32 +371,34 @@ public class GPSEvent
 
     public void setLatitude(double lat) 
     {
-        this.fieldValues.setDouble(EventData.FLD_latitude, lat);
+        this.latitude = lat;
+        this.fieldMask |= FLD_LATITUDE;
     }
     
     public boolean hasLatitude()
     {
-        return this.fieldValues.hasProperty(EventData.FLD_latitude);
+        return this._hasField(FLD_LATITUDE);
     }
 
     public double getLatitude() 
     {
-        return this.fieldValues.getDouble(EventData.FLD_latitude, 0.0);
+        return this.latitude;
     }
 
     public void setLongitude(double lon) 
     {
-        this.fieldValues.setDouble(EventData.FLD_longitude, lon);
+        this.longitude = lon;
+        this.fieldMask |= FLD_LONGITUDE;
     }
     
     public boolean hasLongitude()
     {
-        return this.fieldValues.hasProperty(EventData.FLD_longitude);
+        return this._hasField(FLD_LONGITUDE);
     }
 
     public double getLongitude() 
     {
-        return this.fieldValues.getDouble(EventData.FLD_longitude, 0.0);
+        return this.longitude;
     }
     
     public void setGeoPoint(GeoPoint gp)
@@ -359,126 +426,134 @@ public class GPSEvent
 
     public void setGpsAge(long ageSec) 
     {
-        this.fieldValues.setLong(EventData.FLD_gpsAge, ageSec);
+        this.gpsAge = ageSec;
+        this.fieldMask |= FLD_GPSAGE;
     }
     
     public boolean hasGpsAge()
     {
-        return this.fieldValues.hasProperty(EventData.FLD_gpsAge);
+        return this._hasField(FLD_GPSAGE);
     }
 
     public long getGpsAge() 
     {
-        return this.fieldValues.getLong(EventData.FLD_gpsAge, 0L);
+        return this.gpsAge;
     }
 
     // ------------------------------------------------------------------------
 
     public void setSatelliteCount(int count) 
     {
-        this.fieldValues.setInt(EventData.FLD_satelliteCount, count);
+        this.satelliteCount = count;
+        this.fieldMask |= FLD_SATCOUNT;
     }
     
     public boolean hasSatelliteCount()
     {
-        return this.fieldValues.hasProperty(EventData.FLD_satelliteCount);
+        return this._hasField(FLD_SATCOUNT);
     }
 
     public int getSatelliteCount() 
     {
-        return this.fieldValues.getInt(EventData.FLD_satelliteCount, -1);
+        return this.satelliteCount;
     }
 
     // ------------------------------------------------------------------------
 
     public void setBatteryLevel(double level) 
     {
-        this.fieldValues.setDouble(EventData.FLD_batteryLevel, level);
+        this.batteryLevel = level;
+        this.fieldMask |= FLD_BATTERY;
     }
     
     public boolean hasBatteryLevel()
     {
-        return this.fieldValues.hasProperty(EventData.FLD_batteryLevel);
+        return this._hasField(FLD_BATTERY);
     }
 
     public double getBatteryLevel() 
     {
-        return this.fieldValues.getDouble(EventData.FLD_batteryLevel, 0.0);
+        return this.batteryLevel;
     }
 
     // ------------------------------------------------------------------------
 
     public void setSpeedKPH(double kph) 
     {
-        this.fieldValues.setDouble(EventData.FLD_speedKPH, kph);
+        this.speedKPH = kph;
+        this.fieldMask |= FLD_SPEED;
     }
     
     public boolean hasSpeedKPH()
     {
-        return this.fieldValues.hasProperty(EventData.FLD_speedKPH);
+        return this._hasField(FLD_SPEED);
     }
 
     public double getSpeedKPH() 
     {
-        return this.fieldValues.getDouble(EventData.FLD_speedKPH, 0.0);
+        return this.speedKPH;
     }
 
     // ------------------------------------------------------------------------
 
     public void setHeading(double heading) 
     {
-        this.fieldValues.setDouble(EventData.FLD_heading, heading);
+        this.heading = heading;
+        this.fieldMask |= FLD_HEADING;
     }
     
     public boolean hasHeading()
     {
-        return this.fieldValues.hasProperty(EventData.FLD_heading);
+        return this._hasField(FLD_HEADING);
     }
 
     public double getHeading() 
     {
-        return this.fieldValues.getDouble(EventData.FLD_heading, 0.0);
+        return this.heading;
     }
 
     // ------------------------------------------------------------------------
 
     public void setAltitude(double altM) 
     {
-        this.fieldValues.setDouble(EventData.FLD_altitude, altM);
+        this.altitude = altM;
+        this.fieldMask |= FLD_ALTITUDE;
     }
     
     public boolean hasAltitude()
     {
-        return this.fieldValues.hasProperty(EventData.FLD_altitude);
+        return this._hasField(FLD_ALTITUDE);
     }
 
     public double getAltitude() 
     {
-        return this.fieldValues.getDouble(EventData.FLD_altitude, 0.0);
+        return this.altitude;
     }
 
     // ------------------------------------------------------------------------
 
     public void setOdometerKM(double km) 
     {
-        this.fieldValues.setDouble(EventData.FLD_odometerKM, km);
+        this.odometerKM = km;
+        this.fieldMask |= FLD_ODOMETER;
     }
     
     public boolean hasOdometerKM()
     {
-        return this.fieldValues.hasProperty(EventData.FLD_odometerKM);
+        return this._hasField(FLD_ODOMETER);
     }
 
     public double getOdometerKM() 
     {
-        return this.fieldValues.getDouble(EventData.FLD_odometerKM, 0.0);
+        return this.odometerKM;
     }
 
     // ------------------------------------------------------------------------
     
     public boolean hasGeozoneID()
     {
-        return this.fieldValues.hasProperty(EventData.FLD_geozoneID);
+        // not fully supported here
+        return false;
     }
 
     public String getGeozoneID() 
@@ -491,7 +566,8 @@ public class GPSEvent
     
     public boolean hasAddress()
     {
-        return this.fieldValues.hasProperty(EventData.FLD_address);
+        // not fully supported here
+        return false;
     }
 
     public String getAddress() 
@@ -504,17 +580,18 @@ public class GPSEvent
 
     public void setInputMask(long mask) 
     {
-        this.fieldValues.setLong(EventData.FLD_inputMask, mask);
+        this.inputMask = mask;
+        this.fieldMask |= FLD_INPUTMASK;
     }
     
     public boolean hasInputMask()
     {
-        return this.fieldValues.hasProperty(EventData.FLD_inputMask);
+        return this._hasField(FLD_INPUTMASK);
     }
 
     public long getInputMask() 
     {
-        return this.fieldValues.getLong(EventData.FLD_inputMask, 0L);
+        return this.inputMask;
     }
 
     // ------------------------------------------------------------------------
@@ -548,22 +625,11 @@ public class GPSEvent
         sb.append("  SpeedKPH  : " + StringTools.format(this.getSpeedKPH(),"0.0") + " [" + this.getHeading() + "]\n");
 
         /* remaining event fields */
-        OrderedSet<?> fldn = new OrderedSet<Object>(this.fieldValues.getPropertyKeys());
-        fldn.remove(EventData.FLD_timestamp);
-        fldn.remove(EventData.FLD_statusCode);
-        fldn.remove(EventData.FLD_latitude);
-        fldn.remove(EventData.FLD_longitude);
-        fldn.remove(EventData.FLD_gpsAge);
-        fldn.remove(EventData.FLD_speedKPH);
-        fldn.remove(EventData.FLD_heading);
-        for (Object k : fldn) {
-            Object v = this.fieldValues.getProperty(k,"?");
-            sb.append("  ");
-            sb.append(StringTools.leftAlign(k.toString(),10));
-            sb.append(": ");
-            sb.append(v.toString());
-            sb.append("\n");
-        }
+        if (this.hasSatelliteCount()) { sb.append("  Satellites: " + this.getSatelliteCount() + "\n"); }
+        if (this.hasBatteryLevel()  ) { sb.append("  Battery   : " + this.getBatteryLevel() + "\n"); }
+        if (this.hasAltitude()      ) { sb.append("  Altitude  : " + this.getAltitude() + "\n"); }
+        if (this.hasOdometerKM()    ) { sb.append("  Odometer  : " + StringTools.format(this.getOdometerKM(),"0.0") + "\n"); }
+        if (this.hasInputMask()     ) { sb.append("  InputMask : 0x" + StringTools.toHexString(this.getInputMask(),16) + "\n"); }
 
         /* return string */
         return sb.toString();
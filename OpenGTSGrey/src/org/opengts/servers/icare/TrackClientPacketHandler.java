@@ -27,6 +27,8 @@
 // Change History:
 //  2009/04/02  Martin D. Flynn
 //     -Initial release
+//  2010/01/11  Martin D. Flynn
+//     -Release pooled DB connections after each client packet, and at the end of the session
 // ----------------------------------------------------------------------------
 package org.opengts.servers.icare;
 
@@ -109,6 +111,9 @@ public class TrackClientPacketHandler
         } else {
             Print.logInfo("End UDP communication: " + this.ipAddress);
         }
+
+        // return any pooled DB connections held by this session thread
+        DBConnection.releaseThreadConnections();
         
     }
     
@@ -143,23 +148,29 @@ public class TrackClientPacketHandler
     /* workhorse of the packet handler */
     public byte[] getHandlePacket(byte pktBytes[]) 
     {
-        if (pktBytes == null) {
-            Print.logError("Packet is null");
-        } else
-        if (pktBytes.length < 12) {
-            Print.logError("Unexpected packet length: " + pktBytes.length);
-        } else {
-            // skip the first 12 bytes of this packet and parse the rest
-            int ofs = 12;
-            int len = pktBytes.length - ofs;
-            String s = StringTools.toStringValue(pktBytes,ofs,len).trim();
-            Print.logInfo("Recv: " + s); // debug message
-            this.parseInsertRecord(s);
-            this.eventCount++;
-            // the remainder of the data stream probably can be flushed
-            // this.terminate = true;
+        try {
+            if (pktBytes == null) {
+                Print.logError("Packet is null");
+            } else
+            if (pktBytes.length < 12) {
+                Print.logError("Unexpected packet length: " + pktBytes.length);
+            } else {
+                // skip the first 12 bytes of this packet and parse the rest
+                int ofs = 12;
+                int len = pktBytes.length - ofs;
+                String s = StringTools.toStringValue(pktBytes,ofs,len).trim();
+                Print.logInfo("Recv: " + s); // debug message
+                this.parseInsertRecord(s);
+                this.eventCount++;
+                // the remainder of the data stream probably can be flushed
+                // this.terminate = true;
+            }
+            return null; // no return packets are expected
+        } finally {
+            // return any pooled DB connections used by this packet (the session may remain
+            // open for a long time between packets)
+            DBConnection.releaseThreadConnections();
         }
-        return null; // no return packets are expected
     }
 
     // ------------------------------------------------------------------------
@@ -71,6 +71,8 @@
 //  2009/10/02  Martin D. Flynn
 //     -Modified to describe how to return ACK packets back to the device.
 //     -Added parser for RTProperties String (format #3)
+//  2010/01/11  Martin D. Flynn
+//     -Release pooled DB connections after each client packet, and at the end of the session
 // ----------------------------------------------------------------------------
 package org.opengts.servers.testserver;
 
@@ -268,6 +270,9 @@ public class TrackClientPacketHandler
             Print.logInfo("End UDP communication: " + this.ipAddress);
         }
 
+        // return any pooled DB connections held by this session thread
+        DBConnection.releaseThreadConnections();
+
     }
     
     // ------------------------------------------------------------------------
@@ -387,11 +392,18 @@ public class TrackClientPacketHandler
             String s = StringTools.toStringValue(pktBytes).trim(); // remove leading/trailing spaces
             Print.logInfo("Recv[TXT]: " + s); // debug message
             byte rtn[] = null;
-            switch (DATA_FORMAT_OPTION) {
-                case 1 : rtn = this.parseInsertRecord_ASCII_1(s); break;
-                case 2 : rtn = this.parseInsertRecord_ASCII_2(s); break;
-                case 3 : rtn = this.parseInsertRecord_RTProps(s); break;
-                default: Print.logError("Unspecified data format"); break;
+            try {
+                switch (DATA_FORMAT_OPTION) {
+                    case 1 : rtn = this.parseInsertRecord_ASCII_1(s); break;
+                    case 2 : rtn = this.parseInsertRecord_ASCII_2(s); break;
+                    case 3 : rtn = this.parseInsertRecord_RTProps(s); break;
+                    default: Print.logError("Unspecified data format"); break;
+                }
+            } finally {
+                // Return any pooled DB connections used while parsing/inserting this packet.
+                // A GPRS session may remain open for a long time between packets, and should
+                // not hold a pooled connection while idle.
+                DBConnection.releaseThreadConnections();
             }
             // If the client is expecting to receive a response from the server (such as an
             // acknowledgement), this is where the server should compose a returned response
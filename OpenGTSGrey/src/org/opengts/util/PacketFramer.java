@@ -0,0 +1,504 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2009, GeoTelematic Solutions, Inc.
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Client packet framing for 'ServerSocketThread' sessions
+// ----------------------------------------------------------------------------
+// Change History:
+//  2009/12/16  Martin D. Flynn
+//     -Initial release (framing rules moved from 'ServerSessionThread.readLine'
+//      and 'ServerSessionThread.readPacket')
+// ----------------------------------------------------------------------------
+package org.opengts.util;
+
+import java.io.*;
+import java.net.*;
+
+/**
+*** Assembles client packets from blocks of received bytes.<br>
+*** Text sessions are framed on the ServerSocketThread line terminator characters,
+*** binary sessions on the lengths returned by the ClientPacketHandler
+*** (<code>getMinimumPacketLength</code>, <code>getMaximumPacketLength</code>,
+*** <code>getActualPacketLength</code>).  Special characters are classified with
+*** a 256-entry lookup table, and runs of ordinary bytes are copied in bulk.
+**/
+
+public class PacketFramer
+{
+
+    // ------------------------------------------------------------------------
+
+    public static final int     CHAR_TERMINATOR     = 0x01;
+    public static final int     CHAR_IGNORE         = 0x02;
+    public static final int     CHAR_BACKSPACE      = 0x04;
+    public static final int     CHAR_NONPRINTABLE   = 0x08;
+
+    /**
+    *** Creates a character class lookup table for the specified ServerSocketThread
+    *** @param sst  The ServerSocketThread
+    *** @return The 256-entry character class table
+    **/
+    public static byte[] createCharClassTable(ServerSocketThread sst)
+    {
+        byte table[] = new byte[256];
+        for (int ch = 0; ch < table.length; ch++) {
+            int cc = 0;
+            if (sst.isLineTerminatorChar(ch)) { cc |= CHAR_TERMINATOR;   }
+            if (sst.isIgnoreChar(ch))         { cc |= CHAR_IGNORE;       }
+            if (sst.isBackspaceChar(ch))      { cc |= CHAR_BACKSPACE;    }
+            if ((ch < ' ') && (ch != '\t'))   { cc |= CHAR_NONPRINTABLE; }
+            table[ch] = (byte)cc;
+        }
+        return table;
+    }
+
+    // ------------------------------------------------------------------------
+
+    private ServerSocketThread  server          = null;
+    private ClientPacketHandler clientHandler   = null;
+    private boolean             isText          = true;
+    private byte                charClass[]     = null;
+
+    private byte                packet[]        = null;
+    private int                 packetLen       = 0;
+    private int                 actualLen       = 0;
+    private int                 minLen          = 0;
+    private int                 maxLen          = 0;
+    private boolean             isTextLine      = false;
+    private boolean             complete        = false;
+
+    /**
+    *** Constructor
+    *** @param sst      The ServerSocketThread providing the framing configuration
+    *** @param handler  The session ClientPacketHandler (may be null)
+    **/
+    public PacketFramer(ServerSocketThread sst, ClientPacketHandler handler)
+    {
+        this.server        = sst;
+        this.clientHandler = handler;
+        this.isText        = sst.isTextPackets();
+        this.charClass     = sst.getCharClassTable();
+        this.reset();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Discards any framed bytes and starts a new packet
+    **/
+    public void reset()
+    {
+        this.maxLen     = this._getMaximumPacketLength();
+        this.minLen     = this._getMinimumPacketLength();
+        this.actualLen  = 0;
+        this.packetLen  = 0;
+        this.isTextLine = false;
+        this.complete   = false;
+        if ((this.packet == null) || (this.packet.length < this.maxLen)) {
+            this.packet = new byte[this.maxLen];
+        }
+    }
+
+    /**
+    *** Returns true if a complete packet has been framed
+    *** @return True if a complete packet has been framed
+    **/
+    public boolean isComplete()
+    {
+        return this.complete;
+    }
+
+    /**
+    *** Gets the number of bytes framed so far in the current packet
+    *** @return The number of bytes framed in the current packet
+    **/
+    public int getLength()
+    {
+        return this.packetLen;
+    }
+
+    /**
+    *** Returns a copy of the bytes framed so far in the current packet
+    *** @return The current packet bytes
+    **/
+    public byte[] getPacket()
+    {
+        byte p[] = new byte[this.packetLen];
+        System.arraycopy(this.packet, 0, p, 0, this.packetLen);
+        return p;
+    }
+
+    /**
+    *** Returns the bytes framed so far as a String (text sessions) or hex (binary
+    *** sessions), for logging
+    *** @return The current packet as a String
+    **/
+    public String toString()
+    {
+        return this.isText?
+            StringTools.toStringValue(this.packet, 0, this.packetLen) :
+            StringTools.toHexString(this.packet, 0, this.packetLen);
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Appends received bytes to the current packet.  Stops consuming bytes as soon
+    *** as the packet is complete; any remaining bytes belong to the next packet.
+    *** @param b    The received bytes
+    *** @param ofs  The offset of the first byte
+    *** @param len  The number of available bytes
+    *** @return The number of bytes consumed
+    **/
+    public int append(byte b[], int ofs, int len)
+    {
+        if (this.complete || (len <= 0)) {
+            return 0;
+        } else
+        if (this.isText) {
+            return this._appendLine(b, ofs, len);
+        } else {
+            return this._appendPacket(b, ofs, len);
+        }
+    }
+
+    /* text packets: read until EOL, or 'maxLen' characters */
+    private int _appendLine(byte b[], int ofs, int len)
+    {
+        byte table[] = this.charClass;
+        int n = ofs, end = ofs + len;
+        while (n < end) {
+
+            /* bulk copy ordinary characters */
+            int runEnd = Math.min(end, n + (this.maxLen - this.packetLen));
+            int r = n;
+            while ((r < runEnd) && (table[b[r] & 0xFF] == 0)) { r++; }
+            if (r > n) {
+                System.arraycopy(b, n, this.packet, this.packetLen, r - n);
+                this.packetLen += (r - n);
+                n = r;
+                if (this.packetLen >= this.maxLen) {
+                    // we've read all the bytes we can
+                    this.complete = true;
+                    break;
+                }
+                if (n >= end) {
+                    break;
+                }
+            }
+
+            /* special character */
+            int cc = table[b[n++] & 0xFF];
+            if ((cc & CHAR_TERMINATOR) != 0) {
+                // end of line (typically '\n')
+                this.complete = true;
+                break;
+            } else
+            if ((cc & CHAR_IGNORE) != 0) {
+                // ignore this character (typically '\r')
+            } else
+            if ((cc & CHAR_BACKSPACE) != 0) {
+                if (this.packetLen > 0) {
+                    this.packetLen--;
+                }
+            } else {
+                // ignore non-printable characters
+            }
+
+        }
+        return n - ofs;
+    }
+
+    /* binary packets: read until 'maxLen', or 'actualLen' characters */
+    private int _appendPacket(byte b[], int ofs, int len)
+    {
+        byte table[] = this.charClass;
+        ClientPacketHandler handler = this.clientHandler;
+        int n = ofs, end = ofs + len;
+        while ((n < end) && !this.complete) {
+
+            /* look for line terminator? */
+            int lastByte;
+            if (this.isTextLine) {
+                lastByte = b[n++] & 0xFF;
+                int cc = table[lastByte];
+                if ((cc & CHAR_TERMINATOR) != 0) {
+                    // end of line (typically '\n')
+                    this.complete = true;
+                    break;
+                } else
+                if ((cc & CHAR_IGNORE) != 0) {
+                    // ignore this character (typically '\r')
+                    continue;
+                }
+                this.packet[this.packetLen++] = (byte)lastByte;
+            } else {
+                // copy up to the next length decision point
+                int want;
+                if (this.actualLen > 0) {
+                    want = this.actualLen - this.packetLen;
+                } else
+                if (handler != null) {
+                    want = Math.max(this.minLen - this.packetLen, 1);
+                } else {
+                    want = this.maxLen - this.packetLen;
+                }
+                want = Math.min(Math.min(want, this.maxLen - this.packetLen), end - n);
+                System.arraycopy(b, n, this.packet, this.packetLen, want);
+                this.packetLen += want;
+                n += want;
+                lastByte = this.packet[this.packetLen - 1] & 0xFF;
+            }
+
+            /* check lengths */
+            if (this.packetLen >= this.maxLen) {
+                // we've read all the bytes we can
+                this.complete = true;
+            } else
+            if ((this.actualLen > 0) && (this.packetLen >= this.actualLen)) {
+                // we've read the bytes we expected to read
+                this.complete = true;
+            } else
+            if ((handler != null) && (this.actualLen <= 0) && (this.packetLen >= this.minLen)) {
+                // we've read the minimum number of bytes
+                // get the actual/next expected packet length
+                int     pktLen  = handler.getActualPacketLength(this.packet, this.packetLen);
+                boolean actual  = (pktLen < ServerSocketThread.PACKET_LEN_INCREMENTAL_);
+                int     nextLen = actual? pktLen : (pktLen & 0xFFFF);
+                if (nextLen == this.packetLen) {
+                    // already have exactly what we need
+                    this.complete = true;
+                } else
+                if (nextLen == ServerSocketThread.PACKET_LEN_ASCII_LINE_TERMINATOR) {
+                    // look for line terminator character
+                    if ((table[lastByte] & CHAR_TERMINATOR) != 0) {
+                        // last byte was already a line terminator
+                        this.packetLen--; // remove terminator
+                        this.complete = true;
+                    } else {
+                        this.actualLen  = this.maxLen;
+                        this.isTextLine = true;
+                    }
+                } else
+                if (nextLen <= ServerSocketThread.PACKET_LEN_END_OF_STREAM) {
+                    // read the rest of the stream
+                    this.actualLen = this.maxLen;
+                } else
+                if (nextLen > this.maxLen) {
+                    // specified length is greater that the maximum
+                    Print.logStackTrace("Actual length [" + nextLen + "] > Maximum length [" + this.maxLen + "]");
+                    this.actualLen = this.maxLen;
+                } else
+                if (actual) {
+                    // read until actual size
+                    this.actualLen = nextLen;
+                } else {
+                    // reset minimum to next length
+                    this.minLen = nextLen;
+                }
+            }
+
+        }
+        return n - ofs;
+    }
+
+    // ------------------------------------------------------------------------
+
+    private int _getMinimumPacketLength()
+    {
+        if (this.clientHandler != null) {
+            int len = this.clientHandler.getMinimumPacketLength();
+            if (len > 0) {
+                return len;
+            }
+        }
+        return this.server.getMinimumPacketLength();
+    }
+
+    private int _getMaximumPacketLength()
+    {
+        if (this.clientHandler != null) {
+            int len = this.clientHandler.getMaximumPacketLength();
+            if (len > 0) {
+                return len;
+            }
+        }
+        return this.server.getMaximumPacketLength();
+    }
+
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
+    /* original byte-at-a-time text framing (for comparison in 'main') */
+    private static int _perByteLines(ServerSocketThread sst, InputStream input, int maxLen)
+        throws IOException
+    {
+        int count = 0;
+        byte buff[] = new byte[maxLen];
+        int buffLen = 0;
+        for (;;) {
+            int ch = input.read();
+            if (ch < 0) { break; }
+            if (sst.isLineTerminatorChar(ch)) {
+                byte p[] = new byte[buffLen];
+                System.arraycopy(buff, 0, p, 0, buffLen);
+                buffLen = 0;
+                count++;
+            } else
+            if (sst.isIgnoreChar(ch)) {
+                continue;
+            } else
+            if (sst.isBackspaceChar(ch)) {
+                if (buffLen > 0) { buffLen--; }
+            } else
+            if ((ch < ' ') && (ch != '\t')) {
+                continue;
+            } else {
+                buff[buffLen++] = (byte)ch;
+                if (buffLen >= maxLen) { buffLen = 0; count++; }
+            }
+        }
+        return count;
+    }
+
+    /* original byte-at-a-time binary framing (fixed length packets only, for comparison in 'main') */
+    private static int _perBytePackets(ClientPacketHandler handler, InputStream input)
+        throws IOException
+    {
+        int count = 0;
+        int minLen = handler.getMinimumPacketLength();
+        int maxLen = handler.getMaximumPacketLength();
+        byte packet[] = new byte[maxLen];
+        for (;;) {
+            int packetLen = 0;
+            int actualLen = 0;
+            for (;;) {
+                int ch = input.read();
+                if (ch < 0) { return count; }
+                packet[packetLen++] = (byte)ch;
+                if (packetLen >= maxLen) {
+                    break;
+                } else
+                if ((actualLen > 0) && (packetLen >= actualLen)) {
+                    break;
+                } else
+                if ((actualLen <= 0) && (packetLen >= minLen)) {
+                    actualLen = handler.getActualPacketLength(packet, packetLen);
+                    if (actualLen <= packetLen) { break; }
+                }
+            }
+            byte p[] = new byte[packetLen];
+            System.arraycopy(packet, 0, p, 0, packetLen);
+            count++;
+        }
+    }
+
+    /* buffered framing */
+    private static int _framedPackets(PacketFramer pf, InputStream input)
+        throws IOException
+    {
+        int count = 0;
+        byte rb[] = new byte[8192];
+        for (;;) {
+            int len = input.read(rb, 0, rb.length);
+            if (len < 0) { break; }
+            for (int n = 0; n < len;) {
+                n += pf.append(rb, n, len - n);
+                if (pf.isComplete()) {
+                    pf.getPacket();
+                    pf.reset();
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+    *** Main entry point for testing/debugging.  Compares the buffered framing
+    *** throughput against the original byte-at-a-time read loop, for both a text
+    *** (NMEA $GPRMC) stream and a binary (DMTP) stream.
+    *** @param argv Comand-line arguments
+    **/
+    public static void main(String argv[])
+        throws Exception
+    {
+        RTConfig.setCommandLineArgs(argv);
+        int loops = RTConfig.getInt("loops", 20);
+
+        /* text stream */
+        String rmc = "$GPRMC,080701.00,A,3128.7540,N,14257.6714,W,000.0,000.0,180707,,,A*1C\r\n";
+        ByteArrayOutputStream tbaos = new ByteArrayOutputStream();
+        for (int i = 0; i < 20000; i++) { tbaos.write(StringTools.getBytes(rmc)); }
+        byte text[] = tbaos.toByteArray();
+        ServerSocketThread tsst = new ServerSocketThread((ServerSocket)null);
+        tsst.setTextPackets(true);
+        tsst.setLineTerminatorChar(new int[] { '\r', '\n' });
+
+        /* binary stream (DMTP: 0xE0, type, length, payload) */
+        ByteArrayOutputStream bbaos = new ByteArrayOutputStream();
+        for (int i = 0; i < 20000; i++) {
+            bbaos.write(0xE0); bbaos.write(0x73); bbaos.write(24);
+            for (int p = 0; p < 24; p++) { bbaos.write(p); }
+        }
+        byte binary[] = bbaos.toByteArray();
+        ServerSocketThread bsst = new ServerSocketThread((ServerSocket)null);
+        bsst.setTextPackets(false);
+        ClientPacketHandler dmtp = new AbstractClientPacketHandler() {
+            public int getMinimumPacketLength() { return 3; }
+            public int getMaximumPacketLength() { return 258; }
+            public int getActualPacketLength(byte p[], int len) { return 3 + (p[2] & 0xFF); }
+            public byte[] getHandlePacket(byte cmd[]) { return null; }
+        };
+
+        /* per-byte reference vs. buffered framing */
+        long t0, t1;
+        int cnt = 0;
+        t0 = System.nanoTime();
+        for (int i = 0; i < loops; i++) {
+            cnt = _perByteLines(tsst, new ByteArrayInputStream(text), tsst.getMaximumPacketLength());
+        }
+        t1 = System.nanoTime();
+        Print.sysPrintln("Text   per-byte: %d packets, %.1f MB/s", cnt, _mbps(text.length * (long)loops, t1 - t0));
+        t0 = System.nanoTime();
+        for (int i = 0; i < loops; i++) {
+            cnt = _framedPackets(new PacketFramer(tsst,null), new ByteArrayInputStream(text));
+        }
+        t1 = System.nanoTime();
+        Print.sysPrintln("Text   buffered: %d packets, %.1f MB/s", cnt, _mbps(text.length * (long)loops, t1 - t0));
+        t0 = System.nanoTime();
+        for (int i = 0; i < loops; i++) {
+            cnt = _perBytePackets(dmtp, new ByteArrayInputStream(binary));
+        }
+        t1 = System.nanoTime();
+        Print.sysPrintln("Binary per-byte: %d packets, %.1f MB/s", cnt, _mbps(binary.length * (long)loops, t1 - t0));
+        t0 = System.nanoTime();
+        for (int i = 0; i < loops; i++) {
+            cnt = _framedPackets(new PacketFramer(bsst,dmtp), new ByteArrayInputStream(binary));
+        }
+        t1 = System.nanoTime();
+        Print.sysPrintln("Binary buffered: %d packets, %.1f MB/s", cnt, _mbps(binary.length * (long)loops, t1 - t0));
+
+    }
+
+    private static double _mbps(long bytes, long nanos)
+    {
+        return ((double)bytes / (1024.0 * 1024.0)) / ((double)nanos / 1000000000.0);
+    }
+
+}
@@ -40,6 +40,11 @@
 //  2009/02/20  Martin D. Flynn
 //     -Added aged rotated file deletion
 //     -Renamed log file rotation properties (check RTKey.java for latest names)
+//  2010/01/11  Martin D. Flynn
+//     -Added asynchronous logging mode (see RTKey.LOG_ASYNC).  Log messages are
+//      placed in a lock-free ring buffer and written by a background thread.
+//     -Stack frame capture no longer fills in the stack trace twice.
+//     -Log levels not explicitly set are read through RTConfig property handles.
 // ----------------------------------------------------------------------------
 package org.opengts.util;
 
@@ -47,6 +52,8 @@ import java.io.*;
 import java.net.*;
 import java.sql.*;
 import java.text.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
 
 /**
 *** Performs message logging
@@ -157,11 +164,15 @@ public class Print
 
     // ------------------------------------------------------------------------
 
-    private static int          printLogLevel           = LOG_UNDEFINED;
-    private static int          printLogHeaderLevel     = LOG_UNDEFINED;
+    private static int          printLogLevel           = LOG_UNDEFINED;    // explicitly set
+    private static int          printLogHeaderLevel     = LOG_UNDEFINED;    // explicitly set
+
+    private static RTConfig.Handle<Integer> rtLogLevel       = new LogLevelHandle(RTKey.LOG_LEVEL       , LOG_INFO);
+    private static RTConfig.Handle<Integer> rtLogHeaderLevel = new LogLevelHandle(RTKey.LOG_LEVEL_HEADER, LOG_ALL);
 
     private static int          printLogIncludeFrame    = -1;       // lazy init
     private static int          printLogIncludeDate     = -1;       // lazy init
+    private static int          printLogAsync           = -1;       // lazy init
 
     private static boolean      printLogFile_init       = false;    // volatile?
     private static File         printLogFile            = null;
@@ -179,6 +190,7 @@ public class Print
         printLogHeaderLevel     = LOG_UNDEFINED;
         printLogIncludeFrame    = -1;
         printLogIncludeDate     = -1;
+        printLogAsync           = -1;
         printLogFile_init       = false;
         printLogFile            = null;
         printRotateLogFileSize  = -1L;
@@ -209,6 +221,18 @@ public class Print
         return (printLogIncludeDate > 0);
     }
     
+    /**
+    *** Returns true if log messages are to be written asynchronously by a background thread
+    *** @return True if log messages are to be written asynchronously
+    **/
+    protected static boolean _logAsync()
+    {
+        if (printLogAsync < 0) {
+            printLogAsync = RTConfig.getBoolean(RTKey.LOG_ASYNC,false)? 1 : 0;
+        }
+        return (printLogAsync > 0);
+    }
+
     /**
     *** Returns true if exceptions should be emailed to the recipient on file
     *** @return True if exceptions should be emailed
@@ -260,6 +284,22 @@ public class Print
         //return sb.toString();
     }
 
+    /**
+    *** Formats the specified data/time per the specified format specification
+    *** @param fmt     The date/time format specification
+    *** @param timeMS  The time to format (in milliseconds)
+    *** @return The formatted data/time
+    **/
+    public static String formatDate(String fmt, long timeMS)
+    {
+        return (new DateTime(timeMS / 1000L)).format(fmt,null);
+        //java.util.Date nowDate = new java.util.Date(System.currentTimeMillis());
+        //SimpleDateFormat sdf = new SimpleDateFormat(fmt);
+        //StringBuffer sb = new StringBuffer();
+        //sdf.format(nowDate, sb, new FieldPosition(0));
+        //return sb.toString();
+    }
+
     // ------------------------------------------------------------------------
     // ------------------------------------------------------------------------
 
@@ -336,10 +376,20 @@ public class Print
     {
 
         /* extract stack frame */
-        Throwable t = new Throwable();
-        t.fillInStackTrace();
-        StackTraceElement st[] = t.getStackTrace();
-        StackTraceElement sf = (st != null)? st[frame + 1] : null;
+        // (the Throwable constructor has already filled in the stack trace)
+        StackTraceElement st[] = (new Throwable()).getStackTrace();
+        StackTraceElement sf = ((st != null) && (st.length > (frame + 1)))? st[frame + 1] : null;
+        return Print._formatStackFrame(sf);
+
+    }
+
+    /**
+    *** Returns a String representation of the specified stack frame element
+    *** @param sf  The stack frame element
+    *** @return The String representation of the stack frame element
+    **/
+    protected static String _formatStackFrame(StackTraceElement sf)
+    {
 
         /* no stack frame? */
         if (sf == null) {
@@ -752,13 +802,22 @@ public class Print
 
         /* log stack trace */
         Print._log(level, frame + 1, msg);
-        try {
-            PrintStream out = Print.openLogFile();
-            _printStackTrace(out, frame + 1, null, t);
-        } catch (Throwable loge) {
-            _printStackTrace(null, frame + 1, null, t);
-        } finally {
-            Print.closeLogFile();
+        if (Print._logAsync()) {
+            // write through the async log writer to preserve message order
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            PrintStream bosOut = new PrintStream(bos);
+            _printStackTrace(bosOut, frame + 1, null, t);
+            bosOut.flush();
+            Print._writeLog(level, bos.toString());
+        } else {
+            try {
+                PrintStream out = Print.openLogFile();
+                _printStackTrace(out, frame + 1, null, t);
+            } catch (Throwable loge) {
+                _printStackTrace(null, frame + 1, null, t);
+            } finally {
+                Print.closeLogFile();
+            }
         }
 
         /* email */
@@ -1296,10 +1355,8 @@ public class Print
     **/
     public static int getLogLevel()
     {
-        if (printLogLevel <= LOG_UNDEFINED) {
-            printLogLevel = Print.parseLogLevel(RTConfig.getString(RTKey.LOG_LEVEL,null), LOG_INFO);
-        }
-        return printLogLevel;
+        int level = printLogLevel;
+        return (level > LOG_UNDEFINED)? level : rtLogLevel.get().intValue();
     }
 
     /**
@@ -1335,10 +1392,22 @@ public class Print
     **/
     public static int getLogHeaderLevel()
     {
-        if (printLogHeaderLevel <= LOG_UNDEFINED) {
-            printLogHeaderLevel = Print.parseLogLevel(RTConfig.getString(RTKey.LOG_LEVEL_HEADER,null), LOG_ALL);
+        int level = printLogHeaderLevel;
+        return (level > LOG_UNDEFINED)? level : rtLogHeaderLevel.get().intValue();
+    }
+
+    /**
+    *** Log level property handle (the level is parsed once per configuration version)
+    **/
+    private static class LogLevelHandle
+        extends RTConfig.Handle<Integer>
+    {
+        public LogLevelHandle(String key, int dft) {
+            super(key, new Integer(dft), false);
+        }
+        protected Integer _getValue(String key, Integer dft, boolean dftOk) {
+            return new Integer(Print.parseLogLevel(RTConfig.getString(key, null, dftOk), dft.intValue()));
         }
-        return printLogHeaderLevel;
     }
 
     /**
@@ -1499,47 +1568,129 @@ public class Print
             return;
         }
 
+        /* header */
+        // Print this 'header' info for logged messages with a level < 'headerLevel'
+        // ie. print header for errors/warnings, but not for info/debug
+        boolean header    = (level <= Print.getLogHeaderLevel());
+        long    timeMS    = (header && Print._includeDate())? System.currentTimeMillis() : 0L;
+        boolean inclFrame = header && Print._includeStackFrame();
+
+        /* asynchronous: defer formatting to the log writer thread */
+        if (Print._logAsync()) {
+            StackTraceElement sf = null;
+            if (inclFrame) {
+                // only the StackTraceElement is retained, the frame String is created later
+                StackTraceElement st[] = (new Throwable()).getStackTrace();
+                sf = ((st != null) && (st.length > (frame + 1)))? st[frame + 1] : null;
+            }
+            if (!Print._isImmutable(args)) {
+                // arguments may change before the writer thread gets to them
+                msg  = Print._formatMessage(msg, args);
+                args = null;
+            }
+            AsyncLogEntry entry = new AsyncLogEntry(level, header, timeMS, inclFrame, sf, msg, args);
+            if (Print._enqueueAsyncLog(entry)) {
+                return;
+            }
+            // async writer unavailable/full, write now
+            Print._writeLogFile(entry.format());
+            return;
+        }
+
+        /* print message */
+        String frameStr = inclFrame? _getStackFrame(frame + 1) : null;
+        String logMsg   = Print._formatLogMessage(level, header, timeMS, frameStr, msg, args);
+        Print._writeLog(level, logMsg);
+
+    }
+
+    /**
+    *** Formats the specified log message, including the optional header
+    *** @param level    The log level
+    *** @param header   True to include the "[LEVEL|date|frame]" header
+    *** @param timeMS   The header date/time (in milliseconds), or '0' to omit the date/time
+    *** @param frameStr The header stack frame, or null to omit the stack frame
+    *** @param msg      The message (or message format)
+    *** @param args     The optional message format arguments
+    *** @return The formatted log message (including the line-terminator)
+    **/
+    protected static String _formatLogMessage(int level, boolean header, long timeMS, String frameStr, String msg, Object args[])
+    {
+
         /* message accumulator */
         StringBuffer logMsg = new StringBuffer();
 
-        /* log message */
-        if (level <= Print.getLogHeaderLevel()) {
-            // Print this 'header' info for logged messages with a level < 'headerLevel'
-            // ie. print header for errors/warnings, but not for info/debug
+        /* log header */
+        if (header) {
             logMsg.append("[");
             logMsg.append(Print.getLogLevelString(level));
-            if (Print._includeDate()) {
+            if (timeMS > 0L) {
                 logMsg.append("|");
-                logMsg.append(Print.formatDate("MM/dd HH:mm:ss")); // "yyyy/MM/dd HH:mm:ss"
+                logMsg.append(Print.formatDate("MM/dd HH:mm:ss",timeMS)); // "yyyy/MM/dd HH:mm:ss"
             }
-            if (Print._includeStackFrame()) {
+            if (frameStr != null) {
                 logMsg.append("|");
-                logMsg.append(_getStackFrame(frame + 1));
+                logMsg.append(frameStr);
             }
             logMsg.append("] ");
         }
 
         /* message */
         if (msg != null) {
-            if ((args != null) && (args.length > 0)) {
-                try {
-                    logMsg.append(String.format(msg,args));
-                } catch (Throwable th) { 
-                    // MissingFormatArgumentException, UnknownFormatConversionException
-                    System.out.println("ERROR: [" + msg + "] " + th); // [OUTPUT]
-                    logMsg.append(msg);
-                }
-            } else {
-                logMsg.append(msg);
-            }
+            logMsg.append(Print._formatMessage(msg, args));
             if (!msg.endsWith("\n")) { logMsg.append("\n"); }
         } else {
             logMsg.append("\n");
         }
 
-        /* print message */
-        Print._writeLog(level, logMsg.toString());
+        return logMsg.toString();
+    }
+
+    /**
+    *** Formats the message with the specified arguments
+    *** @param msg   The message (or message format)
+    *** @param args  The optional message format arguments
+    *** @return The formatted message
+    **/
+    private static String _formatMessage(String msg, Object args[])
+    {
+        if ((msg != null) && (args != null) && (args.length > 0)) {
+            try {
+                return String.format(msg,args);
+            } catch (Throwable th) { 
+                // MissingFormatArgumentException, UnknownFormatConversionException
+                System.out.println("ERROR: [" + msg + "] " + th); // [OUTPUT]
+                return msg;
+            }
+        } else {
+            return msg;
+        }
+    }
 
+    /**
+    *** Returns true if all specified message arguments are immutable (and may
+    *** therefore be formatted at a later time by the log writer thread)
+    *** @param args  The message format arguments
+    *** @return True if all arguments are immutable
+    **/
+    private static boolean _isImmutable(Object args[])
+    {
+        if (args != null) {
+            for (int i = 0; i < args.length; i++) {
+                Object a = args[i];
+                if ((a == null)            || 
+                    (a instanceof String)  || 
+                    (a instanceof Integer) || (a instanceof Long)   || 
+                    (a instanceof Double)  || (a instanceof Float)  ||
+                    (a instanceof Short)   || (a instanceof Byte)   ||
+                    (a instanceof Boolean) || (a instanceof Character) ||
+                    (a instanceof Enum)                               ) {
+                    continue;
+                }
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -1548,6 +1699,19 @@ public class Print
     *** @param logMsg The message to write to the log
     **/
     public static void _writeLog(int level, String logMsg)
+    {
+        if (Print._logAsync() && Print._enqueueAsyncLog(new AsyncLogEntry(logMsg))) {
+            // written later by the async log writer thread
+            return;
+        }
+        Print._writeLogFile(logMsg);
+    }
+
+    /**
+    *** Writes the specified log message to the output file (on the current thread)
+    *** @param logMsg The message to write to the log
+    **/
+    private static void _writeLogFile(String logMsg)
     {
         PrintStream out = Print.openLogFile();
         if (out != null) { 
@@ -1572,6 +1736,201 @@ public class Print
     // ------------------------------------------------------------------------
     // ------------------------------------------------------------------------
 
+    /**
+    *** Log message queued for the asynchronous log writer.  Formatting of the
+    *** header, stack frame, and message arguments is deferred until written.
+    **/
+    private static class AsyncLogEntry
+    {
+        private int                 level       = LOG_INFO;
+        private boolean             header      = false;
+        private long                timeMS      = 0L;
+        private boolean             inclFrame   = false;
+        private StackTraceElement   stackFrame  = null;
+        private String              msg         = null;
+        private Object              args[]      = null;
+        private String              logMsg      = null;  // already formatted
+        public AsyncLogEntry(String logMsg) {
+            this.logMsg     = logMsg;
+        }
+        public AsyncLogEntry(int level, boolean header, long timeMS, boolean inclFrame, StackTraceElement sf, String msg, Object args[]) {
+            this.level      = level;
+            this.header     = header;
+            this.timeMS     = timeMS;
+            this.inclFrame  = inclFrame;
+            this.stackFrame = sf;
+            this.msg        = msg;
+            this.args       = args;
+        }
+        public String format() {
+            if (this.logMsg == null) {
+                String frameStr = this.inclFrame? Print._formatStackFrame(this.stackFrame) : null;
+                this.logMsg = Print._formatLogMessage(this.level, this.header, this.timeMS, frameStr, this.msg, this.args);
+            }
+            return this.logMsg;
+        }
+    }
+
+    /**
+    *** Asynchronous log writer.<br>
+    *** Logging threads place messages into a bounded multi-producer/single-consumer ring
+    *** buffer (slots are claimed with a compare-and-set on the 'head' sequence, no locks
+    *** are taken), and a single background thread formats the messages and writes them in
+    *** batches through 'openLogFile'/'closeLogFile' (so log file rotation and aged rotated
+    *** file deletion behave as before).  If the ring buffer is full, the message is written
+    *** on the calling thread.
+    **/
+    private static class AsyncLogWriter
+        implements Runnable
+    {
+
+        private static final int    MAX_BATCH_SIZE  = 64 * 1024;    // characters
+        private static final long   IDLE_PARK_NS    = 100L * 1000000L;
+
+        private AtomicReferenceArray<AsyncLogEntry> ring = null;
+        private int                 mask            = 0;
+        private AtomicLong          head            = new AtomicLong(0L);   // next slot to claim
+        private volatile long       tail            = 0L;                   // next slot to write
+        private AtomicLong          overflowCount   = new AtomicLong(0L);
+
+        private Thread              thread          = null;
+        private volatile boolean    idle            = false;
+        private volatile boolean    closed          = false;
+
+        public AsyncLogWriter(int size) {
+            int cap = 64;
+            while ((cap < size) && (cap < (1 << 20))) { cap <<= 1; } // power of 2
+            this.ring   = new AtomicReferenceArray<AsyncLogEntry>(cap);
+            this.mask   = cap - 1;
+            this.thread = new Thread(this, "PrintAsyncLog");
+            this.thread.setDaemon(true);
+            this.thread.start();
+            Runtime.getRuntime().addShutdownHook(new Thread("PrintAsyncLogShutdown") {
+                public void run() {
+                    AsyncLogWriter.this.close();
+                }
+            });
+        }
+
+        /* add a log entry, returns false if full/closed */
+        public boolean offer(AsyncLogEntry entry) {
+            for (;;) {
+                if (this.closed) {
+                    return false;
+                }
+                long h = this.head.get();
+                if ((h - this.tail) >= this.ring.length()) {
+                    this.overflowCount.incrementAndGet();
+                    return false;
+                }
+                if (this.head.compareAndSet(h, h + 1L)) {
+                    this.ring.set((int)(h & this.mask), entry);
+                    if (this.idle) {
+                        LockSupport.unpark(this.thread);
+                    }
+                    return true;
+                }
+            }
+        }
+
+        /* write all published entries (single consumer only) */
+        private int drain(StringBuffer batch) {
+            int count = 0;
+            for (;;) {
+                long t = this.tail;
+                int  ndx = (int)(t & this.mask);
+                AsyncLogEntry entry = this.ring.get(ndx);
+                if (entry == null) {
+                    // empty, or slot claimed but not yet published
+                    break;
+                }
+                this.ring.set(ndx, null);
+                this.tail = t + 1L;
+                batch.append(entry.format());
+                count++;
+                if (batch.length() >= MAX_BATCH_SIZE) {
+                    this.flush(batch);
+                }
+            }
+            this.flush(batch);
+            return count;
+        }
+
+        private void flush(StringBuffer batch) {
+            if (batch.length() > 0) {
+                Print._writeLogFile(batch.toString());
+                batch.setLength(0);
+            }
+        }
+
+        public void run() {
+            StringBuffer batch = new StringBuffer();
+            while (!this.closed) {
+                try {
+                    if (this.drain(batch) > 0) {
+                        continue;
+                    }
+                    if (this.head.get() != this.tail) {
+                        // slot claimed, but entry not yet published
+                        Thread.yield();
+                        continue;
+                    }
+                    this.idle = true;
+                    if (this.head.get() == this.tail) {
+                        LockSupport.parkNanos(IDLE_PARK_NS);
+                    }
+                    this.idle = false;
+                } catch (Throwable th) {
+                    Print.sysPrintln("[Print.AsyncLogWriter] Error writing log: " + th);
+                    batch.setLength(0);
+                }
+            }
+        }
+
+        /* stop the writer thread and write any remaining entries */
+        public void close() {
+            this.closed = true;
+            LockSupport.unpark(this.thread);
+            try { this.thread.join(5000L); } catch (Throwable th) { /* ignore */ }
+            if (!this.thread.isAlive()) {
+                // writer thread has exited, safe to drain from this thread
+                this.drain(new StringBuffer());
+            }
+            long overflow = this.overflowCount.get();
+            if (overflow > 0L) {
+                Print._writeLogFile("[Print.AsyncLogWriter] Buffer full, written synchronously: " + overflow + "\n");
+            }
+        }
+
+    }
+
+    private static volatile AsyncLogWriter asyncLogWriter = null;
+
+    /**
+    *** Queues the specified log entry for the asynchronous log writer
+    *** @param entry  The log entry
+    *** @return True if queued, false if the log entry must be written by the caller
+    **/
+    private static boolean _enqueueAsyncLog(AsyncLogEntry entry)
+    {
+        AsyncLogWriter alw = Print.asyncLogWriter;
+        if (alw == null) {
+            if (!RTConfig.isInitialized()) {
+                return false;
+            }
+            synchronized (AsyncLogWriter.class) {
+                if (Print.asyncLogWriter == null) {
+                    Print.asyncLogWriter = new AsyncLogWriter(RTConfig.getInt(RTKey.LOG_ASYNC_BUFFER_SIZE,8192));
+                }
+                alw = Print.asyncLogWriter;
+            }
+        }
+        return alw.offer(entry);
+    }
+
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
+
     /**
     *** Abstract class to provide log print redirection
     **/
@@ -53,6 +53,12 @@
 //     -Fixed conversion from URL to File when URL contains '%' encoded hex
 //  2009/07/01  Martin D. Flynn
 //     -Added support for returning BigInteger types
+//  2010/01/11  Martin D. Flynn
+//     -Property keys are now resolved once per configuration version (see "getVersion"),
+//      rather than searching each of the configuration properties on every lookup.
+//      Only changes to the configuration properties, or RTKey defaults, change the version.
+//     -Added property handles (StringHandle, BooleanHandle, IntHandle, LongHandle,
+//      DoubleHandle, FileHandle) for frequently read properties.
 // ----------------------------------------------------------------------------
 package org.opengts.util;
 
@@ -378,7 +384,7 @@ public class RTConfig
         if (CFG_PROPERTIES[THREAD_LOCAL] == null) {
             synchronized (CFG_PROPERTIES) {
                 if (CFG_PROPERTIES[THREAD_LOCAL] == null) {
-                    CFG_PROPERTIES[THREAD_LOCAL] = new RTProperties(new ThreadLocalMap<Object,Object>());
+                    RTConfig._setConfigProperties(THREAD_LOCAL, new RTProperties(new ThreadLocalMap<Object,Object>()));
                 }
             }
         }
@@ -394,7 +400,7 @@ public class RTConfig
         if (CFG_PROPERTIES[RUNTIME_CONSTANT] == null) {
             synchronized (CFG_PROPERTIES) {
                 if (CFG_PROPERTIES[RUNTIME_CONSTANT] == null) {
-                    CFG_PROPERTIES[RUNTIME_CONSTANT] = new RTProperties();
+                    RTConfig._setConfigProperties(RUNTIME_CONSTANT, new RTProperties());
                 }
             }
         }
@@ -455,6 +461,168 @@ public class RTConfig
         return CFG_PROPERTIES[SYSTEM_PROPS];
     }
 
+    // ------------------------------------------------------------------------
+    // Key resolution snapshot
+
+    private static final int    SNAPSHOT_MAXIMUM_KEYS   = 10000;
+
+    /**
+    *** The location of a key within the configuration properties
+    **/
+    private static class KeyLocation
+    {
+        private RTProperties props    = null;   // first non-default properties containing the key
+        private RTProperties dftProps = null;   // default properties, if the key has a default
+        public KeyLocation(RTProperties props, RTProperties dftProps) {
+            this.props    = props;
+            this.dftProps = dftProps;
+        }
+    }
+
+    /**
+    *** Resolved key locations for a single configuration version.  Once resolved, a key
+    *** location never changes for a given snapshot.  The snapshot records the (non thread-local)
+    *** configuration properties, and the default properties, along with their change counts.
+    *** Any change to these properties results in a new (empty) snapshot.  Changes to other
+    *** RTProperties instances (ie. map/page/request properties) do not affect the snapshot.
+    **/
+    private static class KeySnapshot
+    {
+        private long                    version     = 0L;
+        private RTProperties            layers[]    = null;
+        private long                    layerCnt[]  = null;
+        private RTProperties            dftProps    = null;
+        private long                    dftCnt      = 0L;
+        private Map<String,KeyLocation> keyMap      = null;
+        public KeySnapshot(long version) {
+            // properties/counts must be recorded before any key is resolved
+            this.version  = version;
+            this.layers   = new RTProperties[CFG_PROPERTIES.length];
+            this.layerCnt = new long[CFG_PROPERTIES.length];
+            for (int i = THREAD_LOCAL + 1; i < CFG_PROPERTIES.length; i++) {
+                RTProperties rtp = CFG_PROPERTIES[i];
+                this.layers[i]   = rtp;
+                this.layerCnt[i] = (rtp != null)? rtp.getChangeCount() : 0L;
+            }
+            this.dftProps = RTKey.getDefaultProperties();
+            this.dftCnt   = (this.dftProps != null)? this.dftProps.getChangeCount() : 0L;
+            this.keyMap   = new java.util.concurrent.ConcurrentHashMap<String,KeyLocation>();
+        }
+        public boolean isCurrent() {
+            for (int i = THREAD_LOCAL + 1; i < this.layers.length; i++) {
+                RTProperties rtp = CFG_PROPERTIES[i];
+                if (rtp != this.layers[i]) {
+                    return false;
+                } else
+                if ((rtp != null) && (rtp.getChangeCount() != this.layerCnt[i])) {
+                    return false;
+                }
+            }
+            RTProperties dft = RTKey.getDefaultProperties();
+            if (dft != this.dftProps) {
+                return false;
+            } else
+            if ((dft != null) && (dft.getChangeCount() != this.dftCnt)) {
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private static volatile KeySnapshot CFG_SNAPSHOT    = null;
+    private static long                 CFG_VERSION     = 0L;
+
+    /**
+    *** Returns the current key resolution snapshot
+    **/
+    private static KeySnapshot _getKeySnapshot()
+    {
+        KeySnapshot snap = CFG_SNAPSHOT;
+        if ((snap == null) || !snap.isCurrent()) {
+            synchronized (RTConfig.class) {
+                snap = CFG_SNAPSHOT;
+                if ((snap == null) || !snap.isCurrent()) {
+                    snap = new KeySnapshot(++CFG_VERSION);
+                    CFG_SNAPSHOT = snap;
+                }
+            }
+        }
+        return snap;
+    }
+
+    /**
+    *** Returns the current configuration version.  The version changes whenever the
+    *** configuration properties (or the RTKey default properties) are changed, or reloaded.
+    *** @return The current configuration version
+    **/
+    public static long getVersion()
+    {
+        return RTConfig._getKeySnapshot().version;
+    }
+
+    /**
+    *** Sets the configuration properties at the specified index
+    *** (the key resolution snapshot is replaced on the next lookup)
+    **/
+    private static void _setConfigProperties(int ndx, RTProperties props)
+    {
+        CFG_PROPERTIES[ndx] = props;
+    }
+
+    /**
+    *** Returns true if the current thread has temporary, or thread-local, properties
+    *** in effect (which are not included in the key resolution snapshot)
+    **/
+    private static boolean _hasThreadProperties()
+    {
+        if (RTConfig.getTemporaryPropertiesStackSize() > 0) {
+            return true;
+        }
+        RTProperties threadProps = CFG_PROPERTIES[THREAD_LOCAL];
+        return ((threadProps != null) && !threadProps.isEmpty());
+    }
+
+    /**
+    *** Returns the location of the specified key within the (non thread-local)
+    *** configuration properties, from the current key resolution snapshot
+    **/
+    private static KeyLocation _getKeyLocation(String key)
+    {
+
+        /* current snapshot */
+        KeySnapshot snap = RTConfig._getKeySnapshot(); // must be obtained before resolving the key
+
+        /* previously resolved? */
+        KeyLocation loc = snap.keyMap.get(key);
+        if (loc != null) {
+            return loc;
+        }
+
+        /* look for key in our property list stack */
+        RTProperties props = null;
+        for (int i = THREAD_LOCAL + 1; i < CFG_PROPERTIES.length; i++) {
+            RTProperties rtProps = CFG_PROPERTIES[i];
+            if ((rtProps != null) && rtProps.hasProperty(key)) {
+                props = rtProps;
+                break;
+            }
+        }
+
+        /* default properties */
+        RTProperties dftProps = RTKey.getDefaultProperties();
+        if ((dftProps != null) && !dftProps.hasProperty(key)) {
+            dftProps = null;
+        }
+
+        /* save */
+        loc = new KeyLocation(props, dftProps);
+        if (snap.keyMap.size() < SNAPSHOT_MAXIMUM_KEYS) {
+            snap.keyMap.put(key, loc);
+        }
+        return loc;
+
+    }
+
     // ------------------------------------------------------------------------
 
     /**
@@ -467,40 +635,27 @@ public class RTConfig
     {
         if (key != null) {
 
-            /* initialized? */
-            if (!isInitialized()) {
-                // 'Print._println...' used here to eliminate possible recursion stack-overflow
-                //Print._println(null, "ConfigFile not yet loaded");
-                //Thread.dumpStack();
-                // continue ...
-            }
-
             /* first try the thread local temporary properties */
             RTProperties tempProps = RTConfig.getTemporaryProperties(key);
             if (tempProps != null) {
-                //if (key.equals(testKey)) System.out.println("RTConfig.getPropertiesForKey: Found "+testKey+" @ " + getTemporaryProperties());
                 return tempProps;
             }
 
-            /* look for key in our property list stack */
-            //String testKey = RTKey.LOG_LEVEL_HEADER;
-            for (int i = 0; i < CFG_PROPERTIES.length; i++) {
-                RTProperties rtProps = CFG_PROPERTIES[i];
-                if ((rtProps != null) && rtProps.hasProperty(key)) {
-                    //if (key.equals(testKey)) System.out.println("RTConfig.getPropertiesForKey: Found "+testKey+" @ " + getConfigPropertiesIndexName(i));
-                    return rtProps; 
-                }
+            /* thread local properties */
+            RTProperties threadProps = CFG_PROPERTIES[THREAD_LOCAL];
+            if ((threadProps != null) && threadProps.hasProperty(key)) {
+                return threadProps;
             }
-            
-            /* still not found, try the default properties */
+
+            /* remaining properties/defaults (resolved once per configuration version) */
+            KeyLocation loc = RTConfig._getKeyLocation(key);
+            if (loc.props != null) {
+                return loc.props;
+            } else
             if (dftOk) {
-                RTProperties dftProps = RTKey.getDefaultProperties();
-                if ((dftProps != null) && dftProps.hasProperty(key)) {
-                    //if (key.equals(testKey)) System.out.println("RTConfig.getPropertiesForKey: Found "+testKey+" in defaults");
-                    return dftProps;
-                }
+                return loc.dftProps;
             }
-            
+
         }
         return null;
     }
@@ -524,6 +679,180 @@ public class RTConfig
         return null;
     }
 
+    // ------------------------------------------------------------------------
+    // Property handles
+
+    /**
+    *** A property value converted for a specific configuration version
+    **/
+    private static class VersionValue<T>
+    {
+        private long version = 0L;
+        private T    value   = null;
+        public VersionValue(long version, T value) {
+            this.version = version;
+            this.value   = value;
+        }
+    }
+
+    /**
+    *** A handle for a frequently read property.  The property value is resolved and
+    *** converted once per configuration version (see <code>getVersion</code>), and is then
+    *** returned from the handle until the configuration changes.  The value is resolved
+    *** on each read while the current thread has temporary properties in effect.
+    **/
+    public static abstract class Handle<T>
+    {
+        private String                   key    = null;
+        private T                        dft    = null;
+        private boolean                  dftOk  = false;
+        private volatile VersionValue<T> cached = null;
+        protected Handle(String key, T dft, boolean dftOk) {
+            this.key   = key;
+            this.dft   = dft;
+            this.dftOk = dftOk;
+        }
+        public String getKey() {
+            return this.key;
+        }
+        public T get() {
+            if (RTConfig._hasThreadProperties()) {
+                return this._getValue(this.key, this.dft, this.dftOk);
+            }
+            long version = RTConfig.getVersion(); // must be read before resolving the value
+            VersionValue<T> vv = this.cached;
+            if ((vv == null) || (vv.version != version)) {
+                vv = new VersionValue<T>(version, this._getValue(this.key, this.dft, this.dftOk));
+                this.cached = vv;
+            }
+            return vv.value;
+        }
+        protected abstract T _getValue(String key, T dft, boolean dftOk);
+        public String toString() {
+            return this.key + "=" + this.get();
+        }
+    }
+
+    /**
+    *** String property handle
+    **/
+    public static class StringHandle
+        extends Handle<String>
+    {
+        public StringHandle(String key) {
+            super(key, null, true);
+        }
+        public StringHandle(String key, String dft) {
+            super(key, dft, false);
+        }
+        protected String _getValue(String key, String dft, boolean dftOk) {
+            return RTConfig.getString(key, dft, dftOk);
+        }
+        public String getString() {
+            return this.get();
+        }
+    }
+
+    /**
+    *** Boolean property handle
+    **/
+    public static class BooleanHandle
+        extends Handle<Boolean>
+    {
+        public BooleanHandle(String key) {
+            super(key, Boolean.FALSE, true);
+        }
+        public BooleanHandle(String key, boolean dft) {
+            super(key, new Boolean(dft), false);
+        }
+        protected Boolean _getValue(String key, Boolean dft, boolean dftOk) {
+            return new Boolean(RTConfig.getBoolean(key, dft.booleanValue(), dftOk));
+        }
+        public boolean getBoolean() {
+            return this.get().booleanValue();
+        }
+    }
+
+    /**
+    *** Integer property handle
+    **/
+    public static class IntHandle
+        extends Handle<Integer>
+    {
+        public IntHandle(String key) {
+            super(key, new Integer(0), true);
+        }
+        public IntHandle(String key, int dft) {
+            super(key, new Integer(dft), false);
+        }
+        protected Integer _getValue(String key, Integer dft, boolean dftOk) {
+            return new Integer(RTConfig.getInt(key, dft.intValue(), dftOk));
+        }
+        public int getInt() {
+            return this.get().intValue();
+        }
+    }
+
+    /**
+    *** Long property handle
+    **/
+    public static class LongHandle
+        extends Handle<Long>
+    {
+        public LongHandle(String key) {
+            super(key, new Long(0L), true);
+        }
+        public LongHandle(String key, long dft) {
+            super(key, new Long(dft), false);
+        }
+        protected Long _getValue(String key, Long dft, boolean dftOk) {
+            return new Long(RTConfig.getLong(key, dft.longValue(), dftOk));
+        }
+        public long getLong() {
+            return this.get().longValue();
+        }
+    }
+
+    /**
+    *** Double property handle
+    **/
+    public static class DoubleHandle
+        extends Handle<Double>
+    {
+        public DoubleHandle(String key) {
+            super(key, new Double(0.0), true);
+        }
+        public DoubleHandle(String key, double dft) {
+            super(key, new Double(dft), false);
+        }
+        protected Double _getValue(String key, Double dft, boolean dftOk) {
+            return new Double(RTConfig.getDouble(key, dft.doubleValue(), dftOk));
+        }
+        public double getDouble() {
+            return this.get().doubleValue();
+        }
+    }
+
+    /**
+    *** File property handle
+    **/
+    public static class FileHandle
+        extends Handle<File>
+    {
+        public FileHandle(String key) {
+            super(key, null, true);
+        }
+        public FileHandle(String key, File dft) {
+            super(key, dft, false);
+        }
+        protected File _getValue(String key, File dft, boolean dftOk) {
+            return RTConfig.getFile(key, dft, dftOk);
+        }
+        public File getFile() {
+            return this.get();
+        }
+    }
+
     // ------------------------------------------------------------------------
 
     /**
@@ -662,7 +991,7 @@ public class RTConfig
             //}
             if (CFG_PROPERTIES[COMMAND_LINE] == null) {
                 // first initialization
-                CFG_PROPERTIES[COMMAND_LINE] = cmdLineProps;     
+                RTConfig._setConfigProperties(COMMAND_LINE, cmdLineProps);     
                 _startupInit(true); // initialize now to allow for overriding 'configFile'
             } else {
                 // subsequent re-initialization
@@ -727,7 +1056,7 @@ public class RTConfig
     **/
     public static void _setServletContextProperties(RTProperties props)
     {
-        CFG_PROPERTIES[SERVLET_CONTEXT] = props;
+        RTConfig._setConfigProperties(SERVLET_CONTEXT, props);
     }
 
     /** 
@@ -1170,18 +1499,18 @@ public class RTConfig
                 }
             }
         }
-        CFG_PROPERTIES[SYSTEM_PROPS] = new RTProperties(propMap);
+        RTConfig._setConfigProperties(SYSTEM_PROPS, new RTProperties(propMap));
 
         /* environment variables */
         if (RTConfig.getEnvironmentVariablesEnabled()) {
             try {
                 Map<String,String> envMap = System.getenv();
                 //for (String k:envMap.keySet()) {String v = envMap.get(k);Print.logInfo("Env: "+k+"==>"+v);}
-                CFG_PROPERTIES[ENVIRONMENT] = new RTProperties(envMap);
+                RTConfig._setConfigProperties(ENVIRONMENT, new RTProperties(envMap));
                 //CFG_PROPERTIES[ENVIRONMENT].setAllowBlankValues(false);
             } catch (Throwable th) {
                 // security error?
-                CFG_PROPERTIES[ENVIRONMENT] = null;
+                RTConfig._setConfigProperties(ENVIRONMENT, null);
             }
         }
 
@@ -1198,14 +1527,14 @@ public class RTConfig
 
         /* load config file/URL */
         if (_foundConfigURL != null) {
-            CFG_PROPERTIES[CONFIG_FILE] = new RTProperties(_foundConfigURL);
+            RTConfig._setConfigProperties(CONFIG_FILE, new RTProperties(_foundConfigURL));
             if (RTConfig.verbose) { 
                 Print.logInfo("Loaded config URL: " + _foundConfigURL); 
             }
         } else {
             //String cfgDir = RTConfig.getFile(RTKey.CONFIG_FILE_DIR);
             //String cfgFile = RTConfig.getFile(RTKey.CONFIG_FILE);
-            CFG_PROPERTIES[CONFIG_FILE] = new RTProperties(); // must be non-null
+            RTConfig._setConfigProperties(CONFIG_FILE, new RTProperties()); // must be non-null
             if (RTConfig.verbose) { 
                 Print.logWarn("No config file was found"); 
             }
@@ -28,6 +28,10 @@
 //     -Repackaged
 //  2007/03/30  Martin D. Flynn
 //     -Added "getRuntimeKeyIterator()"
+//  2010/01/11  Martin D. Flynn
+//     -Added DB_READ_CONSISTENCY
+//     -Added DB_CONNECTION_POOL, DB_PREPARED_STATEMENTS, DB_STATEMENT_CACHE_SIZE
+//     -Added LOG_ASYNC, LOG_ASYNC_BUFFER_SIZE
 // ----------------------------------------------------------------------------
 package org.opengts.util;
 
@@ -110,6 +114,8 @@ public class RTKey
     public static final String LOG_FILE_ROTATE_DELETE_AGE   = "log.file.rotate.deleteAge";
     public static final String LOG_INCL_DATE                = "log.include.date";
     public static final String LOG_INCL_STACKFRAME          = "log.include.frame";
+    public static final String LOG_ASYNC                    = "log.async";
+    public static final String LOG_ASYNC_BUFFER_SIZE        = "log.async.bufferSize";
     public static final String LOG_EMAIL_EXCEPTIONS         = "log.email.sendExceptions";
     public static final String LOG_EMAIL_FROM               = "log.email.fromAddr";
     public static final String LOG_EMAIL_TO                 = "log.email.toAddr";
@@ -119,6 +125,12 @@ public class RTKey
     public static final String DB_DATASOURCE_MAX_ACTIVE     = "db.dataSource.maxActive";        // Integer
     public static final String DB_DATASOURCE_MAX_IDLE       = "db.dataSource.maxIdle";          // Integer
     public static final String DB_DATASOURCE_MAX_WAIT       = "db.dataSource.maxWait";          // Long
+    public static final String DB_CONNECTION_POOL           = "db.connectionPool";              // Boolean
+    public static final String DB_CONNECTION_POOL_MAX_ACTIVE= "db.connectionPool.maxActive";    // Integer
+    public static final String DB_CONNECTION_POOL_MAX_IDLE  = "db.connectionPool.maxIdle";      // Integer
+    public static final String DB_CONNECTION_POOL_MAX_WAIT  = "db.connectionPool.maxWait";      // Long
+    public static final String DB_PREPARED_STATEMENTS       = "db.preparedStatements";          // Boolean
+    public static final String DB_STATEMENT_CACHE_SIZE      = "db.statementCacheSize";          // Integer
     public static final String DB_PROVIDER                  = "db.sql.provider";                // String
     public static final String DB_NAME                      = "db.sql.dbname";                  // String
     public static final String DB_URL                       = "db.sql.url";                     // String
@@ -130,6 +142,7 @@ public class RTKey
     public static final String DB_UTF8                      = "db.sql.utf8";                    // Boolean
     public static final String DB_TABLE_NAME_PREFIX         = "db.tableNamePrefix";             // String
     public static final String DB_TABLE_LOCKING             = "db.tableLocking";                // Boolean
+    public static final String DB_READ_CONSISTENCY          = "db.readConsistency";             // String
     public static final String DB_SHOW_SQL                  = "db.showSQL";                     // Boolean
 
     // ------------------------------------------------------------------------
@@ -205,6 +218,8 @@ public class RTKey
         new Entry(LOG_FILE_ROTATE_DELETE_AGE , "0"                              , "log file rotate delete age (default days)"), // APP|WEB
         new Entry(LOG_INCL_DATE              , false                            , "include date in logs"),                      // APP|WEB
         new Entry(LOG_INCL_STACKFRAME        , false                            , "include stackframe in logs"),                // APP|WEB
+        new Entry(LOG_ASYNC                  , false                            , "write log messages from a background thread"), // APP|WEB
+        new Entry(LOG_ASYNC_BUFFER_SIZE      , 8192                             , "async log ring buffer size (messages)"),     // APP|WEB
         new Entry(LOG_EMAIL_EXCEPTIONS       , false                            , "EMail exceptions"),                          // APP|WEB
         new Entry(LOG_EMAIL_FROM             , null                             , "Error email sender"),
         new Entry(LOG_EMAIL_TO               , null                             , "Error email recipient"),
@@ -215,6 +230,12 @@ public class RTKey
         new Entry(DB_DATASOURCE_MAX_ACTIVE   , 100                              , "DataSource maxActive"),                      // APP|WEB
         new Entry(DB_DATASOURCE_MAX_IDLE     , 30                               , "DataSource maxIdle"),                        // APP|WEB
         new Entry(DB_DATASOURCE_MAX_WAIT     , 10000L                           , "DataSource maxWait"),                        // APP|WEB
+        new Entry(DB_CONNECTION_POOL         , false                            , "Connection pool enabled"),                   // APP|WEB
+        new Entry(DB_CONNECTION_POOL_MAX_ACTIVE, 100                            , "Connection pool maxActive"),                 // APP|WEB
+        new Entry(DB_CONNECTION_POOL_MAX_IDLE, 30                               , "Connection pool maxIdle"),                   // APP|WEB
+        new Entry(DB_CONNECTION_POOL_MAX_WAIT, 10000L                           , "Connection pool maxWait"),                   // APP|WEB
+        new Entry(DB_PREPARED_STATEMENTS     , false                            , "Use PreparedStatements for keyed access"),   // APP|WEB
+        new Entry(DB_STATEMENT_CACHE_SIZE    , 50                               , "PreparedStatement cache size"),              // APP|WEB
         new Entry(DB_PROVIDER                , "mysql"                          , "Database provider"),                         // APP|WEB
         new Entry(DB_NAME                    , "?"                              , "Database name"),                             // APP|WEB
         new Entry(DB_URL                     , ""                               , "Database JDBC URL"),                         // APP|WEB
@@ -225,6 +246,7 @@ public class RTKey
         new Entry(DB_PASS                    , ""                               , "Database server password"),                  // APP|WEB
         new Entry(DB_TABLE_NAME_PREFIX       , ""                               , "Table name prefix"),                         // APP|WEB
         new Entry(DB_TABLE_LOCKING           , false                            , "Table locking enabled"),                     // APP|WEB
+        new Entry(DB_READ_CONSISTENCY        , "lock"                           , "Read lock mode (lock|snapshot|none)"),       // APP|WEB
         new Entry(DB_SHOW_SQL                , false                            , "Show insert/update SQL"),                    // APP|WEB
 
     };
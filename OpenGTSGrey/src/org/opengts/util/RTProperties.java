@@ -92,6 +92,9 @@
 //     -Added support for returning BigInteger types
 //  2009/09/23  Martin D. Flynn
 //     -Added support for ${key=default} replacement in config-file value strings
+//  2010/01/11  Martin D. Flynn
+//     -Added a change count, incremented whenever this RTProperties instance is changed
+//      (used by RTConfig to invalidate its cached key resolution).
 // ----------------------------------------------------------------------------
 package org.opengts.util;
 
@@ -189,6 +192,8 @@ public class RTProperties
 
     private int                 nextCmdLineArg          = -1;
 
+    private volatile long       changeCount             = 0L;
+
     private boolean             enableConfigLogMessages = true;
 
     // ------------------------------------------------------------------------
@@ -426,6 +431,7 @@ public class RTProperties
     public void setIgnoreKeyCase(boolean ignCase)
     {
         this.ignoreCase = ignCase;
+        this.changeCount++;
         Map props = this.getProperties();
         if (props instanceof OrderedMap) {
             ((OrderedMap)props).setIgnoreCase(this.ignoreCase);
@@ -743,6 +749,15 @@ public class RTProperties
         }
     }
 
+    /**
+    *** Returns a count which is incremented whenever this instance is changed
+    *** @return The change count
+    **/
+    public long getChangeCount()
+    {
+        return this.changeCount;
+    }
+
     /**
     *** Fires a PropertyChange event
     *** @param key  The property key which changed
@@ -750,6 +765,7 @@ public class RTProperties
     **/
     protected void firePropertyChanged(Object key, Object oldVal)
     {
+        this.changeCount++;
         if (this.changeListeners != null) {
             Object newVal = this.getProperties().get(key);
             RTProperties.PropertyChangeEvent pce = new RTProperties.PropertyChangeEvent(key,oldVal,newVal);
@@ -769,6 +785,7 @@ public class RTProperties
     public void setBackingProperties(Map<?,?> map)
     {
         this.cfgProperties = (Map<Object,Object>)map;
+        this.changeCount++;
         /*
         if (this.cfgProperties != null) {
             for (Object k : this.cfgProperties.keySet()) {
@@ -1560,6 +1577,7 @@ public class RTProperties
     public void setKeyReplacementMode(int mode)
     {
         this.keyReplacementMode = mode;
+        this.changeCount++;
     }
 
     /**
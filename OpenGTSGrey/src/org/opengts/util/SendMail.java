@@ -45,6 +45,11 @@
 //  2009/01/01  Martin D. Flynn
 //     -Added thread-model THREAD_NONE for debug purposes.  
 //      Similar to THREAD_DEBUG but skips sending email quietly.
+//  2010/01/11  Martin D. Flynn
+//     -Added "sendBatch" to send several emails over a single SMTP connection
+//      (returns the send status of each email, see SEND_OK/SEND_RETRY/SEND_FAILED)
+//     -The SendMail thread pool queue is now bounded
+//     -The thread model property is now read via an RTConfig property handle
 // ----------------------------------------------------------------------------
 package org.opengts.util;
 
@@ -61,6 +66,13 @@ public class SendMail
     public static final String SendMailArgs_class   = "org.opengts.util.SendMailArgs";
 
     public static final String EXAMPLE_DOT_COM      = "example.com";
+
+    // ------------------------------------------------------------------------
+    // "sendBatch" send status
+
+    public static final int    SEND_RETRY           = 0;    // not sent (may be retried)
+    public static final int    SEND_OK              = 1;    // sent
+    public static final int    SEND_FAILED          = 2;    // not sent, and cannot be sent (ie. no valid recipients)
     
     // ------------------------------------------------------------------------
     // Custom "X" headers
@@ -129,13 +141,15 @@ public class SendMail
         RTConfig.setBoolean(RTKey.SMTP_THREAD_MODEL_SHOW, false); // show);
     }
 
+    private static RTConfig.StringHandle SMTP_THREAD_MODEL = new RTConfig.StringHandle(RTKey.SMTP_THREAD_MODEL);
+
     /** 
     *** Returns the thread model in effect for this class
     *** @return  The thread model in effect.
     **/
     private static int GetThreadModel() 
     {
-        return GetThreadModel(RTConfig.getString(RTKey.SMTP_THREAD_MODEL));
+        return GetThreadModel(SMTP_THREAD_MODEL.getString());
     }
     
     /**
@@ -168,7 +182,8 @@ public class SendMail
         }
     }
         
-    private static ThreadPool sendMailThreadPool = new ThreadPool("SendMail");
+    // a full queue sends the email in the calling thread (emails are not discarded)
+    private static ThreadPool sendMailThreadPool = new ThreadPool("SendMail", 20, 1000, ThreadPool.REJECT_CALLER_RUNS);
         
     // ------------------------------------------------------------------------
     // Convenience method for sending notification regarding internal errors
@@ -343,6 +358,44 @@ public class SendMail
         return true; // send(args);
     }
 
+    /**
+    *** Sends several emails, in the current thread, over a single SMTP connection.  
+    *** (Typically used by a background notification queue)
+    *** @param args  The list of email arguments
+    *** @return An array containing the send status of each email (SEND_OK, SEND_RETRY, or 
+    ***         SEND_FAILED).  Emails skipped per the THREAD_NONE/THREAD_DEBUG thread models are 
+    ***         indicated as sent.
+    **/
+    public static int[] sendBatch(Args args[])
+    {
+        int status[] = new int[(args != null)? args.length : 0]; // SEND_RETRY
+        if (status.length == 0) {
+            return status;
+        }
+        switch (SendMail.GetThreadModel()) {
+            case _THREAD_NONE     :
+                Print.logDebug("Skipping SendMail batch ...");
+                Arrays.fill(status, SEND_OK); // not retried
+                return status;
+            case _THREAD_DEBUG :
+                Print.logDebug("Debug SendMail batch (email not sent)");
+                for (int i = 0; i < args.length; i++) {
+                    Print.logDebug(args[i].toString());
+                }
+                Arrays.fill(status, SEND_OK); // not retried
+                return status;
+            default :
+                //return SendMailArgs.sendBatch(args);
+                try {
+                    MethodAction ma = new MethodAction(SendMailArgs_class, "sendBatch", Args[].class);
+                    return (int[])ma.invoke(new Object[] { args });
+                } catch (Throwable th) {
+                    Print.logDebug("Email 'sendBatch' failed: " + th);
+                    return status;
+                }
+        }
+    }
+
     /**
     *** SendMailRunnable class.
     **/
@@ -19,6 +19,9 @@
 // Change History:
 //  2009/06/01  Martin D. Flynn
 //     -Extracted from SendMail
+//  2010/01/11  Martin D. Flynn
+//     -Added "sendBatch" to send several emails over a single SMTP connection
+//      (emails with no valid recipients/addresses are indicated as SEND_FAILED)
 // ----------------------------------------------------------------------------
 package org.opengts.util;
 
@@ -67,21 +70,12 @@ public class SendMailArgs
     // ------------------------------------------------------------------------
 
     /**
-    *** Internal method to send email
-    *** @param args  The email arguments
-    *** @return True if the email was sent, false otherwise
+    *** Creates an SMTP Session, configured per the current runtime properties
+    *** @return The SMTP Session
     **/
-    public static boolean send(SendMail.Args args)
+    private static Session _createSession()
     {
-        String from        = args.getFrom();
-        String to[]        = args.getTo();
-        String cc[]        = args.getCc();
-        String bcc[]       = args.getBcc();
-        String subject     = args.getSubject();
-        String msgBody     = args.getBody();
-        Properties headers = args.getHeaders();
-        SendMail.Attachment attach  = args.getAttachment();
-        
+
         /* SMTP properties */
         // http://www.j2ee.me/products/javamail/javadocs/com/sun/mail/smtp/package-summary.html
         // mail.smtp.host (String)
@@ -144,81 +138,192 @@ public class SendMailArgs
 
         /* SMTP Session */
         //props.list(System.out);
-        Session session = Session.getInstance(props, auth);
-        
-        try {
-            Message msg = new MimeMessage(session);
-            msg.setFrom(new InternetAddress(from));
-            
-            InternetAddress toAddr[]  = _convertRecipients(to);
-            InternetAddress ccAddr[]  = _convertRecipients(cc);
-            InternetAddress bccAddr[] = _convertRecipients(bcc);
-            if ((toAddr != null) && (toAddr.length > 0)) {
-                for (Iterator i = headers.keySet().iterator(); i.hasNext();) {
-                    String k = (String)i.next();
-                    String v = headers.getProperty(k);
-                    if (v != null) {
-                        msg.setHeader(k, v);
-                    }
-                }
-                msg.setRecipients(Message.RecipientType.TO , toAddr);
-                msg.setRecipients(Message.RecipientType.CC , ccAddr);
-                msg.setRecipients(Message.RecipientType.BCC, bccAddr);
-                msg.setSubject(subject);
-                msg.setSentDate(new Date());
-                if ((attach != null) && (attach.getSize() > 0)) {
-                    Multipart multipart = new MimeMultipart();
-                    if ((msgBody != null) && !msgBody.equals("")) {
-                        BodyPart textBodyPart = new MimeBodyPart();
-                        textBodyPart.setText(msgBody);
-                        multipart.addBodyPart(textBodyPart);
-                    }
-                    // add attachment
-                    BodyPart attachBodyPart = new MimeBodyPart();
-                    DataSource source = new ByteArrayDataSource(attach.getName(), attach.getType(), attach.getBytes());
-                    attachBodyPart.setDataHandler(new DataHandler(source));
-                    attachBodyPart.setFileName(source.getName());
-                    multipart.addBodyPart(attachBodyPart);
-                    // set content 
-                    msg.setContent(multipart);
-                } else {
-                    msg.setText(msgBody); // setContent(msgBody, CONTENT_TYPE_PLAIN);
-                }
+        return Session.getInstance(props, auth);
 
-                /* send email */
-                msg.saveChanges(); // implicit with send()
-                if (!USE_AUTHENTICATOR && !StringTools.isBlank(smtpUser)) {
-                    Transport transport = session.getTransport("smtp");
-                    transport.connect(smtpHost, smtpUser, (smtpPass!=null?smtpPass:""));
-                    transport.sendMessage(msg, msg.getAllRecipients());
-                    transport.close();
-                } else {
-                    Transport.send(msg);
-                }
-                Print.logDebug("Email sent ...");
+    }
 
-                return true;
-            } else {
+    /**
+    *** Creates the email message for the specified arguments
+    *** @param session  The SMTP Session
+    *** @param args     The email arguments
+    *** @return The email message, or null if no 'To' recipients were specified
+    *** @throws MessagingException if the message could not be created
+    **/
+    private static Message _createMessage(Session session, SendMail.Args args)
+        throws MessagingException
+    {
+        String from        = args.getFrom();
+        String to[]        = args.getTo();
+        String cc[]        = args.getCc();
+        String bcc[]       = args.getBcc();
+        String subject     = args.getSubject();
+        String msgBody     = args.getBody();
+        Properties headers = args.getHeaders();
+        SendMail.Attachment attach  = args.getAttachment();
+
+        Message msg = new MimeMessage(session);
+        msg.setFrom(new InternetAddress(from));
+
+        InternetAddress toAddr[]  = _convertRecipients(to);
+        InternetAddress ccAddr[]  = _convertRecipients(cc);
+        InternetAddress bccAddr[] = _convertRecipients(bcc);
+        if ((toAddr == null) || (toAddr.length <= 0)) {
+            return null;
+        }
+        for (Iterator i = headers.keySet().iterator(); i.hasNext();) {
+            String k = (String)i.next();
+            String v = headers.getProperty(k);
+            if (v != null) {
+                msg.setHeader(k, v);
+            }
+        }
+        msg.setRecipients(Message.RecipientType.TO , toAddr);
+        msg.setRecipients(Message.RecipientType.CC , ccAddr);
+        msg.setRecipients(Message.RecipientType.BCC, bccAddr);
+        msg.setSubject(subject);
+        msg.setSentDate(new Date());
+        if ((attach != null) && (attach.getSize() > 0)) {
+            Multipart multipart = new MimeMultipart();
+            if ((msgBody != null) && !msgBody.equals("")) {
+                BodyPart textBodyPart = new MimeBodyPart();
+                textBodyPart.setText(msgBody);
+                multipart.addBodyPart(textBodyPart);
+            }
+            // add attachment
+            BodyPart attachBodyPart = new MimeBodyPart();
+            DataSource source = new ByteArrayDataSource(attach.getName(), attach.getType(), attach.getBytes());
+            attachBodyPart.setDataHandler(new DataHandler(source));
+            attachBodyPart.setFileName(source.getName());
+            multipart.addBodyPart(attachBodyPart);
+            // set content 
+            msg.setContent(multipart);
+        } else {
+            msg.setText(msgBody); // setContent(msgBody, CONTENT_TYPE_PLAIN);
+        }
+        msg.saveChanges(); // implicit with Transport.send(), required for Transport.sendMessage()
+        return msg;
+
+    }
+
+    /**
+    *** Logs the specified send error
+    *** @param me  The MessagingException
+    **/
+    private static void _logSendError(MessagingException me)
+    {
+        String smtpHost = RTConfig.getString(RTKey.SMTP_SERVER_HOST);
+        String smtpPort = String.valueOf(RTConfig.getInt(RTKey.SMTP_SERVER_PORT,25));
+        Print.logStackTrace("Unable to send email [host="+smtpHost+"; port="+smtpPort+"]", me);
+        for (Exception ex = me; ex != null;) {
+            if (ex instanceof SendFailedException) {
+                SendFailedException sfex = (SendFailedException)ex;
+                _printAddresses("Invalid:"     , sfex.getInvalidAddresses());
+                _printAddresses("Valid Unsent:", sfex.getValidUnsentAddresses());
+                _printAddresses("Valid Sent:"  , sfex.getValidSentAddresses());
+            }
+            ex = (ex instanceof MessagingException)? ((MessagingException)ex).getNextException() : null;
+        }
+    }
+
+    /**
+    *** Connects the specified SMTP transport
+    *** @param session    The SMTP Session
+    *** @param transport  The SMTP Transport
+    *** @throws MessagingException if the connection failed
+    **/
+    private static void _connect(Session session, Transport transport)
+        throws MessagingException
+    {
+        String smtpUser = StringTools.trim(RTConfig.getString(RTKey.SMTP_SERVER_USER));
+        if (!USE_AUTHENTICATOR && !StringTools.isBlank(smtpUser)) {
+            String smtpHost = RTConfig.getString(RTKey.SMTP_SERVER_HOST);
+            String smtpPass = RTConfig.getString(RTKey.SMTP_SERVER_PASSWORD);
+            transport.connect(smtpHost, smtpUser, (smtpPass!=null?smtpPass:""));
+        } else {
+            transport.connect(); // Session properties/Authenticator
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Internal method to send email
+    *** @param args  The email arguments
+    *** @return True if the email was sent, false otherwise
+    **/
+    public static boolean send(SendMail.Args args)
+    {
+        Session session = _createSession();
+        try {
+            Message msg = _createMessage(session, args);
+            if (msg == null) {
                 return false;
             }
 
-        } catch (MessagingException me) {
-            
-            Print.logStackTrace("Unable to send email [host="+smtpHost+"; port="+smtpPort+"]", me);
-            for (Exception ex = me; ex != null;) {
-                if (ex instanceof SendFailedException) {
-                    SendFailedException sfex = (SendFailedException)ex;
-                    _printAddresses("Invalid:"     , sfex.getInvalidAddresses());
-                    _printAddresses("Valid Unsent:", sfex.getValidUnsentAddresses());
-                    _printAddresses("Valid Sent:"  , sfex.getValidSentAddresses());
-                }
-                ex = (ex instanceof MessagingException)? ((MessagingException)ex).getNextException() : null;
+            /* send email */
+            String smtpUser = StringTools.trim(RTConfig.getString(RTKey.SMTP_SERVER_USER));
+            if (!USE_AUTHENTICATOR && !StringTools.isBlank(smtpUser)) {
+                Transport transport = session.getTransport("smtp");
+                _connect(session, transport);
+                transport.sendMessage(msg, msg.getAllRecipients());
+                transport.close();
+            } else {
+                Transport.send(msg);
             }
+            Print.logDebug("Email sent ...");
+            return true;
 
+        } catch (MessagingException me) {
+            _logSendError(me);
             return false;
-
         }
+    }
 
+    /**
+    *** Internal method to send several emails over a single SMTP connection
+    *** @param argList  The list of email arguments
+    *** @return An array containing the send status of each email (see SendMail.SEND_OK, etc)
+    **/
+    public static int[] sendBatch(SendMail.Args argList[])
+    {
+        int status[] = new int[(argList != null)? argList.length : 0]; // SEND_RETRY
+        if (status.length == 0) {
+            return status;
+        }
+        Session session = _createSession();
+        Transport transport = null;
+        try {
+            transport = session.getTransport("smtp");
+            _connect(session, transport);
+            for (int i = 0; i < argList.length; i++) {
+                try {
+                    Message msg = _createMessage(session, argList[i]);
+                    if (msg != null) {
+                        transport.sendMessage(msg, msg.getAllRecipients());
+                        status[i] = SendMail.SEND_OK;
+                    } else {
+                        Print.logError("Email has no valid recipients (not sent)");
+                        status[i] = SendMail.SEND_FAILED; // retrying will not help
+                    }
+                } catch (AddressException ae) {
+                    Print.logError("Invalid email address (not sent): " + ae);
+                    status[i] = SendMail.SEND_FAILED; // retrying will not help
+                } catch (MessagingException me) {
+                    _logSendError(me);
+                    if (!transport.isConnected()) {
+                        break; // remaining emails are not sent
+                    }
+                }
+            }
+            Print.logDebug("Email batch sent ...");
+        } catch (MessagingException me) {
+            _logSendError(me);
+        } finally {
+            if (transport != null) {
+                try { transport.close(); } catch (Throwable th) { /*ignore*/ }
+            }
+        }
+        return status;
     }
 
     // ------------------------------------------------------------------------
@@ -54,12 +54,23 @@
 //     -Added ability to set the local bound interface
 //  2009/09/23  Martin D. Flynn
 //     -Fixed: now counts bytes ('writeByteCount') when writing via UDP
+//  2009/12/16  Martin D. Flynn
+//     -Added optional non-blocking TCP mode (see 'setSelectorThreadCount').  When
+//      enabled, TCP sessions are multiplexed over a small fixed set of Selector
+//      threads, and packets are handed to a bounded session worker pool, instead
+//      of dedicating one 'ServerSessionThread' to each connected client.
+//     -Sessions now read blocks of bytes into a per-session buffer, and frame
+//      packets with 'PacketFramer' (lookup-table character classification),
+//      rather than calling 'InputStream.read()' once per byte.
 // ----------------------------------------------------------------------------
 package org.opengts.util;
 
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
 import java.awt.event.*;
 import javax.net.ssl.*;
 import javax.net.*;
@@ -99,6 +110,9 @@ public class ServerSocketThread
     private static      int         ListenBacklog                       = 50;
     private static      InetAddress LocalBindAddress                    = null;
 
+    private static      int         SelectorThreadCount                 = 0;    // 0 = thread-per-session
+    private static      int         SelectorWorkerCount                 = 0;    // 0 = ThreadPool default
+
     /**
     *** Sets the listen backlog for all created ServerSocket's
     *** @param backlog  The listen backlog
@@ -132,6 +146,57 @@ public class ServerSocketThread
 
     // ------------------------------------------------------------------------
 
+    /**
+    *** Sets the number of Selector threads used to service TCP sessions.  A value
+    *** greater than '0' enables the non-blocking TCP mode for all subsequently
+    *** created TCP ServerSocketThread's.  A value of '0' (the default) retains the
+    *** original thread-per-session mode.
+    *** @param count  The number of Selector threads per TCP listen port
+    **/
+    public static void setSelectorThreadCount(int count)
+    {
+        SelectorThreadCount = (count > 0)? count : 0;
+    }
+
+    /**
+    *** Gets the number of Selector threads used to service TCP sessions
+    *** @return The number of Selector threads (0 if the non-blocking mode is disabled)
+    **/
+    public static int getSelectorThreadCount()
+    {
+        return SelectorThreadCount;
+    }
+
+    /**
+    *** Returns true if the non-blocking TCP mode has been enabled
+    *** @return True if the non-blocking TCP mode has been enabled
+    **/
+    public static boolean isSelectorEnabled()
+    {
+        return (SelectorThreadCount > 0);
+    }
+
+    /**
+    *** Sets the maximum number of worker threads which run the ClientPacketHandler
+    *** for sessions serviced in the non-blocking TCP mode
+    *** @param count  The maximum number of session worker threads
+    **/
+    public static void setSelectorWorkerCount(int count)
+    {
+        SelectorWorkerCount = (count > 0)? count : 0;
+    }
+
+    /**
+    *** Gets the maximum number of session worker threads used in the non-blocking TCP mode
+    *** @return The maximum number of session worker threads (0 for the ThreadPool default)
+    **/
+    public static int getSelectorWorkerCount()
+    {
+        return SelectorWorkerCount;
+    }
+
+    // ------------------------------------------------------------------------
+
     /**
     *** Returns an array of all local network interface addresses (excluding loopback)
     *** @return An array of all local network interface addresses
@@ -200,6 +265,28 @@ public class ServerSocketThread
         return new ServerSocket(port, ListenBacklog, LocalBindAddress);
     }
 
+    /**
+    *** Creates a ServerSocket, backed by a ServerSocketChannel, bound to the default 
+    *** local interface.  TCP ServerSocketThread's created with such a socket service
+    *** their sessions in the non-blocking mode.
+    *** @return The created ServerSocket
+    **/
+    public static ServerSocket createSelectableServerSocket(int port)
+        throws IOException
+    {
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        try {
+            InetSocketAddress bindAddr = (LocalBindAddress != null)? 
+                new InetSocketAddress(LocalBindAddress, port) : 
+                new InetSocketAddress(port);
+            ssc.socket().bind(bindAddr, ListenBacklog);
+        } catch (IOException ioe) {
+            ssc.close();
+            throw ioe;
+        }
+        return ssc.socket();
+    }
+
     // ------------------------------------------------------------------------
     // ------------------------------------------------------------------------
 
@@ -223,6 +310,9 @@ public class ServerSocketThread
     private ServerSocket                        serverSocket            = null;
     
     private java.util.List<ServerSessionThread> clientThreadPool        = null;
+
+    private SelectorThread                      selectorThreads[]       = null;
+    private ThreadPool                          sessionWorkerPool       = null;
     
     private ClientPacketHandler                 clientPacketHandler     = null;
     private Class                               clientPacketHandlerClass = null;
@@ -242,6 +332,7 @@ public class ServerSocketThread
     private int                                 lineTerminatorChar[]    = new int[] { '\n' };
     private int                                 backspaceChar[]         = new int[] { '\b' };
     private int                                 ignoreChar[]            = new int[] { '\r' };
+    private byte                                charClassTable[]        = null;
 
     private byte                                prompt[]                = null;
     private int                                 promptIndex             = -1;
@@ -289,7 +380,9 @@ public class ServerSocketThread
         throws IOException 
     {
         this();
-        this.serverSocket = ServerSocketThread.createServerSocket(port);
+        this.serverSocket = ServerSocketThread.isSelectorEnabled()?
+            ServerSocketThread.createSelectableServerSocket(port) :
+            ServerSocketThread.createServerSocket(port);
         this.listenPort   = port;
     }
 
@@ -353,11 +446,28 @@ public class ServerSocketThread
     
     // ------------------------------------------------------------------------
 
+    /**
+    *** Returns true if this server handles TCP sessions in the non-blocking mode
+    *** @return True if this server handles TCP sessions in the non-blocking mode
+    **/
+    public boolean isSelectorMode()
+    {
+        return (this.serverSocket != null) && (this.serverSocket.getChannel() != null);
+    }
+
     /**
     *** Listens for incoming connections and dispatches them to a handler thread
     **/
     public void run() 
     {
+
+        /* non-blocking TCP sessions */
+        if (this.isSelectorMode()) {
+            this._runSelector();
+            return;
+        }
+
+        /* thread-per-session */
         while (true) {
             ClientSocket clientSocket = null;
 
@@ -424,6 +534,57 @@ public class ServerSocketThread
         }
     }
     
+    /**
+    *** Listens for incoming TCP connections and registers them with a SelectorThread
+    **/
+    private void _runSelector()
+    {
+        ServerSocketChannel ssc = this.serverSocket.getChannel();
+        int port = this.getLocalPort();
+
+        /* start selector threads */
+        int selCount = Math.max(ServerSocketThread.getSelectorThreadCount(), 1);
+        try {
+            SelectorThread st[] = new SelectorThread[selCount];
+            for (int i = 0; i < st.length; i++) {
+                st[i] = new SelectorThread("Selector_" + port + "_" + (i+1));
+            }
+            for (int i = 0; i < st.length; i++) {
+                st[i].start();
+            }
+            this.selectorThreads   = st;
+            this.sessionWorkerPool = new ThreadPool("ServerSession_" + port, ServerSocketThread.getSelectorWorkerCount());
+        } catch (IOException ioe) {
+            Print.logException("Unable to open Selector", ioe);
+            return;
+        }
+        Print.logInfo("TCP server on port " + port + " using " + selCount + " Selector thread(s)");
+
+        /* accept loop */
+        for (int n = 0;; n++) {
+            SocketChannel sc = null;
+            try {
+                sc = ssc.accept(); // block until connection
+            } catch (ClosedChannelException cce) {
+                // shutdown support
+                Print.logInfo("Shutdown TCP server on port " + port);
+                break;
+            } catch (IOException ioe) {
+                Print.logError("Connection - " + ioe);
+                continue; // go back and wait again
+            }
+            try {
+                sc.configureBlocking(false);
+                SelectorThread st = this.selectorThreads[n % this.selectorThreads.length];
+                st.register(new ServerSessionChannel(st, sc));
+            } catch (IOException ioe) {
+                Print.logError("Unable to register client - " + ioe);
+                try { sc.close(); } catch (IOException e) {/*ignore*/}
+            }
+        }
+
+    }
+
     /**
     *** Shuts down the server 
     **/
@@ -450,6 +611,16 @@ public class ServerSocketThread
 	    		}
 	    	}
 
+            /* stop the selector threads (closes all non-blocking sessions) */
+            if (this.selectorThreads != null) {
+                for (int i = 0; i < this.selectorThreads.length; i++) {
+                    this.selectorThreads[i].shutdown();
+                }
+            }
+            if (this.sessionWorkerPool != null) {
+                this.sessionWorkerPool.stopThreads();
+            }
+
     	} catch (Exception e) {
 
     		Print.logError("Error shutting down ServerSocketThread " + e);
@@ -695,6 +866,7 @@ public class ServerSocketThread
             //this.setLineTerminatorChar(null);
             this.setIgnoreChar(null);
         }
+        this.charClassTable = null; // backspace depends on prompt
     }
 
     /**
@@ -778,6 +950,7 @@ public class ServerSocketThread
     public void setLineTerminatorChar(int term[])
     {
         this.lineTerminatorChar = term;
+        this.charClassTable = null;
     }
     
     /**
@@ -824,6 +997,7 @@ public class ServerSocketThread
     public void setBackspaceChar(int bs[])
     {
         this.backspaceChar = bs;
+        this.charClassTable = null;
     }
 
     /**
@@ -860,6 +1034,7 @@ public class ServerSocketThread
     public void setIgnoreChar(int bs[])
     {
         this.ignoreChar = bs;
+        this.charClassTable = null;
     }
 
     /**
@@ -887,6 +1062,23 @@ public class ServerSocketThread
         return false;
     }
    
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Gets the 256-entry character class lookup table (see <code>PacketFramer</code>)
+    *** for the current line terminator, ignore, and backspace characters
+    *** @return The character class lookup table
+    **/
+    public byte[] getCharClassTable()
+    {
+        byte table[] = this.charClassTable;
+        if (table == null) {
+            table = PacketFramer.createCharClassTable(this);
+            this.charClassTable = table;
+        }
+        return table;
+    }
+
     // ------------------------------------------------------------------------
     
     /**
@@ -901,6 +1093,7 @@ public class ServerSocketThread
         } else {
             this.autoPrompt = false;
         }
+        this.charClassTable = null; // backspace depends on prompt
     }
     
     /**
@@ -911,6 +1104,7 @@ public class ServerSocketThread
     {
         this.prompt = prompt;
         this.autoPrompt = false;
+        this.charClassTable = null; // backspace depends on prompt
     }
     
     /**
@@ -1123,6 +1317,9 @@ public class ServerSocketThread
         private ClientSocket client = null;
         private long readByteCount  = 0L;
         private long writeByteCount = 0L;
+        private byte readBuff[]     = null;
+        private int  readNdx        = 0;
+        private int  readLen        = 0;
 
         //public ServerSessionThread(Socket client) {
         //    super("ClientSession");
@@ -1208,7 +1405,7 @@ public class ServerSocketThread
         }
 
         public int getAvailableBytes() {
-            return this.client.available();
+            return (this.readLen - this.readNdx) + this.client.available();
         }
 
         public long getReadByteCount() {
@@ -1235,6 +1432,13 @@ public class ServerSocketThread
                 this.readByteCount  = 0L;
                 this.writeByteCount = 0L;
 
+                /* reset read buffer */
+                if (this.readBuff == null) {
+                    this.readBuff = new byte[SESSION_READ_BUFFER_SIZE];
+                }
+                this.readNdx = 0;
+                this.readLen = 0;
+
                 /* remote client IP address/port */
                 InetAddress inetAddr = this.client.getInetAddress();
                 int       remotePort = this.client.getPort();
@@ -1254,6 +1458,7 @@ public class ServerSocketThread
                     }
                     clientHandler.sessionStarted(inetAddr, this.client.isTCP(), ServerSocketThread.this.isTextPackets());
                 }
+                PacketFramer framer = new PacketFramer(ServerSocketThread.this, clientHandler);
 
                 /* process client requests */
                 Throwable termError = null;
@@ -1298,14 +1503,9 @@ public class ServerSocketThread
                             }
     
                             /* read packet */
-                            byte line[] = null;
-                            if (ServerSocketThread.this.isTextPackets()) {
-                                // ASCII: read until packet EOL
-                                line = this.readLine(this.client, clientHandler);
-                            } else {
-                                // Binary: read until packet length or timeout
-                                line = this.readPacket(this.client, clientHandler);
-                            }
+                            // ASCII: read until packet EOL
+                            // Binary: read until packet length or timeout
+                            byte line[] = this.readPacket(this.client, framer);
 
                             /* send packet to listeners */
                             if ((line != null) && ServerSocketThread.this.hasListeners()) {
@@ -1345,7 +1545,7 @@ public class ServerSocketThread
 
                             /* terminate now if we're reading a Datagram and we're out of data */
                             if (this.client.isUDP()) {
-                                int avail = this.client.available();
+                                int avail = this.getAvailableBytes();
                                 if (avail <= 0) {
                                     // Normal end of UDP connection
                                     break;
@@ -1503,12 +1703,11 @@ public class ServerSocketThread
             }
         }
 
-        private int readByte(ClientSocket client, ClientPacketHandler clientHandler, long timeoutAt, int byteNdx) throws IOException {
+        private void fillReadBuffer(ClientSocket client, long timeoutAt, int byteNdx) throws IOException {
             // Read until:
             //  - Timeout
             //  - IO error
-            //  - Read byte
-            int ch;
+            //  - Read at least one byte
             InputStream input = client.getInputStream();
             while (true) {
                 if (timeoutAt > 0L) {
@@ -1520,24 +1719,27 @@ public class ServerSocketThread
                             throw new SSReadTimeoutException("Read timeout [@ " + byteNdx + "]", byteNdx);
                         }
                     }
-                    //if (input.available() <= 0) {
                     int timeout = (int)(timeoutAt - currentTimeMS);
                     client.setSoTimeout(timeout);
-                    //}
                 }
                 try {
                     // this read is expected to time-out if no data is available
-                    ch = input.read();
-                    if (ch < 0) {
+                    int len = input.read(this.readBuff, 0, this.readBuff.length);
+                    if (len < 0) {
                         // socket likely closed by client
                         if (byteNdx <= 0) {
                             throw new SSEndOfStreamException("End of stream [empty packet]", byteNdx);
                         } else {
                             throw new SSEndOfStreamException("End of stream [@ " + byteNdx + "]", byteNdx);
                         }
+                    } else
+                    if (len == 0) {
+                        continue;
                     }
-                    this.readByteCount++;
-                    return ch; // <-- valid character returned
+                    this.readNdx = 0;
+                    this.readLen = len;
+                    this.readByteCount += len;
+                    return; // <-- valid bytes read
                 } catch (InterruptedIOException ie) {
                     // timeout
                     continue;
@@ -1551,97 +1753,59 @@ public class ServerSocketThread
             }
         }
 
-        private byte[] readLine(ClientSocket client, ClientPacketHandler clientHandler) throws IOException {
+        private byte[] readPacket(ClientSocket client, PacketFramer framer) throws IOException {
             // Read until:
-            //  - EOL
+            //  - EOL (text packets)
             //  - Timeout
             //  - IO error
             //  - Read 'maxLen' characters
-            
+            //  - Read 'actualLen' characters (binary packets)
+
             /* timeouts */
             long idleTimeoutMS = ServerSocketThread.this.getIdleTimeout();
             long pcktTimeoutMS = ServerSocketThread.this.getPacketTimeout();
             long pcktTimeoutAt = (idleTimeoutMS > 0L)? (DateTime.getCurrentTimeMillis() + idleTimeoutMS) : -1L;
 
-            /* max read length */
-            int maxLen = this.getMaximumPacketLength(clientHandler); // safety net only
-            // no minimum
-            
             /* set default socket timeout */
             //client.setSoTimeout(10000);
 
             /* packet */
-            byte buff[]  = new byte[maxLen];
-            int  buffLen = 0;
+            framer.reset();
             boolean isIdle = true;
-            long readStartTime = DateTime.getCurrentTimeMillis();
             try {
-                while (true) {
+                while (!framer.isComplete()) {
 
-                    /* read byte */
-                    int ch = this.readByte(client, clientHandler, pcktTimeoutAt, buffLen);
-                    // valid character returned
+                    /* read bytes */
+                    if (this.readNdx >= this.readLen) {
+                        this.fillReadBuffer(client, pcktTimeoutAt, framer.getLength());
+                    }
 
                     /* reset idle timeout */
                     if (isIdle) {
                         isIdle = false;
                         if (pcktTimeoutMS > 0L) {
-                            // reset timeout
+                            // reset packet timeout
                             pcktTimeoutAt = DateTime.getCurrentTimeMillis() + pcktTimeoutMS;
                         }
                     }
 
-                    /* check special characters */
-                    if (ServerSocketThread.this.isLineTerminatorChar(ch)) {
-                        // end of line (typically '\n')
-                        break;
-                    } else
-                    if (ServerSocketThread.this.isIgnoreChar(ch)) {
-                        // ignore this character (typically '\r')
-                        continue;
-                    } else
-                    if (ServerSocketThread.this.isBackspaceChar(ch)) {
-                        if (buffLen > 0) {
-                            buffLen--;
-                        }
-                        continue;
-                    } else
-                    if (ch < ' ') {
-                        // ignore non-printable characters
-                        if (ch != '\t') { // keep tab chars
-                            continue;
-                        }
-                    }
-
-                    /* save byte */
-                    if (buffLen >= buff.length) { // overflow?
-                        byte newBuff[] = new byte[buff.length * 2];
-                        System.arraycopy(buff, 0, newBuff, 0, buff.length);
-                        buff = newBuff;
-                    }
-                    buff[buffLen++] = (byte)ch;
+                    /* frame bytes */
+                    this.readNdx += framer.append(this.readBuff, this.readNdx, this.readLen - this.readNdx);
 
-                    /* check lengths */
-                    if ((maxLen > 0) && (buffLen >= maxLen)) {
-                        // we've read all the bytes we can
-                        break;
-                    }
-
-                }
-            } catch (SSReadTimeoutException te) {
+                } // while (!framer.isComplete())
+            } catch (SSReadTimeoutException t) {
                 // This could mean a protocol error
-                if (buffLen > 0) {
-                    String s = StringTools.toStringValue(buff, 0, buffLen);
-                    Print.logWarn("Timeout: " + s);
+                if (framer.getLength() > 0) {
+                    Print.logWarn("Timeout: " + framer);
                 }
                 if (ServerSocketThread.this.getTerminateOnTimeout()) {
-                    throw te;
+                    throw t;
                 }
             } catch (SSEndOfStreamException eos) {
-                if (client.isTCP()) { // readLine
+                if (client.isTCP()) { // readPacket
                     // This could mean a protocol error
-                    if (buffLen > 0) {
-                        Print.logWarn("EOS: " + StringTools.toStringValue(buff, 0, buffLen));
+                    if (framer.getLength() > 0) {
+                        Print.logWarn("EOS: " + framer);
                     }
                     Print.logError(eos.getMessage());
                     throw eos;
@@ -1649,196 +1813,675 @@ public class ServerSocketThread
                     // We're at the end of the UDP datastream (may be an expected condition)
                     // (just fall through to return what bytes we've already read.)
                 }
+            } catch (SocketException se) {
+                Print.logError("ReadPacket error - " + se);
+                throw se;
             } catch (IOException ioe) {
-                Print.logError("ReadLine error - " + ioe);
+                Print.logError("ReadPacket error - " + ioe);
                 throw ioe;
             }
-            long readEndTime = DateTime.getCurrentTimeMillis();
 
             /* return packet */
-            if (buff.length == buffLen) {
-                // highly unlikely
-                return buff;
-            } else {
-                // resize buffer
-                byte newBuff[] = new byte[buffLen];
-                System.arraycopy(buff, 0, newBuff, 0, buffLen);
-                return newBuff;
-            }
+            return framer.getPacket();
 
         }
+        
+        public void close() throws IOException {
+            IOException rethrowIOE = null;
+            synchronized (this.runLock) {
+                if (this.client != null) {
+                    try { 
+                        this.client.close(); 
+                    } catch (IOException ioe) {
+                        /* unable to close? */
+                        rethrowIOE = ioe;
+                    }
+                    this.client = null;
+                }
+            }
+            if (rethrowIOE != null) {
+                throw rethrowIOE;
+            }
+        }
 
-        private byte[] readPacket(ClientSocket client, ClientPacketHandler clientHandler) throws IOException {
-            // Read until:
-            //  - Timeout
-            //  - IO error
-            //  - Read 'maxLen' characters
-            //  - Read 'actualLen' characters
+    }
+    
+    // ------------------------------------------------------------------------
+    // ------------------------------------------------------------------------
 
-            /* timeouts */
-            long idleTimeoutMS = ServerSocketThread.this.getIdleTimeout();
-            long pcktTimeoutMS = ServerSocketThread.this.getPacketTimeout();
-            long pcktTimeoutAt = (idleTimeoutMS > 0L)? (DateTime.getCurrentTimeMillis() + idleTimeoutMS) : -1L;
+    private static final int    SESSION_READ_BUFFER_SIZE    = 4096;
 
-            /* packet/read length */
-            int maxLen = this.getMaximumPacketLength(clientHandler); // safety net only
-            int minLen = this.getMinimumPacketLength(clientHandler); // tcp/udp dependent
+    private static final long   SELECT_TIMEOUT_MS           = 1000L;
+    private static final int    SELECT_READ_BUFFER_SIZE     = 8192;
+    private static final int    SELECT_MAX_READS_PER_KEY    = 4;
+    private static final int    SELECT_MAX_PENDING_INPUT    = 32 * 1024; // pause reading above this
 
-            /* set default socket timeout */
-            //client.setSoTimeout(10000);
+    private static final Object EVENT_END_OF_STREAM         = new Object();
+    private static final Object EVENT_READ_TIMEOUT          = new Object();
+    private static final Object EVENT_SESSION_TIMEOUT       = new Object();
 
-            /* packet */
-            byte packet[] = new byte[maxLen];
-            int  packetLen = 0;
-            boolean isIdle = true;
-            boolean isTextLine = false;
-            try {
-                int actualLen = 0;
-                while (true) {
+    /**
+    *** SelectorThread
+    *** Services the socket I/O for a set of non-blocking TCP sessions.  Packet
+    *** framing and the ClientPacketHandler are run on the session worker pool.
+    **/
+    private class SelectorThread
+        extends Thread
+    {
 
-                    /* read byte */
-                    int lastByte = this.readByte(client, clientHandler, pcktTimeoutAt, packetLen);
-                    // valid byte returned 
+        private Selector                                selector        = null;
+        private ByteBuffer                              readBuffer      = null;
+        private java.util.Queue<ServerSessionChannel>   pendingUpdates  = null;
+        private java.util.Set<ServerSessionChannel>     sessions        = null; // this thread only
+        private volatile boolean                        running         = true;
 
-                    /* reset idle timeout */
-                    if (isIdle) {
-                        isIdle = false;
-                        if (pcktTimeoutMS > 0L) {
-                            // reset packet timeout
-                            pcktTimeoutAt = DateTime.getCurrentTimeMillis() + pcktTimeoutMS;
+        public SelectorThread(String name) throws IOException {
+            super(name);
+            this.selector       = Selector.open();
+            this.readBuffer     = ByteBuffer.allocate(SELECT_READ_BUFFER_SIZE);
+            this.pendingUpdates = new ConcurrentLinkedQueue<ServerSessionChannel>();
+            this.sessions       = new HashSet<ServerSessionChannel>();
+        }
+
+        /* add a newly accepted session to this selector */
+        public void register(ServerSessionChannel ssc) {
+            this.requestUpdate(ssc);
+            ssc.post(null); // start session on worker thread
+        }
+
+        /* request that the interest-ops of the specified session be re-evaluated */
+        public void requestUpdate(ServerSessionChannel ssc) {
+            this.pendingUpdates.add(ssc);
+            this.selector.wakeup();
+        }
+
+        /* stop this selector, and close all sessions */
+        public void shutdown() {
+            this.running = false;
+            this.selector.wakeup();
+        }
+
+        public void run() {
+            long nextTimeoutCheck = 0L;
+            while (this.running) {
+                try {
+
+                    /* wait for socket activity */
+                    this.selector.select(SELECT_TIMEOUT_MS);
+
+                    /* register new sessions, update interest-ops */
+                    for (;;) {
+                        ServerSessionChannel ssc = this.pendingUpdates.poll();
+                        if (ssc == null) { break; }
+                        if (ssc.getSelectionKey() == null) {
+                            if (!ssc._register(this.selector)) { continue; }
+                            this.sessions.add(ssc);
                         }
+                        ssc._updateInterest();
                     }
 
-                    /* look for line terminator? */
-                    if (isTextLine) {
-                        if (ServerSocketThread.this.isLineTerminatorChar(lastByte)) {
-                            // end of line (typically '\n')
-                            break;
-                        } else
-                        if (ServerSocketThread.this.isIgnoreChar(lastByte)) {
-                            // ignore this character (typically '\r')
-                            continue;
-                        } else {
-                            // save byte
-                            packet[packetLen++] = (byte)lastByte;
+                    /* process ready sessions */
+                    Iterator<SelectionKey> ki = this.selector.selectedKeys().iterator();
+                    while (ki.hasNext()) {
+                        SelectionKey key = ki.next();
+                        ki.remove();
+                        ServerSessionChannel ssc = (ServerSessionChannel)key.attachment();
+                        if (key.isValid() && key.isWritable()) {
+                            ssc._writePending();
                         }
-                    } else {
-                        // save byte
-                        packet[packetLen++] = (byte)lastByte;
+                        if (key.isValid() && key.isReadable()) {
+                            ssc._readAvailable(this.readBuffer);
+                        }
+                        ssc._updateInterest();
                     }
 
-                    /* check lengths */
-                    if (packetLen >= maxLen) {
-                        // we've read all the bytes we can
-                        break;
-                    } else
-                    if ((actualLen > 0) && (packetLen >= actualLen)) {
-                        // we've read the bytes we expected to read
-                        break;
-                    } else
-                    if ((clientHandler != null) && (actualLen <= 0) && (packetLen >= minLen)) {
-                        // we've read the minimum number of bytes
-                        // get the actual/next expected packet length
-                        int     pktLen  = clientHandler.getActualPacketLength(packet, packetLen);
-                        boolean actual  = (pktLen < PACKET_LEN_INCREMENTAL_);
-                        int     nextLen = actual? pktLen : (pktLen & 0xFFFF);
-                        // check next packet length
-                        if (nextLen == packetLen) {
-                            // already have exactly what we need
-                            break; 
-                        } else
-                        if (nextLen == PACKET_LEN_ASCII_LINE_TERMINATOR) {
-                            // look for line terminator character
-                            //Print.logInfo("Last Byte Read: %s [%s]", StringTools.toHexString(lastByte,8), StringTools.toHexString(packet[packetLen-1]));
-                            if (ServerSocketThread.this.isLineTerminatorChar(lastByte)) {
-                                // last byte was already a line terminator
-                                packetLen--; // remove terminator
-                                break;
+                    /* check timeouts / remove closed sessions */
+                    long nowMS = DateTime.getCurrentTimeMillis();
+                    if (nowMS >= nextTimeoutCheck) {
+                        for (Iterator<ServerSessionChannel> si = this.sessions.iterator(); si.hasNext();) {
+                            ServerSessionChannel ssc = si.next();
+                            if (ssc.isClosed()) {
+                                si.remove();
                             } else {
-                                actualLen = maxLen;
-                                isTextLine = true;
+                                ssc._checkTimeouts(nowMS);
                             }
+                        }
+                        nextTimeoutCheck = nowMS + SELECT_TIMEOUT_MS;
+                    }
+
+                } catch (ClosedSelectorException cse) {
+                    break;
+                } catch (IOException ioe) {
+                    Print.logError("Selector error - " + ioe);
+                } catch (Throwable th) {
+                    Print.logException("Selector", th);
+                }
+            }
+
+            /* close all sessions */
+            for (ServerSessionChannel ssc : this.sessions) {
+                ssc._close();
+            }
+            this.sessions.clear();
+            try {
+                this.selector.close();
+            } catch (IOException ioe) {
+                // ignore
+            }
+
+        }
+
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** ServerSessionChannel
+    *** A non-blocking TCP client session.  Socket reads/writes are performed by the
+    *** SelectorThread, while the session events (received bytes, timeouts, end of
+    *** stream) are processed in order, one at a time, by the session worker pool.
+    **/
+    private class ServerSessionChannel
+        implements SessionInfo, Runnable
+    {
+
+        private SelectorThread              selectorThread      = null;
+        private SocketChannel               channel             = null;
+        private SelectionKey                selectKey           = null;
+        private InetAddress                 inetAddr            = null;
+        private int                         remotePort          = -1;
+        private ClientPacketHandler         clientHandler       = null;
+
+        private volatile long               readByteCount       = 0L;
+        private volatile long               writeByteCount      = 0L;
+
+        // selector thread state
+        private boolean                     readClosed          = false;
+        private boolean                     sessionTimeoutSent  = false;
+        private long                        sessionTimeoutAt    = -1L;
+
+        // pending session events (guarded by 'eventQueue')
+        private java.util.LinkedList<Object> eventQueue         = new java.util.LinkedList<Object>();
+        private int                         pendingInputBytes   = 0;
+        private boolean                     workerBusy          = false;
+        private boolean                     readTimeoutSent     = false;
+
+        // pending output (guarded by 'outputQueue')
+        private java.util.LinkedList<ByteBuffer> outputQueue    = new java.util.LinkedList<ByteBuffer>();
+
+        // worker state
+        private boolean                     started             = false;
+        private volatile boolean            terminated          = false;
+        private volatile boolean            closed              = false;
+        private int                         promptIndex         = 0;
+        private volatile long               packetTimeoutAt     = -1L;
+        private PacketFramer                framer              = null;
+        private boolean                     isIdle              = true;
+
+        public ServerSessionChannel(SelectorThread st, SocketChannel sc) {
+            this.selectorThread = st;
+            this.channel        = sc;
+            Socket s            = sc.socket();
+            this.inetAddr       = s.getInetAddress();
+            this.remotePort     = s.getPort();
+            this.clientHandler  = ServerSocketThread.this.getClientPacketHandler();
+            this.framer         = new PacketFramer(ServerSocketThread.this, this.clientHandler);
+            long sessTimeoutMS  = ServerSocketThread.this.getSessionTimeout();
+            this.sessionTimeoutAt = (sessTimeoutMS > 0L)? (DateTime.getCurrentTimeMillis() + sessTimeoutMS) : -1L;
+        }
+
+        // --------------------------------------------------------------------
+        // SessionInfo
+
+        public int getLocalPort() {
+            return ServerSocketThread.this.getLocalPort();
+        }
+
+        public boolean isTCP() {
+            return true;
+        }
+
+        public boolean isUDP() {
+            return false;
+        }
+
+        public int getAvailableBytes() {
+            synchronized (this.eventQueue) {
+                return this.pendingInputBytes;
+            }
+        }
+
+        public long getReadByteCount() {
+            return this.readByteCount;
+        }
+
+        public long getWriteByteCount() {
+            return this.writeByteCount;
+        }
+
+        public InetAddress getInetAddress() {
+            return this.inetAddr;
+        }
+
+        public int getRemotePort() {
+            int rPort = ServerSocketThread.this.getRemotePort(); // likely always '0'
+            return (rPort > 0)? rPort : this.remotePort;
+        }
+
+        public boolean isClosed() {
+            return this.closed;
+        }
+
+        public SelectionKey getSelectionKey() {
+            return this.selectKey;
+        }
+
+        // --------------------------------------------------------------------
+        // selector thread
+
+        /* register this session with the selector */
+        private boolean _register(Selector selector) {
+            try {
+                this.selectKey = this.channel.register(selector, SelectionKey.OP_READ, this);
+                return true;
+            } catch (IOException ioe) {
+                Print.logError("Unable to register client - " + ioe);
+                this._close();
+                return false;
+            }
+        }
+
+        /* read all available bytes, and queue them for the worker */
+        private void _readAvailable(ByteBuffer buf) {
+            for (int r = 0; (r < SELECT_MAX_READS_PER_KEY) && !this.readClosed; r++) {
+                int len;
+                try {
+                    buf.clear();
+                    len = this.channel.read(buf);
+                } catch (IOException ioe) {
+                    this.readClosed = true;
+                    this.post(ioe);
+                    break;
+                }
+                if (len < 0) {
+                    // socket likely closed by client
+                    this.readClosed = true;
+                    this.post(EVENT_END_OF_STREAM);
+                    break;
+                } else
+                if (len == 0) {
+                    break;
+                }
+                byte b[] = new byte[len];
+                System.arraycopy(buf.array(), 0, b, 0, len);
+                this.readByteCount += len;
+                this.post(b);
+                if (len < buf.capacity()) {
+                    break; // nothing more available
+                }
+            }
+        }
+
+        /* write as much pending output as the socket will accept */
+        private void _writePending() {
+            synchronized (this.outputQueue) {
+                try {
+                    while (!this.outputQueue.isEmpty()) {
+                        ByteBuffer bb = this.outputQueue.getFirst();
+                        this.writeByteCount += this.channel.write(bb);
+                        if (bb.hasRemaining()) {
+                            break; // socket buffer full
+                        }
+                        this.outputQueue.removeFirst();
+                    }
+                } catch (IOException ioe) {
+                    Print.logError("writeBytes error - " + ioe);
+                    this.outputQueue.clear();
+                    if (!this.readClosed) {
+                        this.readClosed = true;
+                        this.post(ioe);
+                    }
+                }
+            }
+        }
+
+        /* update the selector interest-ops, or close the session if complete */
+        private void _updateInterest() {
+            if (this.closed || (this.selectKey == null)) {
+                return;
+            }
+            boolean hasOutput;
+            synchronized (this.outputQueue) {
+                hasOutput = !this.outputQueue.isEmpty();
+            }
+            if (this.terminated && !hasOutput) {
+                this._close();
+                return;
+            }
+            int ops = 0;
+            if (!this.readClosed && !this.terminated && (this.getAvailableBytes() < SELECT_MAX_PENDING_INPUT)) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (hasOutput) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            try {
+                this.selectKey.interestOps(ops);
+            } catch (CancelledKeyException cke) {
+                this._close();
+            }
+        }
+
+        /* check session/packet timeouts */
+        private void _checkTimeouts(long nowMS) {
+            if (this.terminated) {
+                return;
+            }
+            if ((this.sessionTimeoutAt > 0L) && (nowMS >= this.sessionTimeoutAt) && !this.sessionTimeoutSent) {
+                this.sessionTimeoutSent = true;
+                this.readClosed = true;
+                this.post(EVENT_SESSION_TIMEOUT);
+                return;
+            }
+            long timeoutAt = this.packetTimeoutAt;
+            if ((timeoutAt > 0L) && (nowMS >= timeoutAt) && !this.readClosed) {
+                boolean submit = false;
+                synchronized (this.eventQueue) {
+                    // only if the worker has consumed everything we've read so far
+                    if (!this.workerBusy && !this.readTimeoutSent && this.eventQueue.isEmpty()) {
+                        this.readTimeoutSent = true;
+                        this.eventQueue.add(EVENT_READ_TIMEOUT);
+                        this.workerBusy = true;
+                        submit = true;
+                    }
+                }
+                if (submit) {
+                    ServerSocketThread.this.sessionWorkerPool.run(this);
+                }
+            }
+        }
+
+        /* close the socket channel */
+        private void _close() {
+            if (!this.closed) {
+                this.closed = true;
+                try {
+                    int lingerSec = ServerSocketThread.this.getLingerTimeoutSec();
+                    this.channel.socket().setSoLinger((lingerSec > 0), Math.max(lingerSec,0));
+                } catch (Throwable th) {
+                    // ignore
+                }
+                try {
+                    this.channel.close(); // also cancels SelectionKey
+                } catch (IOException ioe) {
+                    /* unable to close? */
+                }
+            }
+        }
+
+        // --------------------------------------------------------------------
+        // event queue
+
+        /* queue an event for the worker thread ('null' only starts the worker) */
+        public void post(Object event) {
+            boolean submit = false;
+            synchronized (this.eventQueue) {
+                if (event != null) {
+                    this.eventQueue.add(event);
+                    if (event instanceof byte[]) {
+                        this.pendingInputBytes += ((byte[])event).length;
+                    }
+                }
+                if (!this.workerBusy && !this.terminated) {
+                    this.workerBusy = true;
+                    submit = true;
+                }
+            }
+            if (submit) {
+                ServerSocketThread.this.sessionWorkerPool.run(this);
+            }
+        }
+
+        // --------------------------------------------------------------------
+        // worker thread
+
+        public void run() {
+            try {
+                if (!this.started) {
+                    this.started = true;
+                    this._startSession();
+                }
+                while (!this.terminated) {
+                    Object event;
+                    synchronized (this.eventQueue) {
+                        event = this.eventQueue.poll();
+                        if (event == null) {
+                            this.workerBusy = false;
+                            break;
                         } else
-                        if (nextLen <= PACKET_LEN_END_OF_STREAM) {
-                            // read the rest of the stream
-                            actualLen = maxLen;
-                        } else
-                        if (nextLen > maxLen) {
-                            // specified length is greater that the maximum
-                            Print.logStackTrace("Actual length [" + nextLen + "] > Maximum length [" + maxLen + "]");
-                            actualLen = maxLen;
+                        if (event instanceof byte[]) {
+                            this.pendingInputBytes -= ((byte[])event).length;
                         } else
-                        if (actual) {
-                            // read until actual size
-                            actualLen = nextLen;
-                        } else {
-                            // reset minimum to next length
-                            minLen = nextLen;
+                        if (event == EVENT_READ_TIMEOUT) {
+                            this.readTimeoutSent = false;
                         }
                     }
+                    this._handleEvent(event);
+                }
+            } catch (Throwable th) {
+                Print.logException("?", th);
+                this._terminateSession(th);
+            }
+            if (this.terminated) {
+                synchronized (this.eventQueue) {
+                    this.eventQueue.clear();
+                    this.pendingInputBytes = 0;
+                    this.workerBusy = false;
+                }
+            }
+            this.selectorThread.requestUpdate(this); // resume reading, or close
+        }
 
-                } // while (true)
-            } catch (SSReadTimeoutException t) {
+        /* session started */
+        private void _startSession() throws IOException {
+            Print.logInfo("Remote client port: " + this.inetAddr + ":" + this.remotePort + "[" + this.getLocalPort() + "]");
+            ClientPacketHandler handler = this.clientHandler;
+            if (handler != null) {
+                if (handler instanceof AbstractClientPacketHandler) {
+                    // set a handle to this session
+                    ((AbstractClientPacketHandler)handler).setSessionInfo(this);
+                }
+                handler.sessionStarted(this.inetAddr, true, ServerSocketThread.this.isTextPackets());
+                if (handler.terminateSession()) {
+                    this._terminateSession(null);
+                    return;
+                }
+                try {
+                    this._writeBytes(handler.getInitialPacket()); // may be null
+                } catch (IOException ioe) {
+                    throw ioe;
+                } catch (Throwable th) {
+                    Print.logException("?", th);
+                    this._terminateSession(th);
+                    return;
+                }
+            }
+            this._resetPacket();
+            this._writeBytes(ServerSocketThread.this.getPrompt(this.promptIndex)); // may be null
+        }
+
+        /* handle the next session event */
+        private void _handleEvent(Object event) throws IOException {
+            if (event instanceof byte[]) {
+                byte b[] = (byte[])event;
+                for (int n = 0; (n < b.length) && !this.terminated;) {
+                    this._startPacket();
+                    n += this.framer.append(b, n, b.length - n);
+                    if (this.framer.isComplete()) {
+                        this._packetComplete();
+                    }
+                }
+            } else
+            if (event == EVENT_READ_TIMEOUT) {
                 // This could mean a protocol error
-                if (packetLen > 0) {
-                    Print.logWarn("Timeout: " + StringTools.toHexString(packet, 0, packetLen));
+                if (this.framer.getLength() > 0) {
+                    Print.logWarn("Timeout: " + this.framer);
                 }
                 if (ServerSocketThread.this.getTerminateOnTimeout()) {
-                    throw t;
-                }
-            } catch (SSEndOfStreamException eos) {
-                if (client.isTCP()) { // readPacket
-                    // This could mean a protocol error
-                    if (packetLen > 0) {
-                        Print.logWarn("EOS: " + StringTools.toHexString(packet, 0, packetLen));
+                    SSReadTimeoutException rte = (this.framer.getLength() <= 0)?
+                        new SSReadTimeoutException("Read timeout [empty packet]", this.framer.getLength()) :
+                        new SSReadTimeoutException("Read timeout [@ " + this.framer.getLength() + "]", this.framer.getLength());
+                    if (rte.getByteIndex() <= 0) {
+                        // timeout at packet boundry
+                        Print.logInfo(rte.getMessage());
+                        this._terminateSession(null);
+                    } else {
+                        Print.logWarn(rte.getMessage());
+                        this._terminateSession(rte);
                     }
-                    Print.logError(eos.getMessage());
-                    throw eos;
                 } else {
-                    // We're at the end of the UDP datastream (may be an expected condition)
-                    // (just fall through to return what bytes we've already read.)
+                    // return what we have so far
+                    this._packetComplete();
                 }
-            } catch (SocketException se) {
-                Print.logError("ReadPacket error - " + se);
-                throw se;
-            } catch (IOException ioe) {
-                Print.logError("ReadPacket error - " + ioe);
-                throw ioe;
+            } else
+            if (event == EVENT_END_OF_STREAM) {
+                SSEndOfStreamException eos = (this.framer.getLength() <= 0)?
+                    new SSEndOfStreamException("End of stream [empty packet]", this.framer.getLength()) :
+                    new SSEndOfStreamException("End of stream [@ " + this.framer.getLength() + "]", this.framer.getLength());
+                if (eos.getByteIndex() <= 0) {
+                    // end of stream at packet boundry
+                    Print.logInfo(eos.getMessage());
+                    this._terminateSession(null);
+                } else {
+                    // end of stream within expected packet
+                    Print.logWarn("EOS: " + this.framer);
+                    Print.logError(eos.getMessage());
+                    this._terminateSession(eos);
+                }
+            } else
+            if (event == EVENT_SESSION_TIMEOUT) {
+                SSSessionTimeoutException ste = new SSSessionTimeoutException("Session timeout");
+                Print.logWarn(ste.getMessage());
+                this._terminateSession(ste);
+            } else
+            if (event instanceof SocketException) {
+                Print.logError("Connection closed");
+                this._terminateSession((Throwable)event);
+            } else
+            if (event instanceof Throwable) {
+                Print.logException("?", (Throwable)event);
+                this._terminateSession((Throwable)event);
             }
+        }
 
-            /* return packet */
-            if (packet.length == packetLen) {
-                // highly unlikely
-                return packet;
-            } else {
-                // resize buffer
-                byte newPacket[] = new byte[packetLen];
-                System.arraycopy(packet, 0, newPacket, 0, packetLen);
-                return newPacket;
+        /* reset the packet framing state */
+        private void _resetPacket() {
+            long idleTimeoutMS   = ServerSocketThread.this.getIdleTimeout();
+            this.framer.reset();
+            this.isIdle          = true;
+            this.packetTimeoutAt = (idleTimeoutMS > 0L)? (DateTime.getCurrentTimeMillis() + idleTimeoutMS) : -1L;
+        }
+
+        /* first bytes of a packet received: reset idle timeout */
+        private void _startPacket() {
+            if (this.isIdle) {
+                this.isIdle = false;
+                long pcktTimeoutMS = ServerSocketThread.this.getPacketTimeout();
+                if (pcktTimeoutMS > 0L) {
+                    this.packetTimeoutAt = DateTime.getCurrentTimeMillis() + pcktTimeoutMS;
+                }
             }
+        }
+
+        /* a complete packet has been framed */
+        private void _packetComplete() throws IOException {
+            byte line[] = this.framer.getPacket();
+            this._resetPacket();
+
+            /* send packet to listeners */
+            if (ServerSocketThread.this.hasListeners()) {
+                try {
+                    ServerSocketThread.this.invokeListeners(line);
+                } catch (Throwable t) {
+                    // a listener can terminate this session
+                    this._terminateSession(null);
+                    return;
+                }
+            }
+
+            /* get response */
+            ClientPacketHandler handler = this.clientHandler;
+            if (handler != null) {
+                try {
+                    this._writeBytes(handler.getHandlePacket(line)); // may be null
+                    if (handler.terminateSession()) {
+                        this._terminateSession(null);
+                        return;
+                    }
+                } catch (Throwable t) {
+                    // the ClientPacketHandler can terminate this session
+                    Print.logException("Unexpected exception: ", t);
+                    this._terminateSession(null);
+                    return;
+                }
+            }
+
+            /* display prompt */
+            this.promptIndex++;
+            this._writeBytes(ServerSocketThread.this.getPrompt(this.promptIndex)); // may be null
 
         }
-        
-        public void close() throws IOException {
-            IOException rethrowIOE = null;
-            synchronized (this.runLock) {
-                if (this.client != null) {
-                    try { 
-                        this.client.close(); 
+
+        /* terminate the session (the socket is closed after all pending output is written) */
+        private void _terminateSession(Throwable termError) {
+            if (this.terminated) {
+                return;
+            }
+            ClientPacketHandler handler = this.clientHandler;
+            if (handler != null) {
+                try {
+                    this._writeBytes(handler.getFinalPacket(termError != null));
+                } catch (Throwable t) {
+                    Print.logException("Final packet transmission", t);
+                }
+                handler.sessionTerminated(termError, this.readByteCount, this.writeByteCount);
+                if (handler instanceof AbstractClientPacketHandler) {
+                    // clear the session so that it doesn't hold on to an instance of this class
+                    ((AbstractClientPacketHandler)handler).setSessionInfo(null);
+                }
+            }
+            this.packetTimeoutAt = -1L;
+            this.terminated = true;
+        }
+
+        /* queue bytes for output (written immediately if the socket will accept them) */
+        private void _writeBytes(byte cmd[]) throws IOException {
+            if ((cmd == null) || (cmd.length == 0) || this.closed) {
+                return;
+            }
+            boolean queued = false;
+            synchronized (this.outputQueue) {
+                ByteBuffer bb = ByteBuffer.wrap(cmd);
+                if (this.outputQueue.isEmpty()) {
+                    try {
+                        this.writeByteCount += this.channel.write(bb);
                     } catch (IOException ioe) {
-                        /* unable to close? */
-                        rethrowIOE = ioe;
+                        Print.logError("writeBytes error - " + ioe);
+                        throw ioe;
                     }
-                    this.client = null;
+                }
+                if (bb.hasRemaining()) {
+                    this.outputQueue.add(bb);
+                    queued = true;
                 }
             }
-            if (rethrowIOE != null) {
-                throw rethrowIOE;
+            if (queued) {
+                this.selectorThread.requestUpdate(this);
             }
         }
 
     }
-    
+
     // ------------------------------------------------------------------------
     
     /**
@@ -28,6 +28,12 @@
 //     -Repackaged
 //  2006/11/28  Martin D. Flynn
 //     -Added method "setMaxSize(size)"
+//  2010/01/11  Martin D. Flynn
+//     -The job queue may now be bounded, with a configurable policy for jobs submitted
+//      while the queue is full (run in the calling thread, discard, or discard oldest).
+//     -Pool state is now guarded by a single lock.  Idle threads beyond the maximum pool
+//      size now exit, and an exception thrown by a job no longer terminates its thread.
+//     -Added pool statistics (active, queued, completed, rejected, queue wait time).
 // ----------------------------------------------------------------------------
 package org.opengts.util;
 
@@ -43,21 +49,75 @@ public class ThreadPool
     // ------------------------------------------------------------------------
 
     private static final int DFT_POOL_SIZE  = 20;
+    private static final int DFT_QUEUE_SIZE = 0;    // unbounded
     
     public  static final int STOP_WAITING   = -1;
     public  static final int STOP_NEVER     = 0;
     public  static final int STOP_NOW       = 1;
 
+    // ------------------------------------------------------------------------
+    // full queue policies
+
+    public  static final int REJECT_CALLER_RUNS     = 0;    // run job in the calling thread
+    public  static final int REJECT_DISCARD         = 1;    // discard the new job
+    public  static final int REJECT_DISCARD_OLDEST  = 2;    // discard the oldest queued job
+
+    /**
+    *** Parses the specified full-queue policy name ("callerRuns", "discard", "discardOldest")
+    *** @param policy  The policy name
+    *** @param dft     The default policy returned if the name is not recognized
+    *** @return The full-queue policy
+    **/
+    public static int parseRejectPolicy(String policy, int dft)
+    {
+        String p = StringTools.trim(policy);
+        if (p.equalsIgnoreCase("callerRuns")) {
+            return REJECT_CALLER_RUNS;
+        } else
+        if (p.equalsIgnoreCase("discard")) {
+            return REJECT_DISCARD;
+        } else
+        if (p.equalsIgnoreCase("discardOldest")) {
+            return REJECT_DISCARD_OLDEST;
+        } else {
+            return dft;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** A queued job
+    **/
+    private static class QueuedJob
+    {
+        private Runnable job        = null;
+        private long     queueTimeMS = 0L;
+        public QueuedJob(Runnable job) {
+            this.job         = job;
+            this.queueTimeMS = System.currentTimeMillis();
+        }
+    }
+
     // ------------------------------------------------------------------------
 
     private ThreadGroup                 poolGroup       = null;
     private java.util.List<ThreadJob>   jobThreadPool   = null;
     private int                         maxPoolSize     = DFT_POOL_SIZE;
     private int                         threadId        = 1;
-    private java.util.List<Runnable>    jobQueue        = null;
+    private LinkedList<QueuedJob>       jobQueue        = null;   // also the pool lock
+    private int                         maxQueueSize    = DFT_QUEUE_SIZE;
+    private int                         rejectPolicy    = REJECT_CALLER_RUNS;
     private int                         waitingCount    = 0;
     private int                         stopThreads     = STOP_NEVER;
 
+    private long                        completedCount  = 0L;
+    private long                        rejectedCount   = 0L;
+    private long                        callerRunCount  = 0L;
+    private long                        totalWaitMS     = 0L;
+    private long                        maxWaitMS       = 0L;
+    private long                        dequeuedCount   = 0L;
+
     /**
     *** Constuctor
     *** @param name The name of the thread pool
@@ -73,12 +133,26 @@ public class ThreadPool
     *** @param maxPoolSize The maximum number of threads in the thread pool[CHECK]
     **/
     public ThreadPool(String name, int maxPoolSize)
+    {
+        this(name, maxPoolSize, DFT_QUEUE_SIZE, REJECT_CALLER_RUNS);
+    }
+
+    /**
+    *** Constructor
+    *** @param name The name of the thread pool
+    *** @param maxPoolSize  The maximum number of threads in the thread pool
+    *** @param maxQueueSize The maximum number of queued jobs (<= 0 for unbounded)
+    *** @param rejectPolicy The policy applied to jobs submitted while the queue is full
+    **/
+    public ThreadPool(String name, int maxPoolSize, int maxQueueSize, int rejectPolicy)
     {
         super();
         this.poolGroup     = new ThreadGroup((name != null)? name : "ThreadPool");
         this.jobThreadPool = new Vector<ThreadJob>();
-        this.jobQueue      = new Vector<Runnable>();
+        this.jobQueue      = new LinkedList<QueuedJob>();
         this.setMaxSize(maxPoolSize);
+        this.setMaxQueueSize(maxQueueSize);
+        this.setRejectPolicy(rejectPolicy);
     }
     
     // ------------------------------------------------------------------------
@@ -131,20 +205,22 @@ public class ThreadPool
     **/
     public int getSize()
     {
-        int size = 0;
-        synchronized (this.jobThreadPool) {
-            size = this.jobThreadPool.size();
+        synchronized (this.jobQueue) {
+            return this.jobThreadPool.size();
         }
-        return size;
     }
 
     /**
-    *** Sets the maximum size of this thread pool
+    *** Sets the maximum size of this thread pool.  If reduced, idle threads in excess of
+    *** the new maximum will exit.
     *** @param maxSize The maximum size of the thread pool
     **/
     public void setMaxSize(int maxSize)
     {
+        synchronized (this.jobQueue) {
         this.maxPoolSize = (maxSize > 0)? maxSize : DFT_POOL_SIZE;
+            this.jobQueue.notifyAll();
+        }
     }
 
     /**
@@ -156,29 +232,119 @@ public class ThreadPool
         return this.maxPoolSize;
     }
     
+    /**
+    *** Sets the maximum number of queued jobs
+    *** @param maxSize The maximum number of queued jobs (<= 0 for unbounded)
+    **/
+    public void setMaxQueueSize(int maxSize)
+    {
+        this.maxQueueSize = (maxSize > 0)? maxSize : 0;
+    }
+
+    /**
+    *** Gets the maximum number of queued jobs
+    *** @return The maximum number of queued jobs (0 if unbounded)
+    **/
+    public int getMaxQueueSize()
+    {
+        return this.maxQueueSize;
+    }
+
+    /**
+    *** Sets the policy applied to jobs submitted while the queue is full
+    *** @param policy The full-queue policy (REJECT_CALLER_RUNS, REJECT_DISCARD, REJECT_DISCARD_OLDEST)
+    **/
+    public void setRejectPolicy(int policy)
+    {
+        switch (policy) {
+            case REJECT_DISCARD       :
+            case REJECT_DISCARD_OLDEST:
+                this.rejectPolicy = policy;
+                break;
+            default :
+                this.rejectPolicy = REJECT_CALLER_RUNS;
+                break;
+        }
+    }
+
+    /**
+    *** Gets the policy applied to jobs submitted while the queue is full
+    *** @return The full-queue policy
+    **/
+    public int getRejectPolicy()
+    {
+        return this.rejectPolicy;
+    }
+
     // ------------------------------------------------------------------------
     
     /**
-    *** Adds a new job to the thread pool's queue
+    *** Adds a new job to the thread pool's queue.  If the queue is full, the job is
+    *** handled per the full-queue policy.
     *** @param job The job to add to the queue
+    *** @return True if the job was queued (or run in the calling thread), false if the
+    ***         job was discarded
     **/
-    public void run(Runnable job)
+    public boolean run(Runnable job)
     {
+        if (job == null) {
+            return false;
+        }
+        synchronized (this.jobQueue) {
+            if ((this.maxQueueSize > 0) && (this.jobQueue.size() >= this.maxQueueSize)) {
+                if (this.rejectPolicy == REJECT_DISCARD_OLDEST) {
+                    this.jobQueue.removeFirst();
+                    this._rejected("discarded oldest job");
+                } else
+                if (this.rejectPolicy == REJECT_DISCARD) {
+                    this._rejected("discarded job");
+                    return false;
+                } else {
+                    this.callerRunCount++;
+                    this._rejected("running job in calling thread");
+                    job = null; // run below, outside of the lock
+                }
+            }
         if (job != null) {
-            synchronized (this.jobThreadPool) { // <-- modification of threadPool is likely
-                synchronized (this.jobQueue) { // <-- modification of job queue mandatory
-                    // It's possible that we may end up adding more threads than we need if this
-                    // section executes multiple times before the newly added thread has a chance 
-                    // to pull a job off the queue.
-                    this.jobQueue.add(job);
-                    if ((this.waitingCount == 0) && (this.jobThreadPool.size() < this.maxPoolSize)) {
+                this.jobQueue.add(new QueuedJob(job));
+                // start a new thread if there are more queued jobs than waiting threads
+                if ((this.jobQueue.size() > this.waitingCount) && (this.jobThreadPool.size() < this.maxPoolSize)) {
                         ThreadJob tj = new ThreadJob(this, (this.getName() + "_" + (this.threadId++)));
                         this.jobThreadPool.add(tj);
                         Print.logDebug("New Thread: " + tj.getName() + " [" + this.getMaxSize() + "]");
                     }
                     this.jobQueue.notify(); // notify a waiting thread
+                return true;
                 }
             }
+        // REJECT_CALLER_RUNS: the queue is full, run in the calling thread
+        this._runJob(job);
+        return true;
+    }
+
+    /**
+    *** Counts/logs a job rejected because the queue is full (lock must be held)
+    **/
+    private void _rejected(String action)
+    {
+        // log the first rejection, and every 1000th thereafter
+        if ((this.rejectedCount++ % 1000L) == 0L) {
+            Print.logWarn("ThreadPool '" + this.getName() + "' queue full, " + action + " [" + this.getStatistics() + "]");
+        }
+    }
+
+    /**
+    *** Runs the specified job, logging any exception thrown
+    **/
+    private void _runJob(Runnable job)
+    {
+        try {
+            job.run();
+        } catch (Throwable th) {
+            Print.logException("ThreadPool '" + this.getName() + "' job failed", th);
+        }
+        synchronized (this.jobQueue) {
+            this.completedCount++;
         }
     }
     
@@ -196,16 +362,142 @@ public class ThreadPool
     }
     
     /**
-    *** Removes the specified worker thread from the pool
+    *** Removes the specified worker thread from the pool (lock must be held)
     *** @param thread The thread to remove from the pool
     **/
     protected void _removeThread(ThreadJob thread)
     {
         if (thread != null) {
-            synchronized (this.jobThreadPool) {
                 //Print.logDebug("Removing thread: " + thread.getName());
                 this.jobThreadPool.remove(thread);
             }
+    }
+
+    /**
+    *** Gets the next job for the specified worker thread, waiting if necessary.  Returns
+    *** null (and removes the thread from the pool) if the thread should exit.
+    **/
+    private Runnable _nextJob(ThreadJob thread)
+    {
+        synchronized (this.jobQueue) {
+            while (true) {
+                if (this.stopThreads == STOP_NOW) {
+                    // stop now, no more jobs
+                    break;
+                } else
+                if (this.jobQueue.size() > 0) {
+                    QueuedJob qj = this.jobQueue.removeFirst();
+                    long waitMS = System.currentTimeMillis() - qj.queueTimeMS;
+                    this.dequeuedCount++;
+                    this.totalWaitMS += waitMS;
+                    if (waitMS > this.maxWaitMS) { this.maxWaitMS = waitMS; }
+                    return qj.job;
+                } else
+                if (this.stopThreads == STOP_WAITING) {
+                    // stop after all jobs have completed
+                    break;
+                } else
+                if (this.jobThreadPool.size() > this.maxPoolSize) {
+                    // pool size reduced, idle thread no longer needed
+                    break;
+                } else {
+                    this.waitingCount++;
+                    try { this.jobQueue.wait(20000); } catch (InterruptedException ie) {}
+                    this.waitingCount--;
+                }
+            }
+            this._removeThread(thread);
+            return null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Gets the number of threads currently running a job
+    *** @return The number of active threads
+    **/
+    public int getActiveCount()
+    {
+        synchronized (this.jobQueue) {
+            return Math.max(0, this.jobThreadPool.size() - this.waitingCount);
+        }
+    }
+
+    /**
+    *** Gets the number of jobs waiting in the queue
+    *** @return The number of queued jobs
+    **/
+    public int getQueueSize()
+    {
+        synchronized (this.jobQueue) {
+            return this.jobQueue.size();
+        }
+    }
+
+    /**
+    *** Gets the number of completed jobs
+    *** @return The number of completed jobs
+    **/
+    public long getCompletedCount()
+    {
+        synchronized (this.jobQueue) {
+            return this.completedCount;
+        }
+    }
+
+    /**
+    *** Gets the number of jobs submitted while the queue was full (discarded, or run
+    *** in the calling thread, per the full-queue policy)
+    *** @return The number of rejected jobs
+    **/
+    public long getRejectedCount()
+    {
+        synchronized (this.jobQueue) {
+            return this.rejectedCount;
+        }
+    }
+
+    /**
+    *** Gets the average time (milliseconds) jobs have waited in the queue
+    *** @return The average queue wait time in milliseconds
+    **/
+    public long getAverageQueueWaitMS()
+    {
+        synchronized (this.jobQueue) {
+            return (this.dequeuedCount > 0L)? (this.totalWaitMS / this.dequeuedCount) : 0L;
+        }
+    }
+
+    /**
+    *** Gets the maximum time (milliseconds) a job has waited in the queue
+    *** @return The maximum queue wait time in milliseconds
+    **/
+    public long getMaximumQueueWaitMS()
+    {
+        synchronized (this.jobQueue) {
+            return this.maxWaitMS;
+        }
+    }
+
+    /**
+    *** Returns a String containing the current pool statistics
+    *** @return The pool statistics
+    **/
+    public String getStatistics()
+    {
+        synchronized (this.jobQueue) {
+            StringBuffer sb = new StringBuffer();
+            sb.append("threads=").append(this.jobThreadPool.size()).append("/").append(this.maxPoolSize);
+            sb.append(", active=").append(Math.max(0, this.jobThreadPool.size() - this.waitingCount));
+            sb.append(", queued=").append(this.jobQueue.size());
+            if (this.maxQueueSize > 0) { sb.append("/").append(this.maxQueueSize); }
+            sb.append(", completed=").append(this.completedCount);
+            sb.append(", rejected=").append(this.rejectedCount);
+            sb.append(", callerRuns=").append(this.callerRunCount);
+            sb.append(", avgWaitMS=").append((this.dequeuedCount > 0L)? (this.totalWaitMS / this.dequeuedCount) : 0L);
+            sb.append(", maxWaitMS=").append(this.maxWaitMS);
+            return sb.toString();
         }
     }
     
@@ -214,7 +506,6 @@ public class ThreadPool
     private static class ThreadJob
         extends Thread
     {
-        private Runnable job = null;
         private ThreadPool threadPool = null;
         
         public ThreadJob(ThreadPool pool, String name) {
@@ -224,47 +515,13 @@ public class ThreadPool
         }
        
         public void run() {
-    
-            /* loop forever */
-            while (true) {
-    
-                /* get next job */
-                // 'this.job' is always null here
-                boolean stop = false;
-                synchronized (this.threadPool.jobQueue) {
-                    //Print.logDebug("Thread checking for jobs: " + this.getName());
-                    while (this.job == null) {
-                        if (this.threadPool.stopThreads == STOP_NOW) {
-                            // stop now, no more jobs
-                            stop = true;
-                            break;
-                        } else
-                        if (this.threadPool.jobQueue.size() > 0) {
-                            this.job = this.threadPool.jobQueue.remove(0);
-                        } else
-                        if (this.threadPool.stopThreads == STOP_WAITING) {
-                            // stop after all jobs have completed
-                            stop = true;
-                            break;
-                        } else {
-                            this.threadPool.waitingCount++;
-                            try { this.threadPool.jobQueue.wait(20000); } catch (InterruptedException ie) {}
-                            this.threadPool.waitingCount--;
-                        }
-                    }
-                }
-                if (stop) { break; }
-                
-                /* run job */
+            /* loop until no more jobs */
+            for (;;) {
+                Runnable job = this.threadPool._nextJob(this);
+                if (job == null) { break; } // thread removed from pool
                 //Print.logDebug("Thread running: " + this.getName());
-                this.job.run();
-                this.job = null;
-                
-            }
-            
-            /* remove thread from pool */
-            this.threadPool._removeThread(this);
-            
+                this.threadPool._runJob(job);
+                        }
         }
         
     }
@@ -298,6 +555,7 @@ public class ThreadPool
         }
         Print.logInfo("Stop Threads");
         pool.stopThreads();
+        Print.logInfo("Statistics: " + pool.getStatistics());
     }
     
 }
@@ -44,6 +44,8 @@
 //     -Added URL parameter "validgps" to specify valid GPS fixes only.
 //  2009/05/27  Martin D. Flynn
 //     -Check to make sure that the URL matches a BasicPrivateLabel domain.
+//  2010/01/11  Martin D. Flynn
+//     -Release database connections held by the request thread after each request.
 // ----------------------------------------------------------------------------
 package org.opengts.war.events;
 
@@ -150,6 +152,7 @@ public class Events
                 this._doWork(isPost, request, response, privLabel);
             } finally {
                 privLabel.popRTProperties();
+                DBConnection.releaseThreadConnections(); // return pooled connections
             }
         } else {
             this.errorResponse(response, "Request not allowed for specified URL");
@@ -19,6 +19,8 @@
 // Change History:
 //  2007/03/11  Martin D. Flynn
 //     -Initial release
+//  2010/01/11  Martin D. Flynn
+//     -Added 'close' to release resources (ie. streaming connections) of unfinished iterators
 // ----------------------------------------------------------------------------
 package org.opengts.war.report;
 
@@ -35,6 +37,9 @@ public interface DBDataIterator
     /* return the next data record */
     public DBDataRow next();
 
+    /* release any resources held by this iterator (must be called if not read to the end) */
+    public void close();
+
     // ------------------------------------------------------------------------
 
 }
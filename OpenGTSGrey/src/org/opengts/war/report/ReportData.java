@@ -36,6 +36,14 @@
 //     -Added 'setOrderAscending' to allow descending order EventData reports.
 //  2009/11/01  Martin D. Flynn
 //     -Added ReportOption support
+//  2010/01/11  Martin D. Flynn
+//     -Added 'getEventDataIterator' for streaming EventData report rows
+//     -Added 'EventDataCursor' for streaming the EventData records of a single Device
+//     -EventData records for multiple devices are selected in parallel (see ReportExecutor)
+//     -Added 'cancel' to stop the selection of EventData records for remaining devices
+//     -'countEventData' reads full-day counts from the daily rollups (see RollupTracker)
+//     -'EventDataIterator' shares one streaming connection for all devices, and read
+//      errors are thrown to the report writer rather than ending the report early.
 // ----------------------------------------------------------------------------
 package org.opengts.war.report;
 
@@ -100,6 +108,8 @@ public abstract class ReportData
     private int                 eventDataCount      = 0;
     private int                 maxEventDataCount   = 0;
 
+    private volatile boolean    isCancelled         = false;
+
     private ReportConstraints   rptConstraints      = null;
     
     private ReportOption        reportOption        = null;
@@ -579,41 +589,42 @@ public abstract class ReportData
     {
         long limit = this.getReportLimit(); // report record limit
         //Print.logInfo("ReportLimit: " + limit);
-        ReportDeviceList devList = this.getReportDeviceList();
         java.util.List<EventData> edList = new Vector<EventData>();
         this.maxEventDataCount = 0;
-        for (Iterator i = devList.iterator(); i.hasNext();) {
-            String devID = (String)i.next();
-            this.eventDataCount = 0;
+
+        /* loop through devices (devices are selected in parallel if there is no callback) */
+        ReportExecutor<DeviceEventData> rptExec = this.createEventDataExecutor(rcdHandler);
+        while (rptExec.hasNext()) {
 
             /* have we reached our limit? */
             if ((limit >= 0L) && (edList.size() >= limit)) {
+                rptExec.cancel();
                 break;
             }
             // there is room for at least one more record
 
-            /* get device records */
-            try {
-                Device device  = devList.getDevice(devID);
-                EventData ed[] = this._getEventData(device, rcdHandler);
-                if (limit < 0L) {
-                    // no limit: add all of new EventData records to list
+            /* add device records */
+            DeviceEventData de = rptExec.next();
+            if (de == null) {
+                continue;
+            }
+            EventData ed[] = de.getEventData();
+            if (limit < 0L) {
+                // no limit: add all of new EventData records to list
+                ListTools.toList(ed, edList);
+            } else {
+                int maxRcds = (int)limit - edList.size(); // > 0
+                if (ed.length <= maxRcds) {
+                    // under limit: add all of new EventData records to list
                     ListTools.toList(ed, edList);
                 } else {
-                    int maxRcds = (int)limit - edList.size(); // > 0
-                    if (ed.length <= maxRcds) {
-                        // under limit: add all of new EventData records to list
-                        ListTools.toList(ed, edList);
-                    } else {
-                        // clip to limit
-                        ListTools.toList(ed, 0, maxRcds, edList);
-                    }
+                    // clip to limit
+                    ListTools.toList(ed, 0, maxRcds, edList);
                 }
-            } catch (DBException dbe) {
-                Print.logError("Error retrieving EventData for Device: " + devID);
             }
 
             /* maximum selected EventData records */
+            this.eventDataCount = de.getCount();
             if (this.eventDataCount > this.maxEventDataCount) {
                 this.maxEventDataCount = this.eventDataCount;
             }
@@ -622,6 +633,41 @@ public abstract class ReportData
         return edList.toArray(new EventData[edList.size()]);
     }
 
+    /* the selected EventData records for a single device */
+    protected static class DeviceEventData
+    {
+        private EventData   eventData[] = null;
+        private int         count       = 0;
+        public DeviceEventData(EventData ed[], int count) {
+            this.eventData = ed;
+            this.count     = count;
+        }
+        public EventData[] getEventData() {
+            return this.eventData;
+        }
+        public int getCount() {
+            return this.count; // records read, including those not matching the rule selector
+        }
+    }
+
+    /**
+    *** Creates a ReportExecutor which selects the EventData records for each device in the
+    *** ReportDeviceList.  Devices are selected in parallel only if no callback DBRecordHandler
+    *** is specified (the callback handler is not required to be thread-safe).
+    *** @param rcdHandler   The callback DBRecordHandler (may be null)
+    *** @return The ReportExecutor
+    **/
+    protected ReportExecutor<DeviceEventData> createEventDataExecutor(final DBRecordHandler rcdHandler)
+    {
+        return new ReportExecutor<DeviceEventData>(this, new ReportExecutor.DeviceJob<DeviceEventData>() {
+            public DeviceEventData getDeviceData(Device device) throws DBException {
+                int rcdCount[] = new int[] { 0 };
+                EventData ed[] = ReportData.this._getEventData(device, rcdHandler, rcdCount);
+                return new DeviceEventData(ed, rcdCount[0]);
+            }
+        }, (rcdHandler == null));
+    }
+
     /**
     *** Returns an array EventData records for the specified Device
     *** @param deviceDB     The Device for which EventData records will be selected
@@ -632,8 +678,9 @@ public abstract class ReportData
     **/
     protected EventData[] getEventData(Device deviceDB, DBRecordHandler rcdHandler)
     {
-        this.eventDataCount = 0;
-        EventData ed[] = this._getEventData(deviceDB, rcdHandler);
+        int rcdCount[] = new int[] { 0 };
+        EventData ed[] = this._getEventData(deviceDB, rcdHandler, rcdCount);
+        this.eventDataCount    = rcdCount[0];
         this.maxEventDataCount = this.eventDataCount;
         return ed;
     }
@@ -643,10 +690,11 @@ public abstract class ReportData
     *** @param device       The Device for which EventData records will be selected
     *** @param rcdHandler   The callback DBRecordHandler.  If specified, the returned EventData
     ***                     array may be null.
+    *** @param rcdCount     The count of EventData records read is returned in the first element
     *** @return An array of EventData records for the device (may be null if a callback
     ***         DBRecordHandler has been specified).
     **/
-    private EventData[] _getEventData(final Device deviceDB, final DBRecordHandler rcdHandler)
+    private EventData[] _getEventData(final Device deviceDB, final DBRecordHandler rcdHandler, final int rcdCount[])
     {
 
         /* Device */
@@ -673,7 +721,7 @@ public abstract class ReportData
         /* create record handler */
         DBRecordHandler evRcdHandler = new DBRecordHandler() {
             public int handleDBRecord(DBRecord rcd) throws DBException {
-                ReportData.this.eventDataCount++;
+                rcdCount[0]++;
                 EventData ev = (EventData)rcd;
                 ev.setDevice(deviceDB);
                 boolean isMatch = (ruleFact != null)? ruleFact.isSelectorMatch(ruleSelector, ev) : true;
@@ -719,6 +767,35 @@ public abstract class ReportData
         
     }
 
+    /**
+    *** Returns an iterator over the EventData records for the predefined ReportDeviceList
+    *** and constraints.  Records are read from the database row-by-row as the iterator is
+    *** consumed (see <code>EventData.getRangeEventCursor</code>), rather than being
+    *** collected into an array, so memory use does not depend on the number of records.
+    *** @return The EventData row iterator
+    **/
+    protected DBDataIterator getEventDataIterator()
+    {
+        return new EventDataIterator();
+    }
+
+    /**
+    *** Cancels this report.  EventData records are not selected for any remaining devices.
+    **/
+    public void cancel()
+    {
+        this.isCancelled = true;
+    }
+
+    /**
+    *** Returns true if this report has been cancelled
+    *** @return True if this report has been cancelled
+    **/
+    public boolean isCancelled()
+    {
+        return this.isCancelled;
+    }
+
     /* return the actual counted EventData records from the last query (including all devices) */
     private long getEventDataCount()
     {
@@ -758,17 +835,27 @@ public abstract class ReportData
         }
 
         /* get events */
-        long recordCount = 0L;
+        long recordCount = -1L;
         try {
-            recordCount = EventData.countRangeEvents(
-                accountID, deviceDB.getDeviceID(),
-                this.getTimeStart(), this.getTimeEnd(),
-                this.getStatusCodes(),
-                this.getValidGPSRequired(),
-                this.getSelectionLimitType(), this.getSelectionLimit(),
-                this.getWhereSelector());
+            if (RollupTracker.isEnabled() && StringTools.isBlank(this.getWhereSelector())) {
+                // days fully within the report range are counted from the daily rollups
+                recordCount = RollupTracker.countEvents(deviceDB,
+                    this.getTimeStart(), this.getTimeEnd(),
+                    this.getStatusCodes(),
+                    this.getValidGPSRequired());
+            }
+            if (recordCount < 0L) {
+                recordCount = EventData.countRangeEvents(
+                    accountID, deviceDB.getDeviceID(),
+                    this.getTimeStart(), this.getTimeEnd(),
+                    this.getStatusCodes(),
+                    this.getValidGPSRequired(),
+                    this.getSelectionLimitType(), this.getSelectionLimit(),
+                    this.getWhereSelector());
+            }
         } catch (DBException dbe) {
             Print.logException("Unable to obtain EventData record count", dbe);
+            recordCount = 0L;
         }
         
         /* return events */
@@ -997,6 +1084,11 @@ public abstract class ReportData
                 return null;
             }
         }
+
+        public void close() {
+            this.data    = null;
+            this.dataObj = null;
+        }
         
     }
 
@@ -1040,6 +1132,233 @@ public abstract class ReportData
             }
         }
 
+        public void close() {
+            this.dataIter = null;
+            this.dataObj  = null;
+        }
+
+    }
+
+    /* this is a streaming iterator over the selected EventData records for a single device */
+    // Read errors are thrown as a DBRecordCursor.FetchException
+    protected class EventDataCursor
+        implements Iterator<EventData>
+    {
+        private Device                    device       = null;
+        private DBRecordCursor<EventData> cursor       = null;
+        private String                    ruleSelector = null;
+        private RuleFactory               ruleFact     = null;
+        private EventData                 nextEvent    = null;
+
+        public EventDataCursor(Device device, long timeStart, DBConnection streamConn) throws DBException {
+            this.device       = device;
+            this.ruleSelector = ReportData.this.getRuleSelector();
+            if (!StringTools.isBlank(this.ruleSelector)) {
+                this.ruleFact = Device.getRuleFactory();
+                if (this.ruleFact == null) {
+                    Print.logWarn("RuleSelector not supported");
+                }
+            }
+            ReportData.this.eventDataCount = 0;
+            this.cursor = EventData.getRangeEventCursor(
+                ReportData.this.getAccountID(), device.getDeviceID(),
+                timeStart, ReportData.this.getTimeEnd(),
+                ReportData.this.getStatusCodes(),
+                ReportData.this.getValidGPSRequired(),
+                ReportData.this.getSelectionLimitType(), ReportData.this.getSelectionLimit(), 
+                ReportData.this.getOrderAscending(),
+                ReportData.this.getWhereSelector(),
+                streamConn);
+        }
+
+        public boolean hasNext() {
+            if ((this.nextEvent == null) && (this.cursor != null)) {
+                while (this.cursor.hasNext()) {
+                    EventData ev = this.cursor.next();
+                    ReportData.this.eventDataCount++;
+                    if (ReportData.this.eventDataCount > ReportData.this.maxEventDataCount) {
+                        ReportData.this.maxEventDataCount = ReportData.this.eventDataCount;
+                    }
+                    ev.setDevice(this.device);
+                    if ((this.ruleFact == null) || this.ruleFact.isSelectorMatch(this.ruleSelector, ev)) {
+                        this.nextEvent = ev;
+                        break;
+                    }
+                }
+                if (this.nextEvent == null) {
+                    this.close(); // end of data
+                }
+            }
+            return (this.nextEvent != null);
+        }
+
+        public EventData next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException("No more events");
+            }
+            EventData ev = this.nextEvent;
+            this.nextEvent = null;
+            return ev;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("EventDataCursor.remove");
+        }
+
+        public void close() {
+            if (this.cursor != null) {
+                this.cursor.close();
+                this.cursor = null;
+            }
+        }
+
+    }
+
+    /* this is an implementation of DBDataIterator that streams EventData records for each device */
+    protected class EventDataIterator
+        implements DBDataIterator
+    {
+        private ReportDeviceList          devList      = null;
+        private Iterator<String>          devIter      = null;
+        private EventDataCursor           cursor       = null;
+        private DBConnection              streamConn   = null;  // shared by all device cursors
+        private ReportExecutor<DeviceEventData> rptExec = null;  // parallel selection only
+        private EventData                 devEvents[]  = null;  // parallel selection only
+        private int                       devNdx       = 0;
+        private long                      limit        = -1L;
+        private long                      rowCount     = 0L;
+        private EventData                 nextEvent    = null;
+        private Object                    dataObj      = null;
+        private DBDataRow                 dataRow      = null;
+
+        public EventDataIterator() {
+            this.devList      = ReportData.this.getReportDeviceList();
+            this.devIter      = this.devList.iterator();
+            this.limit        = ReportData.this.getReportLimit(); // report record limit
+            ReportData.this.eventDataCount    = 0;
+            ReportData.this.maxEventDataCount = 0;
+            if ((this.devList.size() > 1) && (ReportExecutor.getMaximumThreads() > 1)) {
+                // multiple devices are selected in parallel, and are held only until read
+                this.rptExec = ReportData.this.createEventDataExecutor(null);
+                this.devIter = null;
+            }
+            this.dataRow = new DBDataRowAdapter(ReportData.this) {
+                public Object getRowObject() {
+                    return EventDataIterator.this.dataObj;
+                }
+                public Object getDBValue(String name, int rowNdx, ReportColumn rptCol) {
+                    Object obj = EventDataIterator.this.dataObj;
+                    if (obj != null) {
+                        DataRowTemplate rdp = ReportData.this.getDataRowTemplate();
+                        return rdp.getFieldValue(name, rowNdx, ReportData.this, rptCol, obj);
+                    } else {
+                        return "";
+                    }
+                }
+            };
+        }
+
+        public boolean hasNext() {
+            if (this.nextEvent == null) {
+                this.nextEvent = this._fetch();
+            }
+            return (this.nextEvent != null);
+        }
+
+        public DBDataRow next() {
+            if (this.hasNext()) {
+                this.dataObj   = this.nextEvent;
+                this.nextEvent = null;
+                this.rowCount++;
+                return this.dataRow;
+            } else {
+                this.dataObj = null;
+                return null;
+            }
+        }
+
+        private EventData _fetch() {
+
+            /* have we reached our limit? (or has the report been cancelled?) */
+            if (((this.limit >= 0L) && (this.rowCount >= this.limit)) || ReportData.this.isCancelled()) {
+                this.close();
+                return null;
+            }
+
+            /* next matching event */
+            for (;;) {
+
+                /* read from current device events (parallel selection) */
+                if (this.rptExec != null) {
+                    if ((this.devEvents != null) && (this.devNdx < this.devEvents.length)) {
+                        return this.devEvents[this.devNdx++];
+                    }
+                    this.devEvents = null;
+                    if (!this.rptExec.hasNext()) {
+                        this.rptExec = null;
+                        return null;
+                    }
+                    DeviceEventData de = this.rptExec.next();
+                    if (de != null) {
+                        this.devEvents = de.getEventData();
+                        this.devNdx    = 0;
+                        ReportData.this.eventDataCount = de.getCount();
+                        if (ReportData.this.eventDataCount > ReportData.this.maxEventDataCount) {
+                            ReportData.this.maxEventDataCount = ReportData.this.eventDataCount;
+                        }
+                    }
+                    continue;
+                }
+
+                /* read from current device cursor */
+                if (this.cursor != null) {
+                    if (this.cursor.hasNext()) {
+                        return this.cursor.next();
+                    }
+                    this.cursor = null; // closed at end of data
+                }
+
+                /* next device */
+                if ((this.devIter == null) || !this.devIter.hasNext()) {
+                    this.close(); // end of data
+                    return null;
+                }
+                String devID = this.devIter.next();
+                try {
+                    Device device = this.devList.getDevice(devID);
+                    if (device != null) {
+                        if (this.streamConn == null) {
+                            this.streamConn = DBRecordCursor.openStreamingConnection();
+                        }
+                        this.cursor = new EventDataCursor(device, ReportData.this.getTimeStart(), this.streamConn);
+                    }
+                } catch (DBException dbe) {
+                    Print.logError("Error retrieving EventData for Device: " + devID);
+                    this.close();
+                    throw new DBRecordCursor.FetchException(dbe);
+                }
+
+            }
+
+        }
+
+        public void close() {
+            if (this.cursor != null) {
+                this.cursor.close();
+                this.cursor = null;
+            }
+            if (this.rptExec != null) {
+                this.rptExec.cancel();
+                this.rptExec = null;
+            }
+            if (this.streamConn != null) {
+                DBRecordCursor.closeStreamingConnection(this.streamConn);
+                this.streamConn = null;
+            }
+            this.devEvents = null;
+            this.devIter   = null;
+        }
+
     }
 
     // ------------------------------------------------------------------------
@@ -0,0 +1,300 @@
+// ----------------------------------------------------------------------------
+// Copyright 2006-2009, GeoTelematic Solutions, Inc.
+// All rights reserved
+// ----------------------------------------------------------------------------
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// ----------------------------------------------------------------------------
+// Description:
+//  Per-Device report data retrieval, optionally run in parallel
+// ----------------------------------------------------------------------------
+// Change History:
+//  2010/01/11  Martin D. Flynn
+//     -Initial release
+// ----------------------------------------------------------------------------
+package org.opengts.war.report;
+
+import java.lang.*;
+import java.util.*;
+
+import org.opengts.util.*;
+import org.opengts.dbtools.*;
+import org.opengts.db.*;
+import org.opengts.db.tables.*;
+
+/**
+*** Runs a DeviceJob for each Device in a report's ReportDeviceList, and returns the results
+*** in ReportDeviceList order.<br>
+*** When parallel execution is enabled (see <code>DBConfig.REPORT_PARALLEL_THREADS</code>), the
+*** jobs are run in a shared bounded thread pool.  Each pool thread uses its own DBConnection
+*** (see <code>DBConnection.getDefaultConnection</code>), and only a limited number of jobs
+*** (the "window") are queued or held ahead of the caller, so results for devices which are
+*** never read (ie. once the report limit has been reached) are not selected.  Otherwise, the
+*** jobs are run in the calling thread, one device at a time, as results are read.<br>
+*** Remaining jobs are skipped once the executor has been cancelled (see <code>cancel</code>,
+*** or <code>ReportData.cancel</code>), or once the report timeout has expired.
+**/
+
+public class ReportExecutor<T>
+{
+
+    // ------------------------------------------------------------------------
+
+    public  static final int    DEFAULT_THREADS         = 4;
+    public  static final long   DEFAULT_TIMEOUT_SEC     = 300L;
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** DeviceJob interface
+    **/
+    public interface DeviceJob<T>
+    {
+        /**
+        *** Returns the report data for the specified Device.  This method may be called
+        *** concurrently from several threads, and must not modify any shared report state.
+        *** @param device  The Device
+        *** @return The report data for the Device (may be null)
+        *** @throws DBException if a DB access error occurs
+        **/
+        public T getDeviceData(Device device) throws DBException;
+    }
+
+    // ------------------------------------------------------------------------
+
+    private static ThreadPool ReportThreadPool = null;
+
+    /**
+    *** Returns the maximum number of threads used for parallel report execution
+    *** @return The maximum number of threads (parallel execution is disabled if <= 1)
+    **/
+    public static int getMaximumThreads()
+    {
+        return RTConfig.getInt(DBConfig.REPORT_PARALLEL_THREADS, DEFAULT_THREADS);
+    }
+
+    /* return the shared report thread pool */
+    private static ThreadPool getThreadPool()
+    {
+        synchronized (ReportExecutor.class) {
+            int maxThreads = ReportExecutor.getMaximumThreads();
+            if (ReportThreadPool == null) {
+                ReportThreadPool = new ThreadPool("ReportExecutor", maxThreads);
+            } else
+            if (ReportThreadPool.getMaxSize() != maxThreads) {
+                ReportThreadPool.setMaxSize(maxThreads);
+            }
+            return ReportThreadPool;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    /* a queued per-Device job */
+    private class DeviceSlot
+        implements Runnable
+    {
+        private String      deviceID    = null;
+        private Device      device      = null;
+        private T           result      = null;
+        private boolean     isDone      = false;
+        public DeviceSlot(String devID, Device device) {
+            this.deviceID = devID;
+            this.device   = device;
+        }
+        public void run() {
+            T r = null;
+            if (!ReportExecutor.this.isCancelled() && (this.device != null)) {
+                try {
+                    r = ReportExecutor.this.job.getDeviceData(this.device);
+                } catch (DBException dbe) {
+                    Print.logError("Error retrieving report data for Device: " + this.deviceID);
+                } catch (Throwable th) {
+                    Print.logException("Error retrieving report data for Device: " + this.deviceID, th);
+                }
+            }
+            synchronized (this) {
+                this.result = r;
+                this.isDone = true;
+                this.notifyAll();
+            }
+        }
+        /* wait until complete, return false if the timeout expired */
+        public synchronized boolean waitUntilDone(long deadlineMS) {
+            while (!this.isDone) {
+                long waitMS = (deadlineMS > 0L)? (deadlineMS - System.currentTimeMillis()) : 0L;
+                if ((deadlineMS > 0L) && (waitMS <= 0L)) {
+                    return false;
+                }
+                try { this.wait(waitMS); } catch (InterruptedException ie) { /*ignore*/ }
+            }
+            return true;
+        }
+        public synchronized T getResult() {
+            return this.result;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
+    private ReportData                  reportData  = null;
+    private ReportDeviceList            devList     = null;
+    private Iterator<String>            devIter     = null;
+    private DeviceJob<T>                job         = null;
+    private boolean                     isParallel  = false;
+    private int                         window      = 1;
+    private long                        deadlineMS  = 0L;
+    private LinkedList<DeviceSlot>      pending     = new LinkedList<DeviceSlot>();
+    private String                      deviceID    = null;
+    private volatile boolean            cancelled   = false;
+
+    /**
+    *** Constructor
+    *** @param rd        The ReportData
+    *** @param job       The job to run for each Device
+    *** @param parallel  True to allow parallel execution (the job must be thread-safe)
+    **/
+    public ReportExecutor(ReportData rd, DeviceJob<T> job, boolean parallel)
+    {
+        this.reportData = rd;
+        this.devList    = rd.getReportDeviceList();
+        this.devIter    = this.devList.iterator();
+        this.job        = job;
+        int maxThreads  = ReportExecutor.getMaximumThreads();
+        this.isParallel = parallel && (maxThreads > 1) && (this.devList.size() > 1);
+        this.window     = this.isParallel? (maxThreads * 2) : 1;
+        long timeoutSec = RTConfig.getLong(DBConfig.REPORT_PARALLEL_TIMEOUT_SEC, DEFAULT_TIMEOUT_SEC);
+        this.deadlineMS = (timeoutSec > 0L)? (System.currentTimeMillis() + (timeoutSec * 1000L)) : 0L;
+    }
+
+    // ------------------------------------------------------------------------
+
+    /**
+    *** Returns true if jobs are run in parallel
+    *** @return True if jobs are run in parallel
+    **/
+    public boolean isParallel()
+    {
+        return this.isParallel;
+    }
+
+    /**
+    *** Cancels this executor.  Jobs which have not yet started are skipped, and no further
+    *** results are returned.
+    **/
+    public void cancel()
+    {
+        this.cancelled = true;
+        this.pending.clear();
+        this.devIter = null;
+    }
+
+    /**
+    *** Returns true if this executor (or the report) has been cancelled
+    *** @return True if this executor has been cancelled
+    **/
+    public boolean isCancelled()
+    {
+        return this.cancelled || this.reportData.isCancelled();
+    }
+
+    // ------------------------------------------------------------------------
+
+    /* queue jobs up to the window size */
+    private void _fill()
+    {
+        while ((this.devIter != null) && (this.pending.size() < this.window)) {
+            if (!this.devIter.hasNext()) {
+                this.devIter = null;
+                break;
+            }
+            String devID  = this.devIter.next();
+            Device device = null;
+            try {
+                // ReportDeviceList is not thread-safe, Devices are loaded in this thread
+                device = this.devList.getDevice(devID);
+                if (device == null) {
+                    // should never occur
+                    Print.logError("Returned DeviceList 'Device' is null: " + devID);
+                }
+            } catch (DBException dbe) {
+                Print.logError("Error retrieving Device: " + devID);
+            }
+            DeviceSlot slot = new DeviceSlot(devID, device);
+            this.pending.add(slot);
+            if (this.isParallel) {
+                if (device != null) {
+                    ReportExecutor.getThreadPool().run(slot);
+                } else {
+                    slot.run(); // no Device, completes immediately
+                }
+            }
+        }
+    }
+
+    /**
+    *** Returns true if there is another Device result
+    *** @return True if there is another Device result
+    **/
+    public boolean hasNext()
+    {
+        if (this.isCancelled()) {
+            this.cancel();
+            return false;
+        } else
+        if ((this.deadlineMS > 0L) && (System.currentTimeMillis() > this.deadlineMS)) {
+            Print.logWarn("Report timeout, remaining devices skipped: " + this.reportData.getReportName());
+            this.cancel();
+            return false;
+        }
+        this._fill();
+        return !this.pending.isEmpty();
+    }
+
+    /**
+    *** Returns the next Device result, in ReportDeviceList order.  The Device ID of the result
+    *** is available from <code>getDeviceID</code>.
+    *** @return The next Device result (null if the Device could not be read, or if the
+    ***         report has been cancelled or has timed out)
+    **/
+    public T next()
+    {
+        if (!this.hasNext()) {
+            this.deviceID = null;
+            return null;
+        }
+        DeviceSlot slot = this.pending.removeFirst();
+        this.deviceID = slot.deviceID;
+        if (!this.isParallel) {
+            slot.run(); // run in this thread
+        } else
+        if (!slot.waitUntilDone(this.deadlineMS)) {
+            Print.logWarn("Report timeout, remaining devices skipped: " + this.reportData.getReportName());
+            this.cancel();
+            return null;
+        }
+        this._fill(); // keep the window full while the caller processes this result
+        return slot.getResult();
+    }
+
+    /**
+    *** Returns the Device ID of the last result returned by <code>next</code>
+    *** @return The Device ID
+    **/
+    public String getDeviceID()
+    {
+        return this.deviceID;
+    }
+
+}
@@ -24,6 +24,8 @@
 //  2007/06/14  Martin D. Flynn
 //     -Display appropriate error text when no devices have been specified for 
 //      this report.
+//  2010/01/11  Martin D. Flynn
+//     -Report body now streams EventData records (see 'getEventDataIterator')
 // ----------------------------------------------------------------------------
 package org.opengts.war.report.event;
 
@@ -109,8 +111,7 @@ public class EventDetailReport
     **/
     public DBDataIterator getBodyDataIterator()
     {
-        EventData ed[] = this.getEventData(null);
-        return new ArrayDataIterator(ed); // 'EventDataLayout' expects EventData[]
+        return this.getEventDataIterator(); // 'EventDataLayout' expects EventData rows
     }
  
     /**
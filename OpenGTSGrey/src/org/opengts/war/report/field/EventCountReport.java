@@ -19,6 +19,9 @@
 // Change History:
 //  2007/01/10  Martin D. Flynn
 //     -Initial release
+//  2010/01/11  Martin D. Flynn
+//     -Device record counts are selected in parallel (see ReportExecutor)
+//     -Added distance/speed/driving/idle values from the daily rollups (see RollupTracker)
 // ----------------------------------------------------------------------------
 package org.opengts.war.report.field;
 
@@ -104,26 +107,16 @@ public class EventCountReport
         /* init */
         this.rowData = new Vector<FieldData>();
         
-        /* loop through devices */
-        String devID = "";
-        ReportDeviceList devList = this.getReportDeviceList();
-        for (Iterator i = devList.iterator(); i.hasNext();) {
-            devID = (String)i.next();
-            try {
-                Device device  = devList.getDevice(devID);
-                if (device != null) {
-                    long rcdCount = this.countEventData(device);
-                    FieldData fd = new FieldData();
-                    fd.setDevice(device);
-                    fd.setString(FieldLayout.DATA_DEVICE_ID, devID);
-                    fd.setLong(  FieldLayout.DATA_COUNT    , rcdCount);
-                    this.rowData.add(fd);
-                } else {
-                    // should never occur
-                    Print.logError("Returned DeviceList 'Device' is null: " + devID);
-                }
-            } catch (DBException dbe) {
-                Print.logError("Error retrieving EventData count for Device: " + devID);
+        /* loop through devices (record counts are selected in parallel) */
+        ReportExecutor<FieldData> rptExec = new ReportExecutor<FieldData>(this, new ReportExecutor.DeviceJob<FieldData>() {
+            public FieldData getDeviceData(Device device) throws DBException {
+                return EventCountReport.this._getDeviceRow(device);
+            }
+        }, true);
+        while (rptExec.hasNext()) {
+            FieldData fd = rptExec.next();
+            if (fd != null) {
+                this.rowData.add(fd);
             }
         }
 
@@ -133,6 +126,45 @@ public class EventCountReport
         
     }
 
+    /**
+    *** Returns the body row for the specified Device.  If the report range starts and ends
+    *** on day boundaries, and daily rollups are enabled, the row also includes the distance,
+    *** maximum speed, and driving/stopped/idle times from the daily rollups.
+    *** @param device  The Device
+    *** @return The body row FieldData
+    **/
+    private FieldData _getDeviceRow(Device device)
+        throws DBException
+    {
+        long rcdCount = this.countEventData(device);
+        FieldData fd = new FieldData();
+        fd.setDevice(device);
+        fd.setString(FieldLayout.DATA_DEVICE_ID, device.getDeviceID());
+        fd.setLong(  FieldLayout.DATA_COUNT    , rcdCount);
+        if (RollupTracker.isEnabled()) {
+            DailyRollup rollups[] = RollupTracker.getDailyRollups(device, this.getTimeStart(), this.getTimeEnd());
+            if (rollups != null) {
+                double distKM = 0.0, odomKM = 0.0, maxKPH = 0.0;
+                long   moveSec = 0L, stopSec = 0L, idleSec = 0L;
+                for (int i = 0; i < rollups.length; i++) {
+                    distKM  += rollups[i].getDistanceKM();
+                    odomKM  += rollups[i].getOdometerDeltaKM();
+                    maxKPH   = Math.max(maxKPH, rollups[i].getMaxSpeedKPH());
+                    moveSec += rollups[i].getMovingElapsed();
+                    stopSec += rollups[i].getStoppedElapsed();
+                    idleSec += rollups[i].getIdleElapsed();
+                }
+                fd.setDouble(FieldLayout.DATA_DISTANCE       , distKM);
+                fd.setDouble(FieldLayout.DATA_ODOMETER_DELTA , odomKM);
+                fd.setDouble(FieldLayout.DATA_SPEED          , maxKPH);
+                fd.setLong(  FieldLayout.DATA_DRIVING_ELAPSED, moveSec);
+                fd.setLong(  FieldLayout.DATA_STOP_ELAPSED   , stopSec);
+                fd.setLong(  FieldLayout.DATA_IDLE_ELAPSED   , idleSec);
+            }
+        }
+        return fd;
+    }
+
     /**
     *** Creates and returns an iterator for the row data displayed in the total rows of this report.
     *** @return The total row data iterator
@@ -40,6 +40,11 @@
 //     -Changed 'hasStartStopCode' to 'tripStartType'
 //  2009/11/01  Martin D. Flynn
 //     -Added property 'stopOnIgnitionOff'
+//  2010/01/11  Martin D. Flynn
+//     -Trips are now delimited by 'TripStateMachine' over a streamed EventData selection,
+//      and are read from the Trip table when precomputed by 'TripTracker'.
+//     -All device selections share one streaming connection, read errors are thrown to
+//      the report writer.
 // ----------------------------------------------------------------------------
 package org.opengts.war.report.field;
 
@@ -59,7 +64,6 @@ import org.opengts.war.report.*;
 
 public class MotionReport
     extends ReportData
-    implements DBRecordHandler
 {
 
     // ------------------------------------------------------------------------
@@ -83,85 +87,11 @@ public class MotionReport
     private static final String PROP_stopOnIgnitionOff      = "stopOnIgnitionOff";
 
     // ------------------------------------------------------------------------
-    // Trip start types
-    
-    private static final String MOTION_DEFAULT[]            = new String[] { "default" };
-    private static final String MOTION_SPEED[]              = new String[] { "speed", "motion" };
-    private static final String MOTION_IGNITION[]           = new String[] { "ignition" };
-    private static final String MOTION_STARTSTOP[]          = new String[] { "start", "startstop" };
-
-    private static final int    TRIP_ON_SPEED               = 0; // idle time
-    private static final int    TRIP_ON_IGNITION            = 1; // no idle time
-    private static final int    TRIP_ON_START               = 2; // idle time if ignition present
-
-    // ------------------------------------------------------------------------
-
-    /** TRIP_ON_SPEED only
-    *** Minimum speed used for determining in-motion when the device does not
-    *** support start/stop events
-    **/
-    private static final double MIN_SPEED_KPH               = 5.0;
-
-    /** TRIP_ON_SPEED only
-    *** Default mimimum stopped elapsed time to be considered stopped
-    **/
-    private static final long   MIN_STOPPED_TIME_SEC        = DateTime.MinuteSeconds(5);
-
-    /**
-    *** Default to delimit stop with ignition off (if this occurs before the minimum stopped time)
-    **/
-    private static final boolean STOP_ON_IGNITION_OFF       = false;
-    
     // ------------------------------------------------------------------------
 
-    // During TRIP_ON_SPEED trip delimiters, set this value to 'true' to reset the
-    // elapsed stop time accumulation to start at the point of the defined 'stop'
-    // which is after the minimum elapsed stopped time has passed.  This does cause
-    // some user confustion, so if the above is unclear, leave this value 'false'.
-    private static final boolean SPEED_RESET_STOP_TIME      = false;
-
-    // ------------------------------------------------------------------------
-
-    private static final int    STATE_UNKNOWN               = 0;
-    private static final int    STATE_START                 = 1;
-    private static final int    STATE_STOP                  = 2;
-
-    // ------------------------------------------------------------------------
-    // ------------------------------------------------------------------------
-
-    private int                         tripStartType       = TRIP_ON_SPEED;
-
-    private int                         ignitionCodes[]     = null;
-    private boolean                     isIgnitionOn        = false;
-    private EventData                   lastIgnitionEvent   = null;
-    
-    private EventData                   idleStartEvent      = null;
-    private EventData                   idleStopEvent       = null;
-    private long                        idleAccumulator     = 0L;       // seconds
-
-    private boolean                     isInMotion          = false;
-    private EventData                   lastMotionEvent     = null;
-    private EventData                   pendingStopEvent    = null;                 // TRIP_ON_SPEED only
-
-    private double                      minSpeedKPH         = MIN_SPEED_KPH;        // TRIP_ON_SPEED only
-    private long                        minStoppedTimeSec   = MIN_STOPPED_TIME_SEC; // TRIP_ON_SPEED only
-    private boolean                     stopOnIgnitionOff   = STOP_ON_IGNITION_OFF;
-
-    private int                         lastStateChange     = STATE_UNKNOWN;
-
-    private long                        lastStartTime       = 0L;
-    private GeoPoint                    lastStartPoint      = null;
-    private String                      lastStartAddress    = "";
-    private double                      lastStartOdometer   = 0.0;
-    private double                      lastStartFuelUsed   = 0.0;
-
-    private long                        lastStopTime        = 0L;
-    private GeoPoint                    lastStopPoint       = null;
-    private String                      lastStopAddress     = "";
-    private double                      lastStopOdometer    = 0.0;
-    private double                      lastStopFuelUsed    = 0.0;
-
-    private java.util.List<FieldData>   rowData             = null;
+    private double                      minSpeedKPH         = TripStateMachine.MIN_SPEED_KPH;        // TRIP_ON_SPEED only
+    private long                        minStoppedTimeSec   = TripStateMachine.MIN_STOPPED_TIME_SEC; // TRIP_ON_SPEED only
+    private boolean                     stopOnIgnitionOff   = TripStateMachine.STOP_ON_IGNITION_OFF;
 
     private double                      totalOdomKM         = 0.0;
     private long                        totalDriveSec       = 0L;
@@ -204,14 +134,37 @@ public class MotionReport
     {
         
         /* TRIP_ON_SPEED vars */
-        this.minSpeedKPH       = this.getProperties().getDouble( PROP_minimumSpeedKPH   , MIN_SPEED_KPH);
-        this.minStoppedTimeSec = this.getProperties().getLong(   PROP_minimumStoppedTime, MIN_STOPPED_TIME_SEC);
-        this.stopOnIgnitionOff = this.getProperties().getBoolean(PROP_stopOnIgnitionOff , STOP_ON_IGNITION_OFF);
+        this.minSpeedKPH       = this.getProperties().getDouble( PROP_minimumSpeedKPH   , TripStateMachine.MIN_SPEED_KPH);
+        this.minStoppedTimeSec = this.getProperties().getLong(   PROP_minimumStoppedTime, TripStateMachine.MIN_STOPPED_TIME_SEC);
+        this.stopOnIgnitionOff = this.getProperties().getBoolean(PROP_stopOnIgnitionOff , TripStateMachine.STOP_ON_IGNITION_OFF);
 
     }
     
     // ------------------------------------------------------------------------
 
+    /* create the trip state machine for the specified device, per this report's properties */
+    private TripStateMachine _createTripStateMachine(Device device, TripStateMachine.TripHandler handler)
+    {
+        String tt = this.getProperties().getString(PROP_tripStartType, TripStateMachine.MOTION_SPEED[0]);
+        return new TripStateMachine(device, tt,
+            this.minSpeedKPH, this.minStoppedTimeSec, this.stopOnIgnitionOff,
+            handler);
+    }
+
+    /* adjust the report constraints to select only the events needed by the state machine */
+    private void _setReportConstraints(TripStateMachine tsm)
+    {
+        ReportConstraints rc = this.getReportConstraints();
+        rc.setStatusCodes(tsm.getStatusCodes());
+        rc.setValidGPSRequired(tsm.getValidGPSRequired());
+        if (tsm.getTripStartType() == TripStateMachine.TRIP_ON_SPEED) {
+            long rptLimit = rc.getReportLimit();
+            if (rptLimit > 0L) {
+                rc.setSelectionLimit(Math.max(rc.getSelectionLimit(), (rptLimit * 4L)));
+            }
+        }
+    }
+
     /**
     *** Override 'getEventData' to reset selected status codes
     *** @param device       The Device for which EventData records will be selected
@@ -227,47 +180,7 @@ public class MotionReport
         }
 
         /* adjust report constraints */
-        ReportConstraints rc = this.getReportConstraints();
-        if (this.tripStartType == TRIP_ON_START) {
-            // return only start/stop events
-            if (this.ignitionCodes != null) {
-                rc.setStatusCodes(new int[] {
-                    StatusCodes.STATUS_MOTION_START,
-                    StatusCodes.STATUS_MOTION_STOP,
-                    this.ignitionCodes[0],              // ignition OFF
-                    this.ignitionCodes[1]               // ignition ON
-                });
-            } else {
-                rc.setStatusCodes(new int[] {
-                    StatusCodes.STATUS_MOTION_START,
-                    StatusCodes.STATUS_MOTION_STOP
-                });
-            }
-            rc.setValidGPSRequired(false); // don't need just valid gps events
-        } else
-        if (this.tripStartType == TRIP_ON_IGNITION) {
-            // return only IgnitionOn/IgnitionOff events (this.ignitionCodes is non-null)
-            rc.setStatusCodes(new int[] {
-                this.ignitionCodes[0],                  // ignition OFF
-                this.ignitionCodes[1]                   // ignition ON
-            });
-            rc.setValidGPSRequired(false); // don't need just valid gps events
-        } else {
-            // TRIP_ON_SPEED
-            // return all status codes
-            rc.setStatusCodes(null);
-            if (this.ignitionCodes != null) {
-                // read all events to make sure we get ignition events
-                rc.setValidGPSRequired(false);
-            } else {
-                // no ignition code, we only need GPS events
-                rc.setValidGPSRequired(true);
-            }
-            long rptLimit = rc.getReportLimit();
-            if (rptLimit > 0L) {
-                rc.setSelectionLimit(Math.max(rc.getSelectionLimit(), (rptLimit * 4L)));
-            }
-        }
+        this._setReportConstraints(this._createTripStateMachine(device, null));
 
         /* get data */
         return super.getEventData(device, rcdHandler);
@@ -304,9 +217,6 @@ public class MotionReport
     public DBDataIterator getBodyDataIterator()
     {
 
-        /* init */
-        this.rowData = new Vector<FieldData>();
-
         /* reset totals */
         this.totalOdomKM    = 0.0;
         this.totalDriveSec  = 0L ;
@@ -315,126 +225,8 @@ public class MotionReport
         this.totalIdleSec   = 0L ;
         this.totalIdleFuel  = 0.0;
 
-        /* loop through devices (should be only 1) */
-        String accountID = this.getAccountID();
-        String devID = "";
-        ReportDeviceList devList = this.getReportDeviceList();
-        for (Iterator i = devList.iterator(); i.hasNext();) {
-            devID = (String)i.next();
-            // reset ignition state
-            this.isIgnitionOn        = false;
-            this.lastIgnitionEvent   = null;
-            this.ignitionCodes       = null;
-            // reset idle state
-            this.idleStartEvent      = null;
-            this.idleStopEvent       = null;
-            this.idleAccumulator     = 0L;
-            // reset motion
-            this.isInMotion          = false;
-            this.lastMotionEvent     = null;
-            // reset start
-            this.lastStartTime       = 0L;
-            this.lastStartPoint      = null;
-            this.lastStartAddress    = "";
-            this.lastStartOdometer   = 0.0;
-            this.lastStartFuelUsed   = 0.0;
-            // reset stop
-            this.lastStopTime        = 0L;
-            this.lastStopPoint       = null;
-            this.lastStopAddress     = "";
-            this.lastStopOdometer    = 0.0;
-            this.lastStopFuelUsed    = 0.0;
-            // reset state
-            this.lastStateChange     = STATE_UNKNOWN;
-            try {
-                Device device = devList.getDevice(devID);
-                if (device == null) {
-                    continue;
-                }
-                
-                // Device ignition statusCodes
-                this.ignitionCodes = device.getIgnitionStatusCodes();
-                boolean hasIgnition = (this.ignitionCodes != null);
-                
-                // trip start/stop type
-                String tt = this.getProperties().getString(PROP_tripStartType,MOTION_SPEED[0]).toLowerCase();
-                //Print.logInfo("Trip type: " + tt);
-                if (ListTools.contains(MOTION_DEFAULT,tt)) {
-                    // "default"
-                    DCServerConfig dcs = DCServerFactory.getServerConfig(device.getDeviceCode());
-                    if ((dcs != null) && dcs.getStartStopSupported(false)) {
-                        this.tripStartType = TRIP_ON_START;
-                        //Print.logInfo("Trip delimiter (default): start/stop [ignition = " + hasIgnition + "]");
-                    } else
-                    if (hasIgnition) {
-                        this.tripStartType = TRIP_ON_IGNITION;
-                        //Print.logInfo("Trip delimiter (default): ignition");
-                    } else {
-                        this.tripStartType = TRIP_ON_SPEED;
-                        //Print.logInfo("Trip delimiter (default): speed");
-                    }
-                } else
-                if (ListTools.contains(MOTION_STARTSTOP,tt)) {
-                    // "startstop"
-                    this.tripStartType = TRIP_ON_START;
-                    //Print.logInfo("Trip delimiter: start/stop [ignition = " + hasIgnition + "]");
-                } else
-                if (ListTools.contains(MOTION_IGNITION,tt)/* && hasIgnition */) {
-                    // "ignition"
-                    this.tripStartType = TRIP_ON_IGNITION;
-                    if (!hasIgnition) {
-                        this.ignitionCodes = new int[] { StatusCodes.STATUS_IGNITION_OFF, StatusCodes.STATUS_IGNITION_ON };
-                        hasIgnition = true;
-                    }
-                    //Print.logInfo("Trip delimiter: ignition");
-                } else {
-                    // "speed", "motion"
-                    this.tripStartType = TRIP_ON_SPEED;
-                    //Print.logInfo("Trip delimiter: speed");
-                }
-                
-                // get events
-                this.getEventData(device, this); // <== callback to 'handleDBRecord'
-                
-            } catch (DBException dbe) {
-                Print.logError("Error retrieving EventData for Device: " + devID);
-            }
-        }
-
-        /* last record in list */
-        if (this.lastStopTime > 0) {
-            // we are stopped
-            long   driveTime = (this.lastStartTime > 0L)? (this.lastStopTime     - this.lastStartTime    ) : -1L;
-            double driveDist = (this.lastStartTime > 0L)? (this.lastStopOdometer - this.lastStartOdometer) : -1.0; // kilometers
-            double driveFuel = (this.lastStartTime > 0L)? (this.lastStopFuelUsed - this.lastStartFuelUsed) : -1.0; // liter
-            double driveEcon = (driveFuel > 0.0)? (driveDist / driveFuel) : 0.0; // kilometers per liter
-            long   stopElaps = -1L;
-            long   idleElaps = (this.idleAccumulator > 0L)? this.idleAccumulator : -1L;
-            double idleFuel  = -1.0;
-            this._addRecord(accountID, devID, 
-                this.lastStartTime, this.lastStartPoint, this.lastStartAddress, this.lastStartOdometer, this.lastStartFuelUsed,
-                this.lastStopTime , this.lastStopPoint , this.lastStopAddress , this.lastStopOdometer , this.lastStopFuelUsed ,
-                driveTime, driveDist, driveFuel, driveEcon,
-                stopElaps, idleElaps, idleFuel);
-        } else
-        if (this.lastStartTime > 0) {
-            // we haven't stopped during the range of this report
-            long   driveTime = -1L;
-            double driveDist = -1.0; // kilometers
-            double driveFuel = -1.0; // liters
-            double driveEcon = -1.0; // kilometers per liter
-            long   stopElaps = -1L;
-            long   idleElaps = -1L;
-            double idleFuel  = -1.0;
-            this._addRecord(accountID, devID, 
-                this.lastStartTime, this.lastStartPoint, this.lastStartAddress, this.lastStartOdometer, this.lastStartFuelUsed,
-                -1L               , null               , ""                   , -1.0                  , -1.0                  ,
-                driveTime, driveDist, driveFuel, driveEcon,
-                stopElaps, idleElaps, idleFuel);
-        }
-
-        /* return row iterator */
-        return new ListDataIterator(this.rowData);
+        /* return row iterator (trips are delimited as rows are read) */
+        return new MotionDataIterator();
         
     }
 
@@ -462,473 +254,210 @@ public class MotionReport
     // ------------------------------------------------------------------------
 
     /**
-    *** Adds a record to the body database iterator
-    *** @param startTime    The motion start time
-    *** @param startGP      The motion start GeoPoint
-    *** @param startAddress The motion start Address
-    *** @param startOdom    The motion start Odometer
-    *** @param startFuel    The motion start Fuel Usage
-    *** @param stopTime     The motion stop time
-    *** @param stopGP       The motion stop GeoPoint
-    *** @param stopAddress  The motion stop Address
-    *** @param stopOdom     The motion stop Odometer
-    *** @param stopFuel     The motion stop Fuel Usage
-    *** @param driveTime    The driving elapsed time
-    *** @param driveDist    The distance driven
-    *** @param driveFuel    The fuel used
-    *** @param driveEcon    The fuel economy
-    *** @param stopElapse   The elapsed stop time
-    *** @param idleElapse   The elapsed idle time (ignition-on, not moving)
-    *** @param idleFuel     The fuel used while idling (<='0.0' if unavailable)
+    *** Creates a body row from the specified trip, and adds it to the report totals
+    *** @param trip  The trip delimited by the TripStateMachine
+    *** @return The body row FieldData
     **/
-    private void _addRecord(String acctID, String devID, 
-        long startTime , GeoPoint startGP, String startAddress, double startOdom, double startFuel,
-        long stopTime  , GeoPoint stopGP , String stopAddress , double stopOdom , double stopFuel ,
-        long driveTime , double driveDist, double driveFuel   , double driveEcon,
-        long stopElapse, long idleElapse , double idleFuel
-        )
+    private FieldData _createRecord(TripStateMachine.TripInfo trip)
     {
+        long   driveTime  = trip.getDriveTime();
+        double driveDist  = trip.getDriveDistance();
+        double driveFuel  = trip.getDriveFuel();
+        long   stopElapse = trip.getStopElapsed();
+        long   idleElapse = trip.getIdleElapsed();
+        double idleFuel   = trip.getIdleFuel();
         FieldData fd = new MotionFieldData();
-        fd.setString(  FieldLayout.DATA_ACCOUNT_ID      , acctID);
-        fd.setString(  FieldLayout.DATA_DEVICE_ID       , devID);
-        fd.setGeoPoint(FieldLayout.DATA_GEOPOINT        , startGP);         // may be null
-        fd.setString(  FieldLayout.DATA_ADDRESS         , startAddress);    // may be null/blank
-        fd.setLong(    FieldLayout.DATA_START_TIMESTAMP , startTime);       // may be 0L
+        fd.setString(  FieldLayout.DATA_ACCOUNT_ID      , trip.getAccountID());
+        fd.setString(  FieldLayout.DATA_DEVICE_ID       , trip.getDeviceID());
+        fd.setGeoPoint(FieldLayout.DATA_GEOPOINT        , trip.getStartGeoPoint());   // may be null
+        fd.setString(  FieldLayout.DATA_ADDRESS         , trip.getStartAddress());    // may be null/blank
+        fd.setLong(    FieldLayout.DATA_START_TIMESTAMP , trip.getStartTime());       // may be 0L
         fd.setLong(    FieldLayout.DATA_DRIVING_ELAPSED , driveTime);
-        fd.setDouble(  FieldLayout.DATA_ODOMETER        , startOdom);
+        fd.setDouble(  FieldLayout.DATA_ODOMETER        , trip.getStartOdometer());
         fd.setDouble(  FieldLayout.DATA_ODOMETER_DELTA  , driveDist);
-        fd.setLong(    FieldLayout.DATA_STOP_TIMESTAMP  , stopTime);
-        fd.setGeoPoint(FieldLayout.DATA_STOP_GEOPOINT   , stopGP);          // may be null
-        fd.setString(  FieldLayout.DATA_STOP_ADDRESS    , stopAddress);     // may be null/blank
-        fd.setDouble(  FieldLayout.DATA_STOP_ODOMETER   , stopOdom);
-        fd.setDouble(  FieldLayout.DATA_FUEL_TOTAL      , startFuel);
-        fd.setDouble(  FieldLayout.DATA_FUEL_TRIP       , driveFuel);       // stopFuel - startFuel
-        fd.setDouble(  FieldLayout.DATA_FUEL_ECONOMY    , driveEcon);       // driveDist / driveFuel
+        fd.setLong(    FieldLayout.DATA_STOP_TIMESTAMP  , trip.getStopTime());
+        fd.setGeoPoint(FieldLayout.DATA_STOP_GEOPOINT   , trip.getStopGeoPoint());    // may be null
+        fd.setString(  FieldLayout.DATA_STOP_ADDRESS    , trip.getStopAddress());     // may be null/blank
+        fd.setDouble(  FieldLayout.DATA_STOP_ODOMETER   , trip.getStopOdometer());
+        fd.setDouble(  FieldLayout.DATA_FUEL_TOTAL      , trip.getStartFuel());
+        fd.setDouble(  FieldLayout.DATA_FUEL_TRIP       , driveFuel);                 // stopFuel - startFuel
+        fd.setDouble(  FieldLayout.DATA_FUEL_ECONOMY    , trip.getDriveEconomy());    // driveDist / driveFuel
         fd.setLong(    FieldLayout.DATA_STOP_ELAPSED    , stopElapse);
         fd.setLong(    FieldLayout.DATA_IDLE_ELAPSED    , idleElapse);
         fd.setDouble(  FieldLayout.DATA_FUEL_IDLE       , idleFuel);
-        this.rowData.add(fd);
         if (driveTime  >  0L) { this.totalDriveSec  += driveTime; }
         if (driveDist  > 0.0) { this.totalOdomKM    += driveDist; }
         if (driveFuel  > 0.0) { this.totalDriveFuel += driveFuel; }
         if (stopElapse >  0L) { this.totalStopSec   += stopElapse ; }
         if (idleElapse >  0L) { this.totalIdleSec   += idleElapse ; }
         if (idleFuel   > 0.0) { this.totalIdleFuel  += idleFuel ; }
+        return fd;
     }
 
     /**
-    *** Custom DBRecord callback handler class
-    *** @param rcd  The EventData record
-    *** @return The returned status indicating whether to continue, or stop
+    *** Returns the trips precomputed by the TripTracker for the specified Device, or null if
+    *** the precomputed trips cannot be used for this report (ie. the TripTracker is disabled,
+    *** the report range is not within a single tracked day, the trip delimiting properties
+    *** differ, or additional event selection criteria have been specified).
+    *** @param device  The Device
+    *** @param tsm     The TripStateMachine for this report
+    *** @return The precomputed trips, or null if unavailable
     **/
-    public int handleDBRecord(DBRecord rcd)
+    private Trip[] _getPrecomputedTrips(Device device, TripStateMachine tsm)
         throws DBException
     {
-        EventData evRcd = (EventData)rcd;
-        Device device   = evRcd.getDevice();
-        int statusCode  = evRcd.getStatusCode();
-        //Print.logInfo("EventData: " + evRcd.getTimestamp() + " 0x" + StringTools.toHexString(evRcd.getStatusCode(),16));
-
-        /* ignition state change */
-        boolean ignitionChange = false;
-        if (this.tripStartType != TRIP_ON_IGNITION) {
-            if (this.ignitionCodes != null) {
-                // has ignition codes
-                if (this.isIgnitionOff(statusCode)) {
-                    // ignition OFF
-                    if ((this.lastIgnitionEvent == null) || this.isIgnitionOn) {
-                        ignitionChange         = true;
-                        this.isIgnitionOn      = false;
-                      //this.lastIgnOffEvent   = evRcd;
-                        this.lastIgnitionEvent = evRcd;
-                    } else {
-                        // ignition is already off
-                    }
-                } else
-                if (this.isIgnitionOn(statusCode)) {
-                    // ignition ON
-                    if ((this.lastIgnitionEvent == null) || !this.isIgnitionOn) {
-                        ignitionChange         = true;
-                        this.isIgnitionOn      = true;
-                      //this.lastIgnOnEvent    = evRcd;
-                        this.lastIgnitionEvent = evRcd;
-                    } else {
-                        // ignition is already on
-                    }
-                } else {
-                    // leave ignition state as-is
-                }
-            } else {
-                // no ignition codes
-            }
+        if (!TripTracker.isEnabled()) {
+            return null;
+        } else
+        if (!StringTools.isBlank(this.getRuleSelector()) || !StringTools.isBlank(this.getWhereSelector())) {
+            return null;
         }
-
-        /* trip delimiter */
-        boolean isMotionStart = false;
-        boolean isMotionStop  = false;
-        boolean isIdleStart   = false;
-        boolean isIdleStop    = false;
-        if (this.tripStartType == TRIP_ON_IGNITION) {
-            // TRIP_ON_IGNITION
-            if (this.isIgnitionOn(statusCode)) {
-                // I've started moving
-                if ((this.lastIgnitionEvent == null) || !this.isIgnitionOn) {
-                    // ignition state changed to on
-                    ignitionChange              = true;
-                    this.isIgnitionOn           = true;
-                  //this.lastIgnOnEvent         = evRcd;
-                    this.lastIgnitionEvent      = evRcd;
-                    isMotionStart               = true;
-                    this.isInMotion             = true;
-                  //this.lastStartEvent         = evRcd;
-                    this.lastMotionEvent        = evRcd;
-                  //isIdleStop                  = true; <== no idle for TRIP_ON_IGNITION
-                    this.idleStopEvent          = null;
-                } else {
-                    // ignition is already on
-                }
-            } else
-            if (this.isIgnitionOff(statusCode)) {
-                // I've stopped moving
-                if ((this.lastIgnitionEvent == null) || this.isIgnitionOn) {
-                    ignitionChange              = true;
-                    this.isIgnitionOn           = false;
-                  //this.lastIgnOffEvent        = evRcd;
-                    this.lastIgnitionEvent      = evRcd;
-                    isMotionStop                = true;
-                    this.isInMotion             = false;
-                  //this.lastStopEvent          = evRcd;
-                    this.lastMotionEvent        = evRcd;
-                  //isIdleStart                 = true;  <== no idle for TRIP_ON_IGNITION
-                    this.idleStartEvent         = null;
-                } else {
-                    // ignition is already off
-                }
-            } else {
-                // not a motion state change event
-            }
+        long timeStart = this.getTimeStart();
+        long timeEnd   = this.getTimeEnd();
+        if ((timeStart <= 0L) || (timeStart != TripTracker.getDayStart(device, timeStart))) {
+            return null;
         } else
-        if (this.tripStartType == TRIP_ON_START) {
-            // TRIP_ON_START
-            if (this.isMotionStart(statusCode)) {
-                if (!this.isInMotion) {
-                    // I was stopped, I've now started moving (stop idle clock)
-                    isMotionStart                   = true;
-                    this.isInMotion                 = true;
-                  //this.lastStartEvent             = evRcd;
-                    this.lastMotionEvent            = evRcd;
-                    if (!this.isIgnitionOn) {
-                        // force ignition ON when moving
-                        this.isIgnitionOn           = true; 
-                      //this.lastIgnOnEvent         = evRcd;
-                        this.lastIgnitionEvent      = evRcd;
-                    }
-                    isIdleStop                      = true;
-                    this.idleStopEvent              = (this.ignitionCodes != null)? evRcd : null;
-                } else {
-                    // I'm already moving
-                }
-            } else
-            if (this.isMotionStop(statusCode)) {
-                if (this.isInMotion) {
-                    // I've stopped moving (start idle clock)
-                    isMotionStop                = true;
-                    this.isInMotion             = false;
-                  //this.lastStopEvent          = evRcd;
-                    this.lastMotionEvent        = evRcd;
-                    if (this.isIgnitionOn && (this.ignitionCodes == null)) {
-                        // force ignition off if device does not have ignition codes
-                        this.isIgnitionOn       = false;
-                      //this.lastIgnOffEvent    = evRcd
-                        this.lastIgnitionEvent  = evRcd;
-                    }
-                    isIdleStart                 = true;
-                    this.idleStartEvent         = (this.ignitionCodes != null)? evRcd : null;
-                } else {
-                    // I'm already stopped
-                }
-            } else
-            if (this.isIgnitionOff(statusCode) && this.stopOnIgnitionOff) {
-                if (this.isInMotion) {
-                    // I've stopped moving (start idle clock)
-                    isMotionStop                = true;
-                    this.isInMotion             = false;
-                  //this.lastStopEvent          = evRcd;
-                    this.lastMotionEvent        = evRcd;
-                    isIdleStart                 = true;
-                    this.idleStartEvent         = (this.ignitionCodes != null)? evRcd : null;
-                } else {
-                    // I'm already stopped
-                }
-            } else {
-                // not a motion state change event
-                // check for idle change events while not moving
-                if (!this.isInMotion) {
-                    if (this.isIgnitionOn(statusCode)) {
-                        // ignition on while not moving, start idle clock
-                        isIdleStart             = true;
-                        this.idleStartEvent     = (this.ignitionCodes != null)? evRcd : null;
-                    } else
-                    if (this.isIgnitionOff(statusCode)) {
-                        isIdleStop              = true;
-                        this.idleStopEvent      = (this.ignitionCodes != null)? evRcd : null;
-                    }
-                }
-            }
+        if ((timeEnd <= 0L) || (timeEnd > TripTracker.getDayEnd(device, timeStart))) {
+            return null;
         } else
-        if (this.tripStartType == TRIP_ON_SPEED) {
-            if (evRcd.getSpeedKPH() >= this.minSpeedKPH) {
-                // I am moving
-                this.pendingStopEvent           = null; // always reset (for min stop time below)
-                if (!this.isInMotion) {
-                    // I wasn't moving before, now I've started moving
-                    isMotionStart               = true;
-                    this.isInMotion             = true;
-                  //this.lastStartEvent         = evRcd;
-                    this.lastMotionEvent        = evRcd; // start of motion
-                    if (this.isIgnitionOn) {
-                        // ignition is already on.
-                    } else {
-                        // force ignition on (since were now moving)
-                        this.isIgnitionOn       = true; 
-                      //this.lastIgnOnEvent     = evRcd;
-                        this.lastIgnitionEvent  = evRcd;
-                    }
-                } else {
-                    // I'm still moving
-                    if (ignitionChange) {
-                        // ignition on/off while moving?
-                    }
+        if (!tsm.getConfigKey().equals(TripTracker.createTripStateMachine(device,null).getConfigKey())) {
+            return null;
+        }
+        return Trip.getTrips(device.getAccountID(), device.getDeviceID(), timeStart, timeEnd);
+    }
+
+    /* this is an implementation of DBDataIterator that delimits trips as events are read */
+    private class MotionDataIterator
+        implements DBDataIterator, TripStateMachine.TripHandler
+    {
+        private ReportDeviceList            devList     = null;
+        private Iterator<String>            devIter     = null;
+        private TripStateMachine            tsm         = null;
+        private EventDataCursor             cursor      = null;
+        private DBConnection                streamConn  = null;   // shared by all device cursors
+        private long                        lastStopTime= 0L;   // trips stopped at/before this time were precomputed
+        private LinkedList<FieldData>       pending     = new LinkedList<FieldData>();
+        private long                        limit       = -1L;
+        private long                        rowCount    = 0L;
+        private Object                      dataObj     = null;
+        private DBDataRow                   dataRow     = null;
+
+        public MotionDataIterator() {
+            this.devList = MotionReport.this.getReportDeviceList();
+            this.devIter = this.devList.iterator();
+            this.limit   = MotionReport.this.getReportLimit(); // report record limit
+            this.dataRow = new DBDataRowAdapter(MotionReport.this) {
+                public Object getRowObject() {
+                    return MotionDataIterator.this.dataObj;
                 }
-            } else {
-                // I am not moving
-                if (this.isInMotion) {
-                    // I was moving, now I've stopped moving - maybe
-                    if (this.minStoppedTimeSec <= 0L) {
-                        // no minimum stopped-time, and we haven't already stopped
-                        isMotionStop                = true;
-                        this.isInMotion             = false;
-                      //this.lastStopEvent          = evRcd;
-                        this.lastMotionEvent        = evRcd; // stop motion
-                        this.pendingStopEvent       = null;
-                    } else
-                    if (ignitionChange && !this.isIgnitionOn && this.stopOnIgnitionOff) {
-                        // ignition turned off while not moving, and we want to consider this as a stop
-                        isMotionStop                = true;
-                        this.isInMotion             = false;
-                      //this.lastStopEvent          = evRcd;
-                        this.lastMotionEvent        = (this.pendingStopEvent != null)? this.pendingStopEvent : evRcd; // stop motion
-                        this.pendingStopEvent       = null;
+                public Object getDBValue(String name, int rowNdx, ReportColumn rptCol) {
+                    Object obj = MotionDataIterator.this.dataObj;
+                    if (obj != null) {
+                        DataRowTemplate rdp = MotionReport.this.getDataRowTemplate();
+                        return rdp.getFieldValue(name, rowNdx, MotionReport.this, rptCol, obj);
                     } else {
-                        // minimum stopped time in effect
-                        if (this.pendingStopEvent == null) {
-                            // start the stopped-time clock
-                            this.pendingStopEvent   = evRcd;
-                        } else {
-                            // check to see if we've met the minimum stopped time
-                            long deltaTimeSec = evRcd.getTimestamp() - this.pendingStopEvent.getTimestamp();
-                            if (deltaTimeSec >= this.minStoppedTimeSec) {
-                                // elapsed stop time exceeded limit
-                                isMotionStop         = true;
-                                this.isInMotion      = false;
-                              //this.lastStopEvent   = evRcd;
-                                if (SPEED_RESET_STOP_TIME) {
-                                    // if we reset the stop event here, then the minimum stopped time will
-                                    // not be counted. (this does cause some user confusion, so this reset
-                                    // should not occur).
-                                    this.lastMotionEvent = evRcd; // stop motion
-                                } else {
-                                    this.lastMotionEvent = this.pendingStopEvent;
-                                }
-                                this.pendingStopEvent    = null;
-                            } else {
-                                // assume I'm still moving (ie. temporarily stopped)
-                            }
-                        }
+                        return "";
                     }
-                } else {
-                    // I'm still not moving
                 }
-            }
+            };
         }
-        // isMotionStart            - true if motion changed from stop==>start
-        // isMotionStop             - true if motion changed from start==>stop
-        // this.isInMotion          - current motion state
-        // this.lastMotionEvent     - last motion delimiter event
-        // this.lastIgnitionEvent   - last ignition delimiter event
-        // isIdleStart              - true if idle changed from stop==>start
-        // isIdleStop               - true if idle changed from start==>stop
-        // this.idleStartEvent      - last idle start event
-        // this.idleStopEvent       - last idle stop event
-        // ignitionChange           - true if ignition changed state
-        // this.isIgnitionOn        - current ignition state
-        
-        /* accrue idle time */
-        if (this.ignitionCodes != null) {
-            // 'idle' only valid if
-            if (isIdleStart) {
-                // just wait for 'stop'
-            } else
-            if (isIdleStop) {
-                // 'this.idleStopEvent' is non-null
-                if (this.idleStartEvent != null) {
-                    this.idleAccumulator += (this.idleStopEvent.getTimestamp() - this.idleStartEvent.getTimestamp());
-                } else {
-                    // 'this.idleStartEvent' not yet initialized (likely first occurance in report)
-                }
-                this.idleStartEvent = null;
-                this.idleStopEvent  = null;
+
+        public void handleTrip(TripStateMachine.TripInfo trip) {
+            if (trip.isComplete() && (trip.getStopTime() <= this.lastStopTime)) {
+                return; // already read from the Trip table
             }
+            this.pending.add(MotionReport.this._createRecord(trip));
         }
 
-        // lastStart -> lastStop -> start
-        if (isMotionStart) {
-            EventData ev = this.lastMotionEvent; // start of motion
-            // 'this.isIgnitionOn' is 'true'
-
-            if (this.lastStateChange == STATE_START) {
-                // abnormal start ==> start
-                // we already have a 'start', we're missing an interleaving  'stop'
-                // the driving-time is not valid
-                // ('this.lastStopTime' will already be '0' here, since we didn't get an interleaving 'stop')
-                // ('this.lastStartTime' will be > 0 here, since we did get a previous 'start')
-                // We treat this START event as a STOP event
-                long     stopTime  = ev.getTimestamp();
-                GeoPoint stopPoint = ev.getGeoPoint();
-                String   stopAddr  = ev.getAddress();
-                double   stopOdom  = ev.getOdometerKM();
-                if (stopOdom <= 0.0) { stopOdom = ev.getDistanceKM(); }
-                double   stopFuel  = ev.getFieldValue(EventData.FLD_fuelTotal, 0.0);
-                long     driveTime = (this.lastStartTime > 0L)? (stopTime  - this.lastStartTime)     : 0L;
-                double   driveDist = (this.lastStartTime > 0L)? (stopOdom  - this.lastStartOdometer) : 0.0; // kilometers
-                double   driveFuel = (this.lastStartTime > 0L)? (stopFuel  - this.lastStartFuelUsed) : 0.0; // liters
-                double   driveEcon = (driveFuel > 0.0)? (driveDist / driveFuel) : -1.0; // kilometers per liter
-                long     stopElaps = 0L;
-                long     idleElaps = 0L;
-                double   idleFuel  = -1.0;
-                this._addRecord(ev.getAccountID(), ev.getDeviceID(), 
-                    this.lastStartTime, this.lastStartPoint, this.lastStartAddress, this.lastStartOdometer, this.lastStartFuelUsed,
-                    stopTime          , stopPoint          , stopAddr             , stopOdom              , stopFuel              ,
-                    driveTime, driveDist, driveFuel, driveEcon,
-                    stopElaps, idleElaps, idleFuel);
-                // continue with 'START'
-            } else
-            if (this.lastStopTime > 0) {
-                // normal start --> stop ==> start
-                long     driveTime = (this.lastStartTime > 0L)? (this.lastStopTime     - this.lastStartTime)     : 0L;
-                double   driveDist = (this.lastStartTime > 0L)? (this.lastStopOdometer - this.lastStartOdometer) : -1.0; // kilometers
-                double   driveFuel = (this.lastStartTime > 0L)? (this.lastStopFuelUsed - this.lastStartFuelUsed) : -1.0; // liters
-                double   driveEcon = (driveFuel > 0.0)? (driveDist / driveFuel) : 0.0; // kilometers per liter
-                long     stopElaps = ev.getTimestamp() - this.lastStopTime;
-                long     idleElaps = (this.idleAccumulator > 0L)? this.idleAccumulator : -1L;
-                double   idleFuel  = -1.0;
-                this._addRecord(ev.getAccountID(), ev.getDeviceID(), 
-                    this.lastStartTime, this.lastStartPoint, this.lastStartAddress, this.lastStartOdometer, this.lastStartFuelUsed,
-                    this.lastStopTime , this.lastStopPoint , this.lastStopAddress , this.lastStopOdometer , this.lastStopFuelUsed ,
-                    driveTime, driveDist, driveFuel, driveEcon,
-                    stopElaps, idleElaps, idleFuel);
+        public boolean hasNext() {
+            if ((this.limit >= 0L) && (this.rowCount >= this.limit)) {
+                this.close();
+                return false;
             }
+            while (this.pending.isEmpty() && this._fill()) {
+                // continue reading events until a trip has been delimited
+            }
+            return !this.pending.isEmpty();
+        }
 
-            this.lastStartTime      = ev.getTimestamp();
-            this.lastStartPoint     = ev.getGeoPoint();
-            this.lastStartAddress   = ev.getAddress();
-            this.lastStartOdometer  = ev.getOdometerKM();
-            if (this.lastStartOdometer <= 0.0) { this.lastStartOdometer = ev.getDistanceKM(); }
-            this.lastStartFuelUsed  = ev.getFieldValue(EventData.FLD_fuelTotal, 0.0);
-
-            this.lastStopTime       = 0L;
-            this.lastStopPoint      = null;
-            this.lastStopAddress    = null;
-            this.lastStopOdometer   = 0.0;
-            this.lastStopFuelUsed   = 0.0;
-            this.lastStateChange    = STATE_START;
-
-            /* clear idle accrual */
-            this.idleAccumulator    = 0L;
+        public DBDataRow next() {
+            if (this.hasNext()) {
+                this.dataObj = this.pending.removeFirst();
+                this.rowCount++;
+                return this.dataRow;
+            } else {
+                this.dataObj = null;
+                return null;
+            }
+        }
 
-        } else
-        if (isMotionStop) {
-            EventData ev = this.lastMotionEvent; // stop motion
+        /* process events until at least one trip has been delimited, return false at end of data */
+        private boolean _fill() {
 
-            if (this.lastStateChange == STATE_STOP) {
-                // abnormal start --> stop ==> stop
-                // we already have a 'stop', we're missing a 'start'.
-                // this condition can only occur for TRIP_ON_START or TRIP_ON_IGNITION
-                if ((this.lastStopTime > 0) && (this.lastIgnitionEvent != null) && (this.lastIgnitionEvent.getTimestamp() > this.lastStopTime)) {
-                    // inject a START at the last ignition event (no additional idle accural calculations)
-                    long     startTime  = this.lastIgnitionEvent.getTimestamp();
-                    GeoPoint startPoint = this.lastIgnitionEvent.getGeoPoint();
-                    String   startAddr  = this.lastIgnitionEvent.getAddress();
-                    double   startOdom  = this.lastIgnitionEvent.getOdometerKM();
-                    if (startOdom <= 0.0) { startOdom = this.lastIgnitionEvent.getDistanceKM(); }
-                    double   startFuel  = this.lastIgnitionEvent.getFieldValue(EventData.FLD_fuelTotal, 0.0);
-                    long     driveTime  = this.lastStopTime     - startTime;
-                    double   driveDist  = this.lastStopOdometer - startOdom; // kilometers
-                    double   driveFuel  = this.lastStopFuelUsed - startFuel; // liters
-                    double   driveEcon  = (driveFuel > 0.0)? (driveDist / driveFuel) : 0.0; // kilometers per liter
-                    long     stopElaps  = this.lastIgnitionEvent.getTimestamp() - this.lastStopTime;
-                    long     idleElaps  = (this.idleAccumulator > 0L)? this.idleAccumulator : -1L;
-                    double   idleFuel   = -1.0;
-                    this._addRecord(ev.getAccountID(), ev.getDeviceID(), 
-                        startTime         , startPoint         , startAddr            , startOdom             , startFuel             ,
-                        this.lastStopTime , this.lastStopPoint , this.lastStopAddress , this.lastStopOdometer , this.lastStopFuelUsed ,
-                        driveTime, driveDist, driveFuel, driveEcon,
-                        stopElaps, idleElaps, idleFuel);
-                    this.isIgnitionOn = true; // force to true, since we simulated a 'START'
-                    // 'this.lastIgnitionEvent' stays as-is
-                    // Continue with STOP
-                } else {
-                    // no interleaving ignition events
-                    // ignore the previous 'STOP'
+            /* current device */
+            if (this.cursor != null) {
+                while (this.pending.isEmpty() && this.cursor.hasNext()) {
+                    this.tsm.processEvent(this.cursor.next());
+                }
+                if (this.pending.isEmpty()) {
+                    // end of events for this device
+                    this.cursor = null;
+                    this.tsm.finish();
+                    this.tsm = null;
                 }
+                return true;
             }
 
-            this.lastStopTime       = ev.getTimestamp();
-            this.lastStopPoint      = ev.getGeoPoint();
-            this.lastStopAddress    = ev.getAddress();
-            this.lastStopOdometer   = ev.getOdometerKM();
-            if (this.lastStopOdometer <= 0.0) { this.lastStopOdometer = ev.getDistanceKM(); }
-            this.lastStopFuelUsed   = ev.getFieldValue(EventData.FLD_fuelTotal, 0.0);
-            this.lastStateChange    = STATE_STOP;
-
-            /* start idle accrual */
-            this.idleAccumulator    = 0L;
+            /* next device */
+            if ((this.devIter == null) || !this.devIter.hasNext()) {
+                this.close(); // end of data (pending trips are retained)
+                return false;
+            }
+            String devID = this.devIter.next();
+            try {
+                Device device = this.devList.getDevice(devID);
+                if (device != null) {
+                    this.tsm          = MotionReport.this._createTripStateMachine(device, this);
+                    this.lastStopTime = 0L;
+                    MotionReport.this._setReportConstraints(this.tsm);
+                    long timeStart = MotionReport.this.getTimeStart();
+                    Trip trips[] = MotionReport.this._getPrecomputedTrips(device, this.tsm);
+                    if (!ListTools.isEmpty(trips)) {
+                        // precomputed trips, followed by the events received since the last stored trip
+                        for (int t = 0; t < trips.length; t++) {
+                            this.pending.add(MotionReport.this._createRecord(trips[t].getTripInfo()));
+                        }
+                        Trip last = trips[trips.length - 1];
+                        this.lastStopTime = last.getStopTime();
+                        timeStart = Math.max(timeStart, last.getNextStartTime());
+                    }
+                    if (this.streamConn == null) {
+                        this.streamConn = DBRecordCursor.openStreamingConnection();
+                    }
+                    this.cursor = MotionReport.this.new EventDataCursor(device, timeStart, this.streamConn);
+                }
+            } catch (DBException dbe) {
+                Print.logError("Error retrieving EventData for Device: " + devID);
+                this.close();
+                throw new DBRecordCursor.FetchException(dbe);
+            }
+            return true;
 
         }
 
-        /* return record limit status */
-        return (this.rowData.size() < this.getReportLimit())? DBRH_SKIP : DBRH_STOP;
-        
-    }
-
-    // ------------------------------------------------------------------------
-
-    private boolean isIgnitionOn(int statusCode)
-    {
-        if (this.ignitionCodes != null) {
-            return (statusCode == this.ignitionCodes[1]);
-        } else {
-            return false;
-        }
-    }
-    
-    private boolean isIgnitionOff(int statusCode)
-    {
-        if (this.ignitionCodes != null) {
-            return (statusCode == this.ignitionCodes[0]);
-        } else {
-            return false;
+        public void close() {
+            if (this.cursor != null) {
+                this.cursor.close();
+                this.cursor = null;
+            }
+            if (this.streamConn != null) {
+                DBRecordCursor.closeStreamingConnection(this.streamConn);
+                this.streamConn = null;
+            }
+            this.devIter = null;
+            this.tsm     = null;
         }
-    }
-    
-    private boolean isMotionStart(int statusCode)
-    {
-        return (statusCode == StatusCodes.STATUS_MOTION_START);
-    }
 
-    private boolean isMotionStop(int statusCode)
-    {
-        return (statusCode == StatusCodes.STATUS_MOTION_STOP);
     }
 
     // ------------------------------------------------------------------------
@@ -27,6 +27,8 @@
 //     -Fixed 'partial' indication when limit is '-1'
 //  2009/05/01  Martin D. Flynn
 //     -Removed "Totals" line from CSV generated output
+//  2010/01/11  Martin D. Flynn
+//     -Report data iterators are closed when done, and read errors are reported.
 // ----------------------------------------------------------------------------
 package org.opengts.war.report.presentation;
 
@@ -36,6 +38,7 @@ import javax.servlet.*;
 import javax.servlet.http.*;
 
 import org.opengts.util.*;
+import org.opengts.dbtools.*;
 
 import org.opengts.war.tools.*;
 import org.opengts.war.report.*;
@@ -122,25 +125,37 @@ public class ReportBody
 
         /* report body */
         DBDataIterator data = report.getBodyDataIterator();
-        if ((data != null) && data.hasNext()) {
-            for (this.rcdCount = 0; data.hasNext(); this.rcdCount++) {
-                DBDataRow dr = data.next();
-                if (dr != null) {
-                    this.bodyRow.writeHTML(out, level+1, this.rcdCount, dr);
+        try {
+            if ((data != null) && data.hasNext()) {
+                for (this.rcdCount = 0; data.hasNext(); this.rcdCount++) {
+                    DBDataRow dr = data.next();
+                    if (dr != null) {
+                        this.bodyRow.writeHTML(out, level+1, this.rcdCount, dr);
+                    }
                 }
+                this.isPartial = this._overLimit(report);
             }
-            this.isPartial = this._overLimit(report);
+        } catch (DBRecordCursor.FetchException fe) {
+            throw new ReportException("Error reading report data", fe.getDBException());
+        } finally {
+            if (data != null) { data.close(); }
         }
 
         /* report totals */
         DBDataIterator totals = report.getTotalsDataIterator();
-        if ((totals != null) && totals.hasNext()) {
-            for (int r = 0; totals.hasNext(); r++) {
-                DBDataRow dr = totals.next();
-                if (dr != null) {
-                    this.bodyRow.writeHTML(out, level+1, -1, dr);
+        try {
+            if ((totals != null) && totals.hasNext()) {
+                for (int r = 0; totals.hasNext(); r++) {
+                    DBDataRow dr = totals.next();
+                    if (dr != null) {
+                        this.bodyRow.writeHTML(out, level+1, -1, dr);
+                    }
                 }
             }
+        } catch (DBRecordCursor.FetchException fe) {
+            throw new ReportException("Error reading report data", fe.getDBException());
+        } finally {
+            if (totals != null) { totals.close(); }
         }
 
         /* HTML table body end */
@@ -166,25 +181,37 @@ public class ReportBody
 
         /* report body */
         DBDataIterator data = report.getBodyDataIterator();
-        if ((data != null) && data.hasNext()) {
-            for (this.rcdCount = 0; data.hasNext(); this.rcdCount++) {
-                DBDataRow dr = data.next();
-                if (dr != null) {
-                    this.bodyRow.writeXML(out, level+1, this.rcdCount, dr);
+        try {
+            if ((data != null) && data.hasNext()) {
+                for (this.rcdCount = 0; data.hasNext(); this.rcdCount++) {
+                    DBDataRow dr = data.next();
+                    if (dr != null) {
+                        this.bodyRow.writeXML(out, level+1, this.rcdCount, dr);
+                    }
                 }
+                this.isPartial = this._overLimit(report);
             }
-            this.isPartial = this._overLimit(report);
+        } catch (DBRecordCursor.FetchException fe) {
+            throw new ReportException("Error reading report data", fe.getDBException());
+        } finally {
+            if (data != null) { data.close(); }
         }
 
         /* report totals */
         DBDataIterator totals = report.getTotalsDataIterator();
-        if ((totals != null) && totals.hasNext()) {
-            for (int r = 0; totals.hasNext(); r++) {
-                DBDataRow dr = totals.next();
-                if (dr != null) {
-                    this.bodyRow.writeXML(out, level+1, -1, dr);
+        try {
+            if ((totals != null) && totals.hasNext()) {
+                for (int r = 0; totals.hasNext(); r++) {
+                    DBDataRow dr = totals.next();
+                    if (dr != null) {
+                        this.bodyRow.writeXML(out, level+1, -1, dr);
+                    }
                 }
             }
+        } catch (DBRecordCursor.FetchException fe) {
+            throw new ReportException("Error reading report data", fe.getDBException());
+        } finally {
+            if (totals != null) { totals.close(); }
         }
 
         /* HTML table body end */
@@ -205,26 +232,38 @@ public class ReportBody
         this.isPartial = false;
         this.rcdCount = 0;
         DBDataIterator data = report.getBodyDataIterator();
-        if ((data != null) && data.hasNext()) {
-            for (this.rcdCount = 0; data.hasNext(); this.rcdCount++) {
-                DBDataRow dr = data.next();
-                if (dr != null) {
-                    this.bodyRow.writeCSV(out, level+1, this.rcdCount, dr);
+        try {
+            if ((data != null) && data.hasNext()) {
+                for (this.rcdCount = 0; data.hasNext(); this.rcdCount++) {
+                    DBDataRow dr = data.next();
+                    if (dr != null) {
+                        this.bodyRow.writeCSV(out, level+1, this.rcdCount, dr);
+                    }
                 }
+                this.isPartial = this._overLimit(report);
             }
-            this.isPartial = this._overLimit(report);
+        } catch (DBRecordCursor.FetchException fe) {
+            throw new ReportException("Error reading report data", fe.getDBException());
+        } finally {
+            if (data != null) { data.close(); }
         }
 
         /* report totals */
         if (INCLUDE_CSV_TOTALS) {
             DBDataIterator totals = report.getTotalsDataIterator();
-            if (totals != null) {
-                for (int r = 0; totals.hasNext(); r++) {
-                    DBDataRow dr = totals.next();
-                    if (dr != null) {
-                        this.bodyRow.writeCSV(out, level+1, r, dr);
+            try {
+                if (totals != null) {
+                    for (int r = 0; totals.hasNext(); r++) {
+                        DBDataRow dr = totals.next();
+                        if (dr != null) {
+                            this.bodyRow.writeCSV(out, level+1, r, dr);
+                        }
                     }
                 }
+            } catch (DBRecordCursor.FetchException fe) {
+                throw new ReportException("Error reading report data", fe.getDBException());
+            } finally {
+                if (totals != null) { totals.close(); }
             }
         }
 
@@ -22,6 +22,9 @@
 //  2008/07/21  Martin D. Flynn
 //     -Added additional CSS class types
 //     -Added support for forwarding requests to a JSP
+//  2010/01/11  Martin D. Flynn
+//     -Database connections held by the request thread are released at the end of
+//      each request (see "service")
 // ----------------------------------------------------------------------------
 package org.opengts.war.tools;
 
@@ -31,6 +34,7 @@ import java.io.*;
 import javax.servlet.*;
 import javax.servlet.http.*;
 
+import org.opengts.dbtools.*;
 import org.opengts.db.*;
 import org.opengts.util.*;
 
@@ -186,6 +190,23 @@ public class CommonServlet
 
     // ------------------------------------------------------------------------
 
+    /**
+    *** Handles the request, then releases any database connections borrowed by this
+    *** thread back to the connection pool (servlet container threads are long-lived,
+    *** and would otherwise hold their connections indefinitely).
+    **/
+    protected void service(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException
+    {
+        try {
+            super.service(request, response);
+        } finally {
+            DBConnection.releaseThreadConnections();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+
     // Page Layout
     public static void writePageFrame(
         RequestProperties reqState,
@@ -38,6 +38,9 @@
 //     -Added support for customizing the Geozone map width/height
 //  2009/11/01  Martin D. Flynn
 //     -Added 'isFleet' argument to "getMaxPushpins"
+//  2010/01/11  Martin D. Flynn
+//     -Added "map.simplify.pixels" property.  This is used to remove route points which
+//      would not be visible at the current map resolution.
 // ----------------------------------------------------------------------------
 package org.opengts.war.tools;
 
@@ -133,6 +136,7 @@ public interface MapProvider
     public static final String  PROP_map_routeLine_arrows[] = new String[] { "map.routeLine.arrows"                              };  // boolean (include route line arrows)
     public static final String  PROP_map_view[]             = new String[] { "map.view"                                          };  // String  (road|satellite|hybrid)
     public static final String  PROP_map_minProximity[]     = new String[] { "map.minProximity" /*meters*/                       };  // double  (mim meters between events)
+    public static final String  PROP_map_simplify[]         = new String[] { "map.simplify.pixels"                               };  // double  (route simplification pixels)
     public static final String  PROP_map_includeGeozones[]  = new String[] { "map.includeGeozones"    ,  "includeGeozones"       };  // boolean (include traversed Geozones)
     public static final String  PROP_pushpin_zoom[]         = new String[] { "pushpin.zoom"                                      };  // dbl/int (default zoom with points)
     public static final String  PROP_default_zoom[]         = new String[] { "default.zoom"                                      };  // dbl/int (default zoom without points)
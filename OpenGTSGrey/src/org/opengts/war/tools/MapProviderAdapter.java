@@ -37,6 +37,9 @@
 //  2009/11/01  Martin D. Flynn
 //     -Added ability to distinguish between device/fleet masp when returning the
 //      maximum number of allowed pushpins (see "getMaxPushpins")
+//  2010/01/11  Martin D. Flynn
+//     -Added zoom-aware route simplification to "writeMapUpdate" (see "getRouteSimplifier")
+//     -Displayed map bounds are moved to the last event when the map will be centered on it
 // ----------------------------------------------------------------------------
 package org.opengts.war.tools;
 
@@ -55,6 +58,8 @@ import org.opengts.dbtools.*;
 import org.opengts.db.*;
 import org.opengts.db.tables.*;
 
+import org.opengts.war.track.Constants;
+
 public abstract class MapProviderAdapter
     implements MapProvider
 {
@@ -886,6 +891,7 @@ public abstract class MapProviderAdapter
         boolean      fleetRoute = (reqState.getFleetDeviceEventCount() > 1L);
         boolean      inclZones  = this.getProperties().getBoolean(MapProvider.PROP_map_includeGeozones, false);
         OrderedSet<String> iconKeys = (OrderedSet<String>)this.getPushpinIconMap(reqState).keySet();
+        RouteSimplifier routeSimp = this.getRouteSimplifier(reqState, evdata);
 
         /* return events */
         try {
@@ -908,13 +914,96 @@ public abstract class MapProviderAdapter
                 evdata, inclZones,
                 iconSel,iconKeys,
                 isFleet, fleetRoute, selID,
-                tmz, acct, latest, proximityM);
+                tmz, acct, latest, proximityM, routeSimp);
         } catch (IOException ioe) {
             Print.logException("Error writing events", ioe);
             out.println("\nError writing Events"); // output is Mime type plain
         }
 
     }
+
+    /**
+    *** Returns the RouteSimplifier used to remove route points which would not be visible on
+    *** the map requesting the update.  The map resolution (meters-per-pixel) is determined from
+    *** the map pixel size, and either the displayed map bounds (if the map zoom will not change),
+    *** or the bounds of the events (if the map will be zoomed to fit the events).  If the map will
+    *** be centered on the last event, the displayed bounds are moved to that event.
+    *** @param reqState  The current session state
+    *** @param evdata    The events to be displayed on the map
+    *** @return The RouteSimplifier, or null if route simplification is disabled, or the map
+    ***         resolution could not be determined
+    **/
+    protected RouteSimplifier getRouteSimplifier(RequestProperties reqState, EventData evdata[])
+    {
+
+        /* enabled? */
+        double pixelTol = this.getProperties().getDouble(MapProvider.PROP_map_simplify, 0.0);
+        if ((pixelTol <= 0.0) || ListTools.isEmpty(evdata)) {
+            return null;
+        }
+
+        /* map pixel size */
+        HttpServletRequest request = reqState.getHttpServletRequest();
+        if (request == null) {
+            return null;
+        }
+        int W = AttributeTools.getRequestInt(request, Constants.PARM_MAP_WIDTH , 0);
+        int H = AttributeTools.getRequestInt(request, Constants.PARM_MAP_HEIGHT, 0);
+        if ((W <= 0) || (H <= 0)) {
+            W = this.getWidth();
+            H = this.getHeight();
+            if ((W <= 0) || (H <= 0)) {
+                return null;
+            }
+        }
+
+        /* displayed map bounds */
+        String bndStr = AttributeTools.getRequestString(request, Constants.PARM_MAP_BOUNDS, "");
+        if (!StringTools.isBlank(bndStr)) {
+            double b[] = StringTools.parseDouble(StringTools.split(bndStr,','), 0.0);
+            if ((b != null) && (b.length >= 4)) {
+                GeoBounds viewBounds = new GeoBounds();
+                viewBounds.setMinLatitude( b[0]);
+                viewBounds.setMinLongitude(b[1]);
+                viewBounds.setMaxLatitude( b[2]);
+                viewBounds.setMaxLongitude(b[3]);
+                if (viewBounds.isValid() && AttributeTools.getRequestBoolean(request, Constants.PARM_MAP_CENTER_LAST, false)) {
+                    // same zoom, centered on the last valid event
+                    for (int i = evdata.length - 1; i >= 0; i--) {
+                        if (evdata[i].isValidGeoPoint()) {
+                            double dLat = (b[2] - b[0]) / 2.0;
+                            double dLon = (b[3] - b[1]) / 2.0;
+                            double cLat = evdata[i].getLatitude();
+                            double cLon = evdata[i].getLongitude();
+                            viewBounds.setMinLatitude( Math.max(cLat - dLat, -90.0));
+                            viewBounds.setMaxLatitude( Math.min(cLat + dLat,  90.0));
+                            viewBounds.setMinLongitude(Math.max(cLon - dLon,-180.0));
+                            viewBounds.setMaxLongitude(Math.min(cLon + dLon, 180.0));
+                            break;
+                        }
+                    }
+                }
+                if (viewBounds.isValid()) {
+                    return RouteSimplifier.getRouteSimplifier(pixelTol, W, H, viewBounds, true);
+                }
+            }
+        }
+
+        /* map will be zoomed to fit the events */
+        if (AttributeTools.getRequestBoolean(request, Constants.PARM_MAP_FIT, false)) {
+            GeoBounds dataBounds = new GeoBounds();
+            for (int i = 0; i < evdata.length; i++) {
+                if (evdata[i].isValidGeoPoint()) {
+                    dataBounds.extendByPoint(evdata[i]);
+                }
+            }
+            return RouteSimplifier.getRouteSimplifier(pixelTol, W, H, dataBounds, false);
+        }
+
+        /* map resolution unknown */
+        return null;
+
+    }
     
     // ------------------------------------------------------------------------
 
@@ -56,6 +56,8 @@
 //  2009/05/24  Martin D. Flynn
 //     -Added convenience method "getPushpinIconIndex" for converting a pushpin
 //      ID to the MapProvider pushpin icon index.
+//  2010/01/11  Martin D. Flynn
+//     -The global offline file is read through an RTConfig property handle
 // ----------------------------------------------------------------------------
 package org.opengts.war.tools;
 
@@ -482,9 +484,11 @@ public class PrivateLabel
     *** @return The Global offline message, or null if Global offline is not in effect.  Note: Context
     ***         offline may still be in effect.
     **/
+    private static RTConfig.FileHandle GlobalOfflineFile = 
+        new RTConfig.FileHandle(DBConfig.TRACK_OFFLINE_FILE, null);
     public static String GetGlobalOfflineMessage()
     {
-        return PrivateLabel._readOfflineMessage(RTConfig.getFile(DBConfig.TRACK_OFFLINE_FILE,null),"Global");
+        return PrivateLabel._readOfflineMessage(GlobalOfflineFile.getFile(),"Global");
     }
 
     /**
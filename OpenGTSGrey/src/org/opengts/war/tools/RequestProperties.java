@@ -52,6 +52,10 @@
 //     -Added "i18n.User" property string key
 //  2009/09/23  Martin D. Flynn
 //     -Added "isSoapRequest()" method
+//  2010/01/11  Martin D. Flynn
+//     -Fleet 'getMapEvents' now reads authorized Devices and their last events with
+//      set-based queries, rather than with several queries per device.
+//     -Added 'getMapDeviceIDs' (Devices checked by the live map update feed)
 // ----------------------------------------------------------------------------
 package org.opengts.war.tools;
 
@@ -156,6 +160,7 @@ public class RequestProperties
 
     private String              userList[]              = null;
     private OrderedSet<String>  devList                 = null;
+    private Set<String>         devAuthSet              = null;
     private OrderedSet<String>  devGrpSet               = null;
     private OrderedSet<String>  devGrpSetAll            = null;
 
@@ -837,7 +842,8 @@ public class RequestProperties
     /* set the list of known devices for this account */
     public void clearDeviceList()
     {
-        this.devList = null;
+        this.devList    = null;
+        this.devAuthSet = null;
     }
 
     /* return a list of known devices for this account */
@@ -853,6 +859,16 @@ public class RequestProperties
         return this.devList;
     }
 
+    /* return the known devices for this account as a hashed set (for 'contains' lookups) */
+    protected Set<String> _getDeviceSet()
+    {
+        if (this.devAuthSet == null) {
+            OrderedSet<String> dl = this.getDeviceList();
+            this.devAuthSet = (dl != null)? new HashSet<String>(dl) : new HashSet<String>();
+        }
+        return this.devAuthSet;
+    }
+
     /* return a list of known devices for this account */
     protected OrderedSet<String> _getDeviceIDsForSelectedGroup(boolean isFleet)
         throws DBException
@@ -873,6 +889,31 @@ public class RequestProperties
         }
     }
 
+    /* return the authorized device IDs displayed on the map (selected group, or selected device) */
+    public Set<String> getMapDeviceIDs()
+        throws DBException
+    {
+        Set<String> mapDevList = new HashSet<String>();
+        if (this.isFleet()) {
+            OrderedSet<String> devList = this._getDeviceIDsForSelectedGroup(true);
+            if (!ListTools.isEmpty(devList)) {
+                Set<String> authSet = (this.getCurrentUser() != null)? this._getDeviceSet() : null;
+                for (int i = 0; i < devList.size(); i++) {
+                    String deviceID = devList.get(i);
+                    if ((authSet == null) || authSet.contains(deviceID)) {
+                        mapDevList.add(deviceID);
+                    }
+                }
+            }
+        } else {
+            String deviceID = this.getSelectedDeviceID();
+            if (!StringTools.isBlank(deviceID)) {
+                mapDevList.add(deviceID);
+            }
+        }
+        return mapDevList;
+    }
+
     /* get the description of a specific device */
     private Device descLastDevice = null;
     public String getDeviceDescription(String devID, boolean rtnDispName)
@@ -1026,45 +1067,76 @@ public class RequestProperties
                 return EventData.EMPTY_ARRAY;
             }
 
-            // not every device may have an event
-            java.util.List<EventData> evList = new Vector<EventData>();
-            for (int i = 0; i < devList.size(); i++) { // apply limit?
+            // omit unauthorized devices (authorized set is read once per request)
+            java.util.List<String> authDevList = new Vector<String>();
+            Set<String> authSet = (user != null)? this._getDeviceSet() : null;
+            for (int i = 0; i < devList.size(); i++) {
                 String deviceID = devList.get(i);
-
-                // omit unauthorized devices
-                if ((user != null) && !user.isAuthorizedDevice(deviceID)) {
-                    continue;
+                if ((authSet == null) || authSet.contains(deviceID)) {
+                    authDevList.add(deviceID);
                 }
+            }
 
-                // get Device
-                Device device = Device.getDevice(account, deviceID);
-                if (device == null) {
-                    // skip this deviceID
-                    continue;
-                }
+            // get Devices (set-based)
+            Map<String,Device> devMap = Device.getDevices(account, authDevList);
 
-                // get last event(s) for Device
-                EventData ev[] = device.getRangeEvents(
+            // not every device may have an event
+            java.util.List<EventData> evList = new Vector<EventData>();
+            if ((perDevLimit == 1L) && ((limitType == null) || EventData.LimitType.LAST.equals(limitType))) {
+                // last event for each Device (set-based)
+                EventData ev[] = EventData.getLastEvents(
+                    account.getAccountID(),     // accountID
+                    authDevList,                // deviceIDs
                     startTime,                  // startTime
                     endTime,                    // endTime
                     statusCodes,                // status codes
-                    true,                       // validGPS
-                    limitType,                  // limitType (LAST)
-                    perDevLimit);               // max points
-                    // 'ev' already points to 'device'
-                if (ev != null) {
-                    for (int e = 0; e < ev.length; e++) {
-                        evList.add(ev[e]);
+                    true);                      // validGPS
+                for (int e = 0; e < ev.length; e++) {
+                    Device device = devMap.get(ev[e].getDeviceID());
+                    if (device == null) {
+                        // skip this deviceID
+                        continue;
+                    }
+                    ev[e].setDevice(device);
+                    evList.add(ev[e]);
+                    // limit?
+                    if ((limitCnt > 0L) && (evList.size() >= limitCnt)) {
+                        break;
                     }
                 }
-                
-                // limit?
-                if ((limitCnt > 0L) && (evList.size() >= limitCnt)) {
-                    //Print.logWarn("Limit Reached: " + evList.size());
-                    break;
-                }
+            } else {
+                for (String deviceID : authDevList) { // apply limit?
+
+                    // get Device
+                    Device device = devMap.get(deviceID);
+                    if (device == null) {
+                        // skip this deviceID
+                        continue;
+                    }
 
-            } // Device loop
+                    // get last event(s) for Device
+                    EventData ev[] = device.getRangeEvents(
+                        startTime,                  // startTime
+                        endTime,                    // endTime
+                        statusCodes,                // status codes
+                        true,                       // validGPS
+                        limitType,                  // limitType (LAST)
+                        perDevLimit);               // max points
+                        // 'ev' already points to 'device'
+                    if (ev != null) {
+                        for (int e = 0; e < ev.length; e++) {
+                            evList.add(ev[e]);
+                        }
+                    }
+
+                    // limit?
+                    if ((limitCnt > 0L) && (evList.size() >= limitCnt)) {
+                        //Print.logWarn("Limit Reached: " + evList.size());
+                        break;
+                    }
+
+                } // Device loop
+            }
             
             /* sort by Device Descrption */
             Collections.sort(evList, EventData.getDeviceDescriptionComparator());
@@ -66,6 +66,12 @@ public interface Constants
     public  static final String PARM_GROUP                  = "group";
     public  static final String PARM_LIMIT                  = "limit";
     public  static final String PARM_LIMIT_TYPE             = "limType";
+
+    public  static final String PARM_MAP_WIDTH              = "mapW";       // displayed map pixel width
+    public  static final String PARM_MAP_HEIGHT             = "mapH";       // displayed map pixel height
+    public  static final String PARM_MAP_BOUNDS             = "mapBounds";  // displayed map "minLat,minLon,maxLat,maxLon"
+    public  static final String PARM_MAP_FIT                = "mapFit";     // map will be zoomed to fit the events
+    public  static final String PARM_MAP_CENTER_LAST        = "mapLast";    // map will be centered on the last event (zoom unchanged)
     
     public  static final String PARM_DEVICE_COMMAND         = "devcmd";
 
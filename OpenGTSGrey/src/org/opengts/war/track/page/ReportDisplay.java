@@ -27,6 +27,8 @@
 //     -Added 'getNavigationTab(...)'
 //  2008/02/11  Martin D. Flynn
 //     -Added support for displaying a map of locations on a report.
+//  2010/01/11  Martin D. Flynn
+//     -Report data iterators are closed when done, and read errors are reported.
 // ----------------------------------------------------------------------------
 package org.opengts.war.track.page;
 
@@ -203,17 +205,24 @@ public class ReportDisplay
         TimeZone tz = reqState.getTimeZone();
         out.write("\"<"+EventUtil.TAG_MapData+">\\n\" +\n");
         out.write("\"<"+EventUtil.TAG_DataSet+" type=\\\""+type+"\\\" route=\\\""+!isFleet+"\\\">\\n\" +\n");
-        for (DBDataIterator dbi = report.getBodyDataIterator(); dbi.hasNext();) {
-            Object ev = dbi.next().getRowObject();
-            if (ev instanceof EventDataProvider) {
-                EventDataProvider edp = (EventDataProvider)ev;
-                if (!dbi.hasNext()) { edp.setIsLastEvent(true); }
-                String rcd = StringTools.replace(this._formatMapEvent(edp,reqState,report),"\"","\\\"");
-                out.write("\"<"+EventUtil.TAG_Point+"><![CDATA[" + rcd + "]]></"+EventUtil.TAG_Point+">\\n\" +\n");
-                //out.write("\"" + rcd + "\\n\" +\n");
-            } else {
-                Print.logWarn("Not an EventDataProvider: " + StringTools.className(ev));
+        DBDataIterator dbi = report.getBodyDataIterator();
+        try {
+            while (dbi.hasNext()) {
+                Object ev = dbi.next().getRowObject();
+                if (ev instanceof EventDataProvider) {
+                    EventDataProvider edp = (EventDataProvider)ev;
+                    if (!dbi.hasNext()) { edp.setIsLastEvent(true); }
+                    String rcd = StringTools.replace(this._formatMapEvent(edp,reqState,report),"\"","\\\"");
+                    out.write("\"<"+EventUtil.TAG_Point+"><![CDATA[" + rcd + "]]></"+EventUtil.TAG_Point+">\\n\" +\n");
+                    //out.write("\"" + rcd + "\\n\" +\n");
+                } else {
+                    Print.logWarn("Not an EventDataProvider: " + StringTools.className(ev));
+                }
             }
+        } catch (DBRecordCursor.FetchException fe) {
+            throw new ReportException("Error reading report data", fe.getDBException());
+        } finally {
+            dbi.close();
         }
         out.write("\"</"+EventUtil.TAG_DataSet+">\\n\" +\n");
         out.write("\"</"+EventUtil.TAG_MapData+">\\n\" +\n");
@@ -252,15 +261,22 @@ public class ReportDisplay
 
         /* events */
         java.util.List<EventData> edList = new Vector<EventData>();
-        for (DBDataIterator dbi = report.getBodyDataIterator(); dbi.hasNext();) {
-            Object ev = dbi.next().getRowObject();
-            if (ev instanceof EventData) {
-                EventData ed = (EventData)ev;
-                if (!dbi.hasNext()) { ed.setIsLastEvent(true); }
-                edList.add(ed);
-            } else {
-                Print.logWarn("Not an EventDataProvider: " + StringTools.className(ev));
+        DBDataIterator dbi = report.getBodyDataIterator();
+        try {
+            while (dbi.hasNext()) {
+                Object ev = dbi.next().getRowObject();
+                if (ev instanceof EventData) {
+                    EventData ed = (EventData)ev;
+                    if (!dbi.hasNext()) { ed.setIsLastEvent(true); }
+                    edList.add(ed);
+                } else {
+                    Print.logWarn("Not an EventDataProvider: " + StringTools.className(ev));
+                }
             }
+        } catch (DBRecordCursor.FetchException fe) {
+            throw new ReportException("Error reading report data", fe.getDBException());
+        } finally {
+            dbi.close();
         }
         
         /* KML output */
@@ -70,6 +70,12 @@
 //     -Escape html characters in displayed form values.
 //  2009/11/10  Martin D. Flynn
 //     -Fix: ignore "trackMap.mapUpdateOnLoad" property when displaying fleet map.
+//  2010/01/11  Martin D. Flynn
+//     -Added "mapchg" command, which waits for Device location changes from the
+//      EventUpdateFeed, so that auto-update only reloads the map when a displayed
+//      Device has moved.
+//     -Added map size/bounds request parameters used for route simplification.
+//     -"mapchg" responses include "BUSY" when the request was not allowed to wait.
 // ----------------------------------------------------------------------------
 package org.opengts.war.track.page;
 
@@ -79,6 +85,7 @@ import java.util.TimeZone;
 import java.util.Iterator;
 import java.util.Vector;
 import java.util.Map;
+import java.util.Set;
 import java.io.*;
 
 import javax.servlet.*;
@@ -136,6 +143,7 @@ public abstract class TrackMap
     public  static final String  COMMAND_MAP_UPDATE             = "mapupd";                 // arg=<N/A>
     public  static final String  COMMAND_KML_UPDATE             = "kmlupd";                 // arg=<N/A>
     public  static final String  COMMAND_AUTO_UPDATE            = "auto";                   // arg=interval,maxcount
+    public  static final String  COMMAND_MAP_CHANGES            = "mapchg";                 // arg=sequence
 
     // ------------------------------------------------------------------------
     // Calendar vars
@@ -259,6 +267,7 @@ public abstract class TrackMap
         String  mapUpdURL,
         String  devicePingURL,
         String  kmlUpdURL,
+        String  mapChgURL,
         boolean autoUpdateEnabled,
         boolean autoUpdateOnLoad,
         long    autoInterval,
@@ -367,13 +376,20 @@ public abstract class TrackMap
         JavaScriptTools.writeJSVar(out, "MAP_UPDATE_URL"            , mapUpdURL);
         JavaScriptTools.writeJSVar(out, "DEVICE_PING_URL"           , devicePingURL);
         JavaScriptTools.writeJSVar(out, "KML_UPDATE_URL"            , kmlUpdURL);
+        JavaScriptTools.writeJSVar(out, "MAP_CHANGE_URL"            , mapChgURL);
         JavaScriptTools.writeJSVar(out, "PARM_RANGE_FR"             , Calendar.PARM_RANGE_FR);
         JavaScriptTools.writeJSVar(out, "PARM_RANGE_TO"             , Calendar.PARM_RANGE_TO);
         JavaScriptTools.writeJSVar(out, "PARM_TIMEZONE"             , Calendar.PARM_TIMEZONE);
         JavaScriptTools.writeJSVar(out, "PARM_LIMIT"                , PARM_LIMIT);
         JavaScriptTools.writeJSVar(out, "PARM_LIMIT_TYPE"           , PARM_LIMIT_TYPE);
+        JavaScriptTools.writeJSVar(out, "PARM_MAP_WIDTH"            , PARM_MAP_WIDTH);
+        JavaScriptTools.writeJSVar(out, "PARM_MAP_HEIGHT"           , PARM_MAP_HEIGHT);
+        JavaScriptTools.writeJSVar(out, "PARM_MAP_BOUNDS"           , PARM_MAP_BOUNDS);
+        JavaScriptTools.writeJSVar(out, "PARM_MAP_FIT"              , PARM_MAP_FIT);
+        JavaScriptTools.writeJSVar(out, "PARM_MAP_CENTER_LAST"      , PARM_MAP_CENTER_LAST);
         JavaScriptTools.writeJSVar(out, "PARM_DEVICE_GROUP"         , parmDevGrp);
         JavaScriptTools.writeJSVar(out, "PARM_DEVICE_COMMAND"       , PARM_DEVICE_COMMAND);
+        JavaScriptTools.writeJSVar(out, "PARM_COMMAND_ARG"          , CommonServlet.PARM_ARGUMENT);
 
         /* MapShapes (ZoomRegionShapes) */
         final Map<String,MapShape> mapShapes = reqState.getZoomRegionShapes();
@@ -475,6 +491,32 @@ public abstract class TrackMap
         final boolean isFleet = this.isFleet();
         reqState.setFleet(isFleet);
 
+        /* Device location changes request (special case of 'Map') */
+        // Response: "SEQ:<sequence>[:RESET][:BUSY]", followed by "<deviceID>,<timestamp>,<lat>,<lon>"
+        // for each displayed Device which has moved since the specified sequence number.
+        if (cmdName.equals(COMMAND_MAP_CHANGES)) {
+            HttpServletResponse response = reqState.getHttpServletResponse();
+            CommonServlet.setResponseContentType(response, HTMLTools.CONTENT_TYPE_PLAIN);
+            PrintWriter out = response.getWriter();
+            if (!EventUpdateFeed.isEnabled()) {
+                out.println(Track.DATA_RESPONSE_ERROR);
+                return;
+            }
+            try {
+                long sinceSeq = StringTools.parseLong(cmdArg, -1L);
+                Set<String> devIDs = reqState.getMapDeviceIDs();
+                EventUpdateFeed.ChangeSet cs = EventUpdateFeed.waitForChanges(currAcct.getAccountID(), devIDs, sinceSeq, -1L);
+                out.println("SEQ:" + cs.getSequence() + (cs.isReset()? ":RESET" : "") + (cs.isBusy()? ":BUSY" : ""));
+                for (EventUpdateFeed.DeviceChange dc : cs.getChanges()) {
+                    out.println(dc.toString());
+                }
+            } catch (DBException dbe) {
+                Print.logException("Error reading map Devices", dbe);
+                out.println(Track.DATA_RESPONSE_ERROR);
+            }
+            return;
+        }
+
         /* no defined Device? */
         final Device device;
         if (isFleet) {
@@ -843,6 +885,7 @@ public abstract class TrackMap
                     //EncodeMakeURL(reqState, Track.BASE_URI(), pageName, COMMAND_DEVICE_PING),
                     privLabel.getWebPageURL(reqState, pageName, COMMAND_DEVICE_PING),
                     EncodeMakeURL(reqState,Track.BASE_URI()+".kml",pageName,COMMAND_KML_UPDATE,googleKmlArg),
+                    EventUpdateFeed.isEnabled()? privLabel.getWebPageURL(reqState, pageName, COMMAND_MAP_CHANGES) : null,
                     autoUpdateEnabled, autoUpdateOnLoad, autoInterval, autoMaxCount
                     );
             }
@@ -30,6 +30,11 @@
 //  2009/11/10  Martin D. Flynn
 //     -Added condition to only restart auto-update if "AutoUpdateOnLoad" is true
 //      AND auto-update is currently active/in-process.
+//  2010/01/11  Martin D. Flynn
+//     -When the Device location change feed is enabled (MAP_CHANGE_URL), auto-update
+//      waits for displayed Devices to move, rather than reloading the map periodically.
+//      ("BUSY" responses, returned when the server is not allowing more waiting requests,
+//      delay the next change request)
 // ----------------------------------------------------------------------------
 
 var ID_DEVICE_ID        = "deviceSelector";
@@ -351,13 +356,25 @@ function _setAutoUpdateButtonText(text)
     }
 }
 
+/* auto-update the map now */
+function _autoUpdateMapNow()
+{
+    _resetCalandarDates();
+    var limit = ((MapUpdateOnLoad == "last") && !IS_FLEET)? 1 : trackMapEventLimit(); // single last point, or all points
+    trackMapUpdateMap(limit, "last", jsmRecenterZoomMode(AutoUpdateRecenterMode), 0);
+}
+
 /* periodic map update timer target */
 function _timerAutoUpdateMap() 
 {
+    var feedActive = (trackMapChangeSeq >= 0);
     if (--AutoIntervalCount <= 0) {
-        _resetCalandarDates();
-        var limit = ((MapUpdateOnLoad == "last") && !IS_FLEET)? 1 : trackMapEventLimit();
-        trackMapUpdateMap(limit, "last", jsmRecenterZoomMode(AutoUpdateRecenterMode), 0);
+        if (!feedActive) {
+            // map is reloaded each interval
+            _autoUpdateMapNow();
+        } else {
+            // map is reloaded when a displayed device moves (see _trackMapWaitForChanges)
+        }
         if ((AutoMaxCount > 0) && (++AutoUpdateMapCount >= AutoMaxCount)) {
             // we've reached the maximum number of allowed updates.
             stopAutoUpdateMapTimer();
@@ -365,20 +382,19 @@ function _timerAutoUpdateMap()
         }
         AutoIntervalCount = AutoInterval; // start over
     }
-    _setAutoUpdateButtonText(TEXT_autoUpdateStop + ' : ' + AutoIntervalCount);
+    _setAutoUpdateButtonText(feedActive? TEXT_autoUpdateStop : (TEXT_autoUpdateStop + ' : ' + AutoIntervalCount));
 }
 
 /* start a map auto-update timer */
 function startAutoUpdateMapTimer() 
 {
     stopAutoUpdateMapTimer();
-    _resetCalandarDates();
-    var limit = ((MapUpdateOnLoad == "last") && !IS_FLEET)? 1 : trackMapEventLimit(); // single last point, or all points
-    trackMapUpdateMap(limit, "last", jsmRecenterZoomMode(AutoUpdateRecenterMode), 0); // update map now
+    _autoUpdateMapNow(); // update map now
     AutoIntervalCount  = AutoInterval;
     AutoUpdateMapCount = 0;
     _setAutoUpdateButtonText(TEXT_autoUpdateStop);
     AutoUpdateMapTimer = setInterval('_timerAutoUpdateMap()',1000); // setTimeout
+    _trackMapWaitForChanges();
 }
 
 /* stop any running map auto-update timer */
@@ -388,6 +404,7 @@ function stopAutoUpdateMapTimer()
         clearInterval(AutoUpdateMapTimer); // clearTimeout
         AutoUpdateMapTimer = null;
     }
+    _trackMapCancelChanges();
     AutoIntervalCount  = 0;
     AutoUpdateMapCount = 0;
     _setAutoUpdateButtonText(TEXT_autoUpdateStart);
@@ -395,6 +412,78 @@ function stopAutoUpdateMapTimer()
 
 // ----------------------------------------------------------------------------
 
+var trackMapChangeSeq = -1;     // last Device location change sequence (-1 if not active)
+var trackMapChangeReq = null;   // outstanding change request
+var TRACKMAP_CHANGE_BUSY_MS = 10000; // delay before the next change request, if the server is busy
+
+/* wait for displayed devices to move, then update the map */
+function _trackMapWaitForChanges()
+{
+    if (!MAP_CHANGE_URL || (AutoUpdateMapTimer == null) || (trackMapChangeReq != null)) {
+        return;
+    }
+    var dev = IS_FLEET? document.SelectDeviceForm.group.value : document.SelectDeviceForm.device.value; // PARM_GEOUP/PARM_DEVICE
+    var url = MAP_CHANGE_URL + 
+        "&_uniq=" + Math.random() +  // necessary to make the URL unique
+        "&" + PARM_COMMAND_ARG + "=" + trackMapChangeSeq +
+        "&" + PARM_DEVICE_GROUP + "=" + strEncode(dev);
+    try {
+        var req = jsmGetXMLHttpRequest();
+        if (!req) {
+            MAP_CHANGE_URL = null; // not supported, use periodic updates
+            return;
+        }
+        req.open("GET", url, true);
+        req.setRequestHeader("If-Modified-Since", "Sat, 1 Jan 2000 00:00:00 GMT");
+        req.onreadystatechange = function() {
+            if ((req.readyState != 4) || (req != trackMapChangeReq)) {
+                return; // in-process, or cancelled
+            }
+            trackMapChangeReq = null;
+            var lines = req.responseText.trim().split("\n");
+            var hdr   = lines[0].trim().split(":");
+            if ((hdr.length < 2) || (hdr[0] != "SEQ")) {
+                // error/logout: revert to periodic updates
+                MAP_CHANGE_URL    = null;
+                trackMapChangeSeq = -1;
+                return;
+            }
+            var wasActive = (trackMapChangeSeq >= 0);
+            var isReset   = false;
+            var isBusy    = false;
+            for (var h = 2; h < hdr.length; h++) {
+                if (hdr[h] == "RESET") { isReset = true; }
+                if (hdr[h] == "BUSY" ) { isBusy  = true; }
+            }
+            trackMapChangeSeq = parseInt(hdr[1]);
+            if (wasActive && (isReset || (lines.length > 1)) && (AutoUpdateMapTimer != null)) {
+                // reset, or a displayed device has moved
+                _autoUpdateMapNow();
+            }
+            setTimeout('_trackMapWaitForChanges()', (isBusy? TRACKMAP_CHANGE_BUSY_MS : 500));
+        };
+        trackMapChangeReq = req;
+        req.send(null);
+    } catch (e) {
+        trackMapChangeReq = null;
+        trackMapChangeSeq = -1;
+        MAP_CHANGE_URL    = null;
+    }
+}
+
+/* cancel any outstanding change request */
+function _trackMapCancelChanges()
+{
+    var req = trackMapChangeReq;
+    trackMapChangeReq = null;
+    trackMapChangeSeq = -1;
+    if (req != null) {
+        try { req.abort(); } catch (e) { /*ignore*/ }
+    }
+}
+
+// ----------------------------------------------------------------------------
+
 /* show device selector */
 // only valid if DeviceChooser has been included
 function trackMapShowSelector()
@@ -28,6 +28,8 @@
 //   JSShowPushpin(JSMapPushpin pushPin, boolean center)
 //   JSPauseReplay(int replay)
 //   JSUnload() 
+// Optional funtions defined by this module:
+//   JSGetViewBounds()
 // ----------------------------------------------------------------------------
 // Change History:
 //  2008/07/08  Martin D. Flynn
@@ -43,6 +45,8 @@
 //     -Added support for displaying multipoint geozones (single point at a time)
 //  2009/11/01  Juan Carlos Argueta
 //     -Added route-arrows
+//  2010/01/11  Martin D. Flynn
+//     -Added "JSGetViewBounds" (used for route simplification)
 // ----------------------------------------------------------------------------
 
 var googleMap2              = null;
@@ -193,6 +197,28 @@ JSMap.prototype.JSUnload = function()
 
 // ----------------------------------------------------------------------------
 
+/**
+*** Returns the bounds of the displayed map
+*** @return The JSBounds of the displayed map (or null if not available)
+**/
+JSMap.prototype.JSGetViewBounds = function()
+{
+    var gb = this.gmapGoogleMap? this.gmapGoogleMap.getBounds() : null;
+    if (!gb) {
+        return null;
+    }
+    var sw = gb.getSouthWest();
+    var ne = gb.getNorthEast();
+    var bounds = new JSBounds();
+    bounds.minLat = sw.lat();
+    bounds.minLon = sw.lng();
+    bounds.maxLat = ne.lat();
+    bounds.maxLon = ne.lng();
+    return bounds;
+};
+
+// ----------------------------------------------------------------------------
+
 /**
 *** Clear all pushpins and drawn lines
 **/
@@ -38,6 +38,10 @@
 //  2009/11/01  Martin D. Flynn
 //     -Display all device detail records when showing multiple events per device
 //      on group map.  Line breaks separate devices.
+//  2010/01/11  Martin D. Flynn
+//     -Map pixel size and displayed bounds are now included in the map update URL, so
+//      that the server can simplify the route for the current map resolution.
+//      (the map is zoomed to fit the points only for RECENTER_ZOOM)
 // ----------------------------------------------------------------------------
 // External funtions:
 //   new JSMap(String mapID)
@@ -50,6 +54,7 @@
 //   JSShowPushpin(JSMapPushpin pushPin, boolean center)
 //   JSPauseReplay(int replay)
 //   JSUnload()
+//   JSGetViewBounds() [optional]
 // ----------------------------------------------------------------------------
 
 /* these must match the data response values in "Track.java" */
@@ -1866,10 +1871,43 @@ function mapProviderUpdateMap(mapURL, recenterMode, replay)
     if (recursiveRefresh != 0) { return; } // we're already in a 'update' 
     recursiveRefresh++;
     jsMapInit();
-    jsmLoadPoints(mapURL, recenterMode, replay);
+    jsmLoadPoints(mapURL + jsmMapViewArgs(recenterMode), recenterMode, replay);
     recursiveRefresh--;
 };
 
+/**
+*** Returns the map pixel size and displayed bounds URL arguments (used by the server
+*** to simplify the route for the current map resolution)
+**/
+function jsmMapViewArgs(recenterMode)
+{
+    if ((typeof PARM_MAP_WIDTH == "undefined") || !jsmapElem) {
+        return "";
+    }
+    var args = "";
+    var size = getElementSize(jsmapElem);
+    if ((size.width > 0) && (size.height > 0)) {
+        args += "&" + PARM_MAP_WIDTH  + "=" + size.width;
+        args += "&" + PARM_MAP_HEIGHT + "=" + size.height;
+    }
+    if (recenterMode == RECENTER_ZOOM) {
+        // map will be zoomed to fit the points
+        args += "&" + PARM_MAP_FIT + "=true";
+    } else
+    if (jsmap && jsmap.JSGetViewBounds) {
+        // map zoom will not change, send the displayed bounds
+        var b = jsmap.JSGetViewBounds();
+        if (b) {
+            args += "&" + PARM_MAP_BOUNDS + "=" + b.minLat + "," + b.minLon + "," + b.maxLat + "," + b.maxLon;
+            if (recenterMode == RECENTER_LAST) {
+                // map will be centered on the last point
+                args += "&" + PARM_MAP_CENTER_LAST + "=true";
+            }
+        }
+    }
+    return args;
+};
+
 /**
 *** Stop replay (if running)
 **/